@@ -1,12 +1,16 @@
 package com.husky.mp;
 
 import android.Manifest;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.provider.Settings;
+import android.util.Log;
 import android.view.View;
 import android.widget.CompoundButton;
 import android.widget.Switch;
@@ -17,13 +21,36 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 
+import com.husky.mp.karaoke.AnalysisCache;
+import com.husky.mp.karaoke.AudioRecordCaptureSource;
+import com.husky.mp.karaoke.AudioTrackPlayer;
+import com.husky.mp.karaoke.BeatAnalyzer;
+import com.husky.mp.karaoke.BeatGrid;
 import com.husky.mp.karaoke.KaraokeManager;
+import com.husky.mp.karaoke.LoudnessScanner;
+import com.husky.mp.karaoke.Lyrics;
+import com.husky.mp.karaoke.LyricsLoader;
+import com.husky.mp.karaoke.MediaInput;
+import com.husky.mp.karaoke.MelodyAnalyzer;
+import com.husky.mp.karaoke.MelodyIndex;
+import com.husky.mp.karaoke.MixBroadcast;
+import com.husky.mp.karaoke.PerformanceRecorder;
+import com.husky.mp.karaoke.PitchScorer;
+import com.husky.mp.karaoke.PlaybackClock;
+import com.husky.mp.karaoke.TrackLoudness;
+import com.husky.mp.karaoke.WaveformPeaks;
+import com.husky.mp.karaoke.dsp.Reverb;
+import com.husky.mp.service.HuskyMPService;
+import com.husky.mp.util.AssetInstaller;
 import com.husky.mp.util.StorageUtil;
-import com.husky.mp.util.Utils;
+import com.husky.mp.widget.LyricsView;
+import com.husky.mp.widget.SpectrumView;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 public class KaraokeActivity extends AppCompatActivity {
 
@@ -31,16 +58,54 @@ public class KaraokeActivity extends AppCompatActivity {
     private static final int PERMISSION_REQUEST_CODE = 100;
 
     private Switch switchButton;
+    private Switch micSwitch;
+    private Switch practiceSwitch;
+    private Switch loopSwitch;
+    private Switch reverbSwitch;
+    private Switch recordSwitch;
+    private SpectrumView spectrumView;
+    private LyricsView lyricsView;
+    private Lyrics lyrics;  // 歌词，还没有加载时为null
 
     private String original = "狂浪-原唱.mp3";   // 原唱
     private String music = "狂浪-伴唱.mp3";      // 伴唱
     private String zrce = "狂浪.zrce";           // 歌词
+    private String performance = "狂浪-演唱.m4a"; // 演唱录音
+    private String vocal = "狂浪-人声.m4a";       // 只有人声的录音（与伴奏对齐）
     //    private String original = "5d4e894aa559b3272a8707a27b3b2323.mp3";   // 原唱
 //    private String music = "fd0e957aa8025da1755c7ffe657ae752.mp3";      // 伴唱
 //    private String originalPcm = "originalPcm.pcm";      // 伴唱
 //    private String musicPcm = "musicPcm.pcm";      // 伴唱
 
     private KaraokeManager karaokeManager;
+    private Future<?> melodyTask;   // 参考旋律分析任务
+    private Future<?> beatTask;     // 节拍分析任务
+    private Future<?> lyricsTask;   // 歌词加载任务
+    private Future<?> originalLoudnessTask; // 响度扫描任务
+    private Future<?> musicLoudnessTask;
+    // 播放位置推送给歌词
+    private final PlaybackClock.OnPositionListener positionListener = new PlaybackClock.OnPositionListener() {
+        @Override
+        public void onPosition(long positionUs) {
+            lyricsView.setPositionUs(positionUs);
+        }
+    };
+    private Reverb vocalReverb;     // 人声混响
+    private PerformanceRecorder recorder;   // 演唱录音
+    private PerformanceRecorder vocalRecorder;  // 人声录音
+    private long vocalOffsetFrames = 0; // 上次测量的人声延迟，下次测不出来时使用
+    private HuskyMPService.LocalBinder playback;    // 后台播放服务，没有绑定时为null
+    private final ServiceConnection playbackConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            playback = (HuskyMPService.LocalBinder) service;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            playback = null;
+        }
+    };
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -53,6 +118,57 @@ public class KaraokeActivity extends AppCompatActivity {
                 karaokeManager.setOriginal(isChecked);
             }
         });
+        micSwitch = findViewById(R.id.micSwitch);
+        micSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                updateMic();
+            }
+        });
+        practiceSwitch = findViewById(R.id.practiceSwitch);
+        practiceSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (karaokeManager != null) {
+                    // 慢速练习：75%速度，音调不变
+                    karaokeManager.setSpeed(isChecked ? 0.75f : 1f);
+                }
+            }
+        });
+
+        loopSwitch = findViewById(R.id.loopSwitch);
+        loopSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (karaokeManager != null) {
+                    updateLoop(isChecked);
+                }
+            }
+        });
+
+        spectrumView = findViewById(R.id.spectrumView);
+        lyricsView = findViewById(R.id.lyricsView);
+        reverbSwitch = findViewById(R.id.reverbSwitch);
+        reverbSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (vocalReverb != null) {
+                    vocalReverb.setEnabled(isChecked);  // 旁路时不占用CPU
+                }
+            }
+        });
+
+        recordSwitch = findViewById(R.id.recordSwitch);
+        recordSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                if (isChecked) {
+                    startRecord();
+                } else {
+                    stopRecord();
+                }
+            }
+        });
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             checkPermission();
@@ -62,6 +178,19 @@ public class KaraokeActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, HuskyMPService.class), playbackConnection, BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        unbindService(playbackConnection);
+        playback = null;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
     private void checkPermission() {
         List<String> permissions = new ArrayList<>();
@@ -69,6 +198,9 @@ public class KaraokeActivity extends AppCompatActivity {
         if (checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
             permissions.add(Manifest.permission.WRITE_EXTERNAL_STORAGE);
         }
+        if (checkSelfPermission(Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
+            permissions.add(Manifest.permission.RECORD_AUDIO);
+        }
 
         if (permissions.size() == 0) {
             // 已经有了权限
@@ -113,36 +245,239 @@ public class KaraokeActivity extends AppCompatActivity {
 
     /**
      * 拷贝媒体资源
+     * 原唱伴唱直接从assets中读取（见 MediaInput.fromAsset），不再拷贝，只拷贝歌词，拷贝后在后台解析
      */
     private void copyMedia() {
-        Utils.copyFileToSdcard(this, original,
-                StorageUtil.getExternalFilesDir(this, null) + File.separator + original);
-        Utils.copyFileToSdcard(this, music,
-                StorageUtil.getExternalFilesDir(this, null) + File.separator + music);
-        Utils.copyFileToSdcard(this, zrce,
-                StorageUtil.getExternalFilesDir(this, null) + File.separator + zrce);
+        AssetInstaller.get(this, StorageUtil.getExternalFilesDir(this, null)).install(zrce, new AssetInstaller.OnInstallListener() {
+            @Override
+            public void onInstalled(String assetName, File file) {
+                lyricsTask = LyricsLoader.loadAsync(file, AnalysisCache.get(KaraokeActivity.this), new LyricsLoader.OnLoadListener() {
+                    @Override
+                    public void onLoaded(Lyrics lyrics) {
+                        KaraokeActivity.this.lyrics = lyrics;
+                        lyricsView.setLyrics(lyrics);
+                    }
+
+                    @Override
+                    public void onFailed(IOException e) {
+                        Toast.makeText(KaraokeActivity.this, "歌词加载失败！", Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(String assetName, IOException e) {
+                Toast.makeText(KaraokeActivity.this, "歌词拷贝失败！", Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     public void start(View view) {
+        if (playback != null) {
+            playback.pause();   // 唱歌时暂停后台试听
+        }
         // 可以写在前面其他初始化的时候
         if (karaokeManager == null) {
             karaokeManager = new KaraokeManager(
-                    StorageUtil.getExternalFilesDir(this, null) + File.separator + original,
-                    StorageUtil.getExternalFilesDir(this, null) + File.separator + music);
+                    MediaInput.fromAsset(this, original),
+                    MediaInput.fromAsset(this, music));
 
+            // 首次播放时顺便生成波形峰值
+            karaokeManager.setFramesPerBurst(AudioTrackPlayer.getFramesPerBurst(this));
+            karaokeManager.setWaveformFile(WaveformPeaks.getFile(MediaInput.fromAsset(this, original), AnalysisCache.get(this)));
             karaokeManager.setOnPrepareListener(new KaraokeManager.OnPrepareListener() {
                 @Override
                 public void onPrepared() {
 //                    karaokeManager.setPCMPath(StorageUtil.getExternalFilesDir(KaraokeActivity.this, null) + File.separator + originalPcm,
 //                            StorageUtil.getExternalFilesDir(KaraokeActivity.this, null) + File.separator + musicPcm);
+                    updateMic();
+                    if (vocalReverb == null) {
+                        vocalReverb = new Reverb(karaokeManager.getSampleRate(), karaokeManager.getChannelCount());
+                        karaokeManager.getMicEffects().add(vocalReverb);
+                    }
+                    vocalReverb.setEnabled(reverbSwitch.isChecked());
+                    karaokeManager.setSpeed(practiceSwitch.isChecked() ? 0.75f : 1f);
+                    spectrumView.setSpectrumTap(karaokeManager.getSpectrumTap());
+                    // 播放时每次屏幕刷新推送位置，暂停或播完后停止
+                    karaokeManager.getPlaybackClock().addOnPositionListener(positionListener);
                     karaokeManager.start();
                 }
             });
+
+            // 后台分析原唱的参考旋律（有缓存时直接读取），完成后开始评分
+            melodyTask = MelodyAnalyzer.analyzeAsync(MediaInput.fromAsset(this, original), AnalysisCache.get(this),
+                    new MelodyAnalyzer.OnAnalyzeListener() {
+                        @Override
+                        public void onAnalyzed(MelodyIndex index) {
+                            karaokeManager.setMelodyIndex(index);
+                        }
+
+                        @Override
+                        public void onFailed(IOException e) {
+                            Toast.makeText(KaraokeActivity.this, "旋律分析失败，无法评分！", Toast.LENGTH_SHORT).show();
+                        }
+                    });
+
+            // 后台分析伴唱的节拍（有缓存时直接读取），伴唱没有人声，节拍更清楚
+            beatTask = BeatAnalyzer.analyzeAsync(MediaInput.fromAsset(this, music), AnalysisCache.get(this),
+                    new BeatAnalyzer.OnAnalyzeListener() {
+                        @Override
+                        public void onAnalyzed(BeatGrid grid) {
+                            karaokeManager.setBeatGrid(grid);
+                        }
+
+                        @Override
+                        public void onFailed(IOException e) {
+                            // 已经记录日志，没有节拍信息
+                        }
+                    });
+
+            // 后台扫描原唱伴唱的响度（有缓存时直接读取），完成后按响度归一化，失败时保持原音量
+            LoudnessScanner scanner = LoudnessScanner.get(this);
+            originalLoudnessTask = scanner.scanAsync(MediaInput.fromAsset(this, original), new LoudnessScanner.OnScanListener() {
+                @Override
+                public void onScanned(MediaInput input, TrackLoudness loudness) {
+                    karaokeManager.setOriginalLoudness(loudness);
+                }
+
+                @Override
+                public void onFailed(MediaInput input, IOException e) {
+                    // 已经记录日志，保持原音量
+                }
+            });
+            musicLoudnessTask = scanner.scanAsync(MediaInput.fromAsset(this, music), new LoudnessScanner.OnScanListener() {
+                @Override
+                public void onScanned(MediaInput input, TrackLoudness loudness) {
+                    karaokeManager.setMusicLoudness(loudness);
+                }
+
+                @Override
+                public void onFailed(MediaInput input, IOException e) {
+                    // 已经记录日志，保持原音量
+                }
+            });
         }
         // 调用该api才是真正准备启动编码器等操作
         karaokeManager.prepare();
     }
 
+    /**
+     * 根据开关开启或关闭麦克风返听，采样率需要与播放一致，所以在准备就绪后才能开启
+     */
+    private void updateMic() {
+        if (karaokeManager == null || karaokeManager.getSampleRate() <= 0) {
+            return;
+        }
+        if (micSwitch.isChecked()) {
+            if (karaokeManager.getMicSource() == null) {
+                try {
+                    karaokeManager.setCaptureSource(new AudioRecordCaptureSource(this, karaokeManager.getSampleRate()));
+                } catch (IllegalStateException e) {   // 没有录音权限或麦克风被占用
+                    e.printStackTrace();
+                    Toast.makeText(this, "麦克风打开失败！", Toast.LENGTH_SHORT).show();
+                }
+            }
+        } else {
+            karaokeManager.setCaptureSource(null);
+        }
+    }
+
+    /**
+     * 循环练习：反复播放正在唱（或刚唱完）的一句，没有歌词时反复播放刚才的几秒
+     *
+     * @param loop
+     */
+    private void updateLoop(boolean loop) {
+        if (!loop) {
+            karaokeManager.clearLoop();
+            return;
+        }
+        long positionUs = karaokeManager.getPositionUs();
+        int line = lyrics == null ? -1 : lyrics.findLine(positionUs);
+        if (line >= 0) {
+            karaokeManager.setLoop(lyrics.getLineStartUs(line), lyrics.getLineEndUs(line));
+        } else {
+            karaokeManager.setLoop(positionUs - 5_000_000L, positionUs);
+        }
+    }
+
+    /**
+     * 录制伴奏加人声，播放开始后才能录制
+     */
+    private void startRecord() {
+        MixBroadcast broadcast = karaokeManager == null ? null : karaokeManager.getMixBroadcast();
+        if (broadcast == null || broadcast.isClosed()) {
+            Toast.makeText(this, "请先开始播放！", Toast.LENGTH_SHORT).show();
+            recordSwitch.setChecked(false);
+            return;
+        }
+        recorder = new PerformanceRecorder(broadcast,
+                new File(StorageUtil.getExternalFilesDir(this, null), performance));
+        recorder.setOnRecordListener(new PerformanceRecorder.OnRecordListener() {
+            @Override
+            public void onRecorded(File file, long durationUs) {
+                Toast.makeText(KaraokeActivity.this, "录音已保存：" + file.getPath(), Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                Toast.makeText(KaraokeActivity.this, "录音失败！", Toast.LENGTH_SHORT).show();
+            }
+        });
+        recorder.start();
+
+        // 混音中的人声是实时叠加的，已经晚了输出加输入延迟；另外录一份只有人声的，去掉延迟后与伴奏对齐
+        final PerformanceRecorder vocalRecorder = new PerformanceRecorder(karaokeManager.getMicBroadcast(),
+                new File(StorageUtil.getExternalFilesDir(this, null), vocal));
+        vocalRecorder.setAlignment(karaokeManager.getReferenceBroadcast(), vocalOffsetFrames);
+        vocalRecorder.setOnRecordListener(new PerformanceRecorder.OnRecordListener() {
+            @Override
+            public void onRecorded(File file, long durationUs) {
+                if (vocalRecorder.isAlignMeasured()) {
+                    vocalOffsetFrames = vocalRecorder.getAlignOffsetFrames();
+                }
+                Log.d(TAG, "vocal recorded: " + file.getPath() + ", offset = " + vocalRecorder.getAlignOffsetFrames()
+                        + " frames, measured = " + vocalRecorder.isAlignMeasured());
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                Log.e(TAG, "vocal record failed", e);
+            }
+        });
+        vocalRecorder.start();
+        this.vocalRecorder = vocalRecorder;
+    }
+
+    private void stopRecord() {
+        if (recorder != null) {
+            recorder.stop();
+            Log.d(TAG, "record: dropped frames = " + recorder.getDroppedFrames()
+                    + ", max encode lag = " + recorder.getMaxEncodeLagUs() / 1000 + "ms");
+            recorder = null;
+        }
+        if (vocalRecorder != null) {
+            vocalRecorder.stop();
+            vocalRecorder = null;
+        }
+    }
+
+    /**
+     * 试听：原唱、伴唱作为播放队列交给后台播放服务，退出界面后继续播放
+     *
+     * @param view
+     */
+    public void listen(View view) {
+        if (playback == null) {
+            return;
+        }
+        List<MediaInput> queue = new ArrayList<>();
+        queue.add(MediaInput.fromAsset(this, original));
+        queue.add(MediaInput.fromAsset(this, music));
+        playback.getPlayer().setQueue(queue);
+        playback.play(0);
+    }
+
     public void pause(View view) {
         karaokeManager.pause();
     }
@@ -153,11 +488,37 @@ public class KaraokeActivity extends AppCompatActivity {
 
     public void stop(View view) {
         karaokeManager.stop();
+        Log.d(TAG, "effects cpu: vocal = " + karaokeManager.getMicEffects().getCpuLoad()
+                + ", master = " + karaokeManager.getMasterEffects().getCpuLoad());
+        PitchScorer scorer = karaokeManager.getPitchScorer();
+        if (scorer != null && scorer.getScoredFrames() > 0) {
+            Toast.makeText(this, "得分：" + scorer.getScore(), Toast.LENGTH_LONG).show();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        karaokeManager.release();
+        stopRecord();
+        if (lyricsTask != null) {
+            lyricsTask.cancel(true);
+        }
+        if (melodyTask != null) {
+            melodyTask.cancel(true);
+        }
+        if (beatTask != null) {
+            beatTask.cancel(true);
+        }
+        if (originalLoudnessTask != null) {
+            originalLoudnessTask.cancel(true);
+            musicLoudnessTask.cancel(true);
+        }
+        if (karaokeManager != null) {   // 没有点过开始时还没有创建
+            PlaybackClock clock = karaokeManager.getPlaybackClock();
+            if (clock != null) {
+                clock.removeOnPositionListener(positionListener);
+            }
+            karaokeManager.release();
+        }
     }
 }
@@ -0,0 +1,62 @@
+package com.husky.mp.karaoke;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 单曲分析结果缓存目录
+ * <p>
+ * 每首歌的各种离线分析结果（旋律索引等）放在同一目录中，文件名为媒体缓存键（见 MediaInput.getCacheKey）的MD5加上分析类型扩展名，
+ * 媒体文件变化后缓存键随之变化，旧的结果不会再被使用
+ */
+public class AnalysisCache {
+
+    private static final String DIR_NAME = "analysis";
+
+    private static AnalysisCache instance;
+
+    private final File dir;
+
+    public static synchronized AnalysisCache get(Context context) {
+        if (instance == null) {
+            instance = new AnalysisCache(new File(context.getApplicationContext().getCacheDir(), DIR_NAME));
+        }
+        return instance;
+    }
+
+    public AnalysisCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 分析结果文件（不一定存在）
+     *
+     * @param input 媒体
+     * @param kind  分析类型（扩展名，如"melody"）
+     * @return
+     */
+    public File getFile(MediaInput input, String kind) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, md5(input.getCacheKey()) + "." + kind);
+    }
+
+    private static String md5(String text) {
+        try {
+            byte[] bytes = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.husky.mp.karaoke;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 直接读取APK中assets资源的数据源（api >= 23）
+ * <p>
+ * 通过 AssetFileDescriptor 定位资源在APK中的偏移，使用 FileChannel 按位置读取（不移动文件指针，可以并发读），
+ * 并用几个小块做缓存，MediaExtractor 探测格式时反复读取文件头尾不会每次都落到磁盘上
+ * <p>
+ * 注意：只能读取未压缩存放的资源（mp3等格式默认不压缩，见 build.gradle 中 aaptOptions）
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class AssetDataSource extends MediaDataSource {
+
+    private static final String TAG = "AssetDataSource";
+
+    private static final int BLOCK_SIZE = 32 * 1024;    // 缓存块大小
+    private static final int BLOCK_COUNT = 8;           // 缓存块数量
+
+    private AssetFileDescriptor assetFileDescriptor;
+    private FileInputStream inputStream;
+    private FileChannel fileChannel;
+    private long startOffset;   // 资源在APK中的偏移
+    private long length;        // 资源大小
+
+    private byte[][] blocks = new byte[BLOCK_COUNT][BLOCK_SIZE];    // 缓存块
+    private ByteBuffer[] blockBuffers = new ByteBuffer[BLOCK_COUNT];
+    private long[] blockIndices = new long[BLOCK_COUNT];   // 缓存块对应的块序号，-1表示空
+    private int[] blockSizes = new int[BLOCK_COUNT];       // 缓存块中的有效数据大小
+    private long[] blockAccess = new long[BLOCK_COUNT];    // 最近访问序号，用于淘汰最久没用的块
+    private long accessCounter = 0;
+
+    private long hitCount = 0;  // 缓存命中次数
+    private long missCount = 0; // 缓存未命中次数
+
+    public AssetDataSource(AssetManager assetManager, String assetName) throws IOException {
+        this(assetManager.openFd(assetName));  // 资源被压缩时会抛出异常
+    }
+
+    private AssetDataSource(AssetFileDescriptor assetFileDescriptor) {
+        this(new FileInputStream(assetFileDescriptor.getFileDescriptor()),
+                assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+        this.assetFileDescriptor = assetFileDescriptor;
+    }
+
+    /**
+     * 读取文件中的一段
+     *
+     * @param inputStream 关闭时一起关闭
+     * @param startOffset 数据在文件中的偏移
+     * @param length      数据大小
+     */
+    AssetDataSource(FileInputStream inputStream, long startOffset, long length) {
+        this.inputStream = inputStream;
+        this.fileChannel = inputStream.getChannel();
+        this.startOffset = startOffset;
+        this.length = length;
+
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            blockBuffers[i] = ByteBuffer.wrap(blocks[i]);
+            blockIndices[i] = -1;
+        }
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (fileChannel == null) {
+            throw new IOException("data source is closed");
+        }
+        if (position >= length) {
+            return -1;  // 读到末尾
+        }
+        if (size == 0) {
+            return 0;
+        }
+        size = (int) Math.min(size, length - position);
+
+        int read = 0;
+        while (read < size) {
+            long current = position + read;
+            int slot = loadBlock(current / BLOCK_SIZE);
+            int blockOffset = (int) (current % BLOCK_SIZE);
+            int count = Math.min(size - read, blockSizes[slot] - blockOffset);
+            if (count <= 0) {
+                break;
+            }
+            System.arraycopy(blocks[slot], blockOffset, buffer, offset + read, count);
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * 获取缓存块，没有缓存时按位置读取并替换最久没用的块
+     *
+     * @param blockIndex 块序号
+     * @return 缓存槽位
+     * @throws IOException
+     */
+    private int loadBlock(long blockIndex) throws IOException {
+        int victim = 0;
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            if (blockIndices[i] == blockIndex) {
+                blockAccess[i] = ++accessCounter;
+                hitCount++;
+                return i;
+            }
+            if (blockAccess[i] < blockAccess[victim]) {
+                victim = i;
+            }
+        }
+
+        missCount++;
+        long blockStart = blockIndex * BLOCK_SIZE;
+        int blockSize = (int) Math.min(BLOCK_SIZE, length - blockStart);
+        ByteBuffer byteBuffer = blockBuffers[victim];
+        byteBuffer.clear();
+        byteBuffer.limit(blockSize);
+        while (byteBuffer.hasRemaining()) {
+            // 按位置读取，不依赖也不修改文件指针
+            int count = fileChannel.read(byteBuffer, startOffset + blockStart + byteBuffer.position());
+            if (count < 0) {
+                break;
+            }
+        }
+        blockIndices[victim] = blockIndex;
+        blockSizes[victim] = byteBuffer.position();
+        blockAccess[victim] = ++accessCounter;
+        return victim;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        Log.d(TAG, "close, cache hit = " + hitCount + ", miss = " + missCount);
+        if (fileChannel != null) {
+            fileChannel.close();
+            fileChannel = null;
+        }
+        if (inputStream != null) {
+            inputStream.close();
+            inputStream = null;
+        }
+        if (assetFileDescriptor != null) {
+            assetFileDescriptor.close();
+            assetFileDescriptor = null;
+        }
+    }
+}
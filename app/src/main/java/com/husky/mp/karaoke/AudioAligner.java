@@ -0,0 +1,357 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.FFT;
+
+import java.io.IOException;
+
+/**
+ * 人声与伴奏的延迟对齐
+ * <p>
+ * 跟着伴奏录下的人声会比参考音轨（如原唱）晚，晚的时间是输出延迟加输入延迟。这里把参考和录音都转成单声道、
+ * 降采样到约11kHz，按滑动窗口（约1.5秒，半窗口步进）用FFT计算带PHAT加权的互相关并累加，
+ * 累加结果的峰值即录音相对参考的延迟，再用抛物线插值得到亚采样精度。
+ * 录制人声时由 PerformanceRecorder 在录音开头测量，去掉延迟的部分后再编码（见 PerformanceRecorder.setAlignment）。
+ * <p>
+ * 两路信号合成一个复数信号只做一次正变换，所有FFT缓冲在创建时分配，处理过程不分配内存，
+ * 在手机单核上也远快于实时
+ */
+public class AudioAligner {
+
+    private static final int TARGET_RATE = 11025;  // 分析用的采样率
+    private static final int WINDOW = 16384;    // 分析窗口（降采样后的采样数）
+    private static final int HOP = WINDOW / 2;  // 窗口步进
+    private static final float SILENCE = 1e-4f; // 静音阈值（均方），静音窗口不参与计算
+
+    private final int sampleRate;   // 原始采样率
+    private final int decimation;   // 降采样倍数
+    private final int maxLag;       // 最大搜索延迟（降采样后的采样数）
+
+    private final FFT fft = new FFT(WINDOW * 2);
+    private final float[] window = FFT.hann(WINDOW);
+    private final float[] re = new float[WINDOW * 2];
+    private final float[] im = new float[WINDOW * 2];
+    private final float[] crossRe = new float[WINDOW * 2];
+    private final float[] crossIm = new float[WINDOW * 2];
+
+    private final Channel reference;    // 参考音轨
+    private final Channel recording;    // 录音
+
+    private final float[] correlation;  // 累加的互相关，下标为延迟 + maxLag
+    private int windowCount = 0;    // 参与计算的窗口数
+    private int lastWindowLag = 0;  // 最近一个窗口的延迟估计（降采样后），用于观察漂移
+
+    /**
+     * @param sampleRate         采样率（参考和录音需要一致）
+     * @param referenceChannels  参考音轨声道数
+     * @param recordingChannels  录音声道数
+     * @param maxLagMs           最大搜索延迟（毫秒），正负两个方向
+     */
+    public AudioAligner(int sampleRate, int referenceChannels, int recordingChannels, int maxLagMs) {
+        this.sampleRate = sampleRate;
+        this.decimation = Math.max(1, sampleRate / TARGET_RATE);
+        int lag = (int) ((long) maxLagMs * sampleRate / decimation / 1000);
+        this.maxLag = Math.min(lag, WINDOW / 2);
+        this.correlation = new float[maxLag * 2 + 1];
+        this.reference = new Channel(referenceChannels, decimation);
+        this.recording = new Channel(recordingChannels, decimation);
+    }
+
+    /**
+     * 送入参考音轨的数据（16位交错采样）
+     *
+     * @param buffer
+     * @param size   采样数
+     * @return 接收的采样数，见 pushReference(short[], int, int)
+     */
+    public int pushReference(short[] buffer, int size) {
+        return pushReference(buffer, 0, size);
+    }
+
+    /**
+     * 送入参考音轨的数据（16位交错采样）。录音落后一个窗口以上时缓冲会满，不再接收，
+     * 两路的位置始终一致，剩下的数据等录音送入后再送
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数
+     * @return 接收的采样数
+     */
+    public int pushReference(short[] buffer, int offset, int size) {
+        int count = reference.push(buffer, offset, size);
+        analyze();
+        return count;
+    }
+
+    /**
+     * 送入录音的数据（16位交错采样）
+     *
+     * @param buffer
+     * @param size   采样数
+     * @return 接收的采样数，见 pushRecording(short[], int, int)
+     */
+    public int pushRecording(short[] buffer, int size) {
+        return pushRecording(buffer, 0, size);
+    }
+
+    /**
+     * 送入录音的数据（16位交错采样），参考落后一个窗口以上时不再接收
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数
+     * @return 接收的采样数
+     */
+    public int pushRecording(short[] buffer, int offset, int size) {
+        int count = recording.push(buffer, offset, size);
+        analyze();
+        return count;
+    }
+
+    /**
+     * 两路都攒够一个窗口时计算互相关，然后各自滑动半个窗口
+     */
+    private void analyze() {
+        while (reference.filled >= WINDOW && recording.filled >= WINDOW) {
+            correlateWindow();
+            reference.slide();
+            recording.slide();
+        }
+    }
+
+    private void correlateWindow() {
+        float refEnergy = 0, recEnergy = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            refEnergy += reference.data[i] * reference.data[i];
+            recEnergy += recording.data[i] * recording.data[i];
+        }
+        if (refEnergy / WINDOW < SILENCE || recEnergy / WINDOW < SILENCE) {
+            return; // 有一路是静音，没有对齐的依据
+        }
+
+        // 参考放实部、录音放虚部，一次变换得到两路频谱
+        int n = WINDOW * 2;
+        for (int i = 0; i < WINDOW; i++) {
+            re[i] = reference.data[i] * window[i];
+            im[i] = recording.data[i] * window[i];
+        }
+        for (int i = WINDOW; i < n; i++) {
+            re[i] = 0;
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+
+        // X = (Z[k] + conj(Z[n-k])) / 2，Y = (Z[k] - conj(Z[n-k])) / 2i，互功率谱 Y * conj(X) 做PHAT归一化
+        for (int k = 0; k < n; k++) {
+            int m = (n - k) & (n - 1);
+            float xr = (re[k] + re[m]) * 0.5f;
+            float xi = (im[k] - im[m]) * 0.5f;
+            float yr = (im[k] + im[m]) * 0.5f;
+            float yi = (re[m] - re[k]) * 0.5f;
+            float cr = yr * xr + yi * xi;
+            float ci = yi * xr - yr * xi;
+            float magnitude = (float) Math.sqrt(cr * cr + ci * ci) + 1e-12f;
+            crossRe[k] = cr / magnitude;
+            crossIm[k] = ci / magnitude;
+        }
+        fft.inverse(crossRe, crossIm);
+
+        // 正延迟在前半部分，负延迟在末尾
+        int best = 0;
+        float bestValue = -Float.MAX_VALUE;
+        for (int lag = -maxLag; lag <= maxLag; lag++) {
+            float value = crossRe[lag >= 0 ? lag : n + lag];
+            correlation[lag + maxLag] += value;
+            if (value > bestValue) {
+                bestValue = value;
+                best = lag;
+            }
+        }
+        lastWindowLag = best;
+        windowCount++;
+    }
+
+    /**
+     * 参与计算的窗口数，为0时还没有结果
+     *
+     * @return
+     */
+    public int getWindowCount() {
+        return windowCount;
+    }
+
+    /**
+     * 录音相对参考的延迟（原始采样率下的帧数），正数表示录音晚于参考
+     *
+     * @return
+     */
+    public double getOffsetFrames() {
+        int peak = peakIndex();
+        double lag = peak - maxLag;
+        if (peak > 0 && peak < correlation.length - 1) {
+            // 抛物线插值
+            float left = correlation[peak - 1], center = correlation[peak], right = correlation[peak + 1];
+            float denominator = left - 2 * center + right;
+            if (denominator != 0) {
+                lag += 0.5 * (left - right) / denominator;
+            }
+        }
+        return lag * decimation;
+    }
+
+    /**
+     * 录音相对参考的延迟（毫秒）
+     *
+     * @return
+     */
+    public double getOffsetMs() {
+        return getOffsetFrames() * 1000 / sampleRate;
+    }
+
+    /**
+     * 最近一个窗口单独估计的延迟（原始采样率下的帧数）
+     *
+     * @return
+     */
+    public int getLastWindowOffsetFrames() {
+        return lastWindowLag * decimation;
+    }
+
+    /**
+     * 置信度：主峰与峰值附近以外的次高值之比，越大越可靠，接近1表示找不到明显的对齐位置
+     *
+     * @return
+     */
+    public float getConfidence() {
+        if (windowCount == 0) {
+            return 0;
+        }
+        int peak = peakIndex();
+        int guard = Math.max(2, TARGET_RATE / 1000);    // 主峰两侧约1毫秒内不算
+        float second = 0;
+        for (int i = 0; i < correlation.length; i++) {
+            if (Math.abs(i - peak) > guard && correlation[i] > second) {
+                second = correlation[i];
+            }
+        }
+        return second <= 0 ? Float.MAX_VALUE : correlation[peak] / second;
+    }
+
+    private int peakIndex() {
+        int peak = maxLag;
+        for (int i = 0; i < correlation.length; i++) {
+            if (correlation[i] > correlation[peak]) {
+                peak = i;
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * 清空状态，重新开始
+     */
+    public void reset() {
+        reference.filled = 0;
+        recording.filled = 0;
+        reference.accumulated = 0;
+        recording.accumulated = 0;
+        reference.accumulatedCount = 0;
+        recording.accumulatedCount = 0;
+        for (int i = 0; i < correlation.length; i++) {
+            correlation[i] = 0;
+        }
+        windowCount = 0;
+        lastWindowLag = 0;
+    }
+
+    /**
+     * 对齐两个媒体（离线解码，快于实时）
+     *
+     * @param reference 参考音轨（如原唱）
+     * @param recording 录音
+     * @param maxLagMs  最大搜索延迟（毫秒）
+     * @return 对齐器，通过 getOffsetFrames 等获取结果
+     * @throws IOException
+     */
+    public static AudioAligner align(MediaInput reference, MediaInput recording, int maxLagMs) throws IOException {
+        PcmDecoder referenceDecoder = new PcmDecoder(reference);
+        PcmDecoder recordingDecoder = null;
+        try {
+            recordingDecoder = new PcmDecoder(recording);
+            if (referenceDecoder.getSampleRate() != recordingDecoder.getSampleRate()) {
+                throw new IOException("sample rate mismatch: " + referenceDecoder.getSampleRate() + " != " + recordingDecoder.getSampleRate());
+            }
+            AudioAligner aligner = new AudioAligner(referenceDecoder.getSampleRate(),
+                    referenceDecoder.getChannelCount(), recordingDecoder.getChannelCount(), maxLagMs);
+
+            short[] referenceBuffer = new short[4096 * referenceDecoder.getChannelCount()];
+            short[] recordingBuffer = new short[4096 * recordingDecoder.getChannelCount()];
+            int referenceOffset = 0, referenceSize = 0;     // 缓冲中还没被接收的部分
+            int recordingOffset = 0, recordingSize = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                // 上次读取的都被接收后再读取，解码器一次输出的长度不同也不会丢数据
+                if (referenceOffset == referenceSize) {
+                    referenceSize = referenceDecoder.read(referenceBuffer, 0, referenceBuffer.length);
+                    referenceOffset = 0;
+                }
+                if (recordingOffset == recordingSize) {
+                    recordingSize = recordingDecoder.read(recordingBuffer, 0, recordingBuffer.length);
+                    recordingOffset = 0;
+                }
+                if (referenceSize < 0 || recordingSize < 0) {
+                    break;
+                }
+                referenceOffset += aligner.pushReference(referenceBuffer, referenceOffset, referenceSize - referenceOffset);
+                recordingOffset += aligner.pushRecording(recordingBuffer, recordingOffset, recordingSize - recordingOffset);
+            }
+            return aligner;
+        } finally {
+            referenceDecoder.release();
+            if (recordingDecoder != null) {
+                recordingDecoder.release();
+            }
+        }
+    }
+
+    /**
+     * 一路输入：转单声道、降采样后放入窗口缓冲
+     */
+    static class Channel {
+        final int channels;
+        final int decimation;
+        final float[] data = new float[WINDOW * 2]; // 窗口缓冲，多留一个窗口允许两路送入的进度不一致
+        int filled = 0;         // 已填充的采样数
+        float accumulated = 0;  // 降采样累加值
+        int accumulatedCount = 0;
+
+        Channel(int channels, int decimation) {
+            this.channels = channels;
+            this.decimation = decimation;
+        }
+
+        /**
+         * @return 接收的采样数，缓冲满时（另一路长时间没有送入数据）停止接收，不丢弃，保持两路的位置一致
+         */
+        int push(short[] buffer, int offset, int size) {
+            int i = 0;
+            for (; i + channels <= size && filled < data.length; i += channels) {
+                int sum = 0;
+                for (int c = 0; c < channels; c++) {
+                    sum += buffer[offset + i + c];
+                }
+                // 降采样前取平均，起到简单的低通作用
+                accumulated += sum / (channels * 32768f);
+                if (++accumulatedCount == decimation) {
+                    data[filled++] = accumulated / decimation;
+                    accumulated = 0;
+                    accumulatedCount = 0;
+                }
+            }
+            return i;
+        }
+
+        void slide() {
+            System.arraycopy(data, HOP, data, 0, filled - HOP);
+            filled -= HOP;
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.locks.LockSupport;
 
@@ -30,9 +31,14 @@ public class AudioChannelAsync {
     private KaraokeManager karaokeManager;    // 解码管理器
     private MediaExtractor mediaExtractor;  // 解复用器
     private MediaCodec audioDecoder;    // 音频解码器
+    private AudioDemuxer audioDemuxer;  // 压缩数据预读
 
     private ArrayBlockingQueue<byte[]> audioData;   // 缓存解码好的PCM数据
 
+    // 解码器已经给出但还没有数据可填的输入缓冲下标
+    private final ArrayDeque<Integer> pendingInputIndices = new ArrayDeque<>();
+    private volatile boolean inputStarving = false;  // 是否有输入缓冲在等待预读数据
+
     // api >= 23 时使用，主要是将解码放入子线程中
     private HandlerThread audioDecoderThread;
     private Handler audioDecoderHandler;
@@ -41,6 +47,12 @@ public class AudioChannelAsync {
     private boolean writePCM = false;   // 是否写PCM文件（供测试用）
     private FileOutputStream fos;   // 写PCM输出流（供测试用）
 
+    private long startTimeNs = 0;       // 开始解码的时间
+    private long stallBeginNs = 0;      // 本次等待预读数据开始的时间
+    private volatile long inputStallNs = 0;     // 解码器等待压缩数据的累计耗时（I/O造成的停顿）
+    private volatile long outputWaitNs = 0;     // PCM缓冲队列满时等待消费的累计耗时
+    private volatile long decodeTimeNs = 0;     // 解码耗时（总耗时去掉I/O停顿和等待消费的时间）
+
     public AudioChannelAsync(KaraokeManager karaokeManager, MediaExtractor mediaExtractor) {
         this.karaokeManager = karaokeManager;
         this.mediaExtractor = mediaExtractor;
@@ -65,6 +77,9 @@ public class AudioChannelAsync {
             String mime = mediaFormat.getString(MediaFormat.KEY_MIME);    // 获取媒体类型
             if (mime != null && mime.startsWith("audio")) { // 找到音频轨道
                 mediaExtractor.selectTrack(i);  // 选择轨道
+                // 压缩数据由预读线程读取，解码器回调中只从内存中取
+                audioDemuxer = new AudioDemuxer(mediaExtractor, mediaFormat);
+                audioDemuxer.setOnPacketAvailableListener(onPacketAvailableListener);
                 try {
                     // 第一种方式
                     audioDecoder = MediaCodec.createDecoderByType(mime);
@@ -98,19 +113,10 @@ public class AudioChannelAsync {
         public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
             Log.d(TAG, audioDecoder + ">>onInputBufferAvailable-->");
             if (index >= 0) {
-                ByteBuffer inputBuffer = audioDecoder.getInputBuffer(index); // api >= 21
-                if (inputBuffer != null) {
-                    inputBuffer.clear();
-                    int bufferSize = mediaExtractor.readSampleData(inputBuffer, 0);
-                    if (bufferSize < 0 || isDecodeOver()) {   // 无可用数据，证明读完了
-                        audioDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                        decodeOver = true;
-                        Log.d(TAG, audioDecoder + ">>onInputBufferAvailable decodeOver = " + isDecodeOver());
-                    } else {
-                        audioDecoder.queueInputBuffer(index, 0, bufferSize, mediaExtractor.getSampleTime(), mediaExtractor.getSampleFlags());
-                        mediaExtractor.advance();   // 读取下一帧数据
-                    }
+                synchronized (pendingInputIndices) {
+                    pendingInputIndices.offer(index);
                 }
+                feedInputBuffers();
             }
         }
 
@@ -125,7 +131,9 @@ public class AudioChannelAsync {
                     outputBuffer.clear();
                     // 对PCMData数据进行处理
                     try {
+                        long begin = System.nanoTime();
                         audioData.put(PCMData);
+                        outputWaitNs += System.nanoTime() - begin;
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
@@ -153,7 +161,10 @@ public class AudioChannelAsync {
                     audioDecoder.reset();
                 }
                 audioData.clear();  // 清空缓冲队列
+                decodeTimeNs = System.nanoTime() - startTimeNs - inputStallNs - outputWaitNs;
                 Log.d(TAG, audioDecoder + ">>onOutputBufferAvailable decodeOver = " + isDecodeOver());
+                Log.d(TAG, audioDecoder + ">>decode = " + decodeTimeNs / 1_000_000 + "ms, io stall = " + inputStallNs / 1_000_000
+                        + "ms, io read = " + audioDemuxer.getIoTimeNs() / 1_000_000 + "ms, output wait = " + outputWaitNs / 1_000_000 + "ms");
             }
             Log.d(TAG, audioDecoder + ">>decodeOver = " + isDecodeOver());
         }
@@ -172,6 +183,104 @@ public class AudioChannelAsync {
         }
     };
 
+    // 预读线程有新数据时，如果解码器有输入缓冲在等待就切到解码线程去填充
+    private AudioDemuxer.OnPacketAvailableListener onPacketAvailableListener = new AudioDemuxer.OnPacketAvailableListener() {
+        @Override
+        public void onPacketAvailable() {
+            if (inputStarving) {
+                audioDecoderHandler.post(feedRunnable);
+            }
+        }
+    };
+
+    private Runnable feedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            feedInputBuffers();
+        }
+    };
+
+    /**
+     * 用预读好的压缩数据填充等待中的输入缓冲，没有数据时记录停顿开始时间，等预读线程通知后再填
+     */
+    private void feedInputBuffers() {
+        synchronized (pendingInputIndices) {
+            while (!pendingInputIndices.isEmpty()) {
+                if (audioDecoder == null) {
+                    pendingInputIndices.clear();
+                    return;
+                }
+                int index = pendingInputIndices.peek();
+                if (isDecodeOver()) {   // 已经停止解码
+                    pendingInputIndices.poll();
+                    audioDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    continue;
+                }
+
+                AudioDemuxer.Packet packet = audioDemuxer.poll();
+                if (packet == null) {   // 预读数据还没有准备好
+                    if (!inputStarving) {
+                        inputStarving = true;
+                        stallBeginNs = System.nanoTime();
+                    }
+                    // 设置标记前预读线程可能刚放入数据（看到标记为false不会通知），再取一次，避免丢失唤醒
+                    packet = audioDemuxer.poll();
+                    if (packet == null) {
+                        return;
+                    }
+                }
+                if (inputStarving) {
+                    inputStarving = false;
+                    inputStallNs += System.nanoTime() - stallBeginNs;
+                }
+                pendingInputIndices.poll();
+
+                ByteBuffer inputBuffer = audioDecoder.getInputBuffer(index); // api >= 21
+                if (inputBuffer == null) {
+                    audioDemuxer.recycle(packet);
+                    continue;
+                }
+                inputBuffer.clear();
+                if (packet.isEndOfStream()) {   // 无可用数据，证明读完了
+                    audioDecoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    decodeOver = true;
+                    Log.d(TAG, audioDecoder + ">>onInputBufferAvailable decodeOver = " + isDecodeOver());
+                } else {
+                    inputBuffer.put(packet.getData());
+                    audioDecoder.queueInputBuffer(index, 0, packet.getSize(), packet.getSampleTimeUs(), packet.getFlags());
+                }
+                audioDemuxer.recycle(packet);
+            }
+        }
+    }
+
+    /**
+     * 解码器等待压缩数据的累计耗时（纳秒），即I/O造成的停顿
+     *
+     * @return
+     */
+    public long getInputStallNs() {
+        return inputStallNs;
+    }
+
+    /**
+     * 解码耗时（纳秒），不包含I/O停顿和等待消费的时间，解码结束后有效
+     *
+     * @return
+     */
+    public long getDecodeTimeNs() {
+        return decodeTimeNs;
+    }
+
+    /**
+     * 预读线程读取压缩数据的累计耗时（纳秒）
+     *
+     * @return
+     */
+    public long getIoReadNs() {
+        return audioDemuxer == null ? 0 : audioDemuxer.getIoTimeNs();
+    }
+
     /**
      * 写PCM文件路径（供测试用）
      *
@@ -240,6 +349,8 @@ public class AudioChannelAsync {
     // 开始
     public void start() {
         decodeOver = false;
+        startTimeNs = System.nanoTime();
+        audioDemuxer.start();   // 先开始预读
         audioDecoder.start();   // 启动解码器
     }
 
@@ -281,9 +392,15 @@ public class AudioChannelAsync {
     }
 
     public void release() {
-        if (audioDecoder != null) {
-            audioDecoder.release();
-            audioDecoder = null;
+        // 预读线程退出后才能释放解复用器
+        if (audioDemuxer != null) {
+            audioDemuxer.stop();
+        }
+        synchronized (pendingInputIndices) {    // 避免与填充输入缓冲同时进行
+            if (audioDecoder != null) {
+                audioDecoder.release();
+                audioDecoder = null;
+            }
         }
         if (mediaExtractor != null) {
             mediaExtractor.release();
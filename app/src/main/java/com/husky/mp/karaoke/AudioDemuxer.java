@@ -0,0 +1,277 @@
+package com.husky.mp.karaoke;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压缩数据预读（解复用阶段）
+ * <p>
+ * 在独立的I/O线程中通过 MediaExtractor 预先读取压缩数据帧，连同时间戳和标志位一起放入有界的直接缓冲池，
+ * 解码器回调线程只从内存中取数据，SD卡或FUSE读取慢时不会再直接卡住解码
+ */
+public class AudioDemuxer {
+
+    private static final String TAG = "AudioDemuxer";
+
+    private static final int DEFAULT_POOL_SIZE = 32;            // 默认预读帧数
+    private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;   // 默认单帧缓冲大小
+
+    private MediaExtractor mediaExtractor;  // 解复用器（需要已经选好轨道）
+
+    private ArrayBlockingQueue<Packet> freePackets;     // 空闲缓冲
+    private ArrayBlockingQueue<Packet> filledPackets;   // 已经读取好的压缩数据
+
+    private Thread demuxThread; // 预读线程
+    private volatile boolean running = false;   // 预读线程是否运行中
+    private volatile boolean endOfStream = false;   // 是否已经读到文件末尾
+
+    private OnPacketAvailableListener onPacketAvailableListener;    // 有新数据可用的回调
+
+    private volatile long ioTimeNs = 0;   // 读取压缩数据的累计耗时
+    private volatile long packetCount = 0;  // 累计读取的帧数
+    private volatile long maxReadNs = 0;    // 单帧最长读取耗时
+
+    public AudioDemuxer(MediaExtractor mediaExtractor, MediaFormat mediaFormat) {
+        this(mediaExtractor, mediaFormat, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param mediaExtractor 解复用器（需要已经选好轨道）
+     * @param mediaFormat    选中轨道的格式，用于确定单帧缓冲大小
+     * @param poolSize       预读的最大帧数
+     */
+    public AudioDemuxer(MediaExtractor mediaExtractor, MediaFormat mediaFormat, int poolSize) {
+        this.mediaExtractor = mediaExtractor;
+
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        if (mediaFormat != null && mediaFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            bufferSize = Math.max(bufferSize, mediaFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        }
+
+        this.freePackets = new ArrayBlockingQueue<>(poolSize);
+        this.filledPackets = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            freePackets.offer(new Packet(bufferSize));
+        }
+    }
+
+    /**
+     * 开始预读
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        endOfStream = false;
+        demuxThread = new Thread(new DemuxRunnable(), "audioDemuxThread");
+        demuxThread.start();
+    }
+
+    /**
+     * 停止预读并等待预读线程退出，之后才可以安全释放 MediaExtractor
+     */
+    public void stop() {
+        running = false;
+        if (demuxThread != null) {
+            demuxThread.interrupt();
+            try {
+                demuxThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            demuxThread = null;
+        }
+    }
+
+    /**
+     * 取出一帧已经读取好的压缩数据（不阻塞）
+     *
+     * @return 没有可用数据时返回null
+     */
+    public Packet poll() {
+        return filledPackets.poll();
+    }
+
+    /**
+     * 数据送入解码器后归还缓冲
+     *
+     * @param packet
+     */
+    public void recycle(Packet packet) {
+        packet.data.clear();
+        freePackets.offer(packet);
+    }
+
+    /**
+     * 是否已经读到文件末尾（读到末尾后还会放入一个结束帧）
+     *
+     * @return
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * 当前预读好的帧数
+     *
+     * @return
+     */
+    public int getBufferedCount() {
+        return filledPackets.size();
+    }
+
+    /**
+     * 读取压缩数据的累计耗时（纳秒），即I/O耗时
+     *
+     * @return
+     */
+    public long getIoTimeNs() {
+        return ioTimeNs;
+    }
+
+    /**
+     * 单帧最长读取耗时（纳秒）
+     *
+     * @return
+     */
+    public long getMaxReadNs() {
+        return maxReadNs;
+    }
+
+    /**
+     * 累计读取的帧数
+     *
+     * @return
+     */
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public void setOnPacketAvailableListener(OnPacketAvailableListener onPacketAvailableListener) {
+        this.onPacketAvailableListener = onPacketAvailableListener;
+    }
+
+    // 预读线程
+    class DemuxRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            while (running) {
+                Packet packet;
+                try {
+                    // 缓冲池用完时阻塞，预读的数据量因此有上限
+                    packet = freePackets.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (packet == null) {
+                    continue;
+                }
+
+                long begin = System.nanoTime();
+                int size = readSample(packet);
+                if (size >= 0) {
+                    packet.size = size;
+                    packet.sampleTimeUs = mediaExtractor.getSampleTime();
+                    packet.flags = mediaExtractor.getSampleFlags();
+                    packet.endOfStream = false;
+                    mediaExtractor.advance();   // 读取下一帧数据
+                } else {    // 无可用数据，证明读完了
+                    packet.size = 0;
+                    packet.sampleTimeUs = 0;
+                    packet.flags = 0;
+                    packet.endOfStream = true;
+                }
+                long cost = System.nanoTime() - begin;
+                ioTimeNs += cost;
+                if (cost > maxReadNs) {
+                    maxReadNs = cost;
+                }
+                packetCount++;
+
+                filledPackets.offer(packet);
+                if (onPacketAvailableListener != null) {
+                    onPacketAvailableListener.onPacketAvailable();
+                }
+
+                if (packet.endOfStream) {
+                    endOfStream = true;
+                    break;
+                }
+            }
+            Log.d(TAG, "demux over, packets = " + packetCount + ", io = " + ioTimeNs / 1_000_000 + "ms, max = " + maxReadNs / 1_000_000 + "ms");
+        }
+    }
+
+    /**
+     * 读取一帧数据到缓冲，缓冲不够时扩容
+     *
+     * @param packet
+     * @return 数据大小，小于0表示读完了
+     */
+    private int readSample(Packet packet) {
+        while (true) {
+            packet.data.clear();
+            try {
+                int size = mediaExtractor.readSampleData(packet.data, 0);
+                if (size >= 0) {
+                    packet.data.position(0);
+                    packet.data.limit(size);
+                }
+                return size;
+            } catch (IllegalArgumentException e) {
+                // 单帧数据超过了缓冲大小
+                packet.data = ByteBuffer.allocateDirect(packet.data.capacity() * 2);
+                Log.d(TAG, "grow packet buffer to " + packet.data.capacity());
+            }
+        }
+    }
+
+    /**
+     * 一帧压缩数据
+     */
+    public static class Packet {
+        ByteBuffer data;    // 压缩数据（直接缓冲）
+        int size;           // 数据大小
+        long sampleTimeUs;  // 时间戳
+        int flags;          // 标志位
+        boolean endOfStream;    // 是否结束帧
+
+        Packet(int capacity) {
+            this.data = ByteBuffer.allocateDirect(capacity);
+        }
+
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getSampleTimeUs() {
+            return sampleTimeUs;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public boolean isEndOfStream() {
+            return endOfStream;
+        }
+    }
+
+    /**
+     * 有新数据可用的回调接口（在预读线程中回调）
+     */
+    public interface OnPacketAvailableListener {
+        void onPacketAvailable();
+    }
+}
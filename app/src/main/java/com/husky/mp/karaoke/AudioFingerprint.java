@@ -0,0 +1,132 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.Fingerprinter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 单曲声学指纹（见 Fingerprinter、FingerprintScanner）
+ * <p>
+ * 峰值对哈希和锚点帧号两个并列数组，一首歌前15秒约450个哈希，不到3KB。
+ * 用于在 FingerprintIndex 中查找相同或相关（原唱/伴唱）的歌
+ */
+public class AudioFingerprint {
+
+    private static final int MAGIC = 0x48465052;    // "HFPR"
+    private static final int VERSION = 1;           // 分析算法或格式变化时加1，旧缓存失效
+
+    private final int[] hashes;     // 峰值对哈希
+    private final int[] frames;     // 锚点帧号（帧长见 Fingerprinter.FRAME_DURATION_US）
+
+    private AudioFingerprint(int[] hashes, int[] frames) {
+        this.hashes = hashes;
+        this.frames = frames;
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    public int getHash(int index) {
+        return hashes[index];
+    }
+
+    public int getFrame(int index) {
+        return frames[index];
+    }
+
+    /**
+     * 写入文件（先写临时文件再改名，写入中断不会留下不完整的文件）
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes.length);
+            for (int i = 0; i < hashes.length; i++) {
+                out.writeInt(hashes[i]);
+                out.writeShort(frames[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static AudioFingerprint read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported fingerprint: " + file);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("corrupt fingerprint: " + file);
+            }
+            int[] hashes = new int[count];
+            int[] frames = new int[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = in.readInt();
+                frames[i] = in.readUnsignedShort();
+            }
+            return new AudioFingerprint(hashes, frames);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 收集 Fingerprinter 的回调
+     */
+    public static class Builder implements Fingerprinter.OnLandmarkListener {
+
+        private int[] hashes = new int[1024];   // 按需扩容
+        private int[] frames = new int[1024];
+        private int count = 0;
+
+        @Override
+        public void onLandmark(int hash, int frame) {
+            if (count == hashes.length) {
+                int[] grownHashes = new int[count * 2];
+                int[] grownFrames = new int[count * 2];
+                System.arraycopy(hashes, 0, grownHashes, 0, count);
+                System.arraycopy(frames, 0, grownFrames, 0, count);
+                hashes = grownHashes;
+                frames = grownFrames;
+            }
+            hashes[count] = hash;
+            frames[count] = frame;
+            count++;
+        }
+
+        public AudioFingerprint build() {
+            int[] builtHashes = new int[count];
+            int[] builtFrames = new int[count];
+            System.arraycopy(hashes, 0, builtHashes, 0, count);
+            System.arraycopy(frames, 0, builtFrames, 0, count);
+            return new AudioFingerprint(builtHashes, builtFrames);
+        }
+    }
+}
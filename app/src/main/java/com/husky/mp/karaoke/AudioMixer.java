@@ -0,0 +1,302 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.EffectChain;
+
+/**
+ * 混音器
+ * <p>
+ * 每次从各音轨读取一个块，按各自增益叠加成浮点数据（范围-1~1，未限幅）。
+ * 块长度由文件音轨决定，实时音轨（麦克风）按该长度读取；音轨可以在播放过程中增减。
+ * <p>
+ * 每条音轨和总线各有一条效果链（见 EffectChain），音轨的效果在乘以增益后、叠加前处理，总线的效果在所有音轨叠加后处理。
+ * 没有开启的效果时走原来的直接叠加，不增加开销。
+ * 混音过程不分配内存
+ */
+public class AudioMixer {
+
+    private final int blockSize;    // 块大小（采样数，声道数的整数倍）
+
+    // 增减音轨时整体替换数组，混音线程读到的始终是完整的音轨列表
+    private volatile Track[] tracks = new Track[0];
+    private final EffectChain masterEffects;    // 总线效果链
+
+    /**
+     * @param blockSize 块大小（采样数，声道数的整数倍）
+     */
+    public AudioMixer(int blockSize) {
+        this(blockSize, new EffectChain());
+    }
+
+    /**
+     * @param blockSize     块大小（采样数，声道数的整数倍）
+     * @param masterEffects 总线效果链（混音器重新创建时保留效果设置）
+     */
+    public AudioMixer(int blockSize, EffectChain masterEffects) {
+        this.blockSize = blockSize;
+        this.masterEffects = masterEffects;
+    }
+
+    /**
+     * 添加音轨
+     *
+     * @param source
+     * @param gain   增益，1为原始音量
+     * @return
+     */
+    public synchronized Track addTrack(MixSource source, float gain) {
+        return addTrack(source, gain, new EffectChain());
+    }
+
+    /**
+     * 添加音轨，使用已有的效果链（音轨重新创建时保留效果设置）
+     *
+     * @param source
+     * @param gain    增益，1为原始音量
+     * @param effects 效果链
+     * @return
+     */
+    public synchronized Track addTrack(MixSource source, float gain, EffectChain effects) {
+        Track track = new Track(source, gain, blockSize, effects);
+        Track[] newTracks = new Track[tracks.length + 1];
+        System.arraycopy(tracks, 0, newTracks, 0, tracks.length);
+        newTracks[tracks.length] = track;
+        tracks = newTracks;
+        return track;
+    }
+
+    /**
+     * 移除音轨
+     *
+     * @param track
+     */
+    public synchronized void removeTrack(Track track) {
+        int index = -1;
+        for (int i = 0; i < tracks.length; i++) {
+            if (tracks[i] == track) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        Track[] newTracks = new Track[tracks.length - 1];
+        System.arraycopy(tracks, 0, newTracks, 0, index);
+        System.arraycopy(tracks, index + 1, newTracks, index, tracks.length - index - 1);
+        tracks = newTracks;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * 总线效果链，声道数与播放器一致
+     *
+     * @return
+     */
+    public EffectChain getMasterEffects() {
+        return masterEffects;
+    }
+
+    /**
+     * 混合一个块
+     *
+     * @param out 输出（长度不小于块大小）
+     * @return 采样数，-1表示所有文件音轨都已经结束
+     * @throws InterruptedException
+     */
+    public int mix(float[] out) throws InterruptedException {
+        int length = mixFileTracks(out);
+        if (length > 0) {
+            mixLiveTracks(out, length);
+            processMaster(out, length);
+        }
+        return length;
+    }
+
+    /**
+     * 只混合文件音轨（变速等需要对所有文件音轨统一处理、而不处理实时音轨时使用）
+     *
+     * @param out 输出（长度不小于块大小）
+     * @return 采样数，-1表示所有文件音轨都已经结束
+     * @throws InterruptedException
+     */
+    public int mixFileTracks(float[] out) throws InterruptedException {
+        Track[] current = tracks;
+
+        // 先读取文件音轨，取最长的作为本块长度，较短的补静音
+        int length = -1;
+        for (int i = 0; i < current.length; i++) {
+            Track track = current[i];
+            track.count = 0;
+            if (track.source.isLive() || track.ended) {
+                continue;
+            }
+            int count = track.source.read(track.buffer, 0, blockSize);
+            if (count < 0) {
+                track.ended = true;
+                continue;
+            }
+            track.count = count;
+            if (count > length) {
+                length = count;
+            }
+        }
+        if (length < 0) {
+            return -1;
+        }
+
+        for (int i = 0; i < length; i++) {
+            out[i] = 0;
+        }
+        for (int i = 0; i < current.length; i++) {
+            Track track = current[i];
+            if (!track.source.isLive()) {
+                accumulate(track, out);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 把实时音轨按指定长度叠加到输出上
+     *
+     * @param out    输出
+     * @param length 采样数，不超过块大小
+     * @throws InterruptedException
+     */
+    public void mixLiveTracks(float[] out, int length) throws InterruptedException {
+        Track[] current = tracks;
+        for (int i = 0; i < current.length; i++) {
+            Track track = current[i];
+            if (track.source.isLive()) {
+                track.count = Math.max(track.source.read(track.buffer, 0, length), 0);
+                accumulate(track, out);
+            }
+        }
+    }
+
+    /**
+     * 总线效果处理（单独调用 mixFileTracks / mixLiveTracks 时在最后调用）
+     *
+     * @param out
+     * @param length 采样数
+     */
+    public void processMaster(float[] out, int length) {
+        masterEffects.process(out, length);
+    }
+
+    private static void accumulate(Track track, float[] out) {
+        float gain = track.gain * track.normalizationGain / 32768f;
+        short[] buffer = track.buffer;
+        int count = track.count;
+        if (!track.effects.isActive()) {
+            for (int j = 0; j < count; j++) {
+                out[j] += buffer[j] * gain;
+            }
+            return;
+        }
+        float[] processed = track.effectBuffer;
+        for (int j = 0; j < count; j++) {
+            processed[j] = buffer[j] * gain;
+        }
+        track.effects.process(processed, count);
+        for (int j = 0; j < count; j++) {
+            out[j] += processed[j];
+        }
+    }
+
+    /**
+     * 浮点数据转换成16位采样，超出范围的部分截断（播放时先经过 Limiter，正常不会截断）
+     *
+     * @param in
+     * @param out
+     * @param size
+     */
+    public static void toPcm16(float[] in, short[] out, int size) {
+        for (int i = 0; i < size; i++) {
+            // 声音点不能超过声音波形范围，min/max 没有分支
+            out[i] = (short) Math.max(-32768, Math.min(32767, (int) (in[i] * 32767f)));
+        }
+    }
+
+    /**
+     * 音轨
+     */
+    public static class Track {
+        final MixSource source;
+        final short[] buffer;   // 读取缓冲
+        final float[] effectBuffer; // 效果处理缓冲
+        final EffectChain effects;  // 音轨效果链
+        volatile float gain;    // 增益
+        volatile float normalizationGain = 1f;  // 响度归一化增益（与音量相乘）
+        int count;              // 本块读取的采样数
+        boolean ended = false;  // 是否已经结束
+
+        Track(MixSource source, float gain, int blockSize, EffectChain effects) {
+            this.source = source;
+            this.gain = gain;
+            this.buffer = new short[blockSize];
+            this.effectBuffer = new float[blockSize];
+            this.effects = effects;
+        }
+
+        public MixSource getSource() {
+            return source;
+        }
+
+        public float getGain() {
+            return gain;
+        }
+
+        /**
+         * 拷贝本块读取的原始数据（增益和效果之前），不足的部分补静音，混音线程在混合之后调用
+         *
+         * @param out
+         * @param size 采样数
+         */
+        public void copyBlock(short[] out, int size) {
+            int copied = Math.min(count, size);
+            System.arraycopy(buffer, 0, out, 0, copied);
+            for (int i = copied; i < size; i++) {
+                out[i] = 0;
+            }
+        }
+
+        /**
+         * 音轨效果链，声道数与播放器一致
+         *
+         * @return
+         */
+        public EffectChain getEffects() {
+            return effects;
+        }
+
+        /**
+         * 设置增益，可以在任意线程调用
+         *
+         * @param gain 1为原始音量
+         */
+        public void setGain(float gain) {
+            this.gain = gain;
+        }
+
+        /**
+         * 设置响度归一化增益（见 TrackLoudness），与音量相乘，可以在任意线程调用
+         *
+         * @param normalizationGain 1为不调整
+         */
+        public void setNormalizationGain(float normalizationGain) {
+            this.normalizationGain = normalizationGain;
+        }
+
+        public float getNormalizationGain() {
+            return normalizationGain;
+        }
+
+        public boolean isEnded() {
+            return ended;
+        }
+    }
+}
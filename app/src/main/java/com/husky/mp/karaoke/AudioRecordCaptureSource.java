@@ -0,0 +1,130 @@
+package com.husky.mp.karaoke;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * 麦克风采集（AudioRecord）
+ * <p>
+ * 为了降低延迟：
+ * 1、使用最小缓冲区，每次读取一个硬件周期（PROPERTY_OUTPUT_FRAMES_PER_BUFFER）
+ * 2、支持时使用不做预处理的 UNPROCESSED 音源（api >= 24），否则使用处理最少的 VOICE_RECOGNITION
+ * 3、采样率与设备原生采样率不一致时系统需要重采样，延迟会高一些
+ * 输出端的低延迟模式见 AudioTrackPlayer
+ */
+public class AudioRecordCaptureSource implements CaptureSource {
+
+    private static final String TAG = "AudioRecordCapture";
+
+    private static final int DEFAULT_READ_FRAMES = 256; // 获取不到硬件周期时每次读取的帧数
+
+    private int sampleRate;     // 采样率
+    private int channelCount = 1;   // 单声道
+    private int readSize;       // 每次读取的采样数
+    private boolean nativeRate; // 是否是设备原生采样率
+
+    private AudioRecord audioRecord;
+
+    public AudioRecordCaptureSource(Context context, int sampleRate) {
+        this.sampleRate = sampleRate;
+
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        int nativeSampleRate = parseInt(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE), 0);
+        int framesPerBuffer = parseInt(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER), DEFAULT_READ_FRAMES);
+        nativeRate = nativeSampleRate == sampleRate;
+
+        int audioSource = MediaRecorder.AudioSource.VOICE_RECOGNITION;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                && "true".equals(audioManager.getProperty(AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED))) {
+            audioSource = MediaRecorder.AudioSource.UNPROCESSED;
+        }
+
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);  // 最小缓冲区大小
+        // 每次读取一个硬件周期，但不能超过最小缓冲区的一半，否则读取会等待缓冲区填满
+        readSize = Math.max(1, Math.min(framesPerBuffer, minBufferSize / 2 / 2)) * channelCount;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            audioRecord = new AudioRecord.Builder()
+                    .setAudioSource(audioSource)
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)    // 采样深度
+                            .setSampleRate(sampleRate)   // 采样率
+                            .setChannelMask(AudioFormat.CHANNEL_IN_MONO) // 声道
+                            .build())
+                    .setBufferSizeInBytes(minBufferSize)    // 设置最小缓冲区大小
+                    .build();
+        } else {
+            audioRecord = new AudioRecord(
+                    audioSource,                    // 音源
+                    sampleRate,                     // 采样率
+                    AudioFormat.CHANNEL_IN_MONO,    // 声道
+                    AudioFormat.ENCODING_PCM_16BIT, // 采样深度
+                    minBufferSize);                 // 设置最小缓冲区大小
+        }
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            throw new IllegalStateException("AudioRecord init fail!");
+        }
+        Log.d(TAG, "audioSource = " + audioSource + ", minBufferSize = " + minBufferSize + ", readSize = " + readSize + ", nativeRate = " + nativeRate);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (TextUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 采样率是否与设备原生采样率一致（不需要重采样）
+     *
+     * @return
+     */
+    public boolean isNativeRate() {
+        return nativeRate;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    @Override
+    public int getReadSize() {
+        return readSize;
+    }
+
+    @Override
+    public void start() {
+        audioRecord.startRecording();
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        return audioRecord.read(buffer, offset, size);
+    }
+
+    @Override
+    public void stop() {
+        audioRecord.stop();
+    }
+
+    @Override
+    public void release() {
+        audioRecord.release();
+    }
+}
@@ -1,14 +1,20 @@
 package com.husky.mp.karaoke;
 
+import android.content.Context;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.os.Build;
+import android.text.TextUtils;
 import android.util.Log;
 
 /**
  * AudioTrack播放器（主要是针对播放流，对于static模式这里不考虑）
+ * <p>
+ * 实时返听需要低延迟输出：指定硬件周期（framesPerBurst）时请求低延迟模式（api >= 26，采样率与设备原生采样率一致时才会真正走快速通道），
+ * 缓冲只保留两个硬件周期（api >= 24），欠载时每次加大一个周期，不再是整个最小缓冲区的延迟
  */
 public class AudioTrackPlayer {
 
@@ -20,24 +26,53 @@ public class AudioTrackPlayer {
     private int TRANSFER_MODE;      // 模式，默认流加载模式
 
     private int minBufferSize;  // 最小的缓冲区大小
+    private int framesPerBurst; // 硬件周期（帧），0表示不要求低延迟
+    private int underrunCount = 0;  // 已处理的欠载次数
 
     private AudioTrack audioTrack;  // AudioTrack对象
 
+    // 播放位置（写入线程使用）
+    private static final long TIMESTAMP_INTERVAL_FAST_NS = 10_000_000L;     // 还没有时间戳时的查询间隔
+    private static final long TIMESTAMP_INTERVAL_NS = 500_000_000L;         // 时间戳稳定后的查询间隔
+    private final PlaybackClock clock;
+    private final AudioTimestamp timestamp = new AudioTimestamp();
+    private long framesWritten = 0;     // 本段已写入的帧数
+    private long lastQueryNanos = 0;    // 上次查询时间戳的时刻
+    private boolean hasTimestamp = false;
+    private long headWraps = 0;         // 播放头位置是32位无符号数，记录回绕
+    private long lastHead = 0;
+    private int jumpOffset = -1;        // 下一次写入的数据中媒体位置跳变的帧偏移，-1表示没有
+    private long jumpFrom = 0;
+    private long jumpTo = 0;
+
     public AudioTrackPlayer(AudioTrackPlayer.Builder builder) {
-        this(builder.samoleRate, builder.channelCount, builder.encodingBit, builder.transferMode);
+        this(builder.samoleRate, builder.channelCount, builder.encodingBit, builder.transferMode, builder.framesPerBurst);
     }
 
     public AudioTrackPlayer(int samoleRate, int channelCount, int encodingBit, int transferMode) {
+        this(samoleRate, channelCount, encodingBit, transferMode, 0);
+    }
+
+    /**
+     * @param samoleRate
+     * @param channelCount
+     * @param encodingBit
+     * @param transferMode
+     * @param framesPerBurst 硬件周期（见 getFramesPerBurst），大于0时使用低延迟输出
+     */
+    public AudioTrackPlayer(int samoleRate, int channelCount, int encodingBit, int transferMode, int framesPerBurst) {
 
         this.SAMPLE_RATE = samoleRate;
         this.CHANNEL_COUNT = channelCount;
         this.ENCODING_PCM_BIT = encodingBit;
         this.TRANSFER_MODE = transferMode;
+        this.framesPerBurst = framesPerBurst;
 
+        clock = new PlaybackClock(SAMPLE_RATE);
         minBufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, CHANNEL_COUNT, ENCODING_PCM_BIT);  // 最小缓冲区大小
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            audioTrack = new AudioTrack.Builder()
+            AudioTrack.Builder builder = new AudioTrack.Builder()
                     .setAudioAttributes(new AudioAttributes.Builder()
                             .setUsage(AudioAttributes.USAGE_MEDIA)
                             .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
@@ -49,8 +84,11 @@ public class AudioTrackPlayer {
                             .setChannelMask(CHANNEL_COUNT == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_OUT_STEREO) // 声道
                             .build())
                     .setBufferSizeInBytes(minBufferSize)    // 设置最小缓冲区大小
-                    .setTransferMode(TRANSFER_MODE)         // 流媒体的模式
-                    .build();
+                    .setTransferMode(TRANSFER_MODE);        // 流媒体的模式
+            if (framesPerBurst > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                builder.setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+            }
+            audioTrack = builder.build();
         } else {
             audioTrack = new AudioTrack(
                     AudioManager.STREAM_MUSIC,  // 音频媒体类型
@@ -60,9 +98,49 @@ public class AudioTrackPlayer {
                     minBufferSize,              // 设置最小缓冲区大小
                     TRANSFER_MODE);             // 流媒体的模式
         }
+        if (framesPerBurst > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // 缓冲从两个硬件周期开始，写入时阻塞到有空间为止
+            audioTrack.setBufferSizeInFrames(framesPerBurst * 2);
+        }
+        Log.d(TAG, "framesPerBurst = " + framesPerBurst + ", minBufferSize = " + minBufferSize);
         audioTrack.play();  // 可以放在初始化的时候就调用play方法开启
     }
 
+    /**
+     * 设备的硬件周期（输出每次处理的帧数）
+     *
+     * @param context
+     * @return 获取不到时为0
+     */
+    public static int getFramesPerBurst(Context context) {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        String value = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+        if (TextUtils.isEmpty(value)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 低延迟输出欠载时加大一个硬件周期的缓冲，直到缓冲的容量
+     */
+    private void tuneBufferSize() {
+        int count = audioTrack.getUnderrunCount();
+        if (count <= underrunCount) {
+            return;
+        }
+        underrunCount = count;
+        int size = audioTrack.getBufferSizeInFrames();
+        if (size + framesPerBurst <= audioTrack.getBufferCapacityInFrames()) {
+            size = audioTrack.setBufferSizeInFrames(size + framesPerBurst);
+            Log.d(TAG, "underrun " + count + ", buffer size = " + size + " frames");
+        }
+    }
+
     /**
      * 播放解码得到的PCM数据
      *
@@ -88,15 +166,104 @@ public class AudioTrackPlayer {
         }
     }
 
+    /**
+     * 播放16位PCM数据
+     *
+     * @param audioData
+     * @param offsetInShorts
+     * @param sizeInShorts
+     */
+    public void write(short[] audioData, int offsetInShorts, int sizeInShorts) {
+        if (audioTrack != null && audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+            audioTrack.write(audioData, offsetInShorts, sizeInShorts);
+        }
+    }
+
+    /**
+     * 播放16位PCM数据，并更新播放位置时钟（同一个线程调用）
+     *
+     * @param audioData
+     * @param offsetInShorts
+     * @param sizeInShorts
+     * @param mediaFrames    写入的最后一帧之后的媒体位置（帧），变速或有处理延迟时与写入的帧数不同
+     */
+    public void write(short[] audioData, int offsetInShorts, int sizeInShorts, long mediaFrames) {
+        if (audioTrack == null || audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+            return;
+        }
+        int written = audioTrack.write(audioData, offsetInShorts, sizeInShorts);
+        if (written <= 0) {
+            return;
+        }
+        if (framesPerBurst > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            tuneBufferSize();
+        }
+        long now = System.nanoTime();
+        if (jumpOffset >= 0) {
+            clock.onJump(framesWritten + Math.min(jumpOffset, written / CHANNEL_COUNT), jumpFrom, jumpTo);
+            jumpOffset = -1;
+        }
+        framesWritten += written / CHANNEL_COUNT;
+        clock.onWritten(framesWritten, mediaFrames, now);
+        updateClock(now);
+    }
+
+    /**
+     * 标记下一次写入的数据中媒体位置跳变（如 A/B 循环回到A），与 write 在同一个线程调用，写入前调用
+     *
+     * @param outputOffset 跳变处在下一次写入的数据中的帧偏移
+     * @param fromMedia    跳变前的媒体位置（帧）
+     * @param toMedia      跳变后的媒体位置（帧）
+     */
+    public void jump(int outputOffset, long fromMedia, long toMedia) {
+        jumpOffset = outputOffset;
+        jumpFrom = fromMedia;
+        jumpTo = toMedia;
+    }
+
+    /**
+     * 查询播放器的输出位置校准时钟：有时间戳时按间隔查询时间戳，还没有时用播放头位置
+     */
+    private void updateClock(long now) {
+        if (now - lastQueryNanos < (hasTimestamp ? TIMESTAMP_INTERVAL_NS : TIMESTAMP_INTERVAL_FAST_NS)) {
+            return;
+        }
+        lastQueryNanos = now;
+        if (audioTrack.getTimestamp(timestamp) && timestamp.framePosition > 0) {
+            hasTimestamp = true;
+            clock.onTimestamp(timestamp.framePosition, timestamp.nanoTime, true);
+            return;
+        }
+        long head = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        if (head < lastHead) {
+            headWraps++;
+        }
+        lastHead = head;
+        if (!hasTimestamp && head > 0) {
+            clock.onTimestamp((headWraps << 32) + head, now, false);
+        }
+    }
+
+    /**
+     * 播放位置时钟，使用 write(short[], int, int, long) 写入时有效
+     *
+     * @return
+     */
+    public PlaybackClock getClock() {
+        return clock;
+    }
+
     public void pause() {
         /**
          * 暂停播放数据，尚未播放的数据不会被丢弃，再次调用 play 时将继续播放。
          */
         audioTrack.pause();
+        clock.pause(System.nanoTime());
     }
 
     public void resume() {
         audioTrack.play();
+        clock.resume(System.nanoTime());
     }
 
     /**
@@ -111,12 +278,31 @@ public class AudioTrackPlayer {
 //        audioTrack.stop();  // 停止audioTrack
 
         audioTrack.pause();
+        clock.pause(System.nanoTime());
         /**
          * 刷新当前排队等待播放的数据，已写入当未播放的数据将被丢弃，缓冲区将被清理。
          */
         audioTrack.flush(); // flush()只在模式为STREAM下可用
     }
 
+    /**
+     * 丢弃已写入还没有播放的数据（如跳转），之后写入的数据从 mediaFrames 开始，与 write 在同一个线程调用
+     *
+     * @param mediaFrames
+     */
+    public void flush(long mediaFrames) {
+        audioTrack.pause();
+        audioTrack.flush();
+        // 播放头位置和时间戳从0重新开始
+        framesWritten = 0;
+        jumpOffset = -1;
+        hasTimestamp = false;
+        headWraps = 0;
+        lastHead = 0;
+        clock.flush(mediaFrames);
+        audioTrack.play();
+    }
+
     /**
      * 释放资源
      */
@@ -130,6 +316,7 @@ public class AudioTrackPlayer {
         private int channelCount = 2;       // 声道数
         private int encodingBit = AudioFormat.ENCODING_PCM_16BIT;   // 采样深度
         private int transferMode = AudioTrack.MODE_STREAM;          // 数据加载模式
+        private int framesPerBurst = 0;     // 硬件周期，大于0时使用低延迟输出
 
         public AudioTrackPlayer.Builder setSamoleRate(int samoleRate) {
             this.samoleRate = samoleRate;
@@ -151,6 +338,11 @@ public class AudioTrackPlayer {
             return this;
         }
 
+        public AudioTrackPlayer.Builder setFramesPerBurst(int framesPerBurst) {
+            this.framesPerBurst = framesPerBurst;
+            return this;
+        }
+
         public AudioTrackPlayer build() {
             return new AudioTrackPlayer(this);
         }
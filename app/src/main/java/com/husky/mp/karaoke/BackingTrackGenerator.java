@@ -0,0 +1,176 @@
+package com.husky.mp.karaoke;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.karaoke.dsp.VocalRemover;
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 伴奏生成（离线任务）
+ * <p>
+ * 没有伴唱文件的歌曲，把立体声原唱尽快解码后用频谱模式消除人声，写成WAV缓存到分析缓存中，
+ * 之后直接作为伴唱文件播放，不再占用播放时的CPU。缓存生成之前可以用 KaraokeManager 的实时消除人声
+ */
+public class BackingTrackGenerator {
+
+    private static final String TAG = "BackingTrackGenerator";
+
+    public static final String KIND = "backing.wav";    // 缓存扩展名
+
+    private static final int READ_SIZE = 8192;  // 每次处理的采样数
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new AssetInstaller.PriorityThreadFactory("backingTrack", Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * 已经生成的伴奏，没有时返回null
+     *
+     * @param original
+     * @param cache
+     * @return
+     */
+    public static File getCached(MediaInput original, AnalysisCache cache) {
+        File file = cache.getFile(original, KIND);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * 在后台生成伴奏，已经生成过时直接返回，结果在主线程回调
+     *
+     * @param original 立体声原唱
+     * @param cache
+     * @param listener
+     * @return 可用于取消任务
+     */
+    public static Future<?> generateAsync(final MediaInput original, final AnalysisCache cache, final OnGenerateListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final File file = generate(original, cache);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onGenerated(file);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "generate failed: " + original, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFailed(e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "generate cancelled: " + original);
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步生成伴奏（在后台线程中调用）
+     *
+     * @param original 立体声原唱
+     * @param cache
+     * @return 伴奏WAV文件
+     * @throws IOException          解码失败或不是立体声
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static File generate(MediaInput original, AnalysisCache cache) throws IOException, InterruptedException {
+        File file = cache.getFile(original, KIND);
+        if (file.exists()) {
+            return file;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        long startNanos = System.nanoTime();
+        PcmDecoder decoder = new PcmDecoder(original);
+        try {
+            short[] buffer = new short[READ_SIZE];
+            // 第一次读取后采样率和声道数才确定
+            int count = decoder.read(buffer, 0, buffer.length);
+            if (decoder.getChannelCount() != 2) {
+                throw new IOException("not stereo: " + original);
+            }
+            VocalRemovalSource source = new VocalRemovalSource(new PrefetchedSource(decoder, buffer, count),
+                    new VocalRemover(decoder.getSampleRate(), VocalRemover.MODE_SPECTRAL));
+            WavWriter writer = new WavWriter(temp, decoder.getSampleRate(), 2);
+            boolean done = false;
+            try {
+                short[] out = new short[READ_SIZE];
+                while ((count = source.read(out, 0, out.length)) >= 0) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    writer.write(out, 0, count);
+                }
+                done = true;
+            } finally {
+                writer.close();
+                if (!done) {
+                    temp.delete();
+                }
+            }
+        } finally {
+            decoder.release();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+        Log.d(TAG, "generated " + file + " in " + (System.nanoTime() - startNanos) / 1_000_000 + "ms, duration "
+                + decoder.getDurationUs() / 1000 + "ms");
+        return file;
+    }
+
+    // 先返回已经读取的第一块，再继续从解码器读取
+    static class PrefetchedSource implements MixSource {
+
+        private final PcmDecoder decoder;
+        private final short[] first;
+        private int firstCount;
+        private int position = 0;
+
+        PrefetchedSource(PcmDecoder decoder, short[] first, int firstCount) {
+            this.decoder = decoder;
+            this.first = first;
+            this.firstCount = Math.max(firstCount, 0);
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int size) {
+            if (position < firstCount) {
+                int count = Math.min(size, firstCount - position);
+                System.arraycopy(first, position, buffer, offset, count);
+                position += count;
+                return count;
+            }
+            return decoder.read(buffer, offset, size);
+        }
+
+        @Override
+        public boolean isLive() {
+            return false;
+        }
+    }
+
+    /**
+     * 生成结果回调接口（主线程）
+     */
+    public interface OnGenerateListener {
+        void onGenerated(File file);
+
+        void onFailed(IOException e);
+    }
+}
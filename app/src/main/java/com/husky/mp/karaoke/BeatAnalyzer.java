@@ -0,0 +1,309 @@
+package com.husky.mp.karaoke;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.karaoke.dsp.OnsetDetector;
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 速度和节拍分析（离线任务）
+ * <p>
+ * 用 PcmDecoder 尽快解码整首歌（远快于实时播放），计算起音强度包络（见 OnsetDetector），
+ * 由包络的自相关估计速度（偏向120BPM附近，减少半速/倍速错误），再用动态规划找出既对准起音又间隔接近一拍的节拍序列，
+ * 生成 BeatGrid 并写入分析缓存，之后同一首歌直接读取缓存，不再重新分析
+ */
+public class BeatAnalyzer {
+
+    private static final String TAG = "BeatAnalyzer";
+
+    public static final String KIND = "beats";      // 缓存扩展名
+
+    private static final int READ_SIZE = 8192;      // 每次读取的采样数
+
+    private static final float MIN_BPM = 60f;
+    private static final float MAX_BPM = 200f;
+    private static final float PRIOR_BPM = 120f;        // 速度先验中心
+    private static final float PRIOR_OCTAVES = 1f;      // 速度先验宽度（八度）
+    private static final float TIGHTNESS = 100f;        // 节拍间隔偏离一拍的惩罚系数
+    private static final float SMOOTH_SECONDS = 1f;     // 去掉包络缓慢变化的窗口
+
+    // 分析任务在低优先级线程中逐个执行，不影响播放
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new AssetInstaller.PriorityThreadFactory("beatAnalyzer", Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * 在后台获取节拍网格，有缓存时直接读取，否则分析后写入缓存，结果在主线程回调
+     *
+     * @param input    伴唱（没有人声，节拍更清楚）或原唱
+     * @param cache    分析缓存
+     * @param listener
+     * @return 可用于取消任务
+     */
+    public static Future<?> analyzeAsync(final MediaInput input, final AnalysisCache cache, final OnAnalyzeListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final BeatGrid grid = load(input, cache);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onAnalyzed(grid);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "analyze failed: " + input, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFailed(e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "analyze cancelled: " + input);
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步获取节拍网格，有缓存时直接读取，否则分析后写入缓存（在后台线程中调用）
+     *
+     * @param input
+     * @param cache
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static BeatGrid load(MediaInput input, AnalysisCache cache) throws IOException, InterruptedException {
+        File file = cache.getFile(input, KIND);
+        if (file.exists()) {
+            try {
+                return BeatGrid.read(file);
+            } catch (IOException e) {   // 缓存损坏或版本不一致，重新分析
+                Log.w(TAG, "invalid cache: " + file, e);
+                file.delete();
+            }
+        }
+        BeatGrid grid = analyze(input);
+        try {
+            grid.write(file);
+        } catch (IOException e) {   // 缓存写入失败不影响结果
+            Log.w(TAG, "write cache failed: " + file, e);
+        }
+        return grid;
+    }
+
+    /**
+     * 分析节拍（不使用缓存）
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static BeatGrid analyze(MediaInput input) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        PcmDecoder decoder = new PcmDecoder(input);
+        try {
+            BeatGrid grid = analyze(decoder);
+            long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+            Log.d(TAG, "analyzed " + input + " in " + elapsedMs + "ms: " + grid);
+            return grid;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * 从解码器读取全部数据并分析
+     *
+     * @param decoder
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    static BeatGrid analyze(PcmDecoder decoder) throws InterruptedException {
+        EnvelopeBuilder envelope = new EnvelopeBuilder();
+        short[] buffer = new short[READ_SIZE];
+        OnsetDetector detector = null;
+        int count;
+        while ((count = decoder.read(buffer, 0, buffer.length)) >= 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (detector == null) { // 第一次读取后采样率和声道数才确定
+                detector = new OnsetDetector(decoder.getSampleRate(), decoder.getChannelCount());
+                detector.setOnOnsetListener(envelope);
+            }
+            detector.process(buffer, 0, count);
+        }
+        if (detector == null) {
+            return new BeatGrid(0, new long[0]);
+        }
+        return track(envelope.values, envelope.count, detector);
+    }
+
+    /**
+     * 由起音强度包络估计速度和节拍
+     *
+     * @param envelope 起音强度（会被修改）
+     * @param count    帧数
+     * @param detector 产生包络的检测器（帧率和帧时间）
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    static BeatGrid track(float[] envelope, int count, OnsetDetector detector) throws InterruptedException {
+        float frameRate = detector.getFrameRate();
+        normalize(envelope, count, Math.round(SMOOTH_SECONDS * frameRate));
+        float period = estimatePeriod(envelope, count, frameRate);
+        if (period <= 0) {
+            return new BeatGrid(0, new long[0]);
+        }
+        int[] frames = trackBeats(envelope, count, period);
+        long[] beats = new long[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            beats[i] = detector.getFrameTimeUs(frames[i]);
+        }
+        return new BeatGrid(60f * frameRate / period, beats);
+    }
+
+    // 减去滑动平均（只保留突出的起音），负数置0，再除以标准差
+    private static void normalize(float[] envelope, int count, int radius) {
+        double[] prefix = new double[count + 1];
+        for (int i = 0; i < count; i++) {
+            prefix[i + 1] = prefix[i] + envelope[i];
+        }
+        double sumSquares = 0;
+        for (int i = 0; i < count; i++) {
+            int from = Math.max(0, i - radius);
+            int to = Math.min(count, i + radius + 1);
+            float mean = (float) ((prefix[to] - prefix[from]) / (to - from));
+            envelope[i] = Math.max(0, envelope[i] - mean);
+            sumSquares += envelope[i] * envelope[i];
+        }
+        float std = (float) Math.sqrt(sumSquares / Math.max(1, count));
+        if (std > 0) {
+            for (int i = 0; i < count; i++) {
+                envelope[i] /= std;
+            }
+        }
+    }
+
+    // 自相关乘速度先验，取最大的周期（帧，抛物线插值到小数），包络为空时返回0
+    private static float estimatePeriod(float[] envelope, int count, float frameRate) throws InterruptedException {
+        int minLag = (int) Math.floor(60f * frameRate / MAX_BPM);
+        int maxLag = (int) Math.ceil(60f * frameRate / MIN_BPM);
+        if (count < maxLag * 4) {   // 太短
+            return 0;
+        }
+        float[] scores = new float[maxLag + 2];
+        int best = -1;
+        for (int lag = minLag - 1; lag <= maxLag + 1; lag++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            double sum = 0;
+            for (int i = lag; i < count; i++) {
+                sum += envelope[i] * envelope[i - lag];
+            }
+            double octaves = Math.log(60f * frameRate / lag / PRIOR_BPM) / Math.log(2);
+            double prior = Math.exp(-0.5 * octaves * octaves / (PRIOR_OCTAVES * PRIOR_OCTAVES));
+            scores[lag] = (float) (sum / (count - lag) * prior);
+            if (lag >= minLag && lag <= maxLag && (best < 0 || scores[lag] > scores[best])) {
+                best = lag;
+            }
+        }
+        if (scores[best] <= 0) {
+            return 0;
+        }
+        float left = scores[best - 1];
+        float right = scores[best + 1];
+        float denominator = left - 2 * scores[best] + right;
+        float delta = denominator < 0 ? 0.5f * (left - right) / denominator : 0;
+        return best + Math.max(-0.5f, Math.min(0.5f, delta));
+    }
+
+    // 动态规划：每帧的得分 = 起音强度 + 前一拍（间隔 period/2 ~ 2*period）的最好得分 - 间隔偏离一拍的惩罚，
+    // 从最后一拍附近得分最高的帧回溯
+    private static int[] trackBeats(float[] envelope, int count, float period) throws InterruptedException {
+        float[] score = new float[count];
+        int[] previous = new int[count];
+        int minGap = Math.max(1, Math.round(period / 2));
+        int maxGap = Math.round(period * 2);
+        float[] penalty = new float[maxGap + 1];
+        for (int gap = minGap; gap <= maxGap; gap++) {
+            double ratio = Math.log(gap / period);
+            penalty[gap] = (float) (TIGHTNESS * ratio * ratio);
+        }
+        for (int t = 0; t < count; t++) {
+            if ((t & 1023) == 0 && Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            float best = 0;
+            int bestPrevious = -1;
+            for (int prev = Math.max(0, t - maxGap); prev <= t - minGap; prev++) {
+                float candidate = score[prev] - penalty[t - prev];
+                if (bestPrevious < 0 || candidate > best) {
+                    best = candidate;
+                    bestPrevious = prev;
+                }
+            }
+            score[t] = envelope[t] + (bestPrevious < 0 ? 0 : best);    // 开头没有前一拍
+            previous[t] = bestPrevious;
+        }
+
+        // 最后一个周期内得分最高的帧作为最后一拍
+        int last = -1;
+        for (int t = Math.max(0, count - Math.round(period)); t < count; t++) {
+            if (last < 0 || score[t] > score[last]) {
+                last = t;
+            }
+        }
+        int beats = 0;
+        for (int t = last; t >= 0; t = previous[t]) {
+            beats++;
+        }
+        int[] frames = new int[beats];
+        for (int t = last, i = beats - 1; t >= 0; t = previous[t], i--) {
+            frames[i] = t;
+        }
+        return frames;
+    }
+
+    /**
+     * 收集 OnsetDetector 的回调
+     */
+    private static class EnvelopeBuilder implements OnsetDetector.OnOnsetListener {
+        private float[] values = new float[100 * 60];   // 按需扩容
+        private int count = 0;
+
+        @Override
+        public void onOnset(int frame, float strength) {
+            if (count == values.length) {
+                float[] grown = new float[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, count);
+                values = grown;
+            }
+            values[count++] = strength;
+        }
+    }
+
+    /**
+     * 分析结果回调接口（主线程）
+     */
+    public interface OnAnalyzeListener {
+        void onAnalyzed(BeatGrid grid);
+
+        void onFailed(IOException e);
+    }
+}
@@ -0,0 +1,160 @@
+package com.husky.mp.karaoke;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 节拍网格（见 BeatAnalyzer）
+ * <p>
+ * 速度和每一拍的时间（按时间排序）。另外按固定间隔（100毫秒，比最快的拍子间隔短）记录每个时间段开始前的最后一拍，
+ * 按时间查拍子时先取下标再最多前进一两拍，播放过程中每帧查询都是 O(1)
+ */
+public class BeatGrid {
+
+    private static final int MAGIC = 0x48424541;    // "HBEA"
+    private static final int VERSION = 1;           // 分析算法或格式变化时加1，旧缓存失效
+
+    private static final int BUCKET_US = 100_000;   // 查找表间隔
+
+    private final float bpm;            // 速度（每分钟拍数）
+    private final long[] beats;         // 每一拍的时间（微秒）
+    private final int[] buckets;        // 每个时间段开始时（含）的最后一拍，之前没有拍子时为-1
+
+    public BeatGrid(float bpm, long[] beats) {
+        this.bpm = bpm;
+        this.beats = beats;
+        int count = beats.length == 0 ? 0 : (int) (beats[beats.length - 1] / BUCKET_US) + 1;
+        this.buckets = new int[count];
+        int beat = -1;
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * BUCKET_US;
+            while (beat + 1 < beats.length && beats[beat + 1] <= start) {
+                beat++;
+            }
+            buckets[i] = beat;
+        }
+    }
+
+    /**
+     * 速度（每分钟拍数），没有检测到节拍时为0
+     *
+     * @return
+     */
+    public float getBpm() {
+        return bpm;
+    }
+
+    public int getBeatCount() {
+        return beats.length;
+    }
+
+    /**
+     * 某一拍的时间（微秒）
+     *
+     * @param index
+     * @return
+     */
+    public long getBeatUs(int index) {
+        return beats[index];
+    }
+
+    /**
+     * 某一时刻所在的拍（该时刻之前（含）的最后一拍）
+     *
+     * @param timeUs
+     * @return 第一拍之前返回-1
+     */
+    public int getBeatIndex(long timeUs) {
+        if (beats.length == 0 || timeUs < beats[0]) {
+            return -1;
+        }
+        int bucket = (int) Math.min(timeUs / BUCKET_US, buckets.length - 1);
+        int beat = Math.max(0, buckets[bucket]);
+        while (beat + 1 < beats.length && beats[beat + 1] <= timeUs) {
+            beat++;
+        }
+        return beat;
+    }
+
+    /**
+     * 某一时刻在一拍中的位置
+     *
+     * @param timeUs
+     * @return 0（正好在拍子上）~1，第一拍之前或最后一拍之后返回-1
+     */
+    public float getBeatPhase(long timeUs) {
+        int beat = getBeatIndex(timeUs);
+        if (beat < 0 || beat + 1 >= beats.length) {
+            return -1;
+        }
+        return (float) (timeUs - beats[beat]) / (beats[beat + 1] - beats[beat]);
+    }
+
+    /**
+     * 写入文件（先写临时文件再改名，写入中断不会留下不完整的文件）
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeFloat(bpm);
+            out.writeInt(beats.length);
+            for (long beat : beats) {
+                out.writeLong(beat);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static BeatGrid read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported beat grid: " + file);
+            }
+            float bpm = in.readFloat();
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("corrupt beat grid: " + file);
+            }
+            long[] beats = new long[count];
+            for (int i = 0; i < count; i++) {
+                beats[i] = in.readLong();
+                if (i > 0 && beats[i] <= beats[i - 1]) {
+                    throw new IOException("corrupt beat grid: " + file);
+                }
+            }
+            return new BeatGrid(bpm, beats);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BeatGrid{" + bpm + " BPM, " + beats.length + " beats}";
+    }
+}
@@ -0,0 +1,53 @@
+package com.husky.mp.karaoke;
+
+/**
+ * 采集源，真机上是麦克风（AudioRecordCaptureSource），测试时可以换成文件或合成信号
+ */
+public interface CaptureSource {
+
+    /**
+     * 采样率
+     *
+     * @return
+     */
+    int getSampleRate();
+
+    /**
+     * 声道数
+     *
+     * @return
+     */
+    int getChannelCount();
+
+    /**
+     * 每次读取的采样数（越小延迟越低）
+     *
+     * @return
+     */
+    int getReadSize();
+
+    /**
+     * 开始采集
+     */
+    void start();
+
+    /**
+     * 阻塞读取采集到的PCM数据（16位采样）
+     *
+     * @param buffer
+     * @param offset
+     * @param size
+     * @return 实际读取的采样数，小于0表示出错
+     */
+    int read(short[] buffer, int offset, int size);
+
+    /**
+     * 停止采集
+     */
+    void stop();
+
+    /**
+     * 释放资源
+     */
+    void release();
+}
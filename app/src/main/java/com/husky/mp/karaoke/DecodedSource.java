@@ -0,0 +1,74 @@
+package com.husky.mp.karaoke;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解码音源，把异步解码得到的PCM数据块转换成连续的采样供混音器读取
+ */
+public class DecodedSource implements MixSource {
+
+    private AudioChannelAsync audioChannel; // 音频解码
+
+    private byte[] current;     // 当前正在读取的PCM数据块
+    private int position = 0;   // 当前数据块中已读取的字节数
+    private boolean ended = false;  // 是否已经结束
+
+    public DecodedSource(AudioChannelAsync audioChannel) {
+        this.audioChannel = audioChannel;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) throws InterruptedException {
+        if (ended) {
+            return -1;
+        }
+        int read = 0;
+        while (read < size) {
+            if (current == null || position >= current.length) {
+                current = nextChunk();
+                position = 0;
+                if (current == null) {  // 解码结束
+                    ended = true;
+                    break;
+                }
+            }
+            /**
+             * 16 bit 采样深度，一个声音采样点是两个字节，低八位在前面，高八位在后面
+             */
+            int count = Math.min(size - read, (current.length - position) / 2);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + read + i] = (short) ((current[position] & 0xff) | (current[position + 1] & 0xff) << 8);
+                position += 2;
+            }
+            read += count;
+            if (count == 0) {   // 数据块末尾剩下不足一个采样点的字节，丢弃
+                position = current.length;
+            }
+        }
+        return read == 0 && ended ? -1 : read;
+    }
+
+    /**
+     * 获取下一个PCM数据块，解码结束并且缓冲队列已经取完时返回null
+     * 使用超时等待，避免解码结束时清空了缓冲队列导致一直阻塞
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    private byte[] nextChunk() throws InterruptedException {
+        while (true) {
+            byte[] chunk = audioChannel.getPCMQueue().poll(10, TimeUnit.MILLISECONDS);
+            if (chunk != null) {
+                return chunk;
+            }
+            if (audioChannel.isDecodeOver() && audioChannel.getPCMQueue().isEmpty()) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+}
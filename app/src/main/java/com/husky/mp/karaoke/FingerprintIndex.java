@@ -0,0 +1,453 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.Fingerprinter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 声学指纹倒排索引
+ * <p>
+ * 每个峰值对存成一个long：哈希（高32位）| 歌曲序号（20位）| 锚点帧号（12位），整个索引是按哈希排序的long数组，
+ * 查询时对每个哈希二分查找，一万首歌几百万条记录，查询一首歌几毫秒。
+ * 新加入的歌先放在待合并数组中，下次查询前排序后归并进主数组；删除的歌只做标记，写入文件时才真正去掉。
+ * <p>
+ * 匹配：同一首歌的峰值对在查询和索引中的帧号差（时间偏移）相同，按歌曲和偏移统计命中数，
+ * 相邻偏移合并计算（帧边界不对齐时偏移可能差一帧）
+ */
+public class FingerprintIndex {
+
+    private static final int MAGIC = 0x48464958;    // "HFIX"
+    private static final int VERSION = 1;           // 分析算法或格式变化时加1，旧索引失效
+
+    static final int MAX_FRAME = (1 << 12) - 1;     // 锚点帧号上限（约190秒）
+    private static final int MAX_TRACKS = 1 << 20;
+    private static final int MAX_POSTINGS = 2000;   // 太常见的哈希区分不了歌曲，查询时跳过
+    private static final int MIN_SCORE = 8;         // 命中数少于该值不算匹配
+
+    public static final float DUPLICATE_RATIO = 0.3f;   // 命中数占查询哈希数的比例达到该值认为是同一录音
+
+    private final List<String> keys = new ArrayList<>();    // 序号 -> 缓存键（见 MediaInput.getCacheKey），删除后为null
+    private final List<String> names = new ArrayList<>();   // 序号 -> 媒体名称（路径）
+    private final Map<String, Integer> ids = new HashMap<>();
+    private int removedCount = 0;
+
+    private long[] postings = new long[0];  // 按哈希排序
+    private int postingCount = 0;
+    private long[] pending = new long[1024];
+    private int pendingCount = 0;
+
+    /**
+     * 歌曲数
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * 峰值对总数
+     *
+     * @return
+     */
+    public synchronized int getPostingCount() {
+        return postingCount + pendingCount;
+    }
+
+    public synchronized boolean contains(String key) {
+        return ids.containsKey(key);
+    }
+
+    /**
+     * 所有歌曲的缓存键
+     *
+     * @return
+     */
+    public synchronized Set<String> getKeys() {
+        return new HashSet<>(ids.keySet());
+    }
+
+    /**
+     * 加入一首歌，已有同样的缓存键时替换
+     *
+     * @param key         缓存键
+     * @param name        媒体名称
+     * @param fingerprint
+     */
+    public synchronized void add(String key, String name, AudioFingerprint fingerprint) {
+        remove(key);
+        if (keys.size() >= MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+        int id = keys.size();
+        keys.add(key);
+        names.add(name);
+        ids.put(key, id);
+        if (pendingCount + fingerprint.size() > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + fingerprint.size()));
+        }
+        for (int i = 0; i < fingerprint.size(); i++) {
+            int frame = fingerprint.getFrame(i);
+            if (frame <= MAX_FRAME) {
+                pending[pendingCount++] = posting(fingerprint.getHash(i), id, frame);
+            }
+        }
+    }
+
+    /**
+     * 删除一首歌
+     *
+     * @param key
+     * @return 是否存在
+     */
+    public synchronized boolean remove(String key) {
+        Integer id = ids.remove(key);
+        if (id == null) {
+            return false;
+        }
+        keys.set(id, null);
+        names.set(id, null);
+        removedCount++;
+        return true;
+    }
+
+    /**
+     * 只保留指定的歌曲（媒体库扫描后删除已经不存在或已经变化的文件）
+     *
+     * @param retained
+     * @return 删除的歌曲数
+     */
+    public synchronized int retain(Collection<String> retained) {
+        Set<String> set = new HashSet<>(retained);
+        int removed = 0;
+        for (String key : new ArrayList<>(ids.keySet())) {
+            if (!set.contains(key)) {
+                remove(key);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 查找与指纹匹配的歌曲
+     *
+     * @param fingerprint
+     * @param excludeKey  不参与匹配的歌曲（查找库中某首歌的重复或相关歌曲时排除自己），可以为null
+     * @param maxResults
+     * @return 按命中数从多到少排序
+     */
+    public synchronized List<Match> match(AudioFingerprint fingerprint, String excludeKey, int maxResults) {
+        merge();
+        Integer excluded = excludeKey == null ? null : ids.get(excludeKey);
+        int excludedId = excluded == null ? -1 : excluded;
+
+        // 命中记录：歌曲序号（高位）| 偏移，排序后同一歌曲同一偏移连续
+        long[] hits = new long[Math.max(16, fingerprint.size() * 4)];
+        int hitCount = 0;
+        for (int i = 0; i < fingerprint.size(); i++) {
+            long hash = fingerprint.getHash(i) & 0xFFFFFFFFL;
+            int from = lowerBound(hash << 32);
+            int to = lowerBound((hash + 1) << 32);
+            if (to - from > MAX_POSTINGS) {
+                continue;
+            }
+            for (int p = from; p < to; p++) {
+                int id = trackId(postings[p]);
+                if (id == excludedId || keys.get(id) == null) {
+                    continue;
+                }
+                int offset = frame(postings[p]) - fingerprint.getFrame(i) + (1 << 16);
+                if (hitCount == hits.length) {
+                    hits = Arrays.copyOf(hits, hitCount * 2);
+                }
+                hits[hitCount++] = (long) id << 32 | offset;
+            }
+        }
+        Arrays.sort(hits, 0, hitCount);
+
+        // 每首歌取命中最多的偏移（与下一个偏移合并）
+        List<Match> matches = new ArrayList<>();
+        int i = 0;
+        while (i < hitCount) {
+            int id = (int) (hits[i] >>> 32);
+            int bestScore = 0;
+            int bestOffset = 0;
+            int previousOffset = Integer.MIN_VALUE;
+            int previousCount = 0;
+            while (i < hitCount && (int) (hits[i] >>> 32) == id) {
+                int offset = (int) hits[i];
+                int count = 0;
+                while (i < hitCount && hits[i] == ((long) id << 32 | offset)) {
+                    count++;
+                    i++;
+                }
+                int score = count + (offset - previousOffset == 1 ? previousCount : 0);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestOffset = count >= previousCount || offset - previousOffset != 1 ? offset : previousOffset;
+                }
+                previousOffset = offset;
+                previousCount = count;
+            }
+            if (bestScore >= MIN_SCORE) {
+                long offsetUs = (bestOffset - (1 << 16)) * Fingerprinter.FRAME_DURATION_US;
+                matches.add(new Match(keys.get(id), names.get(id), bestScore, fingerprint.size(), offsetUs));
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                return b.score - a.score;
+            }
+        });
+        return matches.size() > maxResults ? new ArrayList<>(matches.subList(0, maxResults)) : matches;
+    }
+
+    // 待合并的记录排序后归并进主数组，去掉已删除歌曲的记录
+    private void merge() {
+        if (pendingCount == 0) {
+            return;
+        }
+        Arrays.sort(pending, 0, pendingCount);
+        long[] merged = new long[postingCount + pendingCount];
+        int count = 0;
+        int a = 0;
+        int b = 0;
+        while (a < postingCount || b < pendingCount) {
+            long value;
+            if (b >= pendingCount || (a < postingCount && postings[a] <= pending[b])) {
+                value = postings[a++];
+            } else {
+                value = pending[b++];
+            }
+            if (keys.get(trackId(value)) != null) {
+                merged[count++] = value;
+            }
+        }
+        postings = count == merged.length ? merged : Arrays.copyOf(merged, count);
+        postingCount = count;
+        pendingCount = 0;
+        if (pending.length > 64 * 1024) {   // 批量加入后释放
+            pending = new long[1024];
+        }
+    }
+
+    // 第一个不小于value的位置
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = postingCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (postings[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long posting(int hash, int id, int frame) {
+        return (hash & 0xFFFFFFFFL) << 32 | (long) id << 12 | frame;
+    }
+
+    private static int trackId(long posting) {
+        return (int) (posting >>> 12) & (MAX_TRACKS - 1);
+    }
+
+    private static int frame(long posting) {
+        return (int) posting & MAX_FRAME;
+    }
+
+    /**
+     * 写入文件（先写临时文件再改名，写入中断不会留下不完整的文件）。
+     * 写入前去掉已删除歌曲的记录，歌曲序号重新编排
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void write(File file) throws IOException {
+        merge();
+        compact();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeUTF(keys.get(i));
+                out.writeUTF(names.get(i));
+            }
+            out.writeInt(postingCount);
+            for (int i = 0; i < postingCount; i++) {
+                out.writeLong(postings[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    // 去掉已删除的歌曲，序号连续
+    private void compact() {
+        if (removedCount == 0) {
+            return;
+        }
+        int[] remap = new int[keys.size()];
+        List<String> compactKeys = new ArrayList<>(ids.size());
+        List<String> compactNames = new ArrayList<>(ids.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i) == null) {
+                remap[i] = -1;
+                continue;
+            }
+            remap[i] = compactKeys.size();
+            compactKeys.add(keys.get(i));
+            compactNames.add(names.get(i));
+        }
+        int count = 0;
+        for (int i = 0; i < postingCount; i++) {
+            long value = postings[i];
+            int id = remap[trackId(value)];
+            if (id >= 0) {
+                postings[count++] = posting((int) (value >>> 32), id, frame(value));
+            }
+        }
+        // 同一哈希内的顺序随序号改变，重新排序
+        Arrays.sort(postings, 0, count);
+        postingCount = count;
+        keys.clear();
+        keys.addAll(compactKeys);
+        names.clear();
+        names.addAll(compactNames);
+        ids.clear();
+        for (int i = 0; i < keys.size(); i++) {
+            ids.put(keys.get(i), i);
+        }
+        removedCount = 0;
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static FingerprintIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported fingerprint index: " + file);
+            }
+            FingerprintIndex index = new FingerprintIndex();
+            int trackCount = in.readInt();
+            if (trackCount < 0 || trackCount > MAX_TRACKS) {
+                throw new IOException("corrupt fingerprint index: " + file);
+            }
+            for (int i = 0; i < trackCount; i++) {
+                String key = in.readUTF();
+                index.keys.add(key);
+                index.names.add(in.readUTF());
+                index.ids.put(key, i);
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("corrupt fingerprint index: " + file);
+            }
+            long[] postings = new long[count];
+            for (int i = 0; i < count; i++) {
+                postings[i] = in.readLong();
+                if (trackId(postings[i]) >= trackCount || (i > 0 && postings[i] < postings[i - 1])) {
+                    throw new IOException("corrupt fingerprint index: " + file);
+                }
+            }
+            index.postings = postings;
+            index.postingCount = count;
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 匹配结果
+     */
+    public static final class Match {
+        private final String key;
+        private final String name;
+        private final int score;        // 时间对齐的命中数
+        private final int queryCount;   // 查询的哈希数
+        private final long offsetUs;    // 查询的开头在这首歌中的位置
+
+        Match(String key, String name, int score, int queryCount, long offsetUs) {
+            this.key = key;
+            this.name = name;
+            this.score = score;
+            this.queryCount = queryCount;
+            this.offsetUs = offsetUs;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * 命中比例（0~1），同一录音（重复文件、不同码率）较高，
+         * 原唱与伴唱只有伴奏部分相同，比例较低但偏移接近0
+         *
+         * @return
+         */
+        public float getRatio() {
+            return queryCount == 0 ? 0 : Math.min(1f, (float) score / queryCount);
+        }
+
+        public long getOffsetUs() {
+            return offsetUs;
+        }
+
+        /**
+         * 是否是同一录音
+         *
+         * @return
+         */
+        public boolean isDuplicate() {
+            return getRatio() >= DUPLICATE_RATIO;
+        }
+
+        @Override
+        public String toString() {
+            return "Match{" + name + ", score " + score + "/" + queryCount + ", offset " + offsetUs / 1000 + "ms}";
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.husky.mp.karaoke;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.karaoke.dsp.Fingerprinter;
+import com.husky.mp.util.AssetInstaller;
+import com.husky.mp.util.StorageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 声学指纹（离线任务）
+ * <p>
+ * 用 PcmDecoder 解码每首歌的前 FINGERPRINT_SECONDS 秒提取指纹（见 Fingerprinter），指纹写入分析缓存，
+ * 再加入持久化的倒排索引（见 FingerprintIndex）。更新索引时只处理索引中没有的歌（缓存键随文件大小、修改时间变化），
+ * 已经不在媒体库中的歌从索引中删除。
+ * 查询时在索引中找同一录音（重复文件）和时间对齐的相关录音（原唱/伴唱共用的伴奏），不依赖文件名
+ */
+public class FingerprintScanner {
+
+    private static final String TAG = "FingerprintScanner";
+
+    public static final String KIND = "fingerprint";    // 缓存扩展名
+
+    public static final int FINGERPRINT_SECONDS = 15;   // 每首歌提取指纹的长度
+    private static final int READ_SIZE = 8192;          // 每次读取的采样数
+    private static final int MAX_RESULTS = 10;
+
+    private static final String INDEX_NAME = "fingerprints.idx";
+
+    private static FingerprintScanner instance;
+
+    private final AnalysisCache cache;
+    private final File indexFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // 指纹任务在低优先级线程中逐个执行，不影响播放
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new AssetInstaller.PriorityThreadFactory("fingerprintScanner", Process.THREAD_PRIORITY_BACKGROUND));
+
+    private volatile FingerprintIndex index;    // 第一次任务时读取或创建
+
+    public static synchronized FingerprintScanner get(Context context) {
+        if (instance == null) {
+            File indexFile = new File(StorageUtil.getInternalFilesDir(context, null), INDEX_NAME);
+            instance = new FingerprintScanner(AnalysisCache.get(context), indexFile);
+        }
+        return instance;
+    }
+
+    /**
+     * @param cache     指纹缓存
+     * @param indexFile 索引文件
+     */
+    public FingerprintScanner(AnalysisCache cache, File indexFile) {
+        this.cache = cache;
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * 索引
+     *
+     * @return 还没有执行过任务时返回null
+     */
+    public FingerprintIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * 在后台按媒体库更新索引，完成后在主线程回调
+     *
+     * @param library
+     * @param listener
+     * @return 可用于取消任务（已经完成的部分会保存，下次继续）
+     */
+    public Future<?> updateAsync(final MediaLibrary library, final OnUpdateListener listener) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final FingerprintIndex updated = update(library);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onUpdated(updated);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "update cancelled");
+                }
+            }
+        });
+    }
+
+    /**
+     * 在后台查找与一首歌匹配的歌曲（不包括它自己），结果在主线程回调
+     *
+     * @param input
+     * @param listener
+     * @return 可用于取消任务
+     */
+    public Future<?> matchAsync(final MediaInput input, final OnMatchListener listener) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AudioFingerprint fingerprint = load(input, cache);
+                    final List<FingerprintIndex.Match> matches = loadIndex().match(fingerprint, input.getCacheKey(), MAX_RESULTS);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onMatched(input, matches);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "fingerprint failed: " + input, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFailed(input, e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "match cancelled: " + input);
+                }
+            }
+        });
+    }
+
+    /**
+     * 按媒体库同步更新索引（在后台线程中调用）：加入新的歌，删除不在媒体库中的歌，有变化时保存
+     *
+     * @param library
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消），已经加入的歌会保存
+     */
+    public FingerprintIndex update(MediaLibrary library) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        FingerprintIndex index = loadIndex();
+        Set<String> keys = new HashSet<>();
+        int added = 0;
+        int removed = 0;
+        try {
+            for (MediaLibrary.Entry entry : library.getPlayableEntries()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                MediaInput input = entry.toMediaInput();
+                String key = input.getCacheKey();
+                keys.add(key);
+                if (index.contains(key)) {
+                    continue;
+                }
+                try {
+                    index.add(key, input.getName(), load(input, cache));
+                    added++;
+                } catch (IOException e) {   // 无法解码的歌跳过，下次再试
+                    Log.w(TAG, "fingerprint failed: " + input + ", " + e.getMessage());
+                }
+            }
+            removed = index.retain(keys);
+        } finally {
+            if (added > 0 || removed > 0) {
+                try {
+                    index.write(indexFile);
+                } catch (IOException e) {   // 索引写入失败不影响结果，指纹还在缓存中
+                    Log.w(TAG, "write index failed: " + indexFile, e);
+                }
+            }
+        }
+        Log.d(TAG, "index updated in " + (System.nanoTime() - startNanos) / 1_000_000 + "ms: " + index.size()
+                + " tracks, " + added + " added, " + removed + " removed");
+        return index;
+    }
+
+    private FingerprintIndex loadIndex() {
+        FingerprintIndex loaded = index;
+        if (loaded != null) {
+            return loaded;
+        }
+        if (indexFile.exists()) {
+            try {
+                loaded = FingerprintIndex.read(indexFile);
+            } catch (IOException e) {   // 索引损坏或版本不一致，从缓存的指纹重建
+                Log.w(TAG, "invalid index: " + indexFile, e);
+                indexFile.delete();
+            }
+        }
+        if (loaded == null) {
+            loaded = new FingerprintIndex();
+        }
+        index = loaded;
+        return loaded;
+    }
+
+    /**
+     * 同步获取指纹，有缓存时直接读取，否则提取后写入缓存（在后台线程中调用）
+     *
+     * @param input
+     * @param cache
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static AudioFingerprint load(MediaInput input, AnalysisCache cache) throws IOException, InterruptedException {
+        File file = cache.getFile(input, KIND);
+        if (file.exists()) {
+            try {
+                return AudioFingerprint.read(file);
+            } catch (IOException e) {   // 缓存损坏或版本不一致，重新提取
+                Log.w(TAG, "invalid cache: " + file, e);
+                file.delete();
+            }
+        }
+        AudioFingerprint fingerprint = fingerprint(input);
+        try {
+            fingerprint.write(file);
+        } catch (IOException e) {   // 缓存写入失败不影响结果
+            Log.w(TAG, "write cache failed: " + file, e);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * 提取指纹（不使用缓存）
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static AudioFingerprint fingerprint(MediaInput input) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        PcmDecoder decoder = new PcmDecoder(input);
+        try {
+            AudioFingerprint fingerprint = fingerprint(decoder, FINGERPRINT_SECONDS * 1_000_000L);
+            long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+            Log.d(TAG, "fingerprinted " + input + " in " + elapsedMs + "ms, " + fingerprint.size() + " hashes");
+            return fingerprint;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * 从解码器读取开头的数据并提取指纹
+     *
+     * @param decoder
+     * @param maxUs   最多读取的时长
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    static AudioFingerprint fingerprint(PcmDecoder decoder, long maxUs) throws InterruptedException {
+        AudioFingerprint.Builder builder = new AudioFingerprint.Builder();
+        short[] buffer = new short[READ_SIZE];
+        Fingerprinter fingerprinter = null;
+        long remaining = Long.MAX_VALUE;    // 还需要的采样数
+        int count;
+        while (remaining > 0 && (count = decoder.read(buffer, 0, buffer.length)) >= 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (fingerprinter == null) {    // 第一次读取后采样率和声道数才确定
+                fingerprinter = new Fingerprinter(decoder.getSampleRate(), decoder.getChannelCount());
+                fingerprinter.setOnLandmarkListener(builder);
+                remaining = maxUs * decoder.getSampleRate() / 1_000_000L * decoder.getChannelCount();
+            }
+            fingerprinter.process(buffer, 0, (int) Math.min(count, remaining));
+            remaining -= count;
+        }
+        return builder.build();
+    }
+
+    /**
+     * 索引更新回调接口（主线程）
+     */
+    public interface OnUpdateListener {
+        void onUpdated(FingerprintIndex index);
+    }
+
+    /**
+     * 匹配结果回调接口（主线程）
+     */
+    public interface OnMatchListener {
+        void onMatched(MediaInput input, List<FingerprintIndex.Match> matches);
+
+        void onFailed(MediaInput input, IOException e);
+    }
+}
@@ -0,0 +1,796 @@
+package com.husky.mp.karaoke;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.karaoke.dsp.Limiter;
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 无缝连续播放的播放队列
+ * <p>
+ * 播放线程从当前歌曲解码读取，写入同一个 AudioTrack。当前歌曲剩下不到 PRELOAD_AHEAD_US 时，
+ * 在后台线程打开下一首的解复用器和解码器并预先解码第一块；当前歌曲读完时在同一个输出块中直接接上下一首，
+ * 不插入静音，也不重新创建 AudioTrack（格式不同的歌曲转换成第一首的格式）。
+ * <p>
+ * 设置了淡入淡出时长（setCrossfadeUs）时，当前歌曲剩下该时长时开始同时解码下一首，两首作为两条音轨接入 AudioMixer，
+ * 按等功率曲线逐块调整增益，曲线走完后释放淡出的一首。任何时候最多只有两个解码器，
+ * 淡入淡出期间的开销与卡拉OK原唱伴唱两条音轨的混音相同；时长未知的歌曲读完后无缝连接。
+ * 等功率叠加的峰值可达1.41倍，淡入淡出的数据经过 Limiter 再转换成16位，不会硬削波；
+ * 限幅器的延迟在开始时用上一块的末尾预热、结束时冲出接到下一块开头，写出的数据不多不少，接缝位置不变。
+ * <p>
+ * 接缝处的间隙可以测量：写入接缝所在的块时，如果播放器缓冲已经播空（切换耗时太长），空了多久就是间隙，正常为0。
+ * 听到下一首（播放位置越过接缝）时在主线程回调 OnQueueListener
+ */
+public class GaplessPlayer {
+
+    private static final String TAG = "GaplessPlayer";
+
+    private static final int BLOCK_FRAMES = 1024;   // 每次写入的帧数
+    private static final long PRELOAD_AHEAD_US = 15_000_000L;   // 距离结尾多久开始准备下一首
+
+    private static final ExecutorService preloadExecutor = Executors.newSingleThreadExecutor(
+            new AssetInstaller.PriorityThreadFactory("gaplessPreload", Process.THREAD_PRIORITY_BACKGROUND));
+
+    private final List<MediaInput> queue = new ArrayList<>();   // 播放队列（this 同步）
+    private final Backend backend;
+    private volatile OnQueueListener[] listeners = new OnQueueListener[0];  // 写时复制
+
+    // 控制（任意线程设置，播放线程处理）
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean paused = false;
+    private volatile int skipIndex = -1;    // 请求跳到的歌曲
+    private volatile long crossfadeUs = 0;  // 淡入淡出时长，0为无缝连接
+
+    // 播放线程使用
+    private Output player;
+    private int outSampleRate;
+    private int outChannels;
+    private int decodingIndex = -1;         // 正在解码的歌曲
+    private long decodedFrames = 0;         // 当前歌曲已解码的帧数
+    private long outputFrames = 0;          // 已写入播放器的总帧数
+    private Future<QueueTrack> preload;     // 下一首的准备任务
+    private int preloadIndex = -1;
+    private MediaInput preloadInput;
+    private long pendingJoinFrame = -1;     // 还没有播到的接缝
+    private int pendingJoinIndex = -1;
+    private long pendingGapUs = 0;
+    private QueueTrack current;             // 正在解码的歌曲（淡入淡出时是淡出的一首）
+    private QueueTrack incoming;            // 淡入的歌曲，不在淡入淡出时为null
+    private AudioMixer fadeMixer;           // 淡入淡出时混合两首歌
+    private float[] fadeBuffer;
+    private AudioMixer.Track outgoingTrack;
+    private AudioMixer.Track incomingTrack;
+    private long fadeFrames;                // 已经混合的帧数
+    private long fadeTotalFrames;           // 淡入淡出的总帧数
+    private Limiter fadeLimiter;            // 淡入淡出时限幅
+    private float[] fadeTailBuffer;         // 预热和冲出限幅器延迟用
+    private short[] fadeTail;               // 淡入淡出结束时冲出的数据，下一块从这里开始
+    private int fadeTailSize = 0;
+    private int fadeSkip = 0;               // 还要丢弃的限幅器输出采样数（预热部分）
+
+    // 状态（任意线程读取）
+    private volatile PlaybackClock clock;
+    private volatile int playingIndex = -1;     // 正在听到的歌曲
+    private volatile long trackStartFrame = 0;  // 正在听到的歌曲在输出中的开始位置
+    private volatile long lastGapUs = 0;
+    private volatile long maxGapUs = 0;
+    private volatile long lastSwitchUs = 0;     // 最近一次接上下一首的耗时
+    private volatile int transitions = 0;
+
+    public GaplessPlayer() {
+        this(new AndroidBackend());
+    }
+
+    GaplessPlayer(Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * 替换播放队列，正在播放的歌曲不受影响，之后按新队列的顺序播放
+     *
+     * @param inputs
+     */
+    public synchronized void setQueue(List<MediaInput> inputs) {
+        queue.clear();
+        queue.addAll(inputs);
+    }
+
+    /**
+     * 添加到队列末尾
+     *
+     * @param input
+     */
+    public synchronized void add(MediaInput input) {
+        queue.add(input);
+    }
+
+    public synchronized List<MediaInput> getQueue() {
+        return new ArrayList<>(queue);
+    }
+
+    private synchronized MediaInput getInput(int index) {
+        return index >= 0 && index < queue.size() ? queue.get(index) : null;
+    }
+
+    /**
+     * 从指定歌曲开始播放，已经在播放时丢弃缓冲直接跳过去，跳到队列之后时结束播放
+     *
+     * @param index
+     */
+    public synchronized void play(final int index) {
+        if (thread != null) {
+            skipIndex = index;
+            resume();
+            return;
+        }
+        running = true;
+        paused = false;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                playQueue(index);
+            }
+        }, "gaplessPlayer");
+        thread.start();
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * 设置换歌时的淡入淡出时长，下一次换歌时生效
+     *
+     * @param crossfadeUs 0为无缝连接（默认）
+     */
+    public void setCrossfadeUs(long crossfadeUs) {
+        this.crossfadeUs = Math.max(0, crossfadeUs);
+    }
+
+    public long getCrossfadeUs() {
+        return crossfadeUs;
+    }
+
+    /**
+     * 停止播放并释放资源，不等待播放线程退出，释放后不能再使用
+     */
+    public synchronized void release() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        thread = null;
+    }
+
+    /**
+     * 正在听到的歌曲在队列中的位置，没有播放时为-1
+     *
+     * @return
+     */
+    public int getPlayingIndex() {
+        return playingIndex;
+    }
+
+    /**
+     * 正在听到的歌曲的播放位置（微秒）
+     *
+     * @return
+     */
+    public long getPositionUs() {
+        PlaybackClock current = clock;
+        if (current == null) {
+            return 0;
+        }
+        long frames = current.getPositionFrames(System.nanoTime()) - trackStartFrame;
+        return Math.max(0, frames) * 1_000_000L / current.getSampleRate();
+    }
+
+    /**
+     * 播放位置时钟，开始播放后有效
+     *
+     * @return
+     */
+    public PlaybackClock getClock() {
+        return clock;
+    }
+
+    /**
+     * 最近一次换歌的间隙（微秒），播放器缓冲在接缝前播空的时长，正常为0
+     *
+     * @return
+     */
+    public long getLastGapUs() {
+        return lastGapUs;
+    }
+
+    public long getMaxGapUs() {
+        return maxGapUs;
+    }
+
+    /**
+     * 最近一次读完当前歌曲到接上下一首的耗时（微秒），预先准备好时接近0
+     *
+     * @return
+     */
+    public long getLastSwitchUs() {
+        return lastSwitchUs;
+    }
+
+    /**
+     * 自动换歌的次数
+     *
+     * @return
+     */
+    public int getTransitionCount() {
+        return transitions;
+    }
+
+    public synchronized void addOnQueueListener(OnQueueListener listener) {
+        OnQueueListener[] current = listeners;
+        OnQueueListener[] updated = new OnQueueListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeOnQueueListener(OnQueueListener listener) {
+        OnQueueListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                OnQueueListener[] updated = new OnQueueListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    // ---------------- 播放线程 ----------------
+
+    private void playQueue(int startIndex) {
+        current = null;
+        outputFrames = 0;
+        pendingJoinFrame = -1;
+        try {
+            current = takeTrack(startIndex);
+            if (current == null) {
+                postQueueEnded();
+                return;
+            }
+            // 第一首决定输出格式，之后的歌曲都转换成该格式
+            outSampleRate = current.getSampleRate();
+            outChannels = Math.min(2, current.getChannelCount());
+            current.setOutputFormat(outSampleRate, outChannels);
+            player = backend.createOutput(outSampleRate, outChannels);
+            clock = player.getClock();
+            startTrack(current, 0, 0);
+
+            short[] block = new short[BLOCK_FRAMES * outChannels];
+            fadeMixer = new AudioMixer(block.length);
+            fadeBuffer = new float[block.length];
+            fadeLimiter = new Limiter(outSampleRate, outChannels);
+            fadeTailBuffer = new float[fadeLimiter.getLatencyFrames() * outChannels];
+            fadeTail = new short[fadeTailBuffer.length];
+            boolean ended = false;
+            while (running && !ended) {
+                if (paused) {
+                    waitWhilePaused();
+                    continue;
+                }
+                int target = skipIndex;
+                if (target >= 0) {
+                    skipIndex = -1;
+                    // 先释放正在解码的歌曲（淡入淡出时是两首）再打开新的，解码器不超过两个
+                    cancelCrossfade();
+                    current.release();
+                    current = takeTrack(target);
+                    // 丢弃还没有播放的数据，新歌曲从当前输出位置开始
+                    player.flush(outputFrames);
+                    pendingJoinFrame = -1;
+                    if (current == null) {
+                        ended = true;   // 跳到了队列之后，或之后的歌曲都打不开
+                        continue;
+                    }
+                    startTrack(current, outputFrames, 0);
+                    continue;
+                }
+
+                int fill;
+                boolean joined = false;
+                if (incoming == null && fadeTailSize == 0 && shouldCrossfade()) {
+                    joined = startCrossfade(block);
+                }
+                if (incoming != null) {
+                    fill = mixCrossfade(block);
+                } else {
+                    fill = fadeTailSize;
+                    System.arraycopy(fadeTail, 0, block, 0, fill);
+                    fadeTailSize = 0;
+                    while (fill < block.length) {
+                        int count = current.read(block, fill, block.length - fill);
+                        if (count > 0) {
+                            fill += count;
+                            decodedFrames += count / outChannels;
+                            continue;
+                        }
+                        // 当前歌曲读完，在同一块中接上下一首
+                        long switchStart = System.nanoTime();
+                        QueueTrack next = takeTrack(decodingIndex + 1);
+                        if (next == null) {
+                            ended = true;
+                            break;
+                        }
+                        current.release();
+                        current = next;
+                        lastSwitchUs = (System.nanoTime() - switchStart) / 1000;
+                        pendingJoinFrame = outputFrames + fill / outChannels;
+                        pendingJoinIndex = decodingIndex;
+                        decodedFrames = 0;
+                        joined = true;
+                    }
+                }
+                if (joined) {
+                    // 接缝所在的块写入前播放器已经播空了多久
+                    pendingGapUs = clock.getStarvedNanos(System.nanoTime()) / 1000;
+                }
+                if (fill > 0) {
+                    outputFrames += fill / outChannels;
+                    player.write(block, 0, fill, outputFrames);
+                }
+                checkJoin();
+                if (incoming == null) {
+                    checkPreload(current);
+                }
+            }
+
+            // 等缓冲中的数据播完
+            while (ended && running && clock.getBufferedUs() > 0) {
+                Thread.sleep(10);
+                checkJoin();
+            }
+            if (ended) {
+                postQueueEnded();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "play interrupted", e);
+        } finally {
+            cancelCrossfade();
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+            cancelPreload();
+            if (player != null) {
+                player.stop();
+                player.release();
+            }
+            playingIndex = -1;
+            synchronized (this) {
+                if (thread == Thread.currentThread()) {
+                    thread = null;  // 之后可以重新 play
+                }
+            }
+        }
+    }
+
+    // 当前歌曲剩下的时长不超过淡入淡出时长（短歌曲不超过一半）时开始
+    private boolean shouldCrossfade() {
+        long fadeUs = crossfadeUs;
+        long durationUs = current.getDurationUs();
+        if (fadeUs <= 0 || durationUs <= 0 || getInput(decodingIndex + 1) == null) {
+            return false;   // 时长未知时读完后无缝接上
+        }
+        long remainingUs = durationUs - decodedFrames * 1_000_000L / outSampleRate;
+        return remainingUs <= Math.min(fadeUs, durationUs / 2);
+    }
+
+    /**
+     * 打开下一首，与当前歌曲一起接入混音器
+     *
+     * @param block 刚写出的上一块，用于预热限幅器
+     * @return 是否开始
+     * @throws InterruptedException
+     */
+    private boolean startCrossfade(short[] block) throws InterruptedException {
+        long switchStart = System.nanoTime();
+        long remainingUs = current.getDurationUs() - decodedFrames * 1_000_000L / outSampleRate;
+        QueueTrack next = takeTrack(decodingIndex + 1);
+        if (next == null) {
+            return false;
+        }
+        lastSwitchUs = (System.nanoTime() - switchStart) / 1000;
+        incoming = next;
+        outgoingTrack = fadeMixer.addTrack(current, 1f);
+        incomingTrack = fadeMixer.addTrack(incoming, 0f);
+        fadeFrames = 0;
+        fadeTotalFrames = Math.max(1, remainingUs * outSampleRate / 1_000_000L);
+        // 下一首从这一块开始听到
+        pendingJoinFrame = outputFrames;
+        pendingJoinIndex = decodingIndex;
+        decodedFrames = 0;
+        // 送入已经写出的上一块末尾，输出丢弃，之后限幅器的输出紧接着上一块
+        fadeLimiter.reset();
+        int offset = block.length - fadeTailBuffer.length;
+        for (int i = 0; i < fadeTailBuffer.length; i++) {
+            fadeTailBuffer[i] = block[offset + i] / 32768f;
+        }
+        fadeLimiter.process(fadeTailBuffer, fadeTailBuffer.length);
+        fadeSkip = fadeTailBuffer.length;
+        return true;
+    }
+
+    /**
+     * 混合淡出和淡入的两首歌，等功率曲线（两边增益的平方和为1），按块中点计算增益
+     *
+     * @return 采样数
+     * @throws InterruptedException
+     */
+    private int mixCrossfade(short[] block) throws InterruptedException {
+        double progress = Math.min(1.0, (fadeFrames + BLOCK_FRAMES / 2.0) / fadeTotalFrames);
+        outgoingTrack.setGain((float) Math.cos(progress * Math.PI / 2));
+        incomingTrack.setGain((float) Math.sin(progress * Math.PI / 2));
+        int length = fadeMixer.mix(fadeBuffer);
+        QueueTrack next = incoming;
+        if (length > 0) {
+            fadeFrames += length / outChannels;
+            decodedFrames += incomingTrack.count / outChannels;
+            length = limitFade(fadeBuffer, length, block);
+        }
+        // 曲线走完（当前歌曲还没结束时剩下的部分增益已经为0）或下一首也结束了
+        if (fadeFrames >= fadeTotalFrames || length < 0 || incomingTrack.isEnded()) {
+            // 冲出限幅器中延迟的数据
+            Arrays.fill(fadeTailBuffer, 0);
+            fadeTailSize = limitFade(fadeTailBuffer, fadeTailBuffer.length, fadeTail);
+            finishCrossfade();
+            current.release();
+            current = next;
+        }
+        return Math.max(length, 0);
+    }
+
+    /**
+     * 限幅后转换成16位，丢掉预热部分的输出
+     *
+     * @param buffer
+     * @param length 采样数
+     * @param out
+     * @return 输出的采样数
+     */
+    private int limitFade(float[] buffer, int length, short[] out) {
+        fadeLimiter.process(buffer, length);
+        int skip = Math.min(fadeSkip, length);
+        fadeSkip -= skip;
+        System.arraycopy(buffer, skip, buffer, 0, length - skip);
+        AudioMixer.toPcm16(buffer, out, length - skip);
+        return length - skip;
+    }
+
+    // 跳转或停止时放弃淡入的歌曲
+    private void cancelCrossfade() {
+        fadeTailSize = 0;
+        QueueTrack fading = incoming;
+        if (fading != null) {
+            finishCrossfade();
+            fading.release();
+        }
+    }
+
+    // 移出混音器，淡出的歌曲由调用方释放
+    private void finishCrossfade() {
+        if (incoming == null) {
+            return;
+        }
+        fadeMixer.removeTrack(outgoingTrack);
+        fadeMixer.removeTrack(incomingTrack);
+        outgoingTrack = null;
+        incomingTrack = null;
+        incoming = null;
+    }
+
+    // 开始听到一首歌（第一首或跳转）
+    private void startTrack(QueueTrack track, long startFrame, long gapUs) {
+        decodedFrames = 0;
+        trackStartFrame = startFrame;
+        playingIndex = decodingIndex;
+        postTrackChanged(decodingIndex, track.getInput(), gapUs);
+        checkPreload(track);
+    }
+
+    // 播放位置越过接缝时切换正在听到的歌曲
+    private void checkJoin() {
+        if (pendingJoinFrame < 0 || clock.getPositionFrames(System.nanoTime()) < pendingJoinFrame) {
+            return;
+        }
+        trackStartFrame = pendingJoinFrame;
+        playingIndex = pendingJoinIndex;
+        lastGapUs = pendingGapUs;
+        maxGapUs = Math.max(maxGapUs, pendingGapUs);
+        transitions++;
+        pendingJoinFrame = -1;
+        Log.d(TAG, "track " + pendingJoinIndex + " joined, gap = " + pendingGapUs + "us, switch = " + lastSwitchUs + "us");
+        postTrackChanged(pendingJoinIndex, getInput(pendingJoinIndex), pendingGapUs);
+    }
+
+    private void waitWhilePaused() throws InterruptedException {
+        player.pause();
+        synchronized (lock) {
+            while (paused && running && skipIndex < 0) {
+                lock.wait();
+            }
+        }
+        if (running) {
+            player.resume();
+        }
+    }
+
+    // 当前歌曲快结束（或时长未知）时准备下一首，淡入淡出时提前淡入淡出的时长
+    private void checkPreload(QueueTrack track) {
+        int next = decodingIndex + 1;
+        if (preloadIndex == next || getInput(next) == null) {
+            return;
+        }
+        long durationUs = track.getDurationUs();
+        long decodedUs = decodedFrames * 1_000_000L / outSampleRate;
+        if (durationUs > 0 && durationUs - decodedUs > PRELOAD_AHEAD_US + crossfadeUs) {
+            return;
+        }
+        cancelPreload();
+        final MediaInput input = getInput(next);
+        preloadIndex = next;
+        preloadInput = input;
+        preload = preloadExecutor.submit(new Callable<QueueTrack>() {
+            @Override
+            public QueueTrack call() throws IOException {
+                return backend.openTrack(input);
+            }
+        });
+    }
+
+    // 不再需要的下一首：准备线程是单线程，排在它后面释放，正在打开的解码器也不会遗漏
+    private void cancelPreload() {
+        final Future<QueueTrack> task = preload;
+        preload = null;
+        preloadIndex = -1;
+        preloadInput = null;
+        if (task == null) {
+            return;
+        }
+        preloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.get().release();
+                } catch (InterruptedException | ExecutionException e) {
+                    // 没有准备成功，不需要释放
+                }
+            }
+        });
+    }
+
+    /**
+     * 取得指定歌曲，准备好了直接使用，否则当场打开；打开失败的歌曲跳过
+     *
+     * @return 队列结束时为null
+     * @throws InterruptedException
+     */
+    private QueueTrack takeTrack(int index) throws InterruptedException {
+        while (running) {
+            MediaInput input = getInput(index);
+            if (input == null) {
+                return null;
+            }
+            QueueTrack track = null;
+            try {
+                if (preload != null && preloadIndex == index && preloadInput == input) {
+                    Future<QueueTrack> task = preload;
+                    preload = null;
+                    preloadIndex = -1;
+                    preloadInput = null;
+                    track = task.get();
+                } else {
+                    cancelPreload();
+                    track = backend.openTrack(input);
+                }
+            } catch (ExecutionException e) {
+                postError(input, e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException("open failed: " + input, e.getCause()));
+            } catch (IOException e) {
+                postError(input, e);
+            }
+            if (track != null) {
+                if (outChannels > 0) {
+                    track.setOutputFormat(outSampleRate, outChannels);
+                }
+                decodingIndex = index;
+                return track;
+            }
+            index++;
+        }
+        return null;
+    }
+
+    // ---------------- 回调 ----------------
+
+    private void postTrackChanged(final int index, final MediaInput input, final long gapUs) {
+        backend.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnQueueListener listener : listeners) {
+                    listener.onTrackChanged(index, input, gapUs);
+                }
+            }
+        });
+    }
+
+    private void postQueueEnded() {
+        backend.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnQueueListener listener : listeners) {
+                    listener.onQueueEnded();
+                }
+            }
+        });
+    }
+
+    private void postError(final MediaInput input, final IOException e) {
+        Log.e(TAG, "open failed: " + input, e);
+        backend.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnQueueListener listener : listeners) {
+                    listener.onError(input, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 打开歌曲、创建输出和回调，测试时替换成不依赖解码器和 AudioTrack 的实现
+     */
+    interface Backend {
+        QueueTrack openTrack(MediaInput input) throws IOException;
+
+        Output createOutput(int sampleRate, int channelCount);
+
+        /**
+         * 回调监听器
+         *
+         * @param callback
+         */
+        void post(Runnable callback);
+    }
+
+    /**
+     * 播放输出，write 阻塞到写入为止
+     */
+    interface Output {
+        void write(short[] pcm, int offset, int size, long mediaFrames) throws InterruptedException;
+
+        void flush(long mediaFrames);
+
+        void pause();
+
+        void resume();
+
+        void stop();
+
+        void release();
+
+        PlaybackClock getClock();
+    }
+
+    /**
+     * 解码器打开歌曲，AudioTrack 输出，在主线程回调
+     */
+    static class AndroidBackend implements Backend {
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public QueueTrack openTrack(MediaInput input) throws IOException {
+            return new QueueTrack(input, BLOCK_FRAMES);
+        }
+
+        @Override
+        public Output createOutput(int sampleRate, int channelCount) {
+            final AudioTrackPlayer track = new AudioTrackPlayer(sampleRate, channelCount, AudioFormat.ENCODING_PCM_16BIT, AudioTrack.MODE_STREAM);
+            return new Output() {
+                @Override
+                public void write(short[] pcm, int offset, int size, long mediaFrames) {
+                    track.write(pcm, offset, size, mediaFrames);
+                }
+
+                @Override
+                public void flush(long mediaFrames) {
+                    track.flush(mediaFrames);
+                }
+
+                @Override
+                public void pause() {
+                    track.pause();
+                }
+
+                @Override
+                public void resume() {
+                    track.resume();
+                }
+
+                @Override
+                public void stop() {
+                    track.stop();
+                }
+
+                @Override
+                public void release() {
+                    track.release();
+                }
+
+                @Override
+                public PlaybackClock getClock() {
+                    return track.getClock();
+                }
+            };
+        }
+
+        @Override
+        public void post(Runnable callback) {
+            mainHandler.post(callback);
+        }
+    }
+
+    /**
+     * 播放队列回调接口（主线程）
+     */
+    public interface OnQueueListener {
+        /**
+         * 开始听到一首歌
+         *
+         * @param index 在队列中的位置
+         * @param input
+         * @param gapUs 与上一首之间的间隙（微秒），第一首或跳转时为0
+         */
+        void onTrackChanged(int index, MediaInput input, long gapUs);
+
+        /**
+         * 队列播放完
+         */
+        void onQueueEnded();
+
+        /**
+         * 歌曲打不开，已经跳过
+         *
+         * @param input
+         * @param e
+         */
+        void onError(MediaInput input, IOException e);
+    }
+}
@@ -9,7 +9,16 @@ import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.husky.mp.karaoke.dsp.EffectChain;
+import com.husky.mp.karaoke.dsp.Limiter;
+import com.husky.mp.karaoke.dsp.PitchDetector;
+import com.husky.mp.karaoke.dsp.PitchShifter;
+import com.husky.mp.karaoke.dsp.TimeStretcher;
+import com.husky.mp.karaoke.dsp.VocalRemover;
+
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * 同步处理方式
@@ -27,8 +36,11 @@ public class KaraokeManager {
     private int originalVolume = 0;  // 原唱音量
     private int musicVolume = 100;    // 伴唱音量
 
-    private String inputPath1;   // 媒体路径
-    private String inputPath2;   // 媒体路径
+    private MediaInput input1;   // 媒体输入源（原唱）
+    private MediaInput input2;   // 媒体输入源（伴唱），为null时从原唱实时消除人声
+    private int vocalRemovalMode = VocalRemover.MODE_SPECTRAL;  // 实时消除人声的方式
+    private volatile int keyShift = 0;      // 伴唱升降调（半音）
+    private PitchShifter pitchShifter;      // 伴唱变调
     private MediaExtractor mediaExtractor1;  // 解复用器对象
     private MediaExtractor mediaExtractor2;  // 解复用器对象
 
@@ -41,11 +53,81 @@ public class KaraokeManager {
 
     private Handler mainHandler;    // 主线程handler
 
-    private AudioTrackPlayer audioTrackPlayer;  // 音频播放器
+    private volatile AudioTrackPlayer audioTrackPlayer;  // 音频播放器
+
+    private static final int MIX_BLOCK_FRAMES = 512;    // 混音块大小（帧）
+    private static final int MIN_BURST_BLOCK_FRAMES = 128;  // 按硬件周期混音时块的最小帧数，太小时每块的开销占比过大
+    private int framesPerBurst = 0;     // 硬件周期，大于0时低延迟输出，混音块按周期划分
+    private AudioMixer audioMixer;  // 混音器
+    private AudioMixer.Track originalTrack; // 原唱音轨
+    private AudioMixer.Track musicTrack;    // 伴唱音轨
+    private int sampleRate;     // 采样率
+    private int channelCount;   // 声道数
+
+    private CaptureSource captureSource;    // 麦克风采集源
+    private MicSource micSource;    // 麦克风音源
+    private AudioMixer.Track micTrack;  // 麦克风音轨
+    private volatile int micVolume = 100;   // 麦克风音量
+    private PitchDetector.OnPitchListener onPitchListener;  // 演唱音高回调
+    private PitchScorer pitchScorer;    // 演唱评分
+
+    // 效果链，重新准备时保留，效果需要在准备就绪后按采样率和声道数创建
+    private final EffectChain originalEffects = new EffectChain();
+    private final EffectChain musicEffects = new EffectChain();
+    private final EffectChain micEffects = new EffectChain();
+    private final EffectChain masterEffects = new EffectChain();
+
+    private volatile float speed = 1f;      // 播放速度（变速不变调）
+    private TimeStretcher timeStretcher;    // 所有文件音轨混合后统一变速，原唱伴唱保持同步
+    private volatile long songFrames = 0;   // 已混音的数据对应的歌曲位置（帧）
+
+    private static final float MAX_HEADROOM_DB = 6f;    // 按音轨峰值预留余量的上限
+    private Limiter limiter;    // 总线限幅器（最后一级）
+    private volatile float originalPeak = 0;    // 原唱峰值（线性），0表示未知
+    private volatile float musicPeak = 0;       // 伴唱峰值
+
+    private static final int SPECTRUM_BANDS = 32;   // 频谱频段数
+    private final SpectrumTap spectrumTap = new SpectrumTap(SPECTRUM_BANDS);   // 频谱可视化
+
+    private static final int BROADCAST_SLOTS = 64;  // 混音输出广播的队列长度（约1.5秒）
+    private volatile MixBroadcast mixBroadcast;     // 混音输出广播（录音、分析等）
+    private volatile MixBroadcast micBroadcast;     // 麦克风输出广播（只录人声），有消费者时才发布
+    private volatile MixBroadcast referenceBroadcast;   // 原唱广播（人声录音对齐的参考），与麦克风输出一起发布
+
+    private File waveformFile;  // 波形峰值文件（见 WaveformPeaks），null时不生成
+    private volatile WaveformPeaks waveformPeaks;
+
+    private volatile TrackLoudness originalLoudness;    // 原唱响度（见 LoudnessScanner），null表示未知
+    private volatile TrackLoudness musicLoudness;       // 伴唱响度
+    private volatile float targetLufs = TrackLoudness.DEFAULT_TARGET_LUFS;  // 归一化目标响度
 
+    private volatile BeatGrid beatGrid;     // 节拍网格（见 BeatAnalyzer），null表示未知
+
+    private static final int LOOP_MEMORY_BYTES = 8 * 1024 * 1024;  // A/B循环缓冲的内存上限（原唱伴唱平分，44.1kHz立体声各约23秒）
+    private static final int LOOP_FADE_MS = 20;     // 循环处交叉淡化时长
+    private static final int MIN_LOOP_MS = 500;     // 循环区间的最短长度（长于变速器和限幅器的延迟，同时最多一次回到A还没有输出）
+    private LoopSource originalLoop;    // 原唱A/B循环，混音线程按它换算歌曲位置
+    private LoopSource musicLoop;       // 伴唱A/B循环（在消除人声、变调之前）
+    private volatile long[] loopRequest;    // 请求的循环区间 {A, B}（微秒），混音线程在块之间应用，A为-1表示取消
+    private volatile long loopStartUs = -1; // 生效的循环区间，-1表示不循环
+    private volatile long loopEndUs = -1;
+
+    /**
+     * @param inputPath1 原唱
+     * @param inputPath2 伴唱，为空时从立体声原唱实时消除人声作为伴唱
+     */
     public KaraokeManager(String inputPath1, String inputPath2) {
-        this.inputPath1 = inputPath1;
-        this.inputPath2 = inputPath2;
+        this(TextUtils.isEmpty(inputPath1) ? null : MediaInput.fromPath(inputPath1),
+                TextUtils.isEmpty(inputPath2) ? null : MediaInput.fromPath(inputPath2));
+    }
+
+    /**
+     * @param input1 原唱
+     * @param input2 伴唱，为null时从立体声原唱实时消除人声作为伴唱（可以先用 BackingTrackGenerator 离线生成）
+     */
+    public KaraokeManager(MediaInput input1, MediaInput input2) {
+        this.input1 = input1;
+        this.input2 = input2;
         this.mainHandler = new Handler(Looper.getMainLooper());
     }
 
@@ -66,7 +148,7 @@ public class KaraokeManager {
     public void prepare() {
         // TODO 需要处理已经开启播放情况下不再开启
 
-        if (TextUtils.isEmpty(inputPath1) || TextUtils.isEmpty(inputPath2)) {
+        if (input1 == null) {
             throw new NullPointerException("media path must be not null!");
         }
 
@@ -91,14 +173,15 @@ public class KaraokeManager {
                         mediaExtractor1.release();
                     }
                     mediaExtractor1 = new MediaExtractor();
-                    mediaExtractor1.setDataSource(inputPath1);
+                    input1.applyTo(mediaExtractor1);
 
                     // 已经初始化过的需要释放
                     if (mediaExtractor2 != null) {
                         mediaExtractor2.release();
                     }
                     mediaExtractor2 = new MediaExtractor();
-                    mediaExtractor2.setDataSource(inputPath2);
+                    // 没有伴唱时再解码一路原唱用于消除人声
+                    (input2 != null ? input2 : input1).applyTo(mediaExtractor2);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -122,7 +205,62 @@ public class KaraokeManager {
                 }
 
                 // TODO 需要判断 mediaFormat 是否可用
-                audioTrackPlayer = new AudioTrackPlayer(mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE), mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT), AudioFormat.ENCODING_PCM_16BIT, AudioTrack.MODE_STREAM);
+                sampleRate = mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channelCount = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                audioTrackPlayer = new AudioTrackPlayer(sampleRate, channelCount, AudioFormat.ENCODING_PCM_16BIT, AudioTrack.MODE_STREAM, framesPerBurst);
+                int blockFrames = MIX_BLOCK_FRAMES;
+                if (framesPerBurst > 0) {   // 每块是整数个硬件周期，麦克风不用等满512帧
+                    blockFrames = framesPerBurst * ((MIN_BURST_BLOCK_FRAMES + framesPerBurst - 1) / framesPerBurst);
+                }
+
+                // 原唱伴唱作为两条音轨接入混音器，麦克风等音源后续也作为音轨接入
+                audioMixer = new AudioMixer(blockFrames * channelCount, masterEffects);
+                // 循环缓冲在这里一次分配好，播放过程中不再分配
+                int loopFrames = LOOP_MEMORY_BYTES / 2 / (channelCount * 2);
+                int fadeFrames = sampleRate * LOOP_FADE_MS / 1000;
+                loopRequest = null;
+                loopStartUs = -1;
+                loopEndUs = -1;
+                MixSource originalSource = new DecodedSource(audioChannel1);
+                if (waveformFile != null) {
+                    // 峰值还不完整时边播放边生成
+                    try {
+                        if (waveformPeaks != null) {
+                            waveformPeaks.close();
+                        }
+                        long durationUs = mediaFormat.containsKey(MediaFormat.KEY_DURATION) ? mediaFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+                        waveformPeaks = WaveformPeaks.open(waveformFile, input1, sampleRate, durationUs);
+                        originalSource = new WaveformTapSource(originalSource, waveformPeaks, channelCount);
+                    } catch (IOException e) {
+                        Log.w(TAG, "open waveform peaks failed: " + waveformFile, e);
+                    }
+                }
+                // 波形只在第一次读取时生成，循环重放的数据不再经过
+                originalLoop = new LoopSource(originalSource, channelCount, loopFrames, fadeFrames);
+                originalTrack = audioMixer.addTrack(originalLoop, originalVolume / 100f, originalEffects);
+                musicLoop = new LoopSource(new DecodedSource(audioChannel2), channelCount, loopFrames, fadeFrames);
+                MixSource musicSource = musicLoop;
+                if (input2 == null) {
+                    if (channelCount == 2) {
+                        musicSource = new VocalRemovalSource(musicSource, new VocalRemover(sampleRate, vocalRemovalMode));
+                    } else {
+                        Log.w(TAG, "vocal removal needs stereo, channel = " + channelCount);
+                    }
+                }
+                // 伴唱变调，从未变调时直通
+                pitchShifter = new PitchShifter(sampleRate, channelCount, blockFrames);
+                pitchShifter.setSemitones(keyShift);
+                musicSource = new PitchShiftSource(musicSource, pitchShifter, channelCount, blockFrames);
+                musicTrack = audioMixer.addTrack(musicSource, musicVolume / 100f, musicEffects);
+                timeStretcher = new TimeStretcher(sampleRate, channelCount, blockFrames);
+                limiter = new Limiter(sampleRate, channelCount);
+                spectrumTap.setFormat(sampleRate, channelCount);
+                mixBroadcast = new MixBroadcast(BROADCAST_SLOTS, audioMixer.getBlockSize(), sampleRate, channelCount);
+                micBroadcast = new MixBroadcast(BROADCAST_SLOTS, audioMixer.getBlockSize(), sampleRate, channelCount);
+                referenceBroadcast = new MixBroadcast(BROADCAST_SLOTS, audioMixer.getBlockSize(), sampleRate, channelCount);
+                applyLoudness();
+                songFrames = 0;
+                attachMic();
 
                 mainHandler.post(new Runnable() {
                     @Override
@@ -165,17 +303,23 @@ public class KaraokeManager {
     public void stop() {
         audioChannel1.stop();
         audioChannel2.stop();
+        detachMic();
     }
 
     /**
      * 释放资源
      */
     public void release() {
-        mediaExtractor1.release();
-        mediaExtractor2.release();
+        detachMic();
+        // 解码通道先停止并等待预读线程退出，之后才能释放它读取的解复用器
         audioChannel1.release();
         audioChannel2.release();
+        mediaExtractor1.release();
+        mediaExtractor2.release();
         audioTrackPlayer.release();
+        if (waveformPeaks != null) {
+            waveformPeaks.close();
+        }
         mainHandler.removeCallbacksAndMessages(null);   // 清空消息队列
     }
 
@@ -188,104 +332,668 @@ public class KaraokeManager {
         this.isOriginal = isOriginal;
     }
 
+    /**
+     * 设置没有伴唱时实时消除人声的方式，准备之前调用
+     *
+     * @param vocalRemovalMode VocalRemover.MODE_MID_SIDE（CPU最低）或 VocalRemover.MODE_SPECTRAL（保留声像）
+     */
+    public void setVocalRemovalMode(int vocalRemovalMode) {
+        this.vocalRemovalMode = vocalRemovalMode;
+    }
+
+    /**
+     * 伴唱升降调，可以在播放过程中调用，音调平滑过渡，时长和播放位置不变
+     *
+     * @param semitones 半音数，-PitchShifter.MAX_SEMITONES ~ PitchShifter.MAX_SEMITONES
+     */
+    public void setKeyShift(int semitones) {
+        this.keyShift = semitones;
+        PitchShifter shifter = pitchShifter;
+        if (shifter != null) {
+            shifter.setSemitones(semitones);
+        }
+    }
+
+    public int getKeyShift() {
+        return keyShift;
+    }
+
+    /**
+     * 变调增加的处理延迟上界（微秒），已经由提前读取抵消，不影响与原唱和歌词的同步
+     *
+     * @return
+     */
+    public long getKeyShiftLatencyUs() {
+        PitchShifter shifter = pitchShifter;
+        return shifter == null ? 0 : shifter.getLatencyFrames() * 1_000_000L / sampleRate;
+    }
+
+    /**
+     * 设置麦克风采集源，开始返听（混入播放输出）
+     * 可以在准备之前设置，也可以在播放过程中设置，采样率需要与 getSampleRate() 一致
+     *
+     * @param captureSource 为null时关闭麦克风
+     */
+    public synchronized void setCaptureSource(CaptureSource captureSource) {
+        detachMic();
+        this.captureSource = captureSource;
+        attachMic();
+    }
+
+    /**
+     * 设置麦克风音量
+     *
+     * @param micVolume 0~100
+     */
+    public void setMicVolume(int micVolume) {
+        this.micVolume = micVolume;
+        AudioMixer.Track track = micTrack;
+        if (track != null) {
+            track.setGain(micVolume / 100f);
+        }
+    }
+
+    /**
+     * 设置演唱音高回调，开启麦克风后对采集的人声每秒检测约100次音高
+     * 回调在麦克风采集线程中，时间相对麦克风开启的时刻，不能做耗时操作
+     *
+     * @param onPitchListener 为null时不检测
+     */
+    public synchronized void setOnPitchListener(PitchDetector.OnPitchListener onPitchListener) {
+        this.onPitchListener = onPitchListener;
+        if (micSource != null) {
+            micSource.setPitchDetector(createPitchDetector());
+        }
+    }
+
+    /**
+     * 设置参考旋律（见 MelodyAnalyzer），开启麦克风后按参考旋律评分
+     *
+     * @param melodyIndex 为null时不评分
+     */
+    public synchronized void setMelodyIndex(MelodyIndex melodyIndex) {
+        pitchScorer = melodyIndex == null ? null : new PitchScorer(melodyIndex);
+        if (micSource != null) {
+            micSource.setPitchDetector(createPitchDetector());
+        }
+    }
+
+    /**
+     * 演唱评分，没有设置参考旋律时为null
+     *
+     * @return
+     */
+    public PitchScorer getPitchScorer() {
+        return pitchScorer;
+    }
+
+    /**
+     * 设置节拍网格，可以在任意时候调用
+     *
+     * @param beatGrid 为null时没有节拍信息
+     */
+    public void setBeatGrid(BeatGrid beatGrid) {
+        this.beatGrid = beatGrid;
+    }
+
+    /**
+     * 节拍网格，还没有分析完成时为null
+     *
+     * @return
+     */
+    public BeatGrid getBeatGrid() {
+        return beatGrid;
+    }
+
+    /**
+     * 正在播放的拍（见 BeatGrid.getBeatIndex），O(1)，任意线程调用不加锁
+     *
+     * @return 没有节拍网格或在第一拍之前时返回-1
+     */
+    public int getBeatIndex() {
+        BeatGrid grid = beatGrid;
+        return grid == null ? -1 : grid.getBeatIndex(getPositionUs());
+    }
+
+    /**
+     * 正在播放的位置在一拍中的位置（见 BeatGrid.getBeatPhase），O(1)，任意线程调用不加锁
+     *
+     * @return 0~1，没有节拍网格或不在网格范围内时返回-1
+     */
+    public float getBeatPhase() {
+        BeatGrid grid = beatGrid;
+        return grid == null ? -1 : grid.getBeatPhase(getPositionUs());
+    }
+
+    /**
+     * 设置 A/B 循环区间（反复练习一句），可以在播放过程中任意时候调用，从下一个混音块开始生效
+     * <p>
+     * 最近播放过的一段（44.1kHz立体声约23秒）保存在内存中，区间已经播放过时直接从内存重放，还没有播放到时第一遍播放时保存，
+     * 回到A不需要跳转或重新解码。B前与A开头交叉淡化。A太早（已经不在内存中）时从最早保存的位置开始，区间太长时缩短B
+     *
+     * @param startUs A（歌曲位置）
+     * @param endUs   B，已经播放过时立即回到A
+     */
+    public void setLoop(long startUs, long endUs) {
+        loopRequest = new long[]{Math.max(0, startUs), endUs};
+    }
+
+    /**
+     * 取消循环，从当前位置继续播放
+     */
+    public void clearLoop() {
+        loopRequest = new long[]{-1, -1};
+    }
+
+    /**
+     * 是否正在循环（请求还没有生效时按请求判断）
+     *
+     * @return
+     */
+    public boolean isLooping() {
+        long[] request = loopRequest;
+        return request != null && request[0] >= 0;
+    }
+
+    /**
+     * 生效的循环区间开始位置（微秒）
+     *
+     * @return 没有循环时为-1
+     */
+    public long getLoopStartUs() {
+        return loopStartUs;
+    }
+
+    /**
+     * 生效的循环区间结束位置（微秒）
+     *
+     * @return 没有循环时为-1
+     */
+    public long getLoopEndUs() {
+        return loopEndUs;
+    }
+
+    /**
+     * 正在播放的歌曲位置（微秒），变速时按歌曲时间计算，歌词、评分和跳转都使用该位置，任意线程调用不加锁
+     *
+     * @return
+     */
+    public long getPositionUs() {
+        AudioTrackPlayer player = audioTrackPlayer;
+        return player == null ? 0 : player.getClock().getPositionUs();
+    }
+
+    /**
+     * 播放位置时钟，准备就绪后有效，界面可以通过它按屏幕刷新接收位置
+     *
+     * @return
+     */
+    public PlaybackClock getPlaybackClock() {
+        AudioTrackPlayer player = audioTrackPlayer;
+        return player == null ? null : player.getClock();
+    }
+
+    /**
+     * 设置播放速度（变速不变调），原唱伴唱一起变速，麦克风不受影响，可以在播放过程中调用
+     *
+     * @param speed TimeStretcher.MIN_TEMPO ~ 1.5，1为原速，练习时可以用0.75
+     */
+    public void setSpeed(float speed) {
+        this.speed = Math.max(TimeStretcher.MIN_TEMPO, Math.min(1.5f, speed));
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    /**
+     * 歌曲时间换算成从当前开始的播放时间（微秒），用于变速时计算歌词等到达的实际时刻
+     *
+     * @param songTimeUs 歌曲时间
+     * @return 距离现在的播放时间，已经播过时为负数
+     */
+    public long songToPlaybackDelayUs(long songTimeUs) {
+        return (long) ((songTimeUs - getPositionUs()) / speed);
+    }
+
+    /**
+     * 总线限幅器，准备就绪后有效，可以调整上限等参数
+     *
+     * @return
+     */
+    public Limiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * 设置原唱伴唱的峰值（如离线分析的结果），播放时按当前音量预留余量，减少限幅器的工作
+     *
+     * @param originalPeak 线性，1为满幅，0表示未知
+     * @param musicPeak
+     */
+    public void setTrackPeaks(float originalPeak, float musicPeak) {
+        this.originalPeak = originalPeak;
+        this.musicPeak = musicPeak;
+    }
+
+    /**
+     * 输出频谱（见 SpectrumView），订阅后才分析
+     *
+     * @return
+     */
+    public SpectrumTap getSpectrumTap() {
+        return spectrumTap;
+    }
+
+    /**
+     * 混音输出广播，准备就绪后可用，消费者可以在播放过程中接入和断开
+     *
+     * @return
+     */
+    public MixBroadcast getMixBroadcast() {
+        return mixBroadcast;
+    }
+
+    /**
+     * 麦克风输出广播（增益和效果之前的人声，没有麦克风时为静音），准备就绪后可用，用于只录制人声
+     *
+     * @return
+     */
+    public MixBroadcast getMicBroadcast() {
+        return micBroadcast;
+    }
+
+    /**
+     * 原唱广播（增益之前，变速时为静音），与麦克风输出同时发布、位置一致，用于对齐人声录音（见 PerformanceRecorder.setAlignment）
+     *
+     * @return
+     */
+    public MixBroadcast getReferenceBroadcast() {
+        return referenceBroadcast;
+    }
+
+    /**
+     * 设置设备的硬件周期（见 AudioTrackPlayer.getFramesPerBurst），准备之前调用：
+     * 输出请求低延迟模式，混音块按硬件周期划分，返听延迟不再包括512帧的混音块和整个最小缓冲区
+     *
+     * @param framesPerBurst 0表示不要求低延迟
+     */
+    public void setFramesPerBurst(int framesPerBurst) {
+        this.framesPerBurst = framesPerBurst;
+    }
+
+    /**
+     * 设置原唱波形峰值文件（见 WaveformPeaks.getFile），准备之前调用，峰值还不完整时边播放边生成
+     *
+     * @param waveformFile
+     */
+    public void setWaveformFile(File waveformFile) {
+        this.waveformFile = waveformFile;
+    }
+
+    /**
+     * 原唱波形峰值，准备就绪后有效，播放过程中可以读取已经生成的部分
+     *
+     * @return 没有设置文件或打开失败时为null
+     */
+    public WaveformPeaks getWaveformPeaks() {
+        return waveformPeaks;
+    }
+
+    /**
+     * 设置原唱响度，原唱按目标响度归一化，可以在任意时候调用
+     *
+     * @param loudness 为null时不调整
+     */
+    public void setOriginalLoudness(TrackLoudness loudness) {
+        this.originalLoudness = loudness;
+        applyLoudness();
+    }
+
+    /**
+     * 设置伴唱响度（没有伴唱、从原唱消除人声时传原唱的响度），伴唱按目标响度归一化，可以在任意时候调用
+     *
+     * @param loudness 为null时不调整
+     */
+    public void setMusicLoudness(TrackLoudness loudness) {
+        this.musicLoudness = loudness;
+        applyLoudness();
+    }
+
+    /**
+     * 设置归一化的目标响度
+     *
+     * @param targetLufs 默认 TrackLoudness.DEFAULT_TARGET_LUFS
+     */
+    public void setTargetLoudness(float targetLufs) {
+        this.targetLufs = targetLufs;
+        applyLoudness();
+    }
+
+    // 按响度设置音轨的归一化增益，同时把归一化后的峰值交给限幅器预留余量
+    private synchronized void applyLoudness() {
+        AudioMixer.Track original = originalTrack;
+        AudioMixer.Track music = musicTrack;
+        if (original == null || music == null) {   // 准备时再设置
+            return;
+        }
+        TrackLoudness originalInfo = originalLoudness;
+        TrackLoudness musicInfo = musicLoudness;
+        float originalGain = originalInfo == null ? 1 : originalInfo.getNormalizationGain(targetLufs);
+        float musicGain = musicInfo == null ? 1 : musicInfo.getNormalizationGain(targetLufs);
+        original.setNormalizationGain(originalGain);
+        music.setNormalizationGain(musicGain);
+        if (originalInfo != null && musicInfo != null) {
+            setTrackPeaks(originalInfo.getTruePeak() * originalGain, musicInfo.getTruePeak() * musicGain);
+        }
+    }
+
+    /**
+     * 原唱效果链
+     *
+     * @return
+     */
+    public EffectChain getOriginalEffects() {
+        return originalEffects;
+    }
+
+    /**
+     * 伴唱效果链（变调之后）
+     *
+     * @return
+     */
+    public EffectChain getMusicEffects() {
+        return musicEffects;
+    }
+
+    /**
+     * 人声效果链（麦克风返听，如回声、混响），关闭麦克风后保留
+     *
+     * @return
+     */
+    public EffectChain getMicEffects() {
+        return micEffects;
+    }
+
+    /**
+     * 总线效果链（所有音轨混合、变速之后，如均衡、压缩）
+     *
+     * @return
+     */
+    public EffectChain getMasterEffects() {
+        return masterEffects;
+    }
+
+    /**
+     * 麦克风音源，用于获取从采集到写入播放器的延迟等统计，未开启时为null
+     *
+     * @return
+     */
+    public MicSource getMicSource() {
+        return micSource;
+    }
+
+    /**
+     * 采样率，准备就绪后有效
+     *
+     * @return
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 声道数，准备就绪后有效
+     *
+     * @return
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    // 麦克风接入混音器（混音器还没创建时等准备时再接入）
+    private synchronized void attachMic() {
+        if (captureSource == null || audioMixer == null || micSource != null) {
+            return;
+        }
+        micSource = new MicSource(captureSource, channelCount);
+        micSource.setPitchDetector(createPitchDetector());
+        micSource.start();
+        micTrack = audioMixer.addTrack(micSource, micVolume / 100f, micEffects);
+    }
+
+    // 按采集源参数创建音高检测器，同时分发给评分和回调，都没有时不检测
+    private PitchDetector createPitchDetector() {
+        final PitchDetector.OnPitchListener listener = onPitchListener;
+        final PitchScorer scorer = pitchScorer;
+        if ((listener == null && scorer == null) || captureSource == null) {
+            return null;
+        }
+        PitchDetector detector = new PitchDetector(captureSource.getSampleRate(), captureSource.getChannelCount());
+        final long halfWindowUs = detector.getWindowDurationUs() / 2;
+        detector.setOnPitchListener(new PitchDetector.OnPitchListener() {
+            @Override
+            public void onPitch(long timeUs, float frequency, float confidence) {
+                if (scorer != null) {
+                    // 变速时采集时间与歌曲时间不再一一对应，按当前歌曲位置计分，减去检测窗口中心的延迟
+                    scorer.onPitch(getPositionUs() - (long) (halfWindowUs * speed), frequency, confidence);
+                }
+                if (listener != null) {
+                    listener.onPitch(timeUs, frequency, confidence);
+                }
+            }
+        });
+        return detector;
+    }
+
+    // 麦克风从混音器中移除并释放
+    private synchronized void detachMic() {
+        if (micSource == null) {
+            return;
+        }
+        audioMixer.removeTrack(micTrack);
+        micSource.release();
+        micSource = null;
+        micTrack = null;
+        captureSource = null;
+    }
+
+    // 在混音线程中应用循环请求，原唱伴唱使用同一个区间，在同一位置回到A
+    private void applyLoop(long[] request) {
+        boolean looping = false;
+        if (request[0] >= 0) {
+            long start = request[0] * sampleRate / 1_000_000L;
+            long end = request[1] * sampleRate / 1_000_000L;
+            // 伴唱经过消除人声、变调，读取的位置比原唱靠前，缓冲中保留的A更靠后，先按伴唱确定区间
+            looping = end - start >= (long) sampleRate * MIN_LOOP_MS / 1000
+                    && musicLoop.setLoop(start, end)
+                    && originalLoop.setLoop(musicLoop.getLoopStart(), musicLoop.getLoopEnd())
+                    && originalLoop.getLoopStart() == musicLoop.getLoopStart()
+                    && originalLoop.getLoopEnd() == musicLoop.getLoopEnd();
+            if (looping) {
+                // B前的位置已经被伴唱预读过时，两路都推迟到伴唱当前的位置回到A，不会错开
+                long jumpAt = Math.max(musicLoop.getPosition(), originalLoop.getPosition());
+                originalLoop.setJumpNotBefore(jumpAt);
+                musicLoop.setJumpNotBefore(jumpAt);
+            } else {
+                Log.w(TAG, "loop too short: " + request[0] + " ~ " + request[1]);
+            }
+        }
+        if (looping) {
+            loopStartUs = originalLoop.getLoopStart() * 1_000_000L / sampleRate;
+            loopEndUs = originalLoop.getLoopEnd() * 1_000_000L / sampleRate;
+        } else {
+            originalLoop.clearLoop();
+            musicLoop.clearLoop();
+            loopStartUs = -1;
+            loopEndUs = -1;
+        }
+    }
+
     // 混音播放线程
     class AudioMergeRunnable implements Runnable {
 
         @Override
         public void run() {
-            while (true) {
-                Log.d(TAG, "audioChannel1.isDecodeOver = " + audioChannel1.isDecodeOver());
-                Log.d(TAG, "audioChannel1.getPCMQueue = " + audioChannel1.getPCMQueue().size());
-                Log.d(TAG, "audioChannel2.isDecodeOver = " + audioChannel2.isDecodeOver());
-                Log.d(TAG, "audioChannel2.getPCMQueue = " + audioChannel2.getPCMQueue().size());
+            // 混音过程中重复使用，不再每块分配
+            float[] mix = new float[audioMixer.getBlockSize()];
+            float[] fileMix = new float[audioMixer.getBlockSize()];
+            MixBroadcast broadcast = mixBroadcast;  // PCM直接转换到广播的队列中，播放器和消费者共用
+            MixBroadcast micOut = micBroadcast;
+            MixBroadcast referenceOut = referenceBroadcast;
+            int blockFrames = audioMixer.getBlockSize() / channelCount;
+            boolean stretching = false; // 变过速后一直经过变速器（原速时输出与输入一致），避免来回切换时跳变
+            boolean filesEnded = false;
+            long stretchBase = 0;       // 开始变速时的歌曲位置
+            long stretchFed = 0;        // 开始变速后送入变速器的帧数
+            long stretchJump = -1;      // 变速器输入中回到A的位置，-1表示没有
+            long[] appliedLoop = null;  // 已应用的循环请求
+            int jumpCountdown = -1;     // 回到A的数据在限幅器延迟后还要多少输出帧才写入，-1表示没有
+            long jumpFrom = 0;          // 回到A前后的歌曲位置（帧）
+            long jumpTo = 0;
+            float[] peaks = new float[2];
+            float[] gains = new float[2];
 
-                try {
-                    byte[] original = null;
-                    byte[] music = null;
+            while (true) {
+                // 根据是否原唱修改音量
+                if (isOriginal) {
+                    modifyOriginalVolume();
+                } else {
+                    modifyMusicVolume();
+                }
+                originalTrack.setGain(originalVolume / 100f);
+                musicTrack.setGain(musicVolume / 100f);
+                if (originalPeak > 0 && musicPeak > 0) {
+                    peaks[0] = originalPeak;
+                    peaks[1] = musicPeak;
+                    gains[0] = originalVolume / 100f;
+                    gains[1] = musicVolume / 100f;
+                    limiter.setHeadroom(peaks, gains, MAX_HEADROOM_DB);
+                }
 
-                    if (!audioChannel1.isDecodeOver() || audioChannel1.getPCMQueue().size() != 0) {
-                        original = audioChannel1.getPCMData();
-                    }
-                    if (!audioChannel2.isDecodeOver() || audioChannel2.getPCMQueue().size() != 0) {
-                        music = audioChannel2.getPCMData();
+                long[] request = loopRequest;
+                if (request != appliedLoop) {
+                    appliedLoop = request;
+                    if (request != null) {
+                        applyLoop(request);
                     }
+                }
 
-                    if (original == null && music == null) {
-                        break;
+                int size;
+                try {
+                    float tempo = speed;
+                    if (!stretching && tempo != 1f) {
+                        stretching = true;
+                        timeStretcher.reset();
+                        stretchBase = songFrames;
+                        stretchFed = 0;
+                        stretchJump = -1;
                     }
-
-                    byte[] mix;
-                    if (original != null && music != null) {
-                        Log.d(TAG, "mix");
-                        Log.d(TAG, "original.length = " + original.length);
-                        Log.d(TAG, "music.length = " + music.length);
-
-                        // 根据是否原唱修改音量
-                        if (isOriginal) {
-                            modifyOriginalVolume();
-                        } else {
-                            modifyMusicVolume();
+                    if (stretching) {
+                        // 文件音轨混合后统一变速，再叠加麦克风
+                        timeStretcher.setTempo(tempo);
+                        int frames = timeStretcher.read(mix, 0, blockFrames);
+                        while (frames < blockFrames && !filesEnded) {
+                            int count = audioMixer.mixFileTracks(fileMix);
+                            if (count < 0) {    // 补静音把变速器中剩下的输出冲出来
+                                filesEnded = true;
+                                for (int i = 0; i < fileMix.length; i++) {
+                                    fileMix[i] = 0;
+                                }
+                                for (int i = 0; i < timeStretcher.getLatencyFrames(); i += blockFrames) {
+                                    timeStretcher.write(fileMix, 0, blockFrames);
+                                }
+                            } else {
+                                int jump = originalLoop.pollJump();
+                                if (jump >= 0) {
+                                    stretchJump = stretchFed + jump;
+                                    jumpFrom = originalLoop.getJumpFrom();
+                                    jumpTo = originalLoop.getJumpTo();
+                                }
+                                timeStretcher.write(fileMix, 0, count / channelCount);
+                                stretchFed += count / channelCount;
+                            }
+                            frames += timeStretcher.read(mix, frames * channelCount, blockFrames - frames);
                         }
-
-                        int minLength = 0;  // 获取最小长度
-                        if (original.length >= music.length) {
-                            minLength = music.length;
-                            mix = new byte[original.length];
-                            System.arraycopy(original, 0, mix, 0, original.length);
-                        } else {
-                            minLength = original.length;
-                            mix = new byte[music.length];
-                            System.arraycopy(music, 0, mix, 0, music.length);
+                        if (frames == 0) {  // 原唱伴唱都结束了
+                            break;
                         }
-
-                        short temp1, temp2; // 从文件还原的声音点
-                        int temp;   // 两个声音点相加后的值，有可能超过short（一个声音点的值），所以用int接收
-
-                        /**
-                         * 16 bit 采样深度，一个声音采样点是两个字节，也就是低八位在前面，高八位在后面
-                         * 如果是双声道，则左声道的低八位高八位，右声道的低八位高八位。。。依次存储在文件上
-                         * 所以这里 i += 2 是循环依次取两个字节也就是一个声音点，进行低高八位操作
-                         * 较短的数组长度作为遍历结束条件，避免数组越界
-                         */
-                        for (int i = 0; i < minLength; i += 2) {
-                            temp1 = (short) ((original[i] & 0xff) | (original[i + 1] & 0xff) << 8);
-                            temp2 = (short) ((music[i] & 0xff) | (music[i + 1] & 0xff) << 8);
-                            temp = (int) (temp1 * (originalVolume / 100f)) + (int) (temp2 * (musicVolume / 100f));
-//                            temp = temp1 + temp2; // 单纯的混音，不考虑音量
-                            // 相加后的声音点不能超过声音波形范围
-                            if (temp > 32767) { // 波形最高点
-                                temp = 32767;
-                            } else if (temp < -32768) { // 波形最低点
-                                temp = -32768;
-                            }
-
-                            mix[i] = (byte) (temp & 0xff);
-                            mix[i + 1] = (byte) ((temp >>> 8) & 0xff);
+                        size = frames * channelCount;
+                        audioMixer.mixLiveTracks(mix, size);
+                        audioMixer.processMaster(mix, size);
+                        long input = timeStretcher.getInputPosition();
+                        if (stretchJump >= 0 && input >= stretchJump) {
+                            // 变速器输出到了回到A的数据（位置只精确到块）
+                            stretchBase += jumpTo - jumpFrom;
+                            stretchJump = -1;
+                            jumpCountdown = limiter.getLatencyFrames();
                         }
-                    } else if (original == null) {
-                        Log.d(TAG, "music");
-                        modifyMusicVolume();
-
-                        mix = new byte[music.length];
-                        System.arraycopy(music, 0, mix, 0, music.length);
+                        songFrames = stretchBase + input;
                     } else {
-                        Log.d(TAG, "original");
-                        modifyOriginalVolume();
-
-                        mix = new byte[original.length];
-                        System.arraycopy(original, 0, mix, 0, original.length);
+                        size = audioMixer.mix(mix);
+                        if (size < 0) { // 原唱伴唱都结束了
+                            break;
+                        }
+                        songFrames += size / channelCount;
+                        int jump = originalLoop.pollJump();
+                        if (jump >= 0) {
+                            jumpFrom = originalLoop.getJumpFrom();
+                            jumpTo = originalLoop.getJumpTo();
+                            songFrames += jumpTo - jumpFrom;
+                            jumpCountdown = jump + limiter.getLatencyFrames();
+                        }
                     }
-
-                    Log.d(TAG, "originalVolume = " + originalVolume);
-                    Log.d(TAG, "musicVolume = " + musicVolume);
-
-                    // 写入播放器进行播放
-                    audioTrackPlayer.write(mix);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                     break;
                 }
+
+                // 限幅后不会超出范围，转换时的截断只是保险
+                limiter.process(mix, size);
+                spectrumTap.write(mix, size);   // 没有订阅时直接返回
+                short[] pcm = broadcast.obtain();
+                AudioMixer.toPcm16(mix, pcm, size);
+                broadcast.publish(size);    // 不等待消费者
+                if (micOut.hasReaders()) {
+                    // 麦克风本块的原始数据（混音时已经读取），没有麦克风时补静音，保持与混音输出同步
+                    short[] vocal = micOut.obtain();
+                    AudioMixer.Track track = micTrack;
+                    if (track != null) {
+                        track.copyBlock(vocal, size);
+                    } else {
+                        Arrays.fill(vocal, 0, size, (short) 0);
+                    }
+                    micOut.publish(size);
+                    // 原唱本块的数据，变速时文件音轨读取的块与输出不对应，补静音
+                    short[] original = referenceOut.obtain();
+                    if (stretching) {
+                        Arrays.fill(original, 0, size, (short) 0);
+                    } else {
+                        originalTrack.copyBlock(original, size);
+                    }
+                    referenceOut.publish(size);
+                }
+                // 写入播放器进行播放，限幅器延迟的部分还没有写入
+                long mediaFrames = songFrames - (long) (limiter.getLatencyFrames() * speed);
+                if (jumpCountdown >= 0) {
+                    if (jumpCountdown < size / channelCount) {
+                        audioTrackPlayer.jump(jumpCountdown, jumpFrom, jumpTo);
+                        jumpCountdown = -1;
+                    } else {    // 回到A的数据还在限幅器中，本块仍是B前的数据
+                        mediaFrames += jumpFrom - jumpTo;
+                        jumpCountdown -= size / channelCount;
+                    }
+                }
+                audioTrackPlayer.write(pcm, 0, size, Math.max(0, mediaFrames));
+
+                MicSource mic = micSource;
+                if (mic != null) {
+                    mic.onBlockWritten(System.nanoTime());
+                }
             }
+            broadcast.close();
+            micOut.close();
+            referenceOut.close();
             // 停止播放器
             audioTrackPlayer.stop();
             Log.d(TAG, "audioTrackPlayer-->stop");
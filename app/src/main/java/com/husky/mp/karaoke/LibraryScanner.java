@@ -0,0 +1,366 @@
+package com.husky.mp.karaoke;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.util.AssetInstaller;
+import com.husky.mp.util.StorageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 媒体库扫描（离线任务）
+ * <p>
+ * 遍历媒体目录，只读取文件大小和修改时间，与上次的索引（见 MediaLibrary）一致的文件直接沿用，
+ * 新增和变化的文件才用 MediaExtractor 读取元数据（时长、格式、采样率），
+ * 所以一万首歌没有变化时重新扫描只需要遍历目录的时间。
+ * 读取元数据由固定大小的线程池并行执行，每个线程同时只打开一个解复用器；
+ * 扫描本身在单独的线程中串行执行，同时只有一次扫描
+ */
+public class LibraryScanner {
+
+    private static final String TAG = "LibraryScanner";
+
+    private static final String INDEX_NAME = "library.idx";
+
+    // 扫描的音频文件扩展名
+    private static final Set<String> EXTENSIONS = new HashSet<>(Arrays.asList(
+            "mp3", "m4a", "aac", "flac", "wav", "ogg", "opus", "amr", "mka"));
+
+    private static LibraryScanner instance;
+
+    private final File indexFile;
+    private final List<File> roots;
+    private final Prober prober;
+    private final ExecutorService scanExecutor;
+    private final ThreadPoolExecutor probeExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile MediaLibrary library;  // 最近一次的扫描结果（或读取的索引），没有时为null
+
+    /**
+     * 默认实例：扫描应用的外部音乐目录和公共的音乐、下载目录，索引放在应用内部存储
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized LibraryScanner get(Context context) {
+        if (instance == null) {
+            List<File> roots = new ArrayList<>();
+            addRoot(roots, StorageUtil.getExternalFilesDir(context, Environment.DIRECTORY_MUSIC));
+            addRoot(roots, StorageUtil.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC));
+            addRoot(roots, StorageUtil.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
+            File index = new File(StorageUtil.getInternalFilesDir(context, null), INDEX_NAME);
+            instance = new LibraryScanner(index, roots, LoudnessScanner.getDefaultConcurrency());
+        }
+        return instance;
+    }
+
+    private static void addRoot(List<File> roots, String path) {
+        if (path != null) {
+            roots.add(new File(path));
+        }
+    }
+
+    /**
+     * @param indexFile   索引文件
+     * @param roots       扫描的目录
+     * @param concurrency 同时读取元数据的最大文件数
+     */
+    public LibraryScanner(File indexFile, List<File> roots, int concurrency) {
+        this(indexFile, roots, concurrency, new ExtractorProber());
+    }
+
+    LibraryScanner(File indexFile, List<File> roots, int concurrency, Prober prober) {
+        this.indexFile = indexFile;
+        this.roots = new ArrayList<>(roots);
+        this.prober = prober;
+        this.scanExecutor = Executors.newSingleThreadExecutor(
+                new AssetInstaller.PriorityThreadFactory("libraryScanner", Process.THREAD_PRIORITY_BACKGROUND));
+        // 读取元数据的线程空闲时退出
+        this.probeExecutor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new AssetInstaller.PriorityThreadFactory("libraryProber", Process.THREAD_PRIORITY_BACKGROUND));
+        this.probeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 最近一次的扫描结果
+     *
+     * @return 还没有扫描过（也没有读取过索引）时返回null
+     */
+    public MediaLibrary getLibrary() {
+        return library;
+    }
+
+    /**
+     * 在后台扫描，结果在主线程回调。有索引时先回调一次索引中的内容（不等扫描完成就可以显示），
+     * 扫描后有变化时再回调一次
+     *
+     * @param listener
+     * @return 可用于取消扫描
+     */
+    public Future<?> scanAsync(final OnScanListener listener) {
+        return scanExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (library == null) {
+                        MediaLibrary cached = readIndex();
+                        if (cached != null) {
+                            library = cached;
+                            post(listener, cached, false);
+                        }
+                    }
+                    MediaLibrary previous = library;
+                    MediaLibrary scanned = scan();
+                    if (scanned != previous) {
+                        post(listener, scanned, true);
+                    }
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "scan cancelled");
+                }
+            }
+        });
+    }
+
+    private void post(final OnScanListener listener, final MediaLibrary result, final boolean complete) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onScanned(result, complete);
+            }
+        });
+    }
+
+    /**
+     * 同步扫描（在后台线程中调用），没有变化时返回上次的结果
+     *
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public MediaLibrary scan() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        MediaLibrary previous = library;
+        if (previous == null) {
+            previous = readIndex();
+        }
+
+        // 遍历目录，只看大小和修改时间
+        List<MediaLibrary.Entry> entries = new ArrayList<>(previous == null ? 256 : previous.size());
+        List<File> changed = new ArrayList<>();
+        Set<String> visited = new HashSet<>();  // 已遍历的目录（规范路径），防止符号链接循环和目录重叠
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        for (File root : roots) {
+            dirs.push(root);
+        }
+        while (!dirs.isEmpty()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            File dir = dirs.pop();
+            File[] files = dir.listFiles();
+            if (files == null || !visited.add(canonicalPath(dir))) {
+                continue;
+            }
+            if (new File(dir, ".nomedia").exists()) {   // 与系统媒体库一致，不扫描.nomedia目录
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                if (!isAudioFile(name)) {
+                    if (file.isDirectory()) {
+                        dirs.push(file);
+                    }
+                    continue;
+                }
+                long size = file.length();
+                long lastModified = file.lastModified();
+                MediaLibrary.Entry known = previous == null ? null : previous.find(file.getPath());
+                if (known != null && known.isSameFile(size, lastModified)) {
+                    entries.add(known);
+                } else {
+                    changed.add(file);
+                }
+            }
+        }
+
+        // 并行读取新增和变化的文件
+        entries.addAll(probeAll(changed));
+        boolean modified = !changed.isEmpty() || previous == null || entries.size() != previous.size();
+        if (!modified) {
+            library = previous;
+            Log.d(TAG, "library unchanged, " + entries.size() + " files in "
+                    + (System.nanoTime() - startNanos) / 1_000_000 + "ms");
+            return previous;
+        }
+        Collections.sort(entries, new Comparator<MediaLibrary.Entry>() {
+            @Override
+            public int compare(MediaLibrary.Entry a, MediaLibrary.Entry b) {
+                int result = a.getDir().compareTo(b.getDir());
+                return result != 0 ? result : a.getName().compareTo(b.getName());
+            }
+        });
+        MediaLibrary result = new MediaLibrary(entries);
+        try {
+            result.write(indexFile);
+        } catch (IOException e) {   // 索引写入失败不影响结果，下次重新读取变化的文件
+            Log.w(TAG, "write index failed: " + indexFile, e);
+        }
+        library = result;
+        Log.d(TAG, "scanned " + entries.size() + " files (" + changed.size() + " probed, "
+                + result.getPairs().size() + " pairs) in " + (System.nanoTime() - startNanos) / 1_000_000 + "ms");
+        return result;
+    }
+
+    // 在线程池中读取元数据，被中断时取消还没完成的读取
+    private List<MediaLibrary.Entry> probeAll(List<File> files) throws InterruptedException {
+        List<MediaLibrary.Entry> entries = new ArrayList<>(files.size());
+        if (files.isEmpty()) {
+            return entries;
+        }
+        ExecutorCompletionService<MediaLibrary.Entry> service = new ExecutorCompletionService<>(probeExecutor);
+        List<Future<MediaLibrary.Entry>> futures = new ArrayList<>(files.size());
+        for (final File file : files) {
+            futures.add(service.submit(new Callable<MediaLibrary.Entry>() {
+                @Override
+                public MediaLibrary.Entry call() {
+                    return probe(file);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                entries.add(service.take().get());
+            }
+        } catch (ExecutionException e) {    // probe 不会抛出异常
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<MediaLibrary.Entry> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return entries;
+    }
+
+    // 读取一个文件，无法读取时也记录下来（没有音频轨道），文件不变就不再读取
+    private MediaLibrary.Entry probe(File file) {
+        // 先取大小和修改时间，读取期间文件变化时下次扫描会再读取
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String dir = file.getParent();
+        try {
+            return prober.probe(file, size, lastModified);
+        } catch (IOException e) {
+            Log.w(TAG, "probe failed: " + file + ", " + e.getMessage());
+            return new MediaLibrary.Entry(dir, file.getName(), size, lastModified, null, 0, 0, 0);
+        }
+    }
+
+    private MediaLibrary readIndex() {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            return MediaLibrary.read(indexFile);
+        } catch (IOException e) {   // 索引损坏或版本不一致，全部重新读取
+            Log.w(TAG, "invalid index: " + indexFile, e);
+            indexFile.delete();
+            return null;
+        }
+    }
+
+    private static String canonicalPath(File dir) {
+        try {
+            return dir.getCanonicalPath();
+        } catch (IOException e) {
+            return dir.getAbsolutePath();
+        }
+    }
+
+    static boolean isAudioFile(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    /**
+     * 停止接受新任务（已经开始的扫描继续执行）
+     */
+    public void shutdown() {
+        scanExecutor.shutdown();
+        probeExecutor.shutdown();
+    }
+
+    /**
+     * 读取单个文件的元数据
+     */
+    interface Prober {
+        MediaLibrary.Entry probe(File file, long size, long lastModified) throws IOException;
+    }
+
+    /**
+     * 用 MediaExtractor 读取第一个音频轨道的格式，不解码
+     */
+    static class ExtractorProber implements Prober {
+        @Override
+        public MediaLibrary.Entry probe(File file, long size, long lastModified) throws IOException {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(file.getPath());
+                for (int i = 0; i < extractor.getTrackCount(); i++) {
+                    MediaFormat format = extractor.getTrackFormat(i);
+                    String mime = format.getString(MediaFormat.KEY_MIME);
+                    if (mime != null && mime.startsWith("audio")) {
+                        long durationUs = format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+                        return new MediaLibrary.Entry(file.getParent(), file.getName(), size, lastModified, mime, durationUs,
+                                format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                    }
+                }
+                throw new IOException("no audio track");
+            } catch (RuntimeException e) {  // 损坏的文件可能抛出 IllegalArgumentException 等
+                throw new IOException(e);
+            } finally {
+                extractor.release();
+            }
+        }
+    }
+
+    /**
+     * 扫描结果回调接口（主线程）
+     */
+    public interface OnScanListener {
+        /**
+         * @param library  媒体库
+         * @param complete 是否扫描完成，false表示来自上次保存的索引（扫描还在进行）
+         */
+        void onScanned(MediaLibrary library, boolean complete);
+    }
+}
@@ -0,0 +1,255 @@
+package com.husky.mp.karaoke;
+
+/**
+ * A/B 循环音源
+ * <p>
+ * 包装文件音源，读取到的数据先写入创建时分配好的环形缓冲，缓冲保存最近读取的一段 PCM（长度固定，不再扩容）。
+ * 设置循环区间后，播放到B时从缓冲中回到A继续，解码器不跳转也不重新解码：A 已经播放过（还在缓冲中）时从内存回去，
+ * A 还没有播放到时第一遍照常读取并保存。B 前的一小段与 A 开头等功率交叉淡化，循环处不会爆音。
+ * 取消循环后先从缓冲中播放到已读取的位置，再继续读取音源，数据不丢失也不重复。B 在音源结尾之后时循环到结尾。
+ * 多个音源预读的长度不同时，可以用 setJumpNotBefore 让它们在同一位置回到A。
+ * <p>
+ * 位置是音源的帧序号（从0开始），所有方法都在混音线程中调用
+ */
+public class LoopSource implements MixSource {
+
+    private final MixSource source;
+    private final int channels;
+    private final int capacity;         // 缓冲帧数
+    private final short[] ring;         // 第 f 帧保存在 (f % capacity) * channels
+    private final float[] fadeIn;       // 交叉淡化增益（A开头），B前一段用倒序
+    private final int fadeFrames;
+
+    private long live = 0;              // 已从音源读取的帧数（缓冲保存 [live - capacity, live)）
+    private long position = 0;          // 下一个输出帧的位置
+    private boolean ended = false;      // 音源已经结束
+
+    private long loopStart = -1;        // 循环区间 [loopStart, loopEnd)，-1表示不循环
+    private long loopEnd = -1;
+    private long jumpNotBefore = -1;    // 下一次回到A的最早位置，-1表示在B前回到A
+
+    private long fadeTail = 0;          // 正在交叉淡化时B前一段的开始位置
+    private int fadeIndex;              // 交叉淡化已输出的帧数，等于 fadeFrames 时没有在淡化
+
+    private int jumpOffset = -1;        // 最近一次读取中回到A的帧偏移
+    private long jumpFrom = 0;          // 回到A前的位置
+    private long jumpTo = 0;            // 回到的位置（A）
+
+    /**
+     * @param source
+     * @param channels       声道数
+     * @param capacityFrames 缓冲帧数（循环区间的最大长度）
+     * @param fadeFrames     循环处交叉淡化的帧数
+     */
+    public LoopSource(MixSource source, int channels, int capacityFrames, int fadeFrames) {
+        this.source = source;
+        this.channels = channels;
+        this.capacity = capacityFrames;
+        this.ring = new short[capacityFrames * channels];
+        this.fadeFrames = fadeFrames;
+        this.fadeIndex = fadeFrames;
+        this.fadeIn = new float[fadeFrames];
+        for (int i = 0; i < fadeFrames; i++) {
+            fadeIn[i] = (float) Math.sin((i + 0.5) / fadeFrames * Math.PI / 2);
+        }
+    }
+
+    /**
+     * 设置循环区间，A 早于缓冲中最早的帧时从最早的帧开始，区间超过缓冲长度时缩短B
+     *
+     * @param startFrame A
+     * @param endFrame   B，已经播放过时立即回到A
+     * @return 区间太短（不到两倍交叉淡化长度）时不循环，返回false
+     */
+    public boolean setLoop(long startFrame, long endFrame) {
+        // 回到A时缓冲中要保留 A 到 B（或已读取的位置）之间的数据
+        long start = Math.max(Math.max(0, startFrame), Math.max(live, position + fadeFrames) - capacity + fadeFrames);
+        long end = Math.min(endFrame, start + capacity - fadeFrames);
+        if (end - start < fadeFrames * 2) {
+            return false;
+        }
+        loopStart = start;
+        loopEnd = end;
+        jumpNotBefore = -1;
+        return true;
+    }
+
+    /**
+     * 下一次回到A不早于指定位置（之后仍在B前回到A），setLoop 之后调用。
+     * <p>
+     * B前的位置已经读过时会立即回到A，预读更多的音源（如经过消除人声、变调的伴唱）回到A的位置会比别的音源靠后，
+     * 之后一直错开；把所有音源都推迟到预读最多的音源的当前位置，它们就在同一位置回到A
+     *
+     * @param frame
+     */
+    public void setJumpNotBefore(long frame) {
+        jumpNotBefore = frame;
+    }
+
+    /**
+     * 取消循环，从当前位置继续播放
+     */
+    public void clearLoop() {
+        loopStart = -1;
+        loopEnd = -1;
+        jumpNotBefore = -1;
+    }
+
+    public boolean isLooping() {
+        return loopStart >= 0;
+    }
+
+    public long getLoopStart() {
+        return loopStart;
+    }
+
+    public long getLoopEnd() {
+        return loopEnd;
+    }
+
+    /**
+     * 下一个输出帧的位置
+     *
+     * @return
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * 缓冲中最早的帧，循环区间的A不能早于它
+     *
+     * @return
+     */
+    public long getEarliestFrame() {
+        return Math.max(0, live - capacity);
+    }
+
+    /**
+     * 上一次读取后是否回到了A，取出后清除
+     *
+     * @return 回到A处在读取数据中的帧偏移，没有回到A时为-1
+     */
+    public int pollJump() {
+        int offset = jumpOffset;
+        jumpOffset = -1;
+        return offset;
+    }
+
+    /**
+     * 最近一次回到A前的位置（交叉淡化开始的位置）
+     *
+     * @return
+     */
+    public long getJumpFrom() {
+        return jumpFrom;
+    }
+
+    /**
+     * 最近一次回到的位置（A）
+     *
+     * @return
+     */
+    public long getJumpTo() {
+        return jumpTo;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) throws InterruptedException {
+        int frames = size / channels;
+        int done = 0;
+        while (done < frames) {
+            int out = offset + done * channels;
+            if (fadeIndex < fadeFrames) {   // 交叉淡化，两段都在缓冲中
+                int count = Math.min(frames - done, fadeFrames - fadeIndex);
+                crossfade(buffer, out, count);
+                done += count;
+                continue;
+            }
+            long jumpAt = Math.max(loopEnd - fadeFrames, jumpNotBefore);
+            if (loopEnd >= 0 && position >= jumpAt) {
+                // B前一段和A开头都读进缓冲后开始淡化，读不到（音源结束）时不再循环
+                if (!fill(position + fadeFrames) || !fill(loopStart + fadeFrames)) {
+                    clearLoop();
+                    continue;
+                }
+                jumpOffset = done;
+                jumpFrom = position;
+                jumpTo = loopStart;
+                fadeTail = position;
+                fadeIndex = 0;
+                position = loopStart;
+                jumpNotBefore = -1;
+                continue;
+            }
+            int count = frames - done;
+            if (loopEnd >= 0) {
+                count = (int) Math.min(count, jumpAt - position);
+            }
+            if (position + count > live) {
+                // 多读一段交叉淡化的长度，音源在B之前结束时提前知道，把结尾作为B
+                fill(position + count + fadeFrames);
+                if (ended && loopEnd > live) {
+                    if (live - loopStart >= fadeFrames * 2) {
+                        loopEnd = live;
+                    } else {
+                        clearLoop();
+                    }
+                    continue;
+                }
+            }
+            if (live == position) {
+                break;  // 音源结束
+            }
+            count = (int) Math.min(count, live - position);
+            copy(position, buffer, out, count);
+            position += count;
+            done += count;
+        }
+        return done == 0 && ended ? -1 : done * channels;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    // 从音源读取到缓冲，直到已读取 target 帧或音源结束
+    private boolean fill(long target) throws InterruptedException {
+        while (live < target && !ended) {
+            int index = (int) (live % capacity);
+            int count = (int) Math.min(target - live, capacity - index);
+            int read = source.read(ring, index * channels, count * channels);
+            if (read < 0) {
+                ended = true;
+                break;
+            }
+            live += read / channels;
+        }
+        return live >= target;
+    }
+
+    private void copy(long from, short[] buffer, int offset, int frames) {
+        int index = (int) (from % capacity);
+        int first = Math.min(frames, capacity - index);
+        System.arraycopy(ring, index * channels, buffer, offset, first * channels);
+        if (first < frames) {   // 绕回缓冲开头
+            System.arraycopy(ring, 0, buffer, offset + first * channels, (frames - first) * channels);
+        }
+    }
+
+    // A开头淡入，B前一段淡出
+    private void crossfade(short[] buffer, int offset, int frames) {
+        for (int i = 0; i < frames; i++, fadeIndex++) {
+            float in = fadeIn[fadeIndex];
+            float out = fadeIn[fadeFrames - 1 - fadeIndex];
+            int head = (int) ((position + i) % capacity) * channels;
+            int tail = (int) ((fadeTail + fadeIndex) % capacity) * channels;
+            for (int c = 0; c < channels; c++) {
+                int value = Math.round(ring[head + c] * in + ring[tail + c] * out);
+                buffer[offset + i * channels + c] = (short) Math.max(-32768, Math.min(32767, value));
+            }
+        }
+        position += frames;
+    }
+}
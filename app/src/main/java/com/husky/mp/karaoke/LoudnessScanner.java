@@ -0,0 +1,215 @@
+package com.husky.mp.karaoke;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.karaoke.dsp.LoudnessMeter;
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 响度扫描（离线任务）
+ * <p>
+ * 用 PcmDecoder 尽快解码整首歌，测量综合响度和真峰值（见 LoudnessMeter），结果写入分析缓存，
+ * 之后播放同一首歌直接读取缓存得到归一化增益，不再分析。
+ * 多首歌可以并行扫描，同时进行的任务数可以配置（每个任务占用一个硬件解码器，不宜太多）
+ */
+public class LoudnessScanner {
+
+    private static final String TAG = "LoudnessScanner";
+
+    public static final String KIND = "loudness";   // 缓存扩展名
+
+    private static final int READ_SIZE = 8192;      // 每次读取的采样数
+
+    private static LoudnessScanner instance;
+
+    private final AnalysisCache cache;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 默认实例，并发数见 getDefaultConcurrency
+     *
+     * @param context
+     * @return
+     */
+    public static synchronized LoudnessScanner get(Context context) {
+        if (instance == null) {
+            instance = new LoudnessScanner(AnalysisCache.get(context), getDefaultConcurrency());
+        }
+        return instance;
+    }
+
+    /**
+     * 默认并发数：留一个核心给播放和界面
+     *
+     * @return
+     */
+    public static int getDefaultConcurrency() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * @param cache       分析缓存
+     * @param concurrency 同时扫描的最大任务数
+     */
+    public LoudnessScanner(AnalysisCache cache, int concurrency) {
+        this.cache = cache;
+        // 扫描任务在低优先级线程中执行，不影响播放，空闲时线程退出
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new AssetInstaller.PriorityThreadFactory("loudnessScanner", Process.THREAD_PRIORITY_BACKGROUND));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 修改并发数，已经排队的任务按新的并发数执行
+     *
+     * @param concurrency
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(concurrency);
+            executor.setCorePoolSize(concurrency);
+        } else {
+            executor.setCorePoolSize(concurrency);
+            executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * 在后台获取响度，有缓存时直接读取，否则扫描后写入缓存，结果在主线程回调
+     *
+     * @param input
+     * @param listener
+     * @return 可用于取消任务
+     */
+    public Future<?> scanAsync(final MediaInput input, final OnScanListener listener) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TrackLoudness loudness = load(input, cache);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onScanned(input, loudness);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "scan failed: " + input, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFailed(input, e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "scan cancelled: " + input);
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步获取响度，有缓存时直接读取，否则扫描后写入缓存（在后台线程中调用）
+     *
+     * @param input
+     * @param cache
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static TrackLoudness load(MediaInput input, AnalysisCache cache) throws IOException, InterruptedException {
+        File file = cache.getFile(input, KIND);
+        if (file.exists()) {
+            try {
+                return TrackLoudness.read(file);
+            } catch (IOException e) {   // 缓存损坏或版本不一致，重新扫描
+                Log.w(TAG, "invalid cache: " + file, e);
+                file.delete();
+            }
+        }
+        TrackLoudness loudness = scan(input);
+        try {
+            loudness.write(file);
+        } catch (IOException e) {   // 缓存写入失败不影响结果
+            Log.w(TAG, "write cache failed: " + file, e);
+        }
+        return loudness;
+    }
+
+    /**
+     * 扫描响度（不使用缓存）
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static TrackLoudness scan(MediaInput input) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        PcmDecoder decoder = new PcmDecoder(input);
+        try {
+            TrackLoudness loudness = scan(decoder);
+            long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+            Log.d(TAG, "scanned " + input + " in " + elapsedMs + "ms: " + loudness);
+            return loudness;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * 从解码器读取全部数据并测量
+     *
+     * @param decoder
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    static TrackLoudness scan(PcmDecoder decoder) throws InterruptedException {
+        short[] buffer = new short[READ_SIZE];
+        LoudnessMeter meter = null;
+        int count;
+        while ((count = decoder.read(buffer, 0, buffer.length)) >= 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (meter == null) {    // 第一次读取后采样率和声道数才确定
+                meter = new LoudnessMeter(decoder.getSampleRate(), decoder.getChannelCount());
+            }
+            meter.process(buffer, 0, count);
+        }
+        if (meter == null) {
+            return new TrackLoudness(Float.NEGATIVE_INFINITY, 0, 0);
+        }
+        long durationUs = meter.getFrames() * 1_000_000L / decoder.getSampleRate();
+        return new TrackLoudness((float) meter.getIntegratedLoudness(), meter.getTruePeak(), durationUs);
+    }
+
+    /**
+     * 停止接受新任务（已经开始的任务继续执行）
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 扫描结果回调接口（主线程）
+     */
+    public interface OnScanListener {
+        void onScanned(MediaInput input, TrackLoudness loudness);
+
+        void onFailed(MediaInput input, IOException e);
+    }
+}
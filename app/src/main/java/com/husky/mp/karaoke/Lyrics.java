@@ -0,0 +1,425 @@
+package com.husky.mp.karaoke;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 逐字歌词索引
+ * <p>
+ * 行和字的时间（毫秒）分别存成按开始时间排序的并列int数组，按时间二分查找；
+ * 所有文字拼接成一个char数组，行和字只记录在其中的起止位置，界面可以直接用 Canvas.drawText(char[], ...) 绘制，
+ * 查找和绘制都不分配内存。一首歌的索引只有几KB，二进制文件直接读入数组，不需要再解析
+ */
+public class Lyrics {
+
+    private static final int MAGIC = 0x484C5943;    // "HLYC"
+    private static final int VERSION = 1;           // 格式变化时加1，旧缓存失效
+
+    private final String title;     // 歌名
+    private final String artist;    // 歌手
+    private final int[] lineStarts; // 行开始时间（毫秒）
+    private final int[] lineEnds;   // 行结束时间（毫秒）
+    private final int[] lineWords;  // 行的第一个字（长度为行数+1，最后一项为字数）
+    private final int[] wordStarts; // 字开始时间（毫秒）
+    private final int[] wordEnds;   // 字结束时间（毫秒）
+    private final int[] wordText;   // 字在 text 中的开始位置（长度为字数+1，最后一项为文字总长度）
+    private final char[] text;      // 所有文字
+
+    private Lyrics(String title, String artist, int[] lineStarts, int[] lineEnds, int[] lineWords,
+                   int[] wordStarts, int[] wordEnds, int[] wordText, char[] text) {
+        this.title = title;
+        this.artist = artist;
+        this.lineStarts = lineStarts;
+        this.lineEnds = lineEnds;
+        this.lineWords = lineWords;
+        this.wordStarts = wordStarts;
+        this.wordEnds = wordEnds;
+        this.wordText = wordText;
+        this.text = text;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public int getLineCount() {
+        return lineStarts.length;
+    }
+
+    public int getWordCount() {
+        return wordStarts.length;
+    }
+
+    /**
+     * 最后一行的结束时间（微秒）
+     *
+     * @return
+     */
+    public long getDurationUs() {
+        return lineEnds.length == 0 ? 0 : lineEnds[lineEnds.length - 1] * 1000L;
+    }
+
+    public long getLineStartUs(int line) {
+        return lineStarts[line] * 1000L;
+    }
+
+    public long getLineEndUs(int line) {
+        return lineEnds[line] * 1000L;
+    }
+
+    public long getWordStartUs(int word) {
+        return wordStarts[word] * 1000L;
+    }
+
+    public long getWordEndUs(int word) {
+        return wordEnds[word] * 1000L;
+    }
+
+    /**
+     * 行的第一个字
+     *
+     * @param line
+     * @return
+     */
+    public int getLineFirstWord(int line) {
+        return lineWords[line];
+    }
+
+    /**
+     * 行的最后一个字之后的下标
+     *
+     * @param line
+     * @return
+     */
+    public int getLineWordEnd(int line) {
+        return lineWords[line + 1];
+    }
+
+    /**
+     * 所有文字，配合 getLineTextStart 等使用，不能修改
+     *
+     * @return
+     */
+    public char[] getText() {
+        return text;
+    }
+
+    public int getLineTextStart(int line) {
+        return wordText[lineWords[line]];
+    }
+
+    public int getLineTextEnd(int line) {
+        return wordText[lineWords[line + 1]];
+    }
+
+    public int getWordTextStart(int word) {
+        return wordText[word];
+    }
+
+    public int getWordTextEnd(int word) {
+        return wordText[word + 1];
+    }
+
+    /**
+     * 行的文字（会创建字符串，逐帧绘制时用 getText 和起止位置）
+     *
+     * @param line
+     * @return
+     */
+    public String getLineText(int line) {
+        int start = getLineTextStart(line);
+        return new String(text, start, getLineTextEnd(line) - start);
+    }
+
+    /**
+     * 最近一个已经开始的行（当前应该显示的行）
+     *
+     * @param timeUs
+     * @return 行下标，第一行开始之前返回-1
+     */
+    public int findLine(long timeUs) {
+        return findLast(lineStarts, 0, lineStarts.length, timeUs);
+    }
+
+    /**
+     * 某一时刻正在唱的行
+     *
+     * @param timeUs
+     * @return 行下标，不在任何行中时返回-1
+     */
+    public int getLineAt(long timeUs) {
+        int line = findLine(timeUs);
+        return line >= 0 && timeUs < lineEnds[line] * 1000L ? line : -1;
+    }
+
+    /**
+     * 行中最近一个已经开始的字
+     *
+     * @param line
+     * @param timeUs
+     * @return 字下标，行中第一个字开始之前返回-1
+     */
+    public int findWord(int line, long timeUs) {
+        return findLast(wordStarts, lineWords[line], lineWords[line + 1], timeUs);
+    }
+
+    /**
+     * 字的演唱进度
+     *
+     * @param word
+     * @param timeUs
+     * @return 0~1
+     */
+    public float getWordProgress(int word, long timeUs) {
+        long start = wordStarts[word] * 1000L;
+        long end = wordEnds[word] * 1000L;
+        if (timeUs <= start) {
+            return 0;
+        }
+        if (timeUs >= end) {
+            return 1;
+        }
+        return (float) (timeUs - start) / (end - start);
+    }
+
+    // 区间内最后一个开始时间不晚于 timeUs 的下标，没有时返回-1
+    private static int findLast(int[] starts, int from, int to, long timeUs) {
+        long timeMs = timeUs >= 0 ? timeUs / 1000 : (timeUs - 999) / 1000;  // 向下取整
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= timeMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low > from ? low - 1 : -1;
+    }
+
+    /**
+     * 写入文件（先写临时文件再重命名）
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 16 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(title);
+            out.writeUTF(artist);
+            out.writeInt(lineStarts.length);
+            out.writeInt(wordStarts.length);
+            out.writeInt(text.length);
+            for (int i = 0; i < lineStarts.length; i++) {
+                out.writeInt(lineStarts[i]);
+                out.writeInt(lineEnds[i]);
+                out.writeInt(lineWords[i + 1]);
+            }
+            for (int i = 0; i < wordStarts.length; i++) {
+                out.writeInt(wordStarts[i]);
+                out.writeInt(wordEnds[i]);
+                out.writeInt(wordText[i + 1]);
+            }
+            for (char c : text) {
+                out.writeChar(c);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static Lyrics read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported lyrics: " + file);
+            }
+            String title = in.readUTF();
+            String artist = in.readUTF();
+            int lineCount = in.readInt();
+            int wordCount = in.readInt();
+            int textLength = in.readInt();
+            if (lineCount < 0 || wordCount < 0 || textLength < 0 || (long) textLength * 2 > file.length()) {
+                throw new IOException("corrupt lyrics: " + file);
+            }
+            int[] lineStarts = new int[lineCount];
+            int[] lineEnds = new int[lineCount];
+            int[] lineWords = new int[lineCount + 1];
+            for (int i = 0; i < lineCount; i++) {
+                lineStarts[i] = in.readInt();
+                lineEnds[i] = in.readInt();
+                lineWords[i + 1] = in.readInt();
+            }
+            int[] wordStarts = new int[wordCount];
+            int[] wordEnds = new int[wordCount];
+            int[] wordText = new int[wordCount + 1];
+            for (int i = 0; i < wordCount; i++) {
+                wordStarts[i] = in.readInt();
+                wordEnds[i] = in.readInt();
+                wordText[i + 1] = in.readInt();
+            }
+            char[] text = new char[textLength];
+            for (int i = 0; i < textLength; i++) {
+                text[i] = in.readChar();
+            }
+            if (lineWords[lineCount] != wordCount || wordText[wordCount] != textLength) {
+                throw new IOException("corrupt lyrics: " + file);
+            }
+            return new Lyrics(title, artist, lineStarts, lineEnds, lineWords, wordStarts, wordEnds, wordText, text);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 逐行逐字构建索引，行可以乱序添加，构建时按开始时间排序
+     */
+    public static class Builder {
+
+        private String title = "";
+        private String artist = "";
+        private int lineCount = 0;
+        private int[] lineStarts = new int[64];
+        private int[] lineEnds = new int[64];
+        private int[] lineWords = new int[65];
+        private int wordCount = 0;
+        private int[] wordStarts = new int[512];
+        private int[] wordEnds = new int[512];
+        private int[] wordText = new int[513];
+        private StringBuilder text = new StringBuilder();
+
+        public Builder setTitle(String title) {
+            this.title = title;
+            return this;
+        }
+
+        public Builder setArtist(String artist) {
+            this.artist = artist;
+            return this;
+        }
+
+        /**
+         * 开始新的一行，之后添加的字属于该行
+         *
+         * @param startMs
+         * @param durationMs
+         * @return
+         */
+        public Builder addLine(int startMs, int durationMs) {
+            if (lineCount + 1 == lineStarts.length) {
+                lineStarts = grow(lineStarts);
+                lineEnds = grow(lineEnds);
+                lineWords = grow(lineWords);
+            }
+            lineStarts[lineCount] = startMs;
+            lineEnds[lineCount] = startMs + durationMs;
+            lineWords[lineCount] = wordCount;
+            lineCount++;
+            lineWords[lineCount] = wordCount;
+            return this;
+        }
+
+        /**
+         * 给当前行添加一个字（词）
+         *
+         * @param offsetMs   相对行开始的时间
+         * @param durationMs
+         * @param word
+         * @return
+         */
+        public Builder addWord(int offsetMs, int durationMs, CharSequence word) {
+            if (lineCount == 0) {
+                throw new IllegalStateException("word before first line");
+            }
+            if (wordCount + 1 == wordStarts.length) {
+                wordStarts = grow(wordStarts);
+                wordEnds = grow(wordEnds);
+                wordText = grow(wordText);
+            }
+            int start = lineStarts[lineCount - 1] + offsetMs;
+            wordStarts[wordCount] = start;
+            wordEnds[wordCount] = start + durationMs;
+            wordText[wordCount] = text.length();
+            text.append(word);
+            wordCount++;
+            wordText[wordCount] = text.length();
+            lineWords[lineCount] = wordCount;
+            return this;
+        }
+
+        public Lyrics build() {
+            // 行按开始时间排序（插入排序，歌词基本有序）
+            Integer[] order = new Integer[lineCount];
+            for (int i = 0; i < lineCount; i++) {
+                order[i] = i;
+            }
+            for (int i = 1; i < lineCount; i++) {
+                Integer current = order[i];
+                int j = i - 1;
+                while (j >= 0 && lineStarts[order[j]] > lineStarts[current]) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = current;
+            }
+
+            int[] starts = new int[lineCount];
+            int[] ends = new int[lineCount];
+            int[] words = new int[lineCount + 1];
+            int[] wStarts = new int[wordCount];
+            int[] wEnds = new int[wordCount];
+            int[] wText = new int[wordCount + 1];
+            char[] chars = new char[text.length()];
+            int word = 0;
+            int length = 0;
+            for (int i = 0; i < lineCount; i++) {
+                int line = order[i];
+                starts[i] = lineStarts[line];
+                ends[i] = lineEnds[line];
+                words[i] = word;
+                for (int w = lineWords[line]; w < lineWords[line + 1]; w++) {
+                    wStarts[word] = wordStarts[w];
+                    wEnds[word] = wordEnds[w];
+                    wText[word] = length;
+                    text.getChars(wordText[w], wordText[w + 1], chars, length);
+                    length += wordText[w + 1] - wordText[w];
+                    word++;
+                }
+            }
+            words[lineCount] = word;
+            wText[word] = length;
+            return new Lyrics(title, artist, starts, ends, words, wStarts, wEnds, wText, chars);
+        }
+
+        private static int[] grow(int[] array) {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+}
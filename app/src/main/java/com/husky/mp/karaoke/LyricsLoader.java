@@ -0,0 +1,251 @@
+package com.husky.mp.karaoke;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 歌词加载（.zrce 逐字歌词）
+ * <p>
+ * .zrce 是按16字节密钥循环异或的UTF-8文本，每行格式为：
+ * <pre>
+ * [行开始毫秒,行时长]&lt;字相对行开始的毫秒,字时长,0&gt;字&lt;...&gt;字...
+ * </pre>
+ * 另有 [ti:歌名]、[ar:歌手]、[offset:毫秒] 等标签行。
+ * 在后台线程中解密解析成 Lyrics，并把二进制形式写入分析缓存，之后直接读取缓存
+ */
+public class LyricsLoader {
+
+    private static final String TAG = "LyricsLoader";
+
+    public static final String KIND = "lyrics";     // 缓存扩展名
+
+    private static final byte[] KEY = {
+            (byte) 0xCE, (byte) 0xD3, 0x6E, 0x69, 0x40, 0x5A, 0x61, 0x77,
+            0x5E, 0x32, 0x74, 0x47, 0x51, 0x36, (byte) 0xA5, (byte) 0xBC};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new AssetInstaller.PriorityThreadFactory("lyricsLoader", Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * 在后台加载歌词，有缓存时直接读取，结果在主线程回调
+     *
+     * @param file     .zrce 文件
+     * @param cache    分析缓存
+     * @param listener
+     * @return 可用于取消任务
+     */
+    public static Future<?> loadAsync(final File file, final AnalysisCache cache, final OnLoadListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Lyrics lyrics = load(file, cache);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onLoaded(lyrics);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "load failed: " + file, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步加载歌词，有缓存时直接读取，否则解析后写入缓存（在后台线程中调用）
+     *
+     * @param file
+     * @param cache
+     * @return
+     * @throws IOException
+     */
+    public static Lyrics load(File file, AnalysisCache cache) throws IOException {
+        File cached = cache.getFile(MediaInput.fromPath(file.getPath()), KIND);
+        if (cached.exists()) {
+            try {
+                return Lyrics.read(cached);
+            } catch (IOException e) {   // 缓存损坏或版本不一致，重新解析
+                Log.w(TAG, "invalid cache: " + cached, e);
+                cached.delete();
+            }
+        }
+        long startNanos = System.nanoTime();
+        Lyrics lyrics = parse(decode(readFully(file)));
+        Log.d(TAG, "parsed " + file + " in " + (System.nanoTime() - startNanos) / 1000 + "us, lines "
+                + lyrics.getLineCount() + ", words " + lyrics.getWordCount());
+        try {
+            lyrics.write(cached);
+        } catch (IOException e) {   // 缓存写入失败不影响结果
+            Log.w(TAG, "write cache failed: " + cached, e);
+        }
+        return lyrics;
+    }
+
+    /**
+     * 解密
+     *
+     * @param data
+     * @return 歌词文本
+     */
+    public static String decode(byte[] data) {
+        byte[] plain = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            plain[i] = (byte) (data[i] ^ KEY[i & 15]);
+        }
+        return new String(plain, UTF_8);
+    }
+
+    /**
+     * 解析歌词文本，格式不对的行跳过
+     *
+     * @param text
+     * @return
+     * @throws IOException 没有任何歌词行
+     */
+    public static Lyrics parse(String text) throws IOException {
+        Lyrics.Builder builder = new Lyrics.Builder();
+        int offsetMs = 0;
+        int lineCount = 0;
+        int length = text.length();
+        int position = 0;
+        while (position < length) {
+            int end = text.indexOf('\n', position);
+            if (end < 0) {
+                end = length;
+            }
+            int lineEnd = end > position && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            int start = position;
+            position = end + 1;
+            if (lineEnd - start < 2 || text.charAt(start) != '[') {
+                continue;
+            }
+            int close = text.indexOf(']', start);
+            if (close < 0 || close > lineEnd) {
+                continue;
+            }
+            int colon = text.indexOf(':', start);
+            if (colon > 0 && colon < close) {   // 标签
+                String key = text.substring(start + 1, colon).trim();
+                String value = text.substring(colon + 1, close).trim();
+                if ("ti".equals(key)) {
+                    builder.setTitle(value);
+                } else if ("ar".equals(key)) {
+                    builder.setArtist(value);
+                } else if ("offset".equals(key)) {
+                    offsetMs = parseInt(value, 0);
+                }
+                continue;
+            }
+            int comma = text.indexOf(',', start);
+            if (comma < 0 || comma > close) {
+                continue;
+            }
+            int lineStart = parseInt(text.substring(start + 1, comma), -1);
+            int lineDuration = parseInt(text.substring(comma + 1, close), -1);
+            if (lineStart < 0 || lineDuration < 0) {
+                Log.w(TAG, "invalid line: " + text.substring(start, lineEnd));
+                continue;
+            }
+            if (parseWords(builder, text, close + 1, lineEnd, lineStart - offsetMs, lineDuration)) {
+                lineCount++;
+            }
+        }
+        if (lineCount == 0) {
+            throw new IOException("no lyrics");
+        }
+        return builder.build();
+    }
+
+    /**
+     * 解析一行中的逐字时间，没有逐字时间时整行作为一个字
+     *
+     * @return 是否添加了该行
+     */
+    private static boolean parseWords(Lyrics.Builder builder, String text, int start, int end, int lineStart, int lineDuration) {
+        if (start >= end) {
+            return false;
+        }
+        builder.addLine(lineStart, lineDuration);
+        if (text.charAt(start) != '<') {
+            builder.addWord(0, lineDuration, text.substring(start, end));
+            return true;
+        }
+        int position = start;
+        while (position < end && text.charAt(position) == '<') {
+            int close = text.indexOf('>', position);
+            if (close < 0 || close >= end) {
+                break;
+            }
+            int next = text.indexOf('<', close + 1);
+            if (next < 0 || next > end) {
+                next = end;
+            }
+            int comma = text.indexOf(',', position);
+            int comma2 = comma < 0 ? -1 : text.indexOf(',', comma + 1);
+            int offset = comma < 0 || comma > close ? -1 : parseInt(text.substring(position + 1, comma), -1);
+            int duration = comma2 < 0 || comma2 > close ? -1
+                    : parseInt(text.substring(comma + 1, comma2), -1);
+            if (offset >= 0 && duration >= 0 && next > close + 1) {
+                builder.addWord(offset, duration, text.substring(close + 1, next));
+            }
+            position = next;
+        }
+        return true;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 加载结果回调接口（主线程）
+     */
+    public interface OnLoadListener {
+        void onLoaded(Lyrics lyrics);
+
+        void onFailed(IOException e);
+    }
+}
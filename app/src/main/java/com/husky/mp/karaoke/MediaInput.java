@@ -0,0 +1,159 @@
+package com.husky.mp.karaoke;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.media.MediaExtractor;
+import android.os.Build;
+
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 媒体输入源，统一文件路径和APK中assets资源两种来源，给 MediaExtractor 设置数据源
+ */
+public abstract class MediaInput {
+
+    /**
+     * 文件路径
+     *
+     * @param path
+     * @return
+     */
+    public static MediaInput fromPath(String path) {
+        return new PathInput(path);
+    }
+
+    /**
+     * APK中的assets资源，直接读取不再拷贝到存储卡
+     *
+     * @param context
+     * @param assetName
+     * @return
+     */
+    public static MediaInput fromAsset(Context context, String assetName) {
+        Context application = context.getApplicationContext();
+        return new AssetInput(application.getAssets(), assetName, getAppVersion(application));
+    }
+
+    private static volatile String appVersion;  // 安装包版本，assets资源只随安装包变化
+
+    private static String getAppVersion(Context context) {
+        String version = appVersion;
+        if (version == null) {
+            version = AssetInstaller.getAppVersion(context);
+            appVersion = version;
+        }
+        return version;
+    }
+
+    /**
+     * 给解复用器设置数据源
+     *
+     * @param mediaExtractor
+     * @throws IOException
+     */
+    public abstract void applyTo(MediaExtractor mediaExtractor) throws IOException;
+
+    /**
+     * 媒体名称（文件路径或资源名）
+     *
+     * @return
+     */
+    public abstract String getName();
+
+    /**
+     * 缓存键，媒体内容变化（大小、修改时间）后随之变化，用于分析结果等缓存
+     *
+     * @return
+     */
+    public String getCacheKey() {
+        return getName();
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    // 文件路径
+    static class PathInput extends MediaInput {
+
+        private String path;
+
+        PathInput(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void applyTo(MediaExtractor mediaExtractor) throws IOException {
+            mediaExtractor.setDataSource(path);
+        }
+
+        @Override
+        public String getName() {
+            return path;
+        }
+
+        @Override
+        public String getCacheKey() {
+            File file = new File(path);
+            return path + "@" + file.length() + "-" + file.lastModified();
+        }
+    }
+
+    // assets资源
+    static class AssetInput extends MediaInput {
+
+        private AssetManager assetManager;
+        private String assetName;
+        private String appVersion;
+
+        AssetInput(AssetManager assetManager, String assetName, String appVersion) {
+            this.assetManager = assetManager;
+            this.assetName = assetName;
+            this.appVersion = appVersion;
+        }
+
+        @Override
+        public void applyTo(MediaExtractor mediaExtractor) throws IOException {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {   // api >= 23
+                // 按位置读取并带块缓存，解复用器释放时由系统关闭数据源
+                mediaExtractor.setDataSource(new AssetDataSource(assetManager, assetName));
+            } else {    // 21 =< api < 23
+                // 直接使用APK文件描述符加偏移，解复用器内部会复制文件描述符，这里可以马上关闭
+                AssetFileDescriptor assetFileDescriptor = assetManager.openFd(assetName);
+                try {
+                    mediaExtractor.setDataSource(assetFileDescriptor.getFileDescriptor(),
+                            assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+                } finally {
+                    assetFileDescriptor.close();
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return assetName;
+        }
+
+        /**
+         * 名称、大小加安装包版本（versionCode 和更新时间），同名同大小的资源随新安装包更新后缓存也会失效
+         */
+        @Override
+        public String getCacheKey() {
+            try {
+                AssetFileDescriptor assetFileDescriptor = assetManager.openFd(assetName);
+                try {
+                    return assetName + "@" + assetFileDescriptor.getLength() + "-" + appVersion;
+                } finally {
+                    assetFileDescriptor.close();
+                }
+            } catch (IOException e) {   // 压缩的资源不能openFd，不用大小
+                return assetName + "@" + appVersion;
+            }
+        }
+    }
+}
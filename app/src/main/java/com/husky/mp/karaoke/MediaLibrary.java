@@ -0,0 +1,396 @@
+package com.husky.mp.karaoke;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 媒体库（见 LibraryScanner），扫描到的音频文件及其元数据
+ * <p>
+ * 索引文件中目录和媒体类型只保存一次，每个文件只保存所在目录序号、文件名和元数据，
+ * 一万首歌的索引只有几百KB，读取后可以马上显示，不需要等扫描完成。
+ * 同一目录中主名相同、分别带原唱/伴唱标记的两个文件自动配成一对（见 getPairs）
+ */
+public class MediaLibrary {
+
+    private static final int MAGIC = 0x484D4C49;    // "HMLI"
+    private static final int VERSION = 1;           // 格式变化时加1，旧索引失效（重新扫描）
+
+    // 原唱、伴唱标记（文件主名结尾，不区分大小写），长的放前面
+    private static final String[] ORIGINAL_TAGS = {"original", "vocals", "vocal", "原唱", "原版"};
+    private static final String[] ACCOMPANIMENT_TAGS = {"accompaniment", "instrumental", "off vocal", "karaoke",
+            "backing", "inst", "伴唱", "伴奏"};
+    private static final String SEPARATORS = " -_.([（【";
+    private static final String CLOSERS = " )]）】";
+
+    private static final int ROLE_NONE = 0;
+    private static final int ROLE_ORIGINAL = 1;
+    private static final int ROLE_ACCOMPANIMENT = 2;
+
+    private final List<Entry> entries;
+    private final List<Pair> pairs;
+    private Map<String, Entry> byPath;  // 按路径查找，第一次用到时建立
+
+    /**
+     * @param entries 所有文件（包括无法读取的，见 Entry.isPlayable）
+     */
+    public MediaLibrary(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.pairs = Collections.unmodifiableList(pair(this.entries));
+    }
+
+    /**
+     * 所有文件，包括无法读取的（记录下来避免每次扫描都重新读取）
+     *
+     * @return
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * 可以播放的文件
+     *
+     * @return
+     */
+    public List<Entry> getPlayableEntries() {
+        List<Entry> playable = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (entry.isPlayable()) {
+                playable.add(entry);
+            }
+        }
+        return playable;
+    }
+
+    /**
+     * 自动配对的原唱和伴唱
+     *
+     * @return
+     */
+    public List<Pair> getPairs() {
+        return pairs;
+    }
+
+    /**
+     * 按路径查找
+     *
+     * @param path
+     * @return 不在库中时返回null
+     */
+    public synchronized Entry find(String path) {
+        if (byPath == null) {
+            byPath = new HashMap<>(entries.size() * 2);
+            for (Entry entry : entries) {
+                byPath.put(entry.getPath(), entry);
+            }
+        }
+        return byPath.get(path);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 写入索引文件（先写临时文件再改名，写入中断不会留下不完整的文件）
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        // 目录和媒体类型表
+        Map<String, Integer> dirs = new LinkedHashMap<>();
+        Map<String, Integer> mimes = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            if (!dirs.containsKey(entry.dir)) {
+                dirs.put(entry.dir, dirs.size());
+            }
+            if (entry.mime != null && !mimes.containsKey(entry.mime)) {
+                mimes.put(entry.mime, mimes.size());
+            }
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(dirs.size());
+            for (String dir : dirs.keySet()) {
+                out.writeUTF(dir);
+            }
+            out.writeShort(mimes.size());
+            for (String mime : mimes.keySet()) {
+                out.writeUTF(mime);
+            }
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeInt(dirs.get(entry.dir));
+                out.writeUTF(entry.name);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeShort(entry.mime == null ? -1 : mimes.get(entry.mime));
+                out.writeLong(entry.durationUs);
+                out.writeInt(entry.sampleRate);
+                out.writeByte(entry.channelCount);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 读取索引文件
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static MediaLibrary read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported library index: " + file);
+            }
+            String[] dirs = new String[in.readInt()];
+            for (int i = 0; i < dirs.length; i++) {
+                dirs[i] = in.readUTF();
+            }
+            String[] mimes = new String[in.readShort()];
+            for (int i = 0; i < mimes.length; i++) {
+                mimes[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String dir = dirs[in.readInt()];
+                String name = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int mime = in.readShort();
+                long durationUs = in.readLong();
+                int sampleRate = in.readInt();
+                int channelCount = in.readByte();
+                entries.add(new Entry(dir, name, size, lastModified,
+                        mime < 0 ? null : mimes[mime], durationUs, sampleRate, channelCount));
+            }
+            return new MediaLibrary(entries);
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("corrupt library index: " + file, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 原唱伴唱配对：同一目录中主名（去掉原唱/伴唱标记后）相同的文件，
+     * 有带伴唱标记的文件时，带原唱标记的文件作为原唱，没有时不带标记的文件作为原唱
+     *
+     * @param entries
+     * @return
+     */
+    static List<Pair> pair(List<Entry> entries) {
+        Map<String, Entry[]> groups = new LinkedHashMap<>();    // 目录+主名 -> {不带标记, 原唱, 伴唱}
+        for (Entry entry : entries) {
+            if (!entry.isPlayable()) {
+                continue;
+            }
+            String name = stripExtension(entry.name);
+            int role = ROLE_NONE;
+            int end = trimEnd(name, name.length(), CLOSERS);
+            int tagged = endWithTag(name, end, ACCOMPANIMENT_TAGS);
+            if (tagged >= 0) {
+                role = ROLE_ACCOMPANIMENT;
+            } else {
+                tagged = endWithTag(name, end, ORIGINAL_TAGS);
+                if (tagged >= 0) {
+                    role = ROLE_ORIGINAL;
+                }
+            }
+            if (tagged >= 0) {
+                end = trimEnd(name, tagged, SEPARATORS);
+                if (end == 0) {     // 只有标记没有歌名
+                    continue;
+                }
+            }
+            String key = entry.dir + "/" + name.substring(0, end).toLowerCase();
+            Entry[] group = groups.get(key);
+            if (group == null) {
+                group = new Entry[3];
+                groups.put(key, group);
+            }
+            if (group[role] == null) {
+                group[role] = entry;
+            }
+        }
+        List<Pair> pairs = new ArrayList<>();
+        for (Entry[] group : groups.values()) {
+            Entry accompaniment = group[ROLE_ACCOMPANIMENT];
+            Entry original = group[ROLE_ORIGINAL] != null ? group[ROLE_ORIGINAL] : group[ROLE_NONE];
+            if (original != null && accompaniment != null) {
+                pairs.add(new Pair(original, accompaniment));
+            }
+        }
+        return pairs;
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // 去掉结尾的指定字符，返回新的结尾位置
+    private static int trimEnd(String text, int end, String chars) {
+        while (end > 0 && chars.indexOf(text.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return end;
+    }
+
+    // [0, end) 以某个标记结尾时返回标记的开始位置，否则返回-1。英文标记前面必须是分隔符（"Unoriginal"不算）
+    private static int endWithTag(String text, int end, String[] tags) {
+        for (String tag : tags) {
+            int start = end - tag.length();
+            if (start < 0 || !text.regionMatches(true, start, tag, 0, tag.length())) {
+                continue;
+            }
+            if (start > 0 && tag.charAt(0) < 0x80 && Character.isLetterOrDigit(text.charAt(start - 1))) {
+                continue;
+            }
+            return start;
+        }
+        return -1;
+    }
+
+    /**
+     * 库中的一个文件
+     */
+    public static final class Entry {
+        private final String dir;           // 所在目录（同一目录的文件共用一个字符串）
+        private final String name;          // 文件名
+        private final long size;            // 文件大小，与修改时间一起判断文件是否变化
+        private final long lastModified;    // 修改时间
+        private final String mime;          // 音频类型，无法读取时为null
+        private final long durationUs;      // 时长，未知时为0
+        private final int sampleRate;
+        private final int channelCount;
+
+        public Entry(String dir, String name, long size, long lastModified,
+                     String mime, long durationUs, int sampleRate, int channelCount) {
+            this.dir = dir;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mime = mime;
+            this.durationUs = durationUs;
+            this.sampleRate = sampleRate;
+            this.channelCount = channelCount;
+        }
+
+        public String getPath() {
+            return dir + File.separator + name;
+        }
+
+        public String getDir() {
+            return dir;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getMime() {
+            return mime;
+        }
+
+        public long getDurationUs() {
+            return durationUs;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannelCount() {
+            return channelCount;
+        }
+
+        /**
+         * 是否可以播放（扫描时能找到音频轨道）
+         *
+         * @return
+         */
+        public boolean isPlayable() {
+            return mime != null;
+        }
+
+        /**
+         * 文件是否没有变化（大小和修改时间都相同）
+         *
+         * @param size
+         * @param lastModified
+         * @return
+         */
+        public boolean isSameFile(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+
+        public MediaInput toMediaInput() {
+            return MediaInput.fromPath(getPath());
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" + getPath() + ", " + mime + ", " + sampleRate + "Hz x" + channelCount + ", " + durationUs / 1000 + "ms}";
+        }
+    }
+
+    /**
+     * 一对原唱和伴唱
+     */
+    public static final class Pair {
+        private final Entry original;
+        private final Entry accompaniment;
+
+        Pair(Entry original, Entry accompaniment) {
+            this.original = original;
+            this.accompaniment = accompaniment;
+        }
+
+        public Entry getOriginal() {
+            return original;
+        }
+
+        public Entry getAccompaniment() {
+            return accompaniment;
+        }
+
+        @Override
+        public String toString() {
+            return "Pair{" + original.getName() + " / " + accompaniment.getName() + "}";
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.husky.mp.karaoke;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.husky.mp.karaoke.dsp.PitchDetector;
+import com.husky.mp.karaoke.dsp.VocalRemover;
+import com.husky.mp.util.AssetInstaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 参考旋律分析（离线任务）
+ * <p>
+ * 用 PcmDecoder 尽快解码原唱（远快于实时播放），逐帧检测音高并分割音符，生成 MelodyIndex 并写入分析缓存，
+ * 之后同一首歌直接读取缓存，不再重新分析
+ * <p>
+ * 原唱中伴奏的音高会干扰检测，立体声原唱先用 VocalRemover 得到伴奏，原唱减去伴奏得到人声的估计再检测，
+ * 单声道无法分离，直接检测原唱
+ */
+public class MelodyAnalyzer {
+
+    private static final String TAG = "MelodyAnalyzer";
+
+    public static final String KIND = "melody";     // 缓存扩展名
+
+    private static final int READ_SIZE = 8192;      // 每次读取的采样数
+
+    // 分析任务在低优先级线程中逐个执行，不影响播放
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new AssetInstaller.PriorityThreadFactory("melodyAnalyzer", Process.THREAD_PRIORITY_BACKGROUND));
+
+    /**
+     * 在后台获取旋律索引，有缓存时直接读取，否则分析后写入缓存，结果在主线程回调
+     *
+     * @param input    原唱
+     * @param cache    分析缓存
+     * @param listener
+     * @return 可用于取消任务
+     */
+    public static Future<?> analyzeAsync(final MediaInput input, final AnalysisCache cache, final OnAnalyzeListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final MelodyIndex index = load(input, cache);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onAnalyzed(index);
+                        }
+                    });
+                } catch (final IOException e) {
+                    Log.e(TAG, "analyze failed: " + input, e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFailed(e);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "analyze cancelled: " + input);
+                }
+            }
+        });
+    }
+
+    /**
+     * 同步获取旋律索引，有缓存时直接读取，否则分析后写入缓存（在后台线程中调用）
+     *
+     * @param input
+     * @param cache
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static MelodyIndex load(MediaInput input, AnalysisCache cache) throws IOException, InterruptedException {
+        File file = cache.getFile(input, KIND);
+        if (file.exists()) {
+            try {
+                return MelodyIndex.read(file);
+            } catch (IOException e) {   // 缓存损坏或版本不一致，重新分析
+                Log.w(TAG, "invalid cache: " + file, e);
+                file.delete();
+            }
+        }
+        MelodyIndex index = analyze(input);
+        try {
+            index.write(file);
+        } catch (IOException e) {   // 缓存写入失败不影响结果
+            Log.w(TAG, "write cache failed: " + file, e);
+        }
+        return index;
+    }
+
+    /**
+     * 分析旋律（不使用缓存）
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    public static MelodyIndex analyze(MediaInput input) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        PcmDecoder decoder = new PcmDecoder(input);
+        try {
+            MelodyIndex index = analyze(decoder);
+            long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+            Log.d(TAG, "analyzed " + input + " in " + elapsedMs + "ms, duration " + index.getDurationUs() / 1000
+                    + "ms, notes " + index.getNoteCount());
+            return index;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * 从解码器读取全部数据并分析
+     *
+     * @param decoder
+     * @return
+     * @throws InterruptedException 线程被中断（任务取消）
+     */
+    static MelodyIndex analyze(PcmDecoder decoder) throws InterruptedException {
+        final MelodyIndex.Builder builder = new MelodyIndex.Builder();
+        short[] buffer = new short[READ_SIZE];
+        // 第一次读取后采样率和声道数才确定
+        int count = decoder.read(buffer, 0, buffer.length);
+        if (count < 0) {
+            return builder.build();
+        }
+        PitchDetector detector = new PitchDetector(decoder.getSampleRate(), decoder.getChannelCount());
+        detector.setOnPitchListener(new PitchDetector.OnPitchListener() {
+            @Override
+            public void onPitch(long timeUs, float frequency, float confidence) {
+                builder.addPitch(timeUs, PitchDetector.toMidi(frequency));
+            }
+        });
+        MixSource source = new BackingTrackGenerator.PrefetchedSource(decoder, buffer, count);
+        if (decoder.getChannelCount() == 2) {
+            source = new VocalSource(source, decoder.getSampleRate());
+        } else {
+            Log.w(TAG, "not stereo, analyze the original mix");
+        }
+        short[] out = new short[READ_SIZE];
+        while ((count = source.read(out, 0, out.length)) >= 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            detector.process(out, 0, count);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 人声的估计：立体声原唱减去 VocalRemovalSource 得到的伴奏，与原唱时间对齐
+     */
+    static class VocalSource implements MixSource {
+
+        private final VocalRemovalSource backing;   // 伴奏，从 original 读取
+        private final short[] original;     // 伴奏预读了一个窗口，原唱先存下来等伴奏输出后再相减
+        private int head = 0;               // 最早未相减的原唱
+        private int stored = 0;             // 存下的原唱采样数
+
+        /**
+         * @param source     立体声原唱
+         * @param sampleRate
+         */
+        VocalSource(final MixSource source, int sampleRate) {
+            VocalRemover remover = new VocalRemover(sampleRate, VocalRemover.MODE_SPECTRAL);
+            original = new short[remover.getLatencyFrames() * 2 + READ_SIZE];
+            backing = new VocalRemovalSource(new MixSource() {
+                @Override
+                public int read(short[] buffer, int offset, int size) throws InterruptedException {
+                    int count = source.read(buffer, offset, Math.min(size, original.length - stored));
+                    for (int i = 0; i < count; i++) {
+                        original[(head + stored + i) % original.length] = buffer[offset + i];
+                    }
+                    stored += Math.max(count, 0);
+                    return count;
+                }
+
+                @Override
+                public boolean isLive() {
+                    return false;
+                }
+            }, remover);
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int size) throws InterruptedException {
+            int count = backing.read(buffer, offset, Math.min(size, READ_SIZE));
+            for (int i = 0; i < count; i++) {
+                int sample = 0;
+                if (stored > 0) {   // 末尾冲出的部分原唱已经读完
+                    sample = original[head];
+                    head = (head + 1) % original.length;
+                    stored--;
+                }
+                sample -= buffer[offset + i];
+                buffer[offset + i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isLive() {
+            return false;
+        }
+    }
+
+    /**
+     * 分析结果回调接口（主线程）
+     */
+    public interface OnAnalyzeListener {
+        void onAnalyzed(MelodyIndex index);
+
+        void onFailed(IOException e);
+    }
+}
@@ -0,0 +1,306 @@
+package com.husky.mp.karaoke;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 参考旋律索引（从原唱中提取）
+ * <p>
+ * 音高轮廓按固定帧长（10毫秒）存成short数组，单位为音分（MIDI音高×100，0表示没有音高），按时间直接取下标，O(1)查询；
+ * 音符按开始时间排序存成并列数组，按时间范围二分查找。
+ * 一首4分钟的歌轮廓约48KB，二进制文件直接读入数组，不需要解析
+ */
+public class MelodyIndex {
+
+    private static final int MAGIC = 0x484D454C;    // "HMEL"
+    private static final int VERSION = 2;           // 分析算法或格式变化时加1，旧缓存失效
+
+    public static final int FRAME_DURATION_US = 10_000;    // 帧长（微秒）
+
+    private final short[] contour;      // 每帧音高（音分），0表示没有音高
+    private final int[] noteStarts;     // 音符开始帧
+    private final int[] noteEnds;       // 音符结束帧（不包含）
+    private final short[] notePitches;  // 音符音高（音分）
+
+    private MelodyIndex(short[] contour, int[] noteStarts, int[] noteEnds, short[] notePitches) {
+        this.contour = contour;
+        this.noteStarts = noteStarts;
+        this.noteEnds = noteEnds;
+        this.notePitches = notePitches;
+    }
+
+    /**
+     * 时长（微秒）
+     *
+     * @return
+     */
+    public long getDurationUs() {
+        return (long) contour.length * FRAME_DURATION_US;
+    }
+
+    /**
+     * 某一时刻的参考音高
+     *
+     * @param timeUs
+     * @return MIDI音高，0表示没有音高
+     */
+    public float getMidiAt(long timeUs) {
+        long frame = timeUs / FRAME_DURATION_US;
+        if (timeUs < 0 || frame >= contour.length) {
+            return 0;
+        }
+        return contour[(int) frame] / 100f;
+    }
+
+    /**
+     * 音符数
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return noteStarts.length;
+    }
+
+    public long getNoteStartUs(int index) {
+        return (long) noteStarts[index] * FRAME_DURATION_US;
+    }
+
+    public long getNoteEndUs(int index) {
+        return (long) noteEnds[index] * FRAME_DURATION_US;
+    }
+
+    /**
+     * 音符音高
+     *
+     * @param index
+     * @return MIDI音高
+     */
+    public float getNoteMidi(int index) {
+        return notePitches[index] / 100f;
+    }
+
+    /**
+     * 第一个结束时间晚于 timeUs 的音符（用于按时间范围遍历音符）
+     *
+     * @param timeUs
+     * @return 音符下标，没有时返回 getNoteCount()
+     */
+    public int findNote(long timeUs) {
+        long frame = timeUs / FRAME_DURATION_US;
+        int low = 0, high = noteEnds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (noteEnds[mid] <= frame) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 某一时刻所在的音符
+     *
+     * @param timeUs
+     * @return 音符下标，不在任何音符中时返回-1
+     */
+    public int getNoteAt(long timeUs) {
+        int index = findNote(timeUs);
+        if (index < noteStarts.length && noteStarts[index] <= timeUs / FRAME_DURATION_US) {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * 写入文件（先写临时文件再重命名）
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(FRAME_DURATION_US);
+            out.writeInt(contour.length);
+            out.writeInt(noteStarts.length);
+            for (short value : contour) {
+                out.writeShort(value);
+            }
+            for (int i = 0; i < noteStarts.length; i++) {
+                out.writeInt(noteStarts[i]);
+                out.writeInt(noteEnds[i]);
+                out.writeShort(notePitches[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static MelodyIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != FRAME_DURATION_US) {
+                throw new IOException("unsupported melody index: " + file);
+            }
+            int frameCount = in.readInt();
+            int noteCount = in.readInt();
+            if (frameCount < 0 || noteCount < 0 || noteCount > frameCount) {
+                throw new IOException("corrupt melody index: " + file);
+            }
+            short[] contour = new short[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                contour[i] = in.readShort();
+            }
+            int[] noteStarts = new int[noteCount];
+            int[] noteEnds = new int[noteCount];
+            short[] notePitches = new short[noteCount];
+            for (int i = 0; i < noteCount; i++) {
+                noteStarts[i] = in.readInt();
+                noteEnds[i] = in.readInt();
+                notePitches[i] = in.readShort();
+            }
+            return new MelodyIndex(contour, noteStarts, noteEnds, notePitches);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 从音高序列构建索引：按帧对齐轮廓，再分割音符
+     */
+    public static class Builder {
+
+        private static final int MIN_NOTE_FRAMES = 6;       // 最短音符（60毫秒）
+        private static final int MAX_NOTE_DEVIATION = 60;   // 偏离音符平均音高超过该值（音分）开始新音符
+        private static final int MAX_GAP_FRAMES = 3;        // 音符中允许的无音高帧数（辅音、换气）
+
+        private short[] contour = new short[30 * 100];  // 按需扩容
+        private int frameCount = 0;
+
+        /**
+         * 添加一个音高，从上一个音高的时间到该时间之间的帧都使用该音高
+         *
+         * @param timeUs 时间（微秒）
+         * @param midi   MIDI音高，0表示没有音高
+         * @return
+         */
+        public Builder addPitch(long timeUs, float midi) {
+            int frame = (int) (timeUs / FRAME_DURATION_US);
+            if (frame < 0) {
+                return this;
+            }
+            if (frame >= contour.length) {
+                short[] grown = new short[Math.max(contour.length * 2, frame + 1)];
+                System.arraycopy(contour, 0, grown, 0, frameCount);
+                contour = grown;
+            }
+            short value = (short) Math.round(midi * 100);
+            for (int i = frameCount; i <= frame; i++) {
+                contour[i] = value;
+            }
+            frameCount = Math.max(frameCount, frame + 1);
+            return this;
+        }
+
+        public MelodyIndex build() {
+            short[] frames = new short[frameCount];
+            // 3点中值滤波去掉孤立的跳变（八度错误等）
+            for (int i = 0; i < frameCount; i++) {
+                if (i == 0 || i == frameCount - 1) {
+                    frames[i] = contour[i];
+                } else {
+                    frames[i] = median(contour[i - 1], contour[i], contour[i + 1]);
+                }
+            }
+
+            int[] starts = new int[16];
+            int[] ends = new int[16];
+            short[] pitches = new short[16];
+            int count = 0;
+
+            int start = -1;     // 当前音符开始帧
+            int last = -1;      // 当前音符最后一个有音高的帧
+            long sum = 0;       // 当前音符音高之和
+            int voiced = 0;     // 当前音符有音高的帧数
+            for (int i = 0; i <= frameCount; i++) {
+                int value = i < frameCount ? frames[i] : 0;
+                if (start >= 0) {
+                    boolean end;
+                    if (value == 0) {
+                        end = i - last > MAX_GAP_FRAMES || i == frameCount;
+                    } else {
+                        end = Math.abs(value - sum / voiced) > MAX_NOTE_DEVIATION;
+                    }
+                    if (!end) {
+                        if (value != 0) {
+                            sum += value;
+                            voiced++;
+                            last = i;
+                        }
+                        continue;
+                    }
+                    if (voiced >= MIN_NOTE_FRAMES) {
+                        if (count == starts.length) {
+                            starts = grow(starts);
+                            ends = grow(ends);
+                            short[] grown = new short[count * 2];
+                            System.arraycopy(pitches, 0, grown, 0, count);
+                            pitches = grown;
+                        }
+                        starts[count] = start;
+                        ends[count] = last + 1;
+                        pitches[count] = (short) (sum / voiced);
+                        count++;
+                    }
+                    start = -1;
+                }
+                if (value != 0) {   // 开始新音符
+                    start = i;
+                    last = i;
+                    sum = value;
+                    voiced = 1;
+                }
+            }
+
+            int[] noteStarts = new int[count];
+            int[] noteEnds = new int[count];
+            short[] notePitches = new short[count];
+            System.arraycopy(starts, 0, noteStarts, 0, count);
+            System.arraycopy(ends, 0, noteEnds, 0, count);
+            System.arraycopy(pitches, 0, notePitches, 0, count);
+            return new MelodyIndex(frames, noteStarts, noteEnds, notePitches);
+        }
+
+        private static short median(short a, short b, short c) {
+            return (short) Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+        }
+
+        private static int[] grow(int[] array) {
+            int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.husky.mp.karaoke;
+
+import android.os.Process;
+
+import com.husky.mp.karaoke.dsp.PitchDetector;
+
+/**
+ * 麦克风音源（实时返听）
+ * <p>
+ * 采集线程从 CaptureSource 读取数据写入单生产者单消费者的环形缓冲，混音线程不阻塞地读取，
+ * 数据不够时补静音，积压超过一个块时丢弃旧数据，保证返听延迟不会越积越大。
+ * 采集和读取过程都不分配内存。
+ * <p>
+ * 延迟统计：根据采集完成的时间推算每一帧的采集时间，混音块写入播放器后（onBlockWritten）
+ * 计算该块中第一帧从采集到写入播放器的时间
+ * <p>
+ * 设置了音高检测器时，采集线程在写入环形缓冲后顺便检测音高，不占用混音线程
+ */
+public class MicSource implements MixSource {
+
+    private static final int RING_SIZE = 16384; // 环形缓冲大小（采样数，2的幂）
+
+    private final CaptureSource captureSource;  // 采集源
+    private final int inChannels;   // 采集声道数
+    private final int outChannels;  // 输出声道数
+    private final int sampleRate;   // 采样率
+
+    private final short[] ring = new short[RING_SIZE];  // 环形缓冲
+    private final int mask = RING_SIZE - 1;
+    private volatile long writePosition = 0;    // 已写入的采样数（采集线程写）
+    private volatile long readPosition = 0;     // 已读取的采样数（混音线程写）
+    private volatile long lastCaptureNanos = 0; // 最近一次采集完成的时间
+
+    private final short[] captureBuffer;    // 采集缓冲
+    private Thread captureThread;   // 采集线程
+    private volatile boolean running = false;
+    private volatile PitchDetector pitchDetector;   // 音高检测器（采集线程中使用）
+
+    private long pendingCaptureNanos = 0;   // 最近读取的块中第一帧的采集时间（混音线程使用）
+
+    // 统计
+    private volatile long underrunCount = 0;    // 数据不够补静音的次数
+    private volatile long droppedSamples = 0;   // 积压过多丢弃的采样数
+    private volatile long overflowSamples = 0;  // 环形缓冲满了丢弃的采样数
+    private volatile long lastLatencyNs = 0;    // 最近一次延迟
+    private volatile long minLatencyNs = Long.MAX_VALUE;    // 最小延迟
+    private volatile long maxLatencyNs = 0;     // 最大延迟
+    private volatile long averageLatencyNs = 0; // 平均延迟（指数平滑）
+
+    /**
+     * @param captureSource 采集源
+     * @param outChannels   输出声道数，与播放器一致，单声道采集时复制到各声道
+     */
+    public MicSource(CaptureSource captureSource, int outChannels) {
+        this.captureSource = captureSource;
+        this.inChannels = captureSource.getChannelCount();
+        this.outChannels = outChannels;
+        this.sampleRate = captureSource.getSampleRate();
+        this.captureBuffer = new short[captureSource.getReadSize()];
+    }
+
+    /**
+     * 开始采集
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        captureSource.start();
+        captureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                while (running) {
+                    if (!captureOnce()) {
+                        break;
+                    }
+                }
+            }
+        }, "micCaptureThread");
+        captureThread.start();
+    }
+
+    /**
+     * 设置音高检测器，检测器的采样率和声道数需要与采集源一致，回调在采集线程中
+     *
+     * @param pitchDetector 为null时不检测
+     */
+    public void setPitchDetector(PitchDetector pitchDetector) {
+        this.pitchDetector = pitchDetector;
+    }
+
+    /**
+     * 停止采集并释放采集源
+     */
+    public void release() {
+        running = false;
+        captureSource.stop();   // 让阻塞的读取返回
+        if (captureThread != null) {
+            try {
+                captureThread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            captureThread = null;
+        }
+        captureSource.release();
+    }
+
+    /**
+     * 采集一次并写入环形缓冲
+     *
+     * @return 采集出错时返回false
+     */
+    boolean captureOnce() {
+        int count = captureSource.read(captureBuffer, 0, captureBuffer.length);
+        if (count < 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        PitchDetector detector = pitchDetector;
+        if (detector != null) {
+            detector.process(captureBuffer, 0, count);
+        }
+        long write = writePosition;
+        int free = (int) (RING_SIZE - (write - readPosition));
+        if (count > free) { // 缓冲满了，丢弃放不下的部分
+            overflowSamples += count - free;
+            count = free;
+        }
+        for (int i = 0; i < count; i++) {
+            ring[(int) ((write + i) & mask)] = captureBuffer[i];
+        }
+        // 先写时间再写位置，读取方先读位置再读时间
+        lastCaptureNanos = now;
+        writePosition = write + count;
+        return true;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        int frames = size / outChannels;
+        int need = frames * inChannels;
+
+        long write = writePosition;
+        long captureNanos = lastCaptureNanos;
+        long read = readPosition;
+        if (write - read > need) {  // 积压超过一个块，丢弃旧数据
+            droppedSamples += write - read - need;
+            read = write - need;
+        }
+        int available = (int) Math.min(write - read, need);
+        int availableFrames = available / inChannels;
+        if (availableFrames < frames) {
+            underrunCount++;
+        }
+
+        for (int i = 0; i < availableFrames; i++) {
+            long base = read + (long) i * inChannels;
+            int out = offset + i * outChannels;
+            if (inChannels == outChannels) {
+                for (int c = 0; c < outChannels; c++) {
+                    buffer[out + c] = ring[(int) ((base + c) & mask)];
+                }
+            } else if (inChannels == 1) {   // 单声道复制到各声道
+                short sample = ring[(int) (base & mask)];
+                for (int c = 0; c < outChannels; c++) {
+                    buffer[out + c] = sample;
+                }
+            } else {    // 多声道取平均
+                int sum = 0;
+                for (int c = 0; c < inChannels; c++) {
+                    sum += ring[(int) ((base + c) & mask)];
+                }
+                short sample = (short) (sum / inChannels);
+                for (int c = 0; c < outChannels; c++) {
+                    buffer[out + c] = sample;
+                }
+            }
+        }
+        for (int i = availableFrames * outChannels; i < frames * outChannels; i++) {
+            buffer[offset + i] = 0; // 补静音
+        }
+
+        if (availableFrames > 0 && captureNanos != 0) {
+            // 第一帧比最近一次采集完成早了 (write - read) / inChannels 帧
+            long ageFrames = (write - read) / inChannels;
+            pendingCaptureNanos = captureNanos - ageFrames * 1_000_000_000L / sampleRate;
+        }
+        readPosition = read + (long) availableFrames * inChannels;
+        return frames * outChannels;
+    }
+
+    /**
+     * 混音块写入播放器后调用（混音线程），统计从采集到写入播放器的延迟
+     *
+     * @param writeNanos 写入完成的时间（System.nanoTime）
+     */
+    public void onBlockWritten(long writeNanos) {
+        if (pendingCaptureNanos == 0) {
+            return;
+        }
+        long latency = writeNanos - pendingCaptureNanos;
+        pendingCaptureNanos = 0;
+        lastLatencyNs = latency;
+        if (latency < minLatencyNs) {
+            minLatencyNs = latency;
+        }
+        if (latency > maxLatencyNs) {
+            maxLatencyNs = latency;
+        }
+        averageLatencyNs = averageLatencyNs == 0 ? latency : averageLatencyNs + (latency - averageLatencyNs) / 16;
+    }
+
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+    public long getLastLatencyNs() {
+        return lastLatencyNs;
+    }
+
+    public long getMinLatencyNs() {
+        return minLatencyNs == Long.MAX_VALUE ? 0 : minLatencyNs;
+    }
+
+    public long getMaxLatencyNs() {
+        return maxLatencyNs;
+    }
+
+    public long getAverageLatencyNs() {
+        return averageLatencyNs;
+    }
+
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public long getOverflowSamples() {
+        return overflowSamples;
+    }
+}
@@ -0,0 +1,309 @@
+package com.husky.mp.karaoke;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 混音输出广播（一个生产者，任意多个消费者）
+ * <p>
+ * 混音线程每块只发布一次：用 obtain 取得环形队列中的下一个槽，把PCM直接转换进去，publish 后再写入播放器，
+ * 播放器和所有消费者读取的是同一个数组，不拷贝。
+ * <p>
+ * 每个消费者（Reader）有自己的读取位置，互不影响。生产者从不等待：消费者落后超过队列长度时，
+ * 下次读取直接跳到最旧的可用块，并通过 OnOverrunListener 通知丢失的块数。
+ * 消费者可以在播放过程中随时接入和断开，接入时从下一个发布的块开始读取。
+ * <p>
+ * 读到的数组在生产者绕回之前有效，处理完后可以用 Reader.isValid 检查处理期间是否被覆盖
+ */
+public class MixBroadcast {
+
+    private final short[][] slots;  // 环形队列
+    private final int[] sizes;      // 每块的采样数
+    private final long[] positions; // 每块第一帧在输出流中的位置（帧）
+    private final long[] publishNanos;  // 每块的发布时间（System.nanoTime）
+    private final int mask;
+    private final int sampleRate;
+    private final int channels;
+
+    private volatile long published = 0;    // 已发布的块数
+    private volatile long claimed = 0;      // 已经开始写入的块数（obtain 后比 published 多1）
+    private volatile boolean closed = false;
+    private long framePosition = 0;         // 下一块第一帧的位置（生产者使用）
+
+    private volatile Reader[] readers = new Reader[0];  // 写时复制，生产者遍历时不加锁
+
+    /**
+     * @param slotCount  队列长度（2的幂），决定消费者最多可以落后多少块
+     * @param blockSize  每块最大采样数
+     * @param sampleRate
+     * @param channels
+     */
+    public MixBroadcast(int slotCount, int blockSize, int sampleRate, int channels) {
+        if (slotCount < 2 || (slotCount & (slotCount - 1)) != 0) {
+            throw new IllegalArgumentException("slot count must be power of 2: " + slotCount);
+        }
+        this.slots = new short[slotCount][blockSize];
+        this.sizes = new int[slotCount];
+        this.positions = new long[slotCount];
+        this.publishNanos = new long[slotCount];
+        this.mask = slotCount - 1;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * 取得下一块的数组（混音线程调用），写满后调用 publish
+     *
+     * @return
+     */
+    public short[] obtain() {
+        long index = published;
+        claimed = index + 1;    // 从现在起消费者读到的最旧一块可能被覆盖
+        return slots[(int) index & mask];
+    }
+
+    /**
+     * 发布 obtain 得到的块（混音线程调用），不等待任何消费者
+     *
+     * @param size 采样数
+     */
+    public void publish(int size) {
+        long index = published;
+        int slot = (int) index & mask;
+        sizes[slot] = size;
+        positions[slot] = framePosition;
+        publishNanos[slot] = System.nanoTime();
+        framePosition += size / channels;
+        published = index + 1;
+        wakeReaders();
+    }
+
+    /**
+     * 结束（混音线程退出时调用），等待中的消费者会读到null
+     */
+    public void close() {
+        closed = true;
+        wakeReaders();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 已发布的块数
+     *
+     * @return
+     */
+    public long getPublishedBlocks() {
+        return published;
+    }
+
+    /**
+     * 是否有消费者，没有时生产者可以跳过准备数据
+     *
+     * @return
+     */
+    public boolean hasReaders() {
+        return readers.length > 0;
+    }
+
+    /**
+     * 接入一个消费者，可以在播放过程中调用
+     *
+     * @param onOverrunListener 落后太多丢失数据时在消费者线程中回调，可以为null
+     * @return
+     */
+    public synchronized Reader attach(OnOverrunListener onOverrunListener) {
+        Reader reader = new Reader(onOverrunListener);
+        Reader[] current = readers;
+        Reader[] next = new Reader[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = reader;
+        readers = next;
+        return reader;
+    }
+
+    private synchronized void detach(Reader reader) {
+        Reader[] current = readers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == reader) {
+                Reader[] next = new Reader[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                readers = next;
+                return;
+            }
+        }
+    }
+
+    private void wakeReaders() {
+        Reader[] current = readers;
+        for (int i = 0; i < current.length; i++) {
+            Thread waiter = current[i].waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * 消费者，只能在一个线程中使用
+     */
+    public class Reader {
+
+        private final OnOverrunListener onOverrunListener;
+        private long cursor;            // 下一块的序号
+        private long current = -1;      // 最近读到的块的序号
+        private long lostBlocks = 0;    // 累计丢失的块数
+        private volatile Thread waiter; // 等待中的线程
+        private volatile boolean detached = false;
+
+        private Reader(OnOverrunListener onOverrunListener) {
+            this.onOverrunListener = onOverrunListener;
+            this.cursor = published;
+        }
+
+        /**
+         * 读取下一块，没有新数据时立即返回null
+         *
+         * @return
+         */
+        public short[] poll() {
+            long available = published;
+            if (cursor >= available || detached) {
+                return null;
+            }
+            // 生产者正在写入的槽对应 claimed - slots.length 之前的块
+            long oldest = claimed - slots.length + 1;
+            if (cursor < oldest) {
+                long lost = oldest - cursor;
+                lostBlocks += lost;
+                cursor = oldest;
+                if (onOverrunListener != null) {
+                    onOverrunListener.onOverrun(this, lost);
+                }
+            }
+            current = cursor++;
+            return slots[(int) current & mask];
+        }
+
+        /**
+         * 读取下一块，没有新数据时等待
+         *
+         * @param timeoutMs
+         * @return 超时、广播结束或已断开时返回null
+         * @throws InterruptedException
+         */
+        public short[] next(long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (true) {
+                short[] block = poll();
+                if (block != null || closed || detached) {
+                    return block;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                waiter = Thread.currentThread();
+                if (cursor >= published && !closed) {   // 登记后再检查一次，避免错过唤醒
+                    LockSupport.parkNanos(this, remaining);
+                }
+                waiter = null;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        /**
+         * 最近读到的块的采样数
+         *
+         * @return
+         */
+        public int getSize() {
+            return sizes[(int) current & mask];
+        }
+
+        /**
+         * 最近读到的块第一帧在输出流中的位置（帧）
+         *
+         * @return
+         */
+        public long getFramePosition() {
+            return positions[(int) current & mask];
+        }
+
+        /**
+         * 最近读到的块的发布时间（System.nanoTime），用于统计消费者的延迟
+         *
+         * @return
+         */
+        public long getPublishNanos() {
+            return publishNanos[(int) current & mask];
+        }
+
+        /**
+         * 最近读到的块是否还没有被生产者覆盖，处理完数组后调用
+         *
+         * @return
+         */
+        public boolean isValid() {
+            return current >= 0 && claimed <= current + slots.length;
+        }
+
+        /**
+         * 还没有读取的块数
+         *
+         * @return
+         */
+        public long getPendingBlocks() {
+            return published - cursor;
+        }
+
+        /**
+         * 累计丢失的块数
+         *
+         * @return
+         */
+        public long getLostBlocks() {
+            return lostBlocks;
+        }
+
+        /**
+         * 断开，可以在任意线程调用，等待中的 next 会返回null
+         */
+        public void detach() {
+            detached = true;
+            MixBroadcast.this.detach(this);
+            Thread thread = waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * 消费者落后太多时的回调
+     */
+    public interface OnOverrunListener {
+        /**
+         * @param reader
+         * @param lostBlocks 本次跳过的块数
+         */
+        void onOverrun(Reader reader, long lostBlocks);
+    }
+}
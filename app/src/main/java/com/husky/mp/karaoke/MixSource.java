@@ -0,0 +1,26 @@
+package com.husky.mp.karaoke;
+
+/**
+ * 混音音源，解码得到的文件音轨和麦克风等实时音源都通过该接口接入混音器
+ */
+public interface MixSource {
+
+    /**
+     * 读取PCM数据（16位采样，多声道时交错存放）
+     * 文件音源阻塞直到读满或结束，实时音源不阻塞，数据不够时补静音
+     *
+     * @param buffer
+     * @param offset
+     * @param size   读取的采样数（声道数的整数倍）
+     * @return 实际读取的采样数，-1表示已经结束
+     * @throws InterruptedException
+     */
+    int read(short[] buffer, int offset, int size) throws InterruptedException;
+
+    /**
+     * 是否实时音源（如麦克风），实时音源不会结束，也不决定混音块的长度
+     *
+     * @return
+     */
+    boolean isLive();
+}
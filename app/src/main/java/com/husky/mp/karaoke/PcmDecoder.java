@@ -0,0 +1,223 @@
+package com.husky.mp.karaoke;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 离线解码（同步）
+ * <p>
+ * 不经过播放，按调用方读取的速度尽快解码，用于对齐、分析等后台任务，速度远快于实时播放。
+ * 读取到的是16位交错PCM采样，也可以作为文件音源接入 VocalRemovalSource 等处理环节
+ */
+public class PcmDecoder implements MixSource, QueueTrack.Decoder {
+
+    private static final String TAG = "PcmDecoder";
+
+    private static final long TIMEOUT_US = 10 * 1_000;  // 等待输入输出缓冲的超时时间
+
+    private MediaExtractor mediaExtractor;  // 解复用器
+    private MediaCodec audioDecoder;    // 音频解码器
+    private MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private int sampleRate;     // 采样率
+    private int channelCount;   // 声道数
+    private long durationUs;    // 时长
+
+    private ByteBuffer outputBuffer;    // 当前正在读取的输出缓冲
+    private int outputIndex = -1;       // 当前输出缓冲下标
+    private long outputTimeUs = 0;      // 当前输出缓冲的时间戳
+    private boolean inputDone = false;  // 输入是否已经读完
+    private boolean outputDone = false; // 输出是否已经结束
+
+    public PcmDecoder(MediaInput input) throws IOException {
+        mediaExtractor = new MediaExtractor();
+        try {
+            input.applyTo(mediaExtractor);
+            for (int i = 0; i < mediaExtractor.getTrackCount(); i++) {
+                MediaFormat mediaFormat = mediaExtractor.getTrackFormat(i);
+                String mime = mediaFormat.getString(MediaFormat.KEY_MIME);    // 获取媒体类型
+                if (mime != null && mime.startsWith("audio")) { // 找到音频轨道
+                    mediaExtractor.selectTrack(i);
+                    sampleRate = mediaFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = mediaFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    durationUs = mediaFormat.containsKey(MediaFormat.KEY_DURATION) ? mediaFormat.getLong(MediaFormat.KEY_DURATION) : 0;
+                    audioDecoder = MediaCodec.createDecoderByType(mime);
+                    audioDecoder.configure(mediaFormat, null, null, 0);
+                    audioDecoder.start();
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        if (audioDecoder == null) {
+            release();
+            throw new IOException("no audio track: " + input);
+        }
+    }
+
+    /**
+     * 采样率（解码器输出格式变化时会更新）
+     *
+     * @return
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 声道数（解码器输出格式变化时会更新）
+     *
+     * @return
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * 时长（微秒），未知时为0
+     *
+     * @return
+     */
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * 最近读取的数据块的时间戳（微秒）
+     *
+     * @return
+     */
+    public long getPositionUs() {
+        return outputTimeUs;
+    }
+
+    /**
+     * 读取PCM数据，阻塞直到读满或解码结束
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数
+     * @return 实际读取的采样数，-1表示解码结束
+     */
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        int read = 0;
+        while (read < size) {
+            if (outputBuffer != null && outputBuffer.remaining() >= 2) {
+                int count = Math.min(size - read, outputBuffer.remaining() / 2);
+                outputBuffer.asShortBuffer().get(buffer, offset + read, count);
+                outputBuffer.position(outputBuffer.position() + count * 2);
+                read += count;
+                continue;
+            }
+            releaseOutput();
+            if (outputDone || !decodeNext()) {
+                break;
+            }
+        }
+        return read == 0 && outputDone ? -1 : read;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    /**
+     * 跳转
+     *
+     * @param timeUs
+     */
+    public void seekTo(long timeUs) {
+        releaseOutput();
+        mediaExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        audioDecoder.flush();
+        inputDone = false;
+        outputDone = false;
+    }
+
+    /**
+     * 送入输入并取出一个输出缓冲
+     *
+     * @return 解码结束时返回false
+     */
+    private boolean decodeNext() {
+        while (!outputDone) {
+            if (!inputDone) {
+                int inputIndex = audioDecoder.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    ByteBuffer inputBuffer = audioDecoder.getInputBuffer(inputIndex);
+                    int bufferSize = inputBuffer == null ? -1 : mediaExtractor.readSampleData(inputBuffer, 0);
+                    if (bufferSize < 0) {   // 无可用数据，证明读完了
+                        audioDecoder.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        audioDecoder.queueInputBuffer(inputIndex, 0, bufferSize, mediaExtractor.getSampleTime(), mediaExtractor.getSampleFlags());
+                        mediaExtractor.advance();   // 读取下一帧数据
+                    }
+                }
+            }
+
+            int index = audioDecoder.dequeueOutputBuffer(bufferInfo, TIMEOUT_US);
+            if (index >= 0) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {   // 表示到达文件末尾了
+                    outputDone = true;
+                }
+                if (bufferInfo.size > 0) {
+                    ByteBuffer buffer = audioDecoder.getOutputBuffer(index);
+                    if (buffer != null) {
+                        buffer.position(bufferInfo.offset);
+                        buffer.limit(bufferInfo.offset + bufferInfo.size);
+                        outputBuffer = buffer.slice().order(ByteOrder.nativeOrder());
+                        outputIndex = index;
+                        outputTimeUs = bufferInfo.presentationTimeUs;
+                        return true;
+                    }
+                }
+                audioDecoder.releaseOutputBuffer(index, false);
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat outputFormat = audioDecoder.getOutputFormat();
+                sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                Log.d(TAG, "output format changed: " + sampleRate + "Hz, " + channelCount + "ch");
+            }
+        }
+        return false;
+    }
+
+    private void releaseOutput() {
+        if (outputIndex >= 0) {
+            audioDecoder.releaseOutputBuffer(outputIndex, false);
+            outputIndex = -1;
+        }
+        outputBuffer = null;
+    }
+
+    /**
+     * 释放资源
+     */
+    public void release() {
+        if (audioDecoder != null) {
+            releaseOutput();
+            try {
+                audioDecoder.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();    // 还没有启动
+            }
+            audioDecoder.release();
+            audioDecoder = null;
+        }
+        if (mediaExtractor != null) {
+            mediaExtractor.release();
+            mediaExtractor = null;
+        }
+    }
+}
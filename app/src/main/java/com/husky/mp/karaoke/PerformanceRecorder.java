@@ -0,0 +1,544 @@
+package com.husky.mp.karaoke;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * 演唱录音（AAC，M4A）
+ * <p>
+ * 作为 MixBroadcast 的消费者接入混音输出（伴奏加人声）或麦克风输出（只有人声），
+ * 在自己的线程中用 MediaCodec 编码，MediaMuxer 写入文件。
+ * <p>
+ * 混音线程只负责发布，从不等待录音：编码器跟不上时录音线程在广播队列中落后，超过队列长度的块被丢弃，
+ * 所以内存占用只有广播队列和编码器自己的缓冲。丢弃的帧数和编码延迟（块发布到送入编码器的时间）可以随时查询。
+ * 丢弃的帧（以及拷贝过程中被覆盖的块）用同样长度的静音补上：MP4中的音频按顺序连续解码，只改时间戳并不能留出空白，
+ * 补静音后编码的长度与输出流经过的时间一致，之后的录音不会提前，与伴奏保持同步
+ * <p>
+ * 只录人声时可以设置对齐参考（setAlignment）：录音开头先保存在内存中，用 AudioAligner 测量人声相对参考晚了多少
+ * （输出延迟加输入延迟），测量可靠后去掉这段延迟再开始编码，录下的人声与伴奏对齐
+ */
+public class PerformanceRecorder {
+
+    private static final String TAG = "PerformanceRecorder";
+
+    public static final int DEFAULT_BIT_RATE = 128_000;
+
+    private static final long TIMEOUT_US = 10 * 1_000;  // 等待编码器输入输出缓冲的超时时间
+    private static final long READ_TIMEOUT_MS = 100;    // 等待混音数据的超时时间
+    private static final int SILENCE_FRAMES = 1024;     // 静音缓冲的帧数
+    private static final int ALIGN_HOLD_MS = 10_000;    // 对齐时最多先保存的录音长度
+    private static final int ALIGN_MAX_LAG_MS = 500;    // 最大搜索延迟
+    private static final int ALIGN_MIN_WINDOWS = 4;     // 测量可靠至少需要的窗口数
+    private static final float ALIGN_MIN_CONFIDENCE = 2f;
+
+    private final MixBroadcast source;
+    private final File output;
+    private final int bitRate;
+    private final int sampleRate;
+    private final int channels;
+    private final Handler mainHandler;
+    private final short[] silence;      // 补丢弃的帧用的静音，预先分配
+    private OnRecordListener onRecordListener;
+
+    private Thread thread;
+    private volatile boolean stopRequested = false;
+
+    // 统计
+    private volatile long recordedFrames = 0;   // 已送入编码器的帧数（包括补的静音）
+    private volatile long droppedFrames = 0;    // 落后太多被丢弃的帧数（用静音补上）
+    private volatile long encodeLagUs = 0;      // 最近一块的编码延迟
+    private volatile long maxEncodeLagUs = 0;
+
+    // 录音线程使用
+    private MediaCodec encoder;
+    private MediaMuxer muxer;
+    private int trackIndex = -1;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private long expectedFrame = -1;    // 下一块应该从哪一帧开始，用于统计丢弃的帧数
+
+    // 对齐（录音线程使用），对齐完成后 aligner 为null
+    private MixBroadcast reference;     // 对齐参考（原唱），null表示不对齐
+    private AudioAligner aligner;
+    private short[] held;               // 对齐前保存的录音
+    private int heldSize = 0;           // 采样数
+    private long fallbackOffsetFrames = 0;
+    private short[] referenceBlock;     // 最近读到的参考块
+    private long referencePosition = -1;
+    private volatile long alignOffsetFrames = 0;    // 去掉的延迟（帧）
+    private volatile boolean alignMeasured = false; // 延迟是否是测量得到的
+
+    /**
+     * @param source 混音输出或麦克风输出（见 KaraokeManager.getMixBroadcast / getMicBroadcast）
+     * @param output M4A文件
+     */
+    public PerformanceRecorder(MixBroadcast source, File output) {
+        this(source, output, DEFAULT_BIT_RATE);
+    }
+
+    /**
+     * @param source  混音输出或麦克风输出（见 KaraokeManager.getMixBroadcast / getMicBroadcast）
+     * @param output  M4A文件
+     * @param bitRate 码率
+     */
+    public PerformanceRecorder(MixBroadcast source, File output, int bitRate) {
+        this.source = source;
+        this.output = output;
+        this.bitRate = bitRate;
+        this.sampleRate = source.getSampleRate();
+        this.channels = source.getChannels();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.silence = new short[SILENCE_FRAMES * channels];
+    }
+
+    /**
+     * 设置录音结束回调（主线程回调）
+     *
+     * @param onRecordListener
+     */
+    public void setOnRecordListener(OnRecordListener onRecordListener) {
+        this.onRecordListener = onRecordListener;
+    }
+
+    /**
+     * 设置对齐参考，录制人声（麦克风输出）时去掉人声相对参考的延迟，开始录音前调用
+     * <p>
+     * 录音开头最多10秒先保存在内存中，测量可靠后从延迟之后开始编码；一直测不出来时（如前奏没有人声）按 fallbackOffsetFrames 处理
+     *
+     * @param reference            与录音同步发布的参考（见 KaraokeManager.getReferenceBroadcast）
+     * @param fallbackOffsetFrames 测不出来时使用的延迟（帧），如上次测量的结果
+     */
+    public void setAlignment(MixBroadcast reference, long fallbackOffsetFrames) {
+        this.reference = reference;
+        this.fallbackOffsetFrames = fallbackOffsetFrames;
+        this.aligner = new AudioAligner(sampleRate, reference.getChannels(), channels, ALIGN_MAX_LAG_MS);
+        this.held = new short[(int) ((long) sampleRate * ALIGN_HOLD_MS / 1000) * channels];
+    }
+
+    /**
+     * 对齐时去掉的延迟（帧），正数表示人声晚于参考
+     *
+     * @return
+     */
+    public long getAlignOffsetFrames() {
+        return alignOffsetFrames;
+    }
+
+    /**
+     * 对齐的延迟是否是这次测量得到的
+     *
+     * @return
+     */
+    public boolean isAlignMeasured() {
+        return alignMeasured;
+    }
+
+    /**
+     * 开始录音，从混音线程发布的下一块开始
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException("recorder already started");
+        }
+        // 在调用线程中接入，录音线程还没有运行时发布的块也不会漏掉
+        final MixBroadcast.Reader reader = source.attach(null);
+        final MixBroadcast.Reader referenceReader = reference == null ? null : reference.attach(null);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                record(reader, referenceReader);
+            }
+        }, "performanceRecorder");
+        thread.start();
+    }
+
+    /**
+     * 停止录音，不等待，文件写完后回调 OnRecordListener
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * 已录制的时长（微秒），包括丢弃的部分
+     *
+     * @return
+     */
+    public long getRecordedUs() {
+        return presentationTimeUs();
+    }
+
+    /**
+     * 编码跟不上被丢弃的帧数
+     *
+     * @return
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * 最近一块从发布到送入编码器的时间（微秒）
+     *
+     * @return
+     */
+    public long getEncodeLagUs() {
+        return encodeLagUs;
+    }
+
+    /**
+     * 最大编码延迟（微秒）
+     *
+     * @return
+     */
+    public long getMaxEncodeLagUs() {
+        return maxEncodeLagUs;
+    }
+
+    private void record(MixBroadcast.Reader reader, MixBroadcast.Reader referenceReader) {
+        IOException error = null;
+        try {
+            MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channels);
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+            muxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+
+            while (!stopRequested) {
+                short[] block;
+                try {
+                    block = reader.next(READ_TIMEOUT_MS);
+                } catch (InterruptedException e) {  // 当作停止，把已经录制的部分写完
+                    break;
+                }
+                if (block == null) {
+                    if (source.isClosed()) {    // 播放结束
+                        break;
+                    }
+                    drain(false);
+                    continue;
+                }
+                int size = reader.getSize();
+                long silenceFrames = onBlock(reader.getFramePosition(), size);
+
+                long lag = (System.nanoTime() - reader.getPublishNanos()) / 1_000;
+                encodeLagUs = lag;
+                if (lag > maxEncodeLagUs) {
+                    maxEncodeLagUs = lag;
+                }
+                if (aligner != null && heldSize + (silenceFrames * channels + size) > held.length) {
+                    finishAlignment(referenceReader);   // 保存的录音满了
+                }
+                if (aligner != null) {
+                    try {
+                        hold(reader, block, size, silenceFrames, referenceReader);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                } else {
+                    feedSilence(silenceFrames);
+                    feed(block, 0, size, reader);
+                }
+                drain(false);
+            }
+            if (aligner != null) {
+                finishAlignment(referenceReader);
+            }
+
+            // 送入结束标志，取出剩余的输出
+            int index;
+            while ((index = encoder.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            encoder.queueInputBuffer(index, 0, 0, presentationTimeUs(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+            if (trackIndex < 0) {
+                error = new IOException("nothing recorded: " + output);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {  // 编码器或封装器状态异常
+            error = new IOException("record failed: " + output, e);
+        } finally {
+            reader.detach();
+            if (referenceReader != null) {
+                referenceReader.detach();
+            }
+            release();
+        }
+
+        Log.d(TAG, "record finished: " + output + ", " + getRecordedUs() / 1000 + "ms, dropped frames = " + droppedFrames
+                + ", max encode lag = " + maxEncodeLagUs / 1000 + "ms");
+        if (error != null) {
+            Log.e(TAG, "record failed: " + output, error);
+            output.delete();
+        }
+        final IOException result = error;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (onRecordListener == null) {
+                    return;
+                }
+                if (result == null) {
+                    onRecordListener.onRecorded(output, getRecordedUs());
+                } else {
+                    onRecordListener.onFailed(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * 把一块送入编码器，一个输入缓冲放不下时分多次
+     *
+     * @param block
+     * @param offset
+     * @param size   采样数
+     * @param reader 块来自广播时检查是否被覆盖，可以为null
+     */
+    private void feed(short[] block, int offset, int size, MixBroadcast.Reader reader) {
+        size += offset;
+        while (offset < size) {
+            int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {    // 编码器忙，先取出输出，落后的部分由广播丢弃，不影响混音线程
+                drain(false);
+                continue;
+            }
+            ByteBuffer input = encoder.getInputBuffer(index);
+            input.clear();
+            int count = Math.min(size - offset, input.remaining() / 2);
+            count -= count % channels;
+            ShortBuffer samples = input.order(ByteOrder.nativeOrder()).asShortBuffer();
+            samples.put(block, offset, count);
+            if (reader != null && !reader.isValid()) {
+                // 拷贝过程中被混音线程覆盖，块中剩下的部分丢弃，用静音补上
+                samples.clear();
+                putSilence(samples, count);
+                encoder.queueInputBuffer(index, 0, count * 2, presentationTimeUs(), 0);
+                onFed(count);
+                droppedFrames += (size - offset) / channels;
+                feedSilence((size - offset - count) / channels);
+                return;
+            }
+            encoder.queueInputBuffer(index, 0, count * 2, presentationTimeUs(), 0);
+            onFed(count);
+            offset += count;
+        }
+    }
+
+    /**
+     * 送入静音（丢弃的帧），保持编码的长度与时间轴一致
+     *
+     * @param frames
+     */
+    private void feedSilence(long frames) {
+        while (frames > 0) {
+            int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+            if (index < 0) {
+                drain(false);
+                continue;
+            }
+            ByteBuffer input = encoder.getInputBuffer(index);
+            input.clear();
+            int count = (int) Math.min(frames * channels, input.remaining() / 2);
+            count -= count % channels;
+            putSilence(input.order(ByteOrder.nativeOrder()).asShortBuffer(), count);
+            encoder.queueInputBuffer(index, 0, count * 2, presentationTimeUs(), 0);
+            onFed(count);
+            frames -= count / channels;
+        }
+    }
+
+    private void putSilence(ShortBuffer samples, int count) {
+        while (count > 0) {
+            int chunk = Math.min(count, silence.length);
+            samples.put(silence, 0, chunk);
+            count -= chunk;
+        }
+    }
+
+    /**
+     * 对齐前保存一块（丢弃的帧补静音），与同一位置的参考块一起送入对齐器
+     *
+     * @param reader
+     * @param block
+     * @param size          采样数
+     * @param silenceFrames 本块之前丢弃的帧数
+     * @param referenceReader
+     * @throws InterruptedException
+     */
+    private void hold(MixBroadcast.Reader reader, short[] block, int size, long silenceFrames,
+                      MixBroadcast.Reader referenceReader) throws InterruptedException {
+        int silence = (int) silenceFrames * channels;
+        Arrays.fill(held, heldSize, heldSize + silence, (short) 0);
+        heldSize += silence;
+        System.arraycopy(block, 0, held, heldSize, size);
+        if (!reader.isValid()) {    // 拷贝过程中被覆盖
+            Arrays.fill(held, heldSize, heldSize + size, (short) 0);
+            droppedFrames += size / channels;
+        }
+        int start = heldSize;
+        heldSize += size;
+
+        // 参考与录音同时发布，位置相同的块一起送入，两路始终对齐；参考缺了这一块时跳过
+        long position = reader.getFramePosition();
+        while (referencePosition < position) {
+            short[] next = referenceReader.next(READ_TIMEOUT_MS);
+            if (next == null) {
+                break;
+            }
+            referenceBlock = next;
+            referencePosition = referenceReader.getFramePosition();
+        }
+        if (referencePosition == position && referenceReader.getSize() == size) {
+            aligner.pushReference(referenceBlock, 0, referenceReader.getSize());
+            aligner.pushRecording(held, start, size);
+        }
+        if (aligner.getWindowCount() >= ALIGN_MIN_WINDOWS && aligner.getConfidence() >= ALIGN_MIN_CONFIDENCE) {
+            finishAlignment(referenceReader);
+        }
+    }
+
+    /**
+     * 确定延迟，跳过保存的录音开头延迟的部分（人声早于参考时在前面补静音），把剩下的送入编码器
+     *
+     * @param referenceReader
+     */
+    private void finishAlignment(MixBroadcast.Reader referenceReader) {
+        boolean measured = aligner.getWindowCount() >= ALIGN_MIN_WINDOWS
+                && aligner.getConfidence() >= ALIGN_MIN_CONFIDENCE;
+        long offset = measured ? Math.round(aligner.getOffsetFrames()) : fallbackOffsetFrames;
+        alignOffsetFrames = offset;
+        alignMeasured = measured;
+        Log.d(TAG, "align offset = " + offset + " frames, measured = " + measured + ", windows = " + aligner.getWindowCount()
+                + ", confidence = " + aligner.getConfidence());
+        aligner = null;
+        referenceReader.detach();
+
+        if (offset < 0) {
+            feedSilence(-offset);
+        }
+        int skip = (int) Math.min(Math.max(offset, 0) * channels, heldSize);
+        feed(held, skip, heldSize - skip, null);
+        heldSize = 0;
+    }
+
+    /**
+     * 取出编码输出写入文件
+     *
+     * @param endOfStream 是否等到结束标志
+     */
+    private void drain(boolean endOfStream) {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(bufferInfo, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // 编码器输出格式里带有AAC配置信息，在写入第一帧之前添加轨道
+                trackIndex = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+            } else if (index >= 0) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    bufferInfo.size = 0;    // 已经包含在输出格式中
+                }
+                ByteBuffer data = encoder.getOutputBuffer(index);
+                if (bufferInfo.size > 0 && data != null && trackIndex >= 0) {
+                    data.position(bufferInfo.offset);
+                    data.limit(bufferInfo.offset + bufferInfo.size);
+                    muxer.writeSampleData(trackIndex, data, bufferInfo);
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 收到一块，统计与上一块之间被广播丢弃的帧
+     *
+     * @param framePosition 块第一帧在输出流中的位置
+     * @param size          采样数
+     * @return 丢弃的帧数，送入本块前先补同样长度的静音
+     */
+    long onBlock(long framePosition, int size) {
+        long dropped = 0;
+        if (expectedFrame >= 0 && framePosition > expectedFrame) {
+            dropped = framePosition - expectedFrame;
+            droppedFrames += dropped;
+        }
+        expectedFrame = framePosition + size / channels;
+        return dropped;
+    }
+
+    /**
+     * 送入编码器后调用（数据或静音）
+     *
+     * @param size 采样数
+     */
+    void onFed(int size) {
+        recordedFrames += size / channels;
+    }
+
+    /**
+     * 下一个送入编码器的采样的时间戳：已送入的帧数，丢弃的帧已经用静音补上
+     *
+     * @return
+     */
+    long presentationTimeUs() {
+        return recordedFrames * 1_000_000L / sampleRate;
+    }
+
+    private void release() {
+        if (encoder != null) {
+            try {
+                encoder.stop();
+            } catch (IllegalStateException e) {
+                // 没有启动成功
+            }
+            encoder.release();
+            encoder = null;
+        }
+        if (muxer != null) {
+            try {
+                if (trackIndex >= 0) {
+                    muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "muxer stop failed: " + output, e);
+            }
+            muxer.release();
+            muxer = null;
+        }
+    }
+
+    /**
+     * 录音结束回调
+     */
+    public interface OnRecordListener {
+        /**
+         * @param file
+         * @param durationUs 录制的时长
+         */
+        void onRecorded(File file, long durationUs);
+
+        void onFailed(IOException e);
+    }
+}
@@ -0,0 +1,100 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.PitchDetector;
+
+/**
+ * 演唱评分
+ * <p>
+ * 实时音高与参考旋律索引逐帧比较，每帧只做一次 O(1) 的查询，不再分析原唱。
+ * 只在参考有音高的帧计分，忽略八度差（男女声唱同一旋律），误差在半音以内得满分，超过两个半音不得分。
+ * 回调中不分配内存，分数等结果可以在任意线程读取
+ */
+public class PitchScorer implements PitchDetector.OnPitchListener {
+
+    private static final float FULL_SCORE_SEMITONES = 0.5f;    // 误差在该范围内得满分
+    private static final float ZERO_SCORE_SEMITONES = 2f;      // 误差超过该范围不得分
+
+    private final MelodyIndex melodyIndex;  // 参考旋律
+
+    private volatile long referenceFrames = 0;  // 参考有音高的帧数
+    private volatile float totalScore = 0;      // 得分之和
+    private volatile float lastReferenceMidi = 0;   // 最近一帧的参考音高
+    private volatile float lastSungMidi = 0;        // 最近一帧的演唱音高
+
+    public PitchScorer(MelodyIndex melodyIndex) {
+        this.melodyIndex = melodyIndex;
+    }
+
+    @Override
+    public void onPitch(long timeUs, float frequency, float confidence) {
+        float reference = melodyIndex.getMidiAt(timeUs);
+        lastReferenceMidi = reference;
+        lastSungMidi = PitchDetector.toMidi(frequency);
+        if (reference == 0) {   // 间奏等没有参考音高的地方不计分
+            return;
+        }
+        referenceFrames++;
+        if (lastSungMidi == 0) {
+            return;
+        }
+        float difference = lastSungMidi - reference;
+        difference -= 12 * Math.round(difference / 12);    // 忽略八度差
+        difference = Math.abs(difference);
+        if (difference <= FULL_SCORE_SEMITONES) {
+            totalScore += 1;
+        } else if (difference < ZERO_SCORE_SEMITONES) {
+            totalScore += (ZERO_SCORE_SEMITONES - difference) / (ZERO_SCORE_SEMITONES - FULL_SCORE_SEMITONES);
+        }
+    }
+
+    /**
+     * 重新开始计分
+     */
+    public void reset() {
+        referenceFrames = 0;
+        totalScore = 0;
+        lastReferenceMidi = 0;
+        lastSungMidi = 0;
+    }
+
+    /**
+     * 当前得分
+     *
+     * @return 0~100
+     */
+    public int getScore() {
+        long frames = referenceFrames;
+        return frames == 0 ? 0 : Math.round(totalScore * 100 / frames);
+    }
+
+    /**
+     * 已计分的帧数
+     *
+     * @return
+     */
+    public long getScoredFrames() {
+        return referenceFrames;
+    }
+
+    /**
+     * 最近一帧的参考音高（MIDI），0表示没有
+     *
+     * @return
+     */
+    public float getLastReferenceMidi() {
+        return lastReferenceMidi;
+    }
+
+    /**
+     * 最近一帧的演唱音高（MIDI），0表示没有
+     *
+     * @return
+     */
+    public float getLastSungMidi() {
+        return lastSungMidi;
+    }
+
+    public MelodyIndex getMelodyIndex() {
+        return melodyIndex;
+    }
+}
@@ -0,0 +1,125 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.PitchShifter;
+
+/**
+ * 变调音源，包装伴奏等文件音源
+ * <p>
+ * 混音器按块拉取时，先从变调器读取，不够时再从被包装的音源读取一块送入，所以变调器的延迟由提前读取抵消，
+ * 输出与原唱音轨对齐，帧数与输入完全一致（结束时补静音把剩下的输出冲出来），播放位置换算不受影响。
+ * 从未变调时直接读取，不经过处理
+ */
+public class PitchShiftSource implements MixSource {
+
+    private final MixSource source;
+    private final PitchShifter pitchShifter;
+    private final int channels;
+
+    private final short[] inShorts;     // 从音源读取的一块
+    private final float[] inFloats;
+    private float[] outFloats = new float[0];   // 按混音块大小分配一次
+    private int pendingOffset = 0;      // 还没送入变调器的输入（帧）
+    private int pendingFrames = 0;
+
+    private boolean processing = false; // 是否已经开始经过变调器
+    private boolean ended = false;      // 音源是否已经结束
+    private long inputFrames = 0;       // 从音源读取的帧数
+    private long outputFrames = 0;      // 输出的帧数
+
+    /**
+     * @param source       文件音源
+     * @param pitchShifter
+     * @param channels     声道数
+     * @param blockFrames  每次从音源读取的帧数，不超过变调器的 maxBlockFrames
+     */
+    public PitchShiftSource(MixSource source, PitchShifter pitchShifter, int channels, int blockFrames) {
+        this.source = source;
+        this.pitchShifter = pitchShifter;
+        this.channels = channels;
+        this.inShorts = new short[blockFrames * channels];
+        this.inFloats = new float[blockFrames * channels];
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) throws InterruptedException {
+        if (!processing) {
+            if (!pitchShifter.isActive()) { // 从未变调，直通
+                int count = source.read(buffer, offset, size);
+                if (count > 0) {
+                    inputFrames += count / channels;
+                    outputFrames += count / channels;
+                }
+                return count;
+            }
+            processing = true;
+        }
+
+        int frames = size / channels;
+        if (outFloats.length < frames * channels) {
+            outFloats = new float[frames * channels];
+        }
+        int produced = 0;
+        while (produced < frames) {
+            produced += pitchShifter.read(outFloats, produced * channels, frames - produced);
+            if (produced >= frames) {
+                break;
+            }
+            if (pendingFrames == 0) {
+                if (!ended) {
+                    int count = source.read(inShorts, 0, inShorts.length);
+                    if (count < 0) {
+                        ended = true;
+                    } else {
+                        for (int i = 0; i < count; i++) {
+                            inFloats[i] = inShorts[i];
+                        }
+                        pendingOffset = 0;
+                        pendingFrames = count / channels;
+                        inputFrames += pendingFrames;
+                    }
+                }
+                if (ended) {
+                    if (outputFrames + produced >= inputFrames) {   // 剩下的输出已经冲完
+                        break;
+                    }
+                    // 补静音把变调器中剩下的输出冲出来
+                    for (int i = 0; i < inFloats.length; i++) {
+                        inFloats[i] = 0;
+                    }
+                    pendingOffset = 0;
+                    pendingFrames = inFloats.length / channels;
+                }
+            }
+            int accepted = pitchShifter.write(inFloats, pendingOffset * channels, pendingFrames);
+            pendingOffset += accepted;
+            pendingFrames -= accepted;
+        }
+
+        if (ended) {    // 输出帧数与输入一致，丢掉多冲出来的部分
+            produced = (int) Math.min(produced, Math.max(0, inputFrames - outputFrames));
+            if (produced == 0) {
+                return -1;
+            }
+        }
+        outputFrames += produced;
+        for (int i = 0; i < produced * channels; i++) {
+            float value = outFloats[i];
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            buffer[offset + i] = (short) value;
+        }
+        return produced * channels;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    public PitchShifter getPitchShifter() {
+        return pitchShifter;
+    }
+}
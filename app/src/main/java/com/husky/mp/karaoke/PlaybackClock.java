@@ -0,0 +1,418 @@
+package com.husky.mp.karaoke;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 播放位置时钟
+ * <p>
+ * 写入线程（混音线程）每写入一块记录“输出帧 → 媒体位置”的对应关系（变速、限幅延迟都在媒体位置中体现），
+ * 并定期用 AudioTrack.getTimestamp（还没有时间戳时用 getPlaybackHeadPosition）校准：
+ * 时间戳给出某一时刻正在输出的帧，两次校准之间按采样率外推，小的误差逐步修正，大的误差（欠载、跳转）直接重新锚定。
+ * <p>
+ * 写入方法加锁（混音线程写入，主线程暂停恢复），读取不加锁：锚点用序号保护（写入时序号为奇数，读到奇数或前后不一致时重读），
+ * 对应关系放在环形数组中，查找后检查是否在读取期间被覆盖。外推的位置不超过已写入的数据，同一段播放中返回的位置不会后退，
+ * 只有播放到写入时标记的跳变处（A/B 循环回到A）才后退一次。
+ * <p>
+ * 界面通过 OnPositionListener 在主线程按屏幕刷新接收位置，暂停或数据播完后停止回调，写入新数据或恢复时重新开始
+ */
+public class PlaybackClock {
+
+    private static final int RING_SIZE = 256;       // 记录的写入块数（2的幂），需要覆盖播放器缓冲
+    private static final long MAX_SLEW_US = 20_000; // 误差超过该值直接重新锚定，否则逐步修正
+    private static final double SLEW_FACTOR = 0.25; // 每次校准修正误差的比例
+
+    private final int sampleRate;
+    private final double framesPerNano;
+
+    // 锚点：anchorNanos 时正在输出第 anchorFrame 帧（写入线程写，seq 保护）
+    private volatile int seq = 0;
+    private volatile double anchorFrame = 0;
+    private volatile long anchorNanos = 0;
+    private volatile boolean running = false;
+    private volatile boolean anchored = false;  // 是否已经有过校准
+
+    // 写入块的对应关系：第 i 块写完后输出 outputEnds[i] 帧，对应媒体位置 mediaEnds[i]
+    private final long[] outputEnds = new long[RING_SIZE];
+    private final long[] mediaEnds = new long[RING_SIZE];
+    private final int mask = RING_SIZE - 1;
+    private volatile long entries = 0;          // 已记录的块数
+    private volatile long segmentStart = 0;     // 本段（上次 flush 之后）第一条记录
+
+    private final AtomicLong lastPosition = new AtomicLong(0);  // 已返回的最大媒体位置（帧），保证不后退
+    private final AtomicLong jumpOutput = new AtomicLong(-1);   // 媒体位置后退的输出帧，-1表示没有
+
+    // 界面回调（主线程）
+    private volatile OnPositionListener[] listeners = new OnPositionListener[0];    // 写时复制
+    private final AtomicBoolean dispatching = new AtomicBoolean(false);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private long dispatchedPosition = -1;
+
+    /**
+     * @param sampleRate 输出采样率
+     */
+    public PlaybackClock(int sampleRate) {
+        this.sampleRate = sampleRate;
+        this.framesPerNano = sampleRate / 1e9;
+        append(0, 0);
+        segmentStart = 0;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 当前播放的媒体位置（微秒），任意线程调用，不加锁
+     *
+     * @return
+     */
+    public long getPositionUs() {
+        return getPositionFrames(System.nanoTime()) * 1_000_000L / sampleRate;
+    }
+
+    /**
+     * 指定时刻播放的媒体位置（帧）
+     *
+     * @param nowNanos System.nanoTime
+     * @return
+     */
+    public long getPositionFrames(long nowNanos) {
+        while (true) {
+            long last = lastPosition.get();
+            long position = estimate(nowNanos);
+            if (position < last) {
+                long jump = jumpOutput.get();
+                if (jump < 0 || playedFrames(nowNanos) < jump) {
+                    return last;
+                }
+                // 已经播放到跳变处，允许后退一次
+                if (lastPosition.compareAndSet(last, position)) {
+                    jumpOutput.compareAndSet(jump, -1);
+                    return position;
+                }
+                continue;
+            }
+            if (position == last) {
+                return last;
+            }
+            if (lastPosition.compareAndSet(last, position)) {
+                return position;
+            }
+            // 同时有其他线程更新或 flush，重新计算
+        }
+    }
+
+    /**
+     * 已写入但还没有播放的时长（微秒）
+     *
+     * @return
+     */
+    public long getBufferedUs() {
+        long buffered = getWrittenFrames() - (long) playedFrames(System.nanoTime());
+        return Math.max(0, buffered) * 1_000_000L / sampleRate;
+    }
+
+    /**
+     * 已写入的数据在指定时刻之前播完了多久，用于测量欠载造成的间隙
+     *
+     * @param nowNanos System.nanoTime
+     * @return 纳秒，还没有播完或没有在播放时为0
+     */
+    public long getStarvedNanos(long nowNanos) {
+        while (true) {
+            int s = seq;
+            if ((s & 1) != 0) {
+                continue;
+            }
+            double frame = anchorFrame;
+            long nanos = anchorNanos;
+            boolean run = running && anchored;
+            if (seq != s) {
+                continue;
+            }
+            if (!run) {
+                return 0;
+            }
+            long drainNanos = nanos + (long) ((getWrittenFrames() - frame) / framesPerNano);
+            return Math.max(0, nowNanos - drainNanos);
+        }
+    }
+
+    /**
+     * 写入播放器的总帧数（本段）
+     *
+     * @return
+     */
+    public long getWrittenFrames() {
+        while (true) {
+            long count = entries;
+            long written = outputEnds[(int) (count - 1) & mask];
+            if (entries == count) {
+                return written;
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // ---------------- 写入线程调用 ----------------
+
+    /**
+     * 写入一块后调用
+     *
+     * @param outputFrames 写入后累计写入播放器的帧数
+     * @param mediaFrames  写入的最后一帧之后的媒体位置（帧）
+     * @param nowNanos
+     */
+    synchronized void onWritten(long outputFrames, long mediaFrames, long nowNanos) {
+        long written = getWrittenFrames();
+        if (running && anchored && playedFrames(nowNanos) >= written) {
+            // 写入前数据已经播完（欠载或刚恢复），新数据从现在开始播放
+            setAnchor(written, nowNanos, true);
+        }
+        append(outputFrames, mediaFrames);
+        if (!anchored) {    // 第一块或 flush 后，从现在开始计时
+            setAnchor(written, nowNanos, true);
+        }
+        startDispatch();
+    }
+
+    /**
+     * 写入的数据中媒体位置跳变（A/B 循环回到A），在写入该块的 onWritten 之前调用：
+     * 跳变处记录前后两条对应关系，之前的数据按跳变前的位置插值，之后的按跳变后的位置插值
+     *
+     * @param outputFrames 跳变处的输出帧（不超过该块写入后的输出帧数）
+     * @param fromMedia    跳变前的媒体位置
+     * @param toMedia      跳变后的媒体位置
+     */
+    synchronized void onJump(long outputFrames, long fromMedia, long toMedia) {
+        append(outputFrames, fromMedia);
+        append(outputFrames, toMedia);
+        if (toMedia < fromMedia) {
+            jumpOutput.set(outputFrames);
+        }
+    }
+
+    /**
+     * 用播放器报告的输出位置校准
+     *
+     * @param framePosition 正在输出的帧
+     * @param frameNanos    输出该帧的时刻
+     * @param precise       是否是时间戳（播放头位置的误差较大，也会逐步修正）
+     */
+    synchronized void onTimestamp(long framePosition, long frameNanos, boolean precise) {
+        if (!running) {
+            return;
+        }
+        if (!anchored) {
+            setAnchor(framePosition, frameNanos, true);
+            return;
+        }
+        double predicted = anchorFrame + (frameNanos - anchorNanos) * framesPerNano;
+        double error = framePosition - predicted;
+        if (Math.abs(error) > MAX_SLEW_US * sampleRate / 1_000_000.0 && precise) {
+            setAnchor(framePosition, frameNanos, true);
+        } else {
+            setAnchor(predicted + error * SLEW_FACTOR, frameNanos, true);
+        }
+    }
+
+    /**
+     * 播放器暂停，位置停在当前帧
+     *
+     * @param nowNanos
+     */
+    synchronized void pause(long nowNanos) {
+        if (running) {
+            setAnchor(playedFrames(nowNanos), nowNanos, false);
+        }
+    }
+
+    /**
+     * 播放器恢复，从暂停的帧继续
+     *
+     * @param nowNanos
+     */
+    synchronized void resume(long nowNanos) {
+        if (!running && anchored) {
+            setAnchor(anchorFrame, nowNanos, true);
+            startDispatch();
+        }
+    }
+
+    /**
+     * 丢弃已写入的数据（播放器 flush 或跳转），输出帧重新从0开始
+     *
+     * @param mediaFrames 之后写入的数据开始的媒体位置
+     */
+    synchronized void flush(long mediaFrames) {
+        seq++;
+        anchorFrame = 0;
+        anchored = false;
+        seq++;
+        segmentStart = entries;
+        append(0, mediaFrames);
+        lastPosition.set(mediaFrames);  // 跳转后允许后退
+        jumpOutput.set(-1);
+    }
+
+    private void append(long outputFrames, long mediaFrames) {
+        long index = entries;
+        outputEnds[(int) index & mask] = outputFrames;
+        mediaEnds[(int) index & mask] = mediaFrames;
+        entries = index + 1;
+    }
+
+    private void setAnchor(double frame, long nanos, boolean run) {
+        seq++;  // 奇数：正在写入
+        anchorFrame = frame;
+        anchorNanos = nanos;
+        running = run;
+        anchored = true;
+        seq++;
+    }
+
+    // ---------------- 读取 ----------------
+
+    /**
+     * 正在输出的帧（本段），不超过已写入的帧数
+     */
+    private double playedFrames(long nowNanos) {
+        while (true) {
+            int s = seq;
+            if ((s & 1) != 0) {
+                continue;
+            }
+            double frame = anchorFrame;
+            long nanos = anchorNanos;
+            boolean run = running && anchored;
+            if (seq != s) {
+                continue;
+            }
+            if (run && nowNanos > nanos) {
+                frame += (nowNanos - nanos) * framesPerNano;
+            }
+            return Math.max(0, Math.min(frame, getWrittenFrames()));
+        }
+    }
+
+    /**
+     * 输出帧换算成媒体位置：在记录中二分查找所在的块，块内线性插值
+     */
+    private long estimate(long nowNanos) {
+        while (true) {
+            double played = playedFrames(nowNanos);
+            long count = entries;
+            // 写入线程正在写的记录会覆盖 count - RING_SIZE，不使用
+            long first = Math.max(segmentStart, count - RING_SIZE + 1);
+            if (first >= count) {   // flush 进行中
+                continue;
+            }
+            long low = first;
+            long high = count - 1;
+            while (low < high) {    // 最后一个 outputEnd <= played 的记录
+                long mid = (low + high + 1) >>> 1;
+                if (outputEnds[(int) mid & mask] <= played) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            int index = (int) low & mask;
+            double position = mediaEnds[index];
+            if (low < count - 1) {
+                int next = (int) (low + 1) & mask;
+                long outputs = outputEnds[next] - outputEnds[index];
+                if (outputs > 0) {
+                    position += (played - outputEnds[index]) * (mediaEnds[next] - mediaEnds[index]) / outputs;
+                }
+            }
+            if (entries - RING_SIZE < first && segmentStart <= first) {  // 读取期间没有被覆盖
+                return (long) position;
+            }
+        }
+    }
+
+    // ---------------- 界面回调 ----------------
+
+    /**
+     * 添加位置回调，播放时在主线程每帧回调一次（位置变化时）
+     *
+     * @param listener
+     */
+    public synchronized void addOnPositionListener(OnPositionListener listener) {
+        OnPositionListener[] current = listeners;
+        OnPositionListener[] updated = new OnPositionListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+        dispatchedPosition = -1;
+        startDispatch();
+    }
+
+    public synchronized void removeOnPositionListener(OnPositionListener listener) {
+        OnPositionListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                OnPositionListener[] updated = new OnPositionListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    // 没有在回调时开始（任意线程），已经在回调时什么也不做
+    private void startDispatch() {
+        if (listeners.length > 0 && dispatching.compareAndSet(false, true)) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Choreographer.getInstance().postFrameCallback(frameCallback);
+                }
+            });
+        }
+    }
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            OnPositionListener[] current = listeners;
+            long now = System.nanoTime();
+            long position = getPositionFrames(now);
+            if (position != dispatchedPosition) {
+                dispatchedPosition = position;
+                long positionUs = position * 1_000_000L / sampleRate;
+                for (OnPositionListener listener : current) {
+                    listener.onPosition(positionUs);
+                }
+            } else if (current.length == 0 || !running || playedFrames(now) >= getWrittenFrames()) {
+                // 位置不再变化，等写入新数据或恢复时再开始
+                dispatching.set(false);
+                if (running && playedFrames(System.nanoTime()) < getWrittenFrames()) {
+                    startDispatch();    // 停止期间又写入了数据
+                }
+                return;
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    /**
+     * 播放位置回调接口（主线程）
+     */
+    public interface OnPositionListener {
+        /**
+         * @param positionUs 媒体位置（微秒）
+         */
+        void onPosition(long positionUs);
+    }
+}
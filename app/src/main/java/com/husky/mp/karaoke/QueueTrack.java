@@ -0,0 +1,218 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.Resampler;
+
+import java.io.IOException;
+
+/**
+ * 播放队列中的一首歌
+ * <p>
+ * 创建时打开解复用器和解码器并预先解码第一块（解码器启动、输出格式变化都在这时完成），
+ * 接上前一首时可以马上读取。格式与播放器不同时转换声道并重采样，同一个 AudioTrack 可以连续播放整个队列。
+ * 编码器延迟和填充由解码器按轨道格式中的 encoder-delay / encoder-padding 处理
+ */
+class QueueTrack implements MixSource {
+
+    private static final int MAX_CHANNELS = 8;
+
+    private final MediaInput input;
+    private Decoder decoder;
+
+    // 解码输出（源格式）
+    private final short[] raw;
+    private int rawCount = 0;
+    private int rawPosition = 0;
+    private boolean decodeEnded = false;
+    private final int sampleRate;
+    private final int channelCount;
+
+    // 格式转换，格式一致时为null
+    private Resampler resampler;
+    private int outChannels;
+    private float[] convertIn;
+    private float[] convertOut;
+    private short[] convertRaw;
+    private boolean flushed = false;    // 结束时是否已经补过静音把重采样器中剩下的输出冲出来
+
+    /**
+     * @param input
+     * @param maxFrames 每次读取的最大帧数
+     * @throws IOException
+     */
+    QueueTrack(MediaInput input, int maxFrames) throws IOException {
+        this(input, new PcmDecoder(input), maxFrames);
+    }
+
+    /**
+     * @param input
+     * @param decoder   已打开的解码器，之后由 QueueTrack 释放
+     * @param maxFrames 每次读取的最大帧数
+     * @throws IOException
+     */
+    QueueTrack(MediaInput input, Decoder decoder, int maxFrames) throws IOException {
+        this.input = input;
+        this.decoder = decoder;
+        this.raw = new short[maxFrames * MAX_CHANNELS];
+        // 预先解码第一块，解码器的输出格式在第一块之前确定
+        int count = decoder.read(raw, 0, maxFrames * decoder.getChannelCount());
+        if (count < 0) {
+            release();
+            throw new IOException("no audio data: " + input);
+        }
+        rawCount = count;
+        sampleRate = decoder.getSampleRate();
+        channelCount = decoder.getChannelCount();
+        outChannels = channelCount;
+    }
+
+    MediaInput getInput() {
+        return input;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    long getDurationUs() {
+        return decoder == null ? 0 : decoder.getDurationUs();
+    }
+
+    /**
+     * 设置输出格式，与源格式不同时转换
+     *
+     * @param outSampleRate
+     * @param outChannelCount
+     */
+    void setOutputFormat(int outSampleRate, int outChannelCount) {
+        outChannels = outChannelCount;
+        if (outSampleRate == sampleRate && outChannelCount == channelCount) {
+            resampler = null;
+            return;
+        }
+        int frames = raw.length / MAX_CHANNELS;
+        resampler = new Resampler(outChannelCount, frames * 2);
+        resampler.setRatio((double) sampleRate / outSampleRate);
+        convertRaw = new short[frames * channelCount];
+        convertIn = new float[frames * outChannelCount];
+        convertOut = new float[frames * outChannelCount];
+    }
+
+    /**
+     * 按输出格式读取
+     */
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        if (resampler == null) {
+            return readRaw(buffer, offset, size);
+        }
+        int frames = size / outChannels;
+        int produced = 0;
+        while (produced < frames) {
+            int count = resampler.read(convertOut, 0, Math.min(frames - produced, convertOut.length / outChannels));
+            if (count > 0) {
+                int base = offset + produced * outChannels;
+                for (int i = 0; i < count * outChannels; i++) {
+                    float value = convertOut[i] * 32768f;
+                    buffer[base + i] = (short) Math.max(-32768, Math.min(32767, value));
+                }
+                produced += count;
+                continue;
+            }
+            int free = Math.min(resampler.getFreeFrames(), convertRaw.length / channelCount);
+            int read = readRaw(convertRaw, 0, free * channelCount);
+            if (read < 0) {
+                if (flushed) {
+                    break;
+                }
+                flushed = true;
+                for (int i = 0; i < 4 * outChannels; i++) {   // 插值需要后面两帧
+                    convertIn[i] = 0;
+                }
+                resampler.write(convertIn, 0, 4);
+                continue;
+            }
+            int inFrames = read / channelCount;
+            mapChannels(convertRaw, inFrames, convertIn);
+            resampler.write(convertIn, 0, inFrames);
+        }
+        return produced == 0 && flushed ? -1 : produced * outChannels;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    // 源声道转换成输出声道，单声道输出时取平均
+    private void mapChannels(short[] in, int frames, float[] out) {
+        for (int f = 0; f < frames; f++) {
+            int src = f * channelCount;
+            int dst = f * outChannels;
+            if (outChannels == 1) {
+                float sum = 0;
+                for (int c = 0; c < channelCount; c++) {
+                    sum += in[src + c];
+                }
+                out[dst] = sum / channelCount / 32768f;
+            } else {
+                for (int c = 0; c < outChannels; c++) {
+                    out[dst + c] = in[src + c % channelCount] / 32768f;
+                }
+            }
+        }
+    }
+
+    // 源格式的解码数据，先读预解码的部分
+    private int readRaw(short[] buffer, int offset, int size) {
+        int read = 0;
+        while (read < size) {
+            if (rawPosition < rawCount) {
+                int count = Math.min(size - read, rawCount - rawPosition);
+                System.arraycopy(raw, rawPosition, buffer, offset + read, count);
+                rawPosition += count;
+                read += count;
+                continue;
+            }
+            if (decodeEnded) {
+                break;
+            }
+            int count = decoder.read(raw, 0, raw.length / MAX_CHANNELS * channelCount);
+            if (count <= 0) {
+                decodeEnded = true;
+                break;
+            }
+            rawCount = count;
+            rawPosition = 0;
+        }
+        return read == 0 && decodeEnded ? -1 : read;
+    }
+
+    /**
+     * 释放解码器
+     */
+    void release() {
+        if (decoder != null) {
+            decoder.release();
+            decoder = null;
+        }
+    }
+
+    /**
+     * 解码器（PcmDecoder），测试时替换
+     */
+    interface Decoder {
+        int read(short[] buffer, int offset, int size);
+
+        int getSampleRate();
+
+        int getChannelCount();
+
+        long getDurationUs();
+
+        void release();
+    }
+}
@@ -0,0 +1,242 @@
+package com.husky.mp.karaoke;
+
+import android.os.Process;
+
+import com.husky.mp.karaoke.dsp.FFT;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 频谱可视化数据
+ * <p>
+ * 混音线程把混合后的输出（合成单声道）写入单生产者单消费者的环形缓冲，只拷贝数据，不等待；
+ * 分析线程约每秒30次取最近的 FFT_SIZE 个采样，加Hann窗做FFT，按对数间隔合并成若干频段（0~1），
+ * 通过三缓冲交给界面：分析线程写后缓冲后与中间缓冲交换，界面读取时有新数据才与中间缓冲交换，双方都不加锁、不等待。
+ * <p>
+ * 没有订阅时混音线程只读一个 volatile 变量，分析线程不运行
+ */
+public class SpectrumTap {
+
+    public static final int FFT_SIZE = 2048;
+    private static final int RING_SIZE = 8192;      // 环形缓冲大小（2的幂）
+    private static final long FRAME_INTERVAL_MS = 33;   // 约30帧每秒
+    private static final float MIN_FREQUENCY = 40f;     // 最低频段的下限
+    private static final float MAX_FREQUENCY = 16000f;  // 最高频段的上限
+    private static final float FLOOR_DB = -70f;         // 显示范围
+    private static final float FALL_PER_FRAME = 0.03f;  // 频段下降速度（每帧），上升不限
+
+    private static final int DIRTY = 4;     // 中间缓冲有新数据
+
+    private final int bandCount;
+
+    // 混音线程写入
+    private final float[] ring = new float[RING_SIZE];
+    private final int mask = RING_SIZE - 1;
+    private volatile long writePosition = 0;
+    private volatile boolean subscribed = false;
+    private volatile int sampleRate = 44100;
+    private volatile int channels = 2;
+
+    // 分析线程使用
+    private Thread thread;              // 取消订阅后保留到下次订阅时等待它退出
+    private final FFT fft = new FFT(FFT_SIZE);
+    private final float[] window = FFT.hann(FFT_SIZE);
+    private final float[] re = new float[FFT_SIZE];
+    private final float[] im = new float[FFT_SIZE];
+    private final float[] levels;       // 平滑后的频段值
+    private final int[] bandEdges;      // 各频段的起始频点
+    private int edgesRate = 0;          // bandEdges 对应的采样率
+    private long lastAnalyzed = -1;     // 上次分析时的写入位置
+
+    // 三缓冲
+    private final float[][] buffers;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;   // 分析线程
+    private int front = 2;  // 界面线程
+    private volatile long frameCount = 0;   // 已发布的帧数
+    private int subscribers = 0;
+
+    /**
+     * @param bandCount 频段数
+     */
+    public SpectrumTap(int bandCount) {
+        this.bandCount = bandCount;
+        this.levels = new float[bandCount];
+        this.bandEdges = new int[bandCount + 1];
+        this.buffers = new float[3][bandCount];
+    }
+
+    /**
+     * 设置数据格式（准备就绪后调用）
+     *
+     * @param sampleRate
+     * @param channels
+     */
+    public void setFormat(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * 写入混合后的输出（混音线程调用），没有订阅时直接返回
+     *
+     * @param mix  交错浮点采样
+     * @param size 采样数
+     */
+    public void write(float[] mix, int size) {
+        if (!subscribed) {
+            return;
+        }
+        int ch = channels;
+        float scale = 1f / ch;
+        long position = writePosition;
+        for (int i = 0; i + ch <= size; i += ch) {
+            float sum = 0;
+            for (int c = 0; c < ch; c++) {
+                sum += mix[i + c];
+            }
+            ring[(int) position & mask] = sum * scale;
+            position++;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * 开始接收频谱（界面线程调用），可以多次订阅，全部取消后停止分析
+     */
+    public synchronized void subscribe() {
+        if (subscribers++ > 0) {
+            return;
+        }
+        // 上次取消订阅时分析线程可能还在分析最后一帧，等它退出，分析用的缓冲不会被两个线程同时使用
+        joinThread();
+        subscribed = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                while (!Thread.currentThread().isInterrupted()) {
+                    analyze();
+                    try {
+                        Thread.sleep(FRAME_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }, "spectrumTap");
+        thread.start();
+    }
+
+    /**
+     * 取消订阅，不等待分析线程退出
+     */
+    public synchronized void unsubscribe() {
+        if (subscribers == 0 || --subscribers > 0) {
+            return;
+        }
+        subscribed = false;
+        thread.interrupt();
+    }
+
+    private void joinThread() {
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        thread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 最新的频段值（界面线程调用，例如在 onDraw 中），有新数据时才交换缓冲，不分配内存
+     *
+     * @return 各频段 0~1，下次调用前有效
+     */
+    public float[] read() {
+        if ((middle.get() & DIRTY) != 0) {
+            front = middle.getAndSet(front) & 3;
+        }
+        return buffers[front];
+    }
+
+    /**
+     * 已发布的帧数，界面可以据此判断是否需要重绘
+     *
+     * @return
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * 分析最近的数据并发布一帧（分析线程调用）
+     *
+     * @return 是否发布了新的一帧
+     */
+    boolean analyze() {
+        long end = writePosition;
+        if (end < FFT_SIZE || end == lastAnalyzed) {    // 数据不够或没有新数据（暂停）
+            return false;
+        }
+        lastAnalyzed = end;
+        long start = end - FFT_SIZE;
+        for (int i = 0; i < FFT_SIZE; i++) {
+            re[i] = ring[(int) (start + i) & mask] * window[i];
+            im[i] = 0;
+        }
+        if (writePosition - start > RING_SIZE) {    // 拷贝过程中被覆盖，放弃这一帧
+            return false;
+        }
+        fft.forward(re, im);
+
+        int rate = sampleRate;
+        if (rate != edgesRate) {
+            computeEdges(rate);
+        }
+        float[] out = buffers[back];
+        // 满幅正弦波在加Hann窗后的幅度为 FFT_SIZE/4
+        float reference = FFT_SIZE / 4f;
+        for (int b = 0; b < bandCount; b++) {
+            float peak = 0;
+            for (int k = bandEdges[b]; k < bandEdges[b + 1]; k++) {
+                peak = Math.max(peak, re[k] * re[k] + im[k] * im[k]);
+            }
+            float db = (float) (10 * Math.log10(peak / (reference * reference) + 1e-12));
+            float level = Math.max(0, Math.min(1, 1 - db / FLOOR_DB));
+            levels[b] = Math.max(level, levels[b] - FALL_PER_FRAME);
+            out[b] = levels[b];
+        }
+        back = middle.getAndSet(back | DIRTY) & 3;
+        frameCount++;
+        return true;
+    }
+
+    // 按对数间隔划分频段，每个频段至少一个频点
+    private void computeEdges(int rate) {
+        edgesRate = rate;
+        float maxFrequency = Math.min(MAX_FREQUENCY, rate / 2f);
+        double ratio = Math.pow(maxFrequency / MIN_FREQUENCY, 1.0 / bandCount);
+        int previous = Math.max(1, Math.round(MIN_FREQUENCY * FFT_SIZE / rate));
+        bandEdges[0] = previous;
+        for (int b = 1; b <= bandCount; b++) {
+            int bin = (int) Math.round(MIN_FREQUENCY * Math.pow(ratio, b) * FFT_SIZE / rate);
+            previous = Math.min(FFT_SIZE / 2, Math.max(previous + 1, bin));
+            bandEdges[b] = previous;
+        }
+    }
+}
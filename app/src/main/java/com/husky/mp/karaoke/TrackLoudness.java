@@ -0,0 +1,110 @@
+package com.husky.mp.karaoke;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 单曲响度（见 LoudnessScanner），用于播放时的响度归一化
+ */
+public class TrackLoudness {
+
+    private static final int MAGIC = 0x484C4F55;    // "HLOU"
+    private static final int VERSION = 1;           // 分析算法或格式变化时加1，旧缓存失效
+
+    public static final float DEFAULT_TARGET_LUFS = -16f;   // 默认目标响度（移动端常用）
+    private static final float MAX_BOOST_DB = 12f;          // 最多提升的增益
+
+    private final float integratedLufs; // 综合响度，没有有效内容时为负无穷
+    private final float truePeak;       // 真峰值（线性）
+    private final long durationUs;      // 时长
+
+    public TrackLoudness(float integratedLufs, float truePeak, long durationUs) {
+        this.integratedLufs = integratedLufs;
+        this.truePeak = truePeak;
+        this.durationUs = durationUs;
+    }
+
+    public float getIntegratedLufs() {
+        return integratedLufs;
+    }
+
+    public float getTruePeak() {
+        return truePeak;
+    }
+
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    /**
+     * 归一化增益：调整到目标响度，最多提升 MAX_BOOST_DB，并且提升后真峰值不超过满幅（不靠限幅器压峰值）
+     *
+     * @param targetLufs 目标响度
+     * @return 线性增益
+     */
+    public float getNormalizationGain(float targetLufs) {
+        if (Float.isInfinite(integratedLufs) || Float.isNaN(integratedLufs)) {
+            return 1;
+        }
+        float gainDb = Math.min(MAX_BOOST_DB, targetLufs - integratedLufs);
+        float gain = (float) Math.pow(10, gainDb / 20);
+        if (gain > 1 && truePeak > 0) {
+            gain = Math.max(1, Math.min(gain, 1 / truePeak));
+        }
+        return gain;
+    }
+
+    /**
+     * 写入文件（先写临时文件再改名，写入中断不会留下不完整的文件）
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeFloat(integratedLufs);
+            out.writeFloat(truePeak);
+            out.writeLong(durationUs);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 从文件读取
+     *
+     * @param file
+     * @return
+     * @throws IOException 文件损坏或版本不一致
+     */
+    public static TrackLoudness read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported loudness: " + file);
+            }
+            return new TrackLoudness(in.readFloat(), in.readFloat(), in.readLong());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TrackLoudness{" + integratedLufs + " LUFS, true peak " + truePeak + "}";
+    }
+}
@@ -0,0 +1,70 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.VocalRemover;
+
+/**
+ * 消除人声的音源，从立体声原唱实时得到伴奏
+ * <p>
+ * 包装另一个音源，读取后原地消除人声。频谱模式有一个窗口的延迟，开始时先多读这么多数据并丢弃输出，
+ * 结束时补同样多的静音把剩下的输出冲出来，所以输出与原唱时间完全对齐，可以和原唱音轨一起切换
+ */
+public class VocalRemovalSource implements MixSource {
+
+    private final MixSource source;     // 立体声原唱
+    private final VocalRemover vocalRemover;
+    private final short[] primeBuffer;  // 开始时丢弃延迟部分用
+    private boolean primed = false;
+    private int flushRemaining;         // 结束时还需要补的静音采样数
+
+    /**
+     * @param source       立体声音源
+     * @param vocalRemover
+     */
+    public VocalRemovalSource(MixSource source, VocalRemover vocalRemover) {
+        this.source = source;
+        this.vocalRemover = vocalRemover;
+        int latency = vocalRemover.getLatencyFrames() * 2;
+        this.primeBuffer = new short[latency];
+        this.flushRemaining = latency;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) throws InterruptedException {
+        if (!primed) {
+            primed = true;
+            int primedSize = 0;
+            while (primedSize < primeBuffer.length) {
+                int count = source.read(primeBuffer, primedSize, primeBuffer.length - primedSize);
+                if (count < 0) {    // 比延迟还短，剩下的补静音
+                    break;
+                }
+                primedSize += count;
+            }
+            vocalRemover.process(primeBuffer, 0, primedSize);
+            flushRemaining = primedSize;
+        }
+
+        int count = source.read(buffer, offset, size);
+        if (count < 0) {
+            if (flushRemaining <= 0) {
+                return -1;
+            }
+            count = Math.min(size, flushRemaining);
+            for (int i = offset; i < offset + count; i++) {
+                buffer[i] = 0;
+            }
+            flushRemaining -= count;
+        }
+        vocalRemover.process(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    public VocalRemover getVocalRemover() {
+        return vocalRemover;
+    }
+}
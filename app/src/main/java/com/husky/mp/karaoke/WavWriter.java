@@ -0,0 +1,108 @@
+package com.husky.mp.karaoke;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * 写入16位PCM的WAV文件，MediaExtractor可以直接播放
+ * 数据长度在关闭时回填到文件头
+ */
+public class WavWriter {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final File file;
+    private final int sampleRate;
+    private final int channelCount;
+    private final OutputStream out;
+    private final byte[] bytes = new byte[8192];    // 转换缓冲
+    private long dataSize = 0;
+
+    public WavWriter(File file, int sampleRate, int channelCount) throws IOException {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        out.write(header(0));   // 先占位
+    }
+
+    /**
+     * 写入交错采样
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数
+     * @throws IOException
+     */
+    public void write(short[] buffer, int offset, int size) throws IOException {
+        while (size > 0) {
+            int count = Math.min(size, bytes.length / 2);
+            for (int i = 0; i < count; i++) {   // 小端
+                short sample = buffer[offset + i];
+                bytes[i * 2] = (byte) sample;
+                bytes[i * 2 + 1] = (byte) (sample >> 8);
+            }
+            out.write(bytes, 0, count * 2);
+            dataSize += count * 2;
+            offset += count;
+            size -= count;
+        }
+    }
+
+    /**
+     * 关闭并回填文件头
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        out.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(0);
+            raf.write(header(dataSize));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] header(long dataSize) {
+        int byteRate = sampleRate * channelCount * 2;
+        byte[] header = new byte[HEADER_SIZE];
+        putString(header, 0, "RIFF");
+        putInt(header, 4, (int) (dataSize + HEADER_SIZE - 8));
+        putString(header, 8, "WAVE");
+        putString(header, 12, "fmt ");
+        putInt(header, 16, 16);     // fmt块大小
+        putShort(header, 20, 1);    // PCM
+        putShort(header, 22, channelCount);
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, byteRate);
+        putShort(header, 32, channelCount * 2);
+        putShort(header, 34, 16);
+        putString(header, 36, "data");
+        putInt(header, 40, (int) dataSize);
+        return header;
+    }
+
+    private static void putString(byte[] bytes, int offset, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            bytes[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+    }
+}
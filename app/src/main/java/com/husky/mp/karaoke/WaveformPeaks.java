@@ -0,0 +1,300 @@
+package com.husky.mp.karaoke;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 多分辨率波形峰值（绘制波形用）
+ * <p>
+ * 第0层每 FRAMES_PER_PEAK 帧记录一对最小值/最大值（各声道合并，8位精度），往上每层合并相邻两项，直到只剩一项，
+ * 整个金字塔约为第0层的两倍，4分钟的歌约160KB。任意缩放比例都选每项不超过每像素帧数的最粗一层，
+ * 每个像素最多合并3项，绘制耗时只与像素数有关。
+ * <p>
+ * 数据放在内存映射文件中：首次播放时边解码边写入（见 WaveformTapSource），已完成的项数写在文件头，
+ * 界面可以同时读取已经完成的部分；之后直接映射文件，不需要再解码。
+ * 写入只在一个线程中进行，读取可以在任意线程
+ */
+public class WaveformPeaks {
+
+    public static final String KIND = "peaks";  // 文件扩展名
+
+    public static final int FRAMES_PER_PEAK = 256;  // 第0层每项的帧数
+
+    private static final int MAGIC = 0x48504B53;    // "HPKS"
+    private static final int VERSION = 1;           // 格式变化时加1，旧文件重新生成
+    private static final int HEADER_SIZE = 32;
+    private static final int BUILT_OFFSET = 24;     // 文件头中已完成项数的位置
+    private static final int COMPLETE_OFFSET = 28;  // 文件头中是否完成的位置
+    private static final long DEFAULT_DURATION_US = 10 * 60 * 1_000_000L;  // 时长未知时预留10分钟
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int sampleRate;
+    private final int capacity;         // 第0层项数
+    private final int[] levelOffsets;   // 各层在文件中的偏移
+    private final int[] levelSizes;     // 各层项数
+
+    private volatile int builtEntries;  // 第0层已完成的项数（可能包含最后一项的一部分）
+    private volatile boolean complete;  // 是否已经写完整首歌
+
+    // 写入状态（写入线程使用）
+    private int entry = 0;          // 正在写入的第0层项
+    private int entryFrames = 0;    // 该项已有的帧数
+    private int entryMin = 127;
+    private int entryMax = -128;
+
+    /**
+     * 峰值文件的位置：文件媒体放在媒体旁边（目录可写时），否则放在分析缓存中
+     *
+     * @param input
+     * @param cache
+     * @return
+     */
+    public static File getFile(MediaInput input, AnalysisCache cache) {
+        if (input instanceof MediaInput.PathInput) {
+            File media = new File(input.getName());
+            File parent = media.getParentFile();
+            if (parent != null && parent.canWrite()) {
+                return new File(media.getPath() + "." + KIND);
+            }
+        }
+        return cache.getFile(input, KIND);
+    }
+
+    /**
+     * 打开峰值文件，不存在或与媒体不一致（缓存键、采样率不同）时重新创建
+     *
+     * @param file
+     * @param input      媒体
+     * @param sampleRate 采样率
+     * @param durationUs 时长（用于预留空间），未知时为0
+     * @return
+     * @throws IOException
+     */
+    public static WaveformPeaks open(File file, MediaInput input, int sampleRate, long durationUs) throws IOException {
+        int key = input.getCacheKey().hashCode();
+        if (file.exists()) {
+            WaveformPeaks peaks = new WaveformPeaks(file, key, sampleRate, 0);
+            if (peaks.capacity > 0) {
+                return peaks;
+            }
+            peaks.close();
+            file.delete();
+        }
+        long duration = durationUs > 0 ? durationUs : DEFAULT_DURATION_US;
+        // 时长是容器中的估计值，多留一点
+        long frames = duration * sampleRate / 1_000_000L * 102 / 100 + FRAMES_PER_PEAK;
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 4, frames / FRAMES_PER_PEAK + 1);
+        return new WaveformPeaks(file, key, sampleRate, capacity);
+    }
+
+    /**
+     * @param capacity 大于0时创建新文件，否则读取已有文件（文件头不一致时 capacity 为0）
+     */
+    private WaveformPeaks(File path, int key, int sampleRate, int capacity) throws IOException {
+        this.file = new RandomAccessFile(path, "rw");
+        try {
+            if (capacity <= 0) {
+                if (file.length() < HEADER_SIZE || file.readInt() != MAGIC || file.readInt() != VERSION
+                        || file.readInt() != key || file.readInt() != sampleRate) {
+                    capacity = 0;
+                } else {
+                    capacity = file.readInt();
+                }
+            }
+            this.sampleRate = sampleRate;
+            this.capacity = capacity;
+            int levels = 1;
+            while (capacity > 0 && (capacity - 1) >> (levels - 1) > 0) {
+                levels++;
+            }
+            levelOffsets = new int[levels];
+            levelSizes = new int[levels];
+            int offset = HEADER_SIZE;
+            for (int level = 0; level < levels; level++) {
+                levelOffsets[level] = offset;
+                levelSizes[level] = capacity == 0 ? 0 : ((capacity - 1) >> level) + 1;
+                offset += levelSizes[level] * 2;
+            }
+            if (capacity == 0) {    // 不一致，由 open 删除后重新创建
+                buffer = null;
+                return;
+            }
+            boolean created = file.length() != offset;
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offset);
+            if (created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, key);
+                buffer.putInt(12, sampleRate);
+                buffer.putInt(16, capacity);
+                buffer.putInt(20, levels);
+                buffer.putInt(BUILT_OFFSET, 0);
+                buffer.putInt(COMPLETE_OFFSET, 0);
+            }
+            builtEntries = buffer.getInt(BUILT_OFFSET);
+            complete = buffer.getInt(COMPLETE_OFFSET) != 0;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 是否已经写完整首歌，完成后不需要再写入
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * 已经可以读取的帧数
+     *
+     * @return
+     */
+    public long getBuiltFrames() {
+        return (long) builtEntries * FRAMES_PER_PEAK;
+    }
+
+    /**
+     * 从头开始写入（首次播放开始时调用），已经写过的部分会被同样的数据覆盖
+     */
+    public void restart() {
+        entry = 0;
+        entryFrames = 0;
+        entryMin = 127;
+        entryMax = -128;
+    }
+
+    /**
+     * 写入解码得到的采样（写入线程调用），超出预留空间的部分忽略
+     *
+     * @param pcm
+     * @param offset
+     * @param size     采样数
+     * @param channels 声道数
+     */
+    public void append(short[] pcm, int offset, int size, int channels) {
+        int min = entryMin;
+        int max = entryMax;
+        int fill = entryFrames;
+        for (int i = offset; i + channels <= offset + size && entry < capacity; i += channels) {
+            for (int c = 0; c < channels; c++) {
+                int value = pcm[i + c];
+                min = Math.min(min, value >> 8);            // 向下取整
+                max = Math.max(max, (value + 255) >> 8);    // 向上取整
+            }
+            if (++fill == FRAMES_PER_PEAK) {
+                store(entry, min, Math.min(127, max));
+                entry++;
+                fill = 0;
+                min = 127;
+                max = -128;
+            }
+        }
+        entryMin = min;
+        entryMax = max;
+        entryFrames = fill;
+        if (entry > builtEntries) {
+            buffer.putInt(BUILT_OFFSET, entry);
+            builtEntries = entry;   // 数据先写入，再发布项数
+        }
+    }
+
+    /**
+     * 写入结束（解码到结尾时调用），最后不满一项的部分也写入，并标记完成
+     */
+    public void finish() {
+        if (entryFrames > 0 && entry < capacity) {
+            store(entry, entryMin, Math.min(127, entryMax));
+            entry++;
+            entryFrames = 0;
+        }
+        buffer.putInt(BUILT_OFFSET, entry);
+        buffer.putInt(COMPLETE_OFFSET, 1);
+        builtEntries = entry;
+        complete = true;
+        buffer.force();
+    }
+
+    // 写入第0层的一项，并合并到上面各层
+    private void store(int index, int min, int max) {
+        for (int level = 0; level < levelOffsets.length; level++) {
+            int position = levelOffsets[level] + (index >> level) * 2;
+            boolean first = (index & ((1 << level) - 1)) == 0;  // 该层这一项的第一个来源
+            if (!first) {
+                min = Math.min(min, buffer.get(position));
+                max = Math.max(max, buffer.get(position + 1));
+            }
+            buffer.put(position, (byte) min);
+            buffer.put(position + 1, (byte) max);
+        }
+    }
+
+    /**
+     * 读取绘制用的峰值（任意线程调用，不分配内存）
+     *
+     * @param startFrame     第一个像素的开始帧
+     * @param framesPerPixel 每像素帧数（缩放比例）
+     * @param mins           各像素最小值（-128~127，乘以256为16位采样值）
+     * @param maxs           各像素最大值
+     * @param pixels         像素数
+     * @return 实际得到的像素数（还没写入的部分没有数据）
+     */
+    public int getPeaks(long startFrame, double framesPerPixel, byte[] mins, byte[] maxs, int pixels) {
+        int built = builtEntries;
+        if (built == 0) {
+            return 0;
+        }
+        // 每项不超过每像素帧数的最粗一层
+        int level = 0;
+        while (level + 1 < levelOffsets.length && (long) FRAMES_PER_PEAK << (level + 1) <= framesPerPixel) {
+            level++;
+        }
+        long levelFrames = (long) FRAMES_PER_PEAK << level;
+        int available = ((built - 1) >> level) + 1;     // 该层已有数据的项数
+        int base = levelOffsets[level];
+        for (int p = 0; p < pixels; p++) {
+            long from = startFrame + (long) (p * framesPerPixel);
+            long to = startFrame + (long) ((p + 1) * framesPerPixel);
+            int first = (int) Math.max(0, from / levelFrames);
+            int last = (int) Math.max(first + 1, (to + levelFrames - 1) / levelFrames);
+            if (first >= available) {
+                return p;
+            }
+            last = Math.min(last, available);
+            int min = 127;
+            int max = -128;
+            for (int i = first; i < last; i++) {
+                min = Math.min(min, buffer.get(base + i * 2));
+                max = Math.max(max, buffer.get(base + i * 2 + 1));
+            }
+            mins[p] = (byte) min;
+            maxs[p] = (byte) max;
+        }
+        return pixels;
+    }
+
+    /**
+     * 关闭文件（映射在对象回收时释放）
+     */
+    public void close() {
+        try {
+            if (buffer != null) {
+                buffer.force();
+            }
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.husky.mp.karaoke;
+
+/**
+ * 生成波形峰值的音源
+ * <p>
+ * 包装文件音源，读取的数据原样返回，同时写入 WaveformPeaks，首次播放时顺便生成波形，不需要单独解码。
+ * 峰值已经完整时直接透传
+ */
+public class WaveformTapSource implements MixSource {
+
+    private final MixSource source;
+    private final WaveformPeaks peaks;
+    private final int channels;
+    private final boolean enabled;  // 开始时峰值还不完整才写入
+
+    /**
+     * @param source
+     * @param peaks
+     * @param channels 声道数
+     */
+    public WaveformTapSource(MixSource source, WaveformPeaks peaks, int channels) {
+        this.source = source;
+        this.peaks = peaks;
+        this.channels = channels;
+        this.enabled = !peaks.isComplete();
+        if (enabled) {
+            peaks.restart();
+        }
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) throws InterruptedException {
+        int count = source.read(buffer, offset, size);
+        if (enabled && !peaks.isComplete()) {
+            if (count < 0) {
+                peaks.finish();
+            } else {
+                peaks.append(buffer, offset, count, channels);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 音频效果（效果链中的一个节点）
+ * <p>
+ * 处理交错浮点采样（范围-1~1），原地处理，每次不超过创建时指定的块大小。
+ * 参数由界面线程写入 volatile 字段并增加版本号，处理线程在每块开始时发现版本变化再重新计算系数，不加锁。
+ * 处理过程不分配内存
+ */
+public abstract class AudioEffect {
+
+    protected final int sampleRate;
+    protected final int channels;
+
+    private volatile boolean enabled = true;    // 关闭时效果链直接跳过，不产生任何开销
+    private volatile boolean resetPending = false;  // 重新开启时先清空内部状态（延迟线等）
+    private volatile int version = 0;   // 参数版本（界面线程写）
+    private int appliedVersion = -1;    // 已经应用的参数版本（处理线程写）
+
+    // 统计（处理线程写）
+    private volatile long processNanos = 0;     // 累计处理耗时
+    private volatile long processedFrames = 0;  // 累计处理帧数
+
+    protected AudioEffect(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    /**
+     * 开启或旁路，可以在任意线程调用
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled) {
+            resetPending = true;
+        }
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 平均CPU占用（处理耗时 / 音频时长）
+     *
+     * @return 0.01表示占用单核1%
+     */
+    public float getCpuLoad() {
+        long frames = processedFrames;
+        return frames == 0 ? 0 : (float) (processNanos * (double) sampleRate / 1e9 / frames);
+    }
+
+    /**
+     * 清空统计
+     */
+    public void resetStats() {
+        processNanos = 0;
+        processedFrames = 0;
+    }
+
+    /**
+     * 参数修改后调用（界面线程），下一块开始时生效
+     */
+    protected void parametersChanged() {
+        version++;
+    }
+
+    /**
+     * 处理一块（效果链在处理线程中调用）
+     *
+     * @param buffer
+     * @param size   采样数（声道数的整数倍）
+     */
+    final void run(float[] buffer, int size) {
+        long start = System.nanoTime();
+        if (resetPending) {
+            resetPending = false;
+            reset();
+        }
+        int current = version;
+        if (current != appliedVersion) {
+            appliedVersion = current;
+            updateParameters();
+        }
+        process(buffer, size / channels);
+        processNanos += System.nanoTime() - start;
+        processedFrames += size / channels;
+    }
+
+    /**
+     * 参数有变化时在处理线程中调用，读取参数并重新计算系数
+     */
+    protected abstract void updateParameters();
+
+    /**
+     * 原地处理交错采样
+     *
+     * @param buffer
+     * @param frames 帧数
+     */
+    protected abstract void process(float[] buffer, int frames);
+
+    /**
+     * 清空内部状态
+     */
+    public abstract void reset();
+}
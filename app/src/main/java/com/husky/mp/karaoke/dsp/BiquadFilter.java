@@ -0,0 +1,170 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 二阶IIR滤波器（均衡器的一段）
+ * <p>
+ * 系数按 RBJ Audio EQ Cookbook 计算，转置直接II型，每声道两个状态变量
+ */
+public class BiquadFilter extends AudioEffect {
+
+    public static final int TYPE_LOW_PASS = 0;  // 低通
+    public static final int TYPE_HIGH_PASS = 1; // 高通
+    public static final int TYPE_PEAKING = 2;   // 峰值（提升或衰减中心频率附近）
+    public static final int TYPE_LOW_SHELF = 3; // 低架
+    public static final int TYPE_HIGH_SHELF = 4;    // 高架
+
+    // 参数（界面线程写）
+    private volatile int type;
+    private volatile float frequency;
+    private volatile float q;
+    private volatile float gainDb;
+
+    // 归一化系数（处理线程使用）
+    private float b0;
+    private float b1;
+    private float b2;
+    private float a1;
+    private float a2;
+    private final float[] z1;   // 各声道状态
+    private final float[] z2;
+
+    /**
+     * @param sampleRate
+     * @param channels
+     * @param type       TYPE_*
+     * @param frequency  截止或中心频率（Hz）
+     * @param q          品质因数，0.707为巴特沃斯
+     * @param gainDb     增益（分贝），只对峰值和架型有效
+     */
+    public BiquadFilter(int sampleRate, int channels, int type, float frequency, float q, float gainDb) {
+        super(sampleRate, channels);
+        this.z1 = new float[channels];
+        this.z2 = new float[channels];
+        setParameters(type, frequency, q, gainDb);
+    }
+
+    /**
+     * 修改参数，可以在任意线程调用
+     *
+     * @param type
+     * @param frequency
+     * @param q
+     * @param gainDb
+     */
+    public void setParameters(int type, float frequency, float q, float gainDb) {
+        this.type = type;
+        this.frequency = Math.max(10, Math.min(sampleRate * 0.49f, frequency));
+        this.q = Math.max(0.1f, q);
+        this.gainDb = gainDb;
+        parametersChanged();
+    }
+
+    /**
+     * 修改增益（均衡器拖动时使用）
+     *
+     * @param gainDb
+     */
+    public void setGainDb(float gainDb) {
+        this.gainDb = gainDb;
+        parametersChanged();
+    }
+
+    public float getGainDb() {
+        return gainDb;
+    }
+
+    public float getFrequency() {
+        return frequency;
+    }
+
+    @Override
+    protected void updateParameters() {
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a = Math.pow(10, gainDb / 40);
+        double nb0;
+        double nb1;
+        double nb2;
+        double na0;
+        double na1;
+        double na2;
+        switch (type) {
+            case TYPE_HIGH_PASS:
+                nb0 = (1 + cos) / 2;
+                nb1 = -(1 + cos);
+                nb2 = (1 + cos) / 2;
+                na0 = 1 + alpha;
+                na1 = -2 * cos;
+                na2 = 1 - alpha;
+                break;
+            case TYPE_PEAKING:
+                nb0 = 1 + alpha * a;
+                nb1 = -2 * cos;
+                nb2 = 1 - alpha * a;
+                na0 = 1 + alpha / a;
+                na1 = -2 * cos;
+                na2 = 1 - alpha / a;
+                break;
+            case TYPE_LOW_SHELF: {
+                double s = 2 * Math.sqrt(a) * alpha;
+                nb0 = a * ((a + 1) - (a - 1) * cos + s);
+                nb1 = 2 * a * ((a - 1) - (a + 1) * cos);
+                nb2 = a * ((a + 1) - (a - 1) * cos - s);
+                na0 = (a + 1) + (a - 1) * cos + s;
+                na1 = -2 * ((a - 1) + (a + 1) * cos);
+                na2 = (a + 1) + (a - 1) * cos - s;
+                break;
+            }
+            case TYPE_HIGH_SHELF: {
+                double s = 2 * Math.sqrt(a) * alpha;
+                nb0 = a * ((a + 1) + (a - 1) * cos + s);
+                nb1 = -2 * a * ((a - 1) + (a + 1) * cos);
+                nb2 = a * ((a + 1) + (a - 1) * cos - s);
+                na0 = (a + 1) - (a - 1) * cos + s;
+                na1 = 2 * ((a - 1) - (a + 1) * cos);
+                na2 = (a + 1) - (a - 1) * cos - s;
+                break;
+            }
+            default:    // 低通
+                nb0 = (1 - cos) / 2;
+                nb1 = 1 - cos;
+                nb2 = (1 - cos) / 2;
+                na0 = 1 + alpha;
+                na1 = -2 * cos;
+                na2 = 1 - alpha;
+                break;
+        }
+        b0 = (float) (nb0 / na0);
+        b1 = (float) (nb1 / na0);
+        b2 = (float) (nb2 / na0);
+        a1 = (float) (na1 / na0);
+        a2 = (float) (na2 / na0);
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        for (int c = 0; c < channels; c++) {
+            float s1 = z1[c];
+            float s2 = z2[c];
+            for (int i = c; i < frames * channels; i += channels) {
+                float x = buffer[i];
+                float y = b0 * x + s1;
+                s1 = b1 * x - a1 * y + s2;
+                s2 = b2 * x - a2 * y;
+                buffer[i] = y;
+            }
+            // 静音后状态衰减到非规格化数会让运算变慢
+            z1[c] = Math.abs(s1) < 1e-20f ? 0 : s1;
+            z2[c] = Math.abs(s2) < 1e-20f ? 0 : s2;
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int c = 0; c < channels; c++) {
+            z1[c] = 0;
+            z2[c] = 0;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 压缩器（前馈，各声道联动）
+ * <p>
+ * 峰值包络跟随（启动/释放时间），超过门限的部分按压缩比衰减，再加补偿增益。
+ * 增益每 GAIN_STEP 帧计算一次（需要对数和指数），中间线性插值，避免逐帧调用 Math.pow
+ */
+public class Compressor extends AudioEffect {
+
+    private static final int GAIN_STEP = 16;    // 增益计算间隔（帧）
+
+    // 参数（界面线程写）
+    private volatile float thresholdDb;
+    private volatile float ratio;
+    private volatile float attackMs;
+    private volatile float releaseMs;
+    private volatile float makeupDb;
+
+    private float attack;       // 包络系数（处理线程使用）
+    private float release;
+    private float threshold;    // 线性门限
+    private float slope;        // 1 - 1/ratio
+    private float makeup;       // 线性补偿增益
+    private float envelope = 0; // 峰值包络
+    private float gain = 1;     // 当前增益
+    private volatile float gainReductionDb = 0; // 最近的增益衰减（显示用）
+
+    /**
+     * @param sampleRate
+     * @param channels
+     */
+    public Compressor(int sampleRate, int channels) {
+        super(sampleRate, channels);
+        setParameters(-18, 4, 5, 120, 6);
+    }
+
+    /**
+     * 修改参数，可以在任意线程调用
+     *
+     * @param thresholdDb 门限（dBFS）
+     * @param ratio       压缩比，不小于1
+     * @param attackMs    启动时间
+     * @param releaseMs   释放时间
+     * @param makeupDb    补偿增益
+     */
+    public void setParameters(float thresholdDb, float ratio, float attackMs, float releaseMs, float makeupDb) {
+        this.thresholdDb = thresholdDb;
+        this.ratio = Math.max(1, ratio);
+        this.attackMs = Math.max(0.1f, attackMs);
+        this.releaseMs = Math.max(1, releaseMs);
+        this.makeupDb = makeupDb;
+        parametersChanged();
+    }
+
+    /**
+     * 最近的增益衰减（分贝，不含补偿增益）
+     *
+     * @return
+     */
+    public float getGainReductionDb() {
+        return gainReductionDb;
+    }
+
+    @Override
+    protected void updateParameters() {
+        attack = (float) Math.exp(-1000.0 / (attackMs * sampleRate));
+        release = (float) Math.exp(-1000.0 / (releaseMs * sampleRate));
+        threshold = (float) Math.pow(10, thresholdDb / 20);
+        slope = 1 - 1 / ratio;
+        makeup = (float) Math.pow(10, makeupDb / 20);
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        float env = envelope;
+        float current = gain;
+        for (int start = 0; start < frames; start += GAIN_STEP) {
+            int end = Math.min(frames, start + GAIN_STEP);
+            // 本段的峰值包络
+            for (int i = start * channels; i < end * channels; i += channels) {
+                float peak = 0;
+                for (int c = 0; c < channels; c++) {
+                    peak = Math.max(peak, Math.abs(buffer[i + c]));
+                }
+                env = peak > env ? peak + attack * (env - peak) : peak + release * (env - peak);
+            }
+            float target;
+            if (env > threshold) {
+                // 超过门限的分贝数乘以 (1 - 1/ratio) 就是需要衰减的分贝数
+                target = (float) Math.pow(env / threshold, -slope);
+            } else {
+                target = 1;
+            }
+            float step = (target - current) / (end - start);
+            for (int i = start * channels; i < end * channels; i += channels) {
+                current += step;
+                float g = current * makeup;
+                for (int c = 0; c < channels; c++) {
+                    buffer[i + c] *= g;
+                }
+            }
+        }
+        envelope = env < 1e-20f ? 0 : env;
+        gain = current;
+        gainReductionDb = (float) (20 * Math.log10(current));
+    }
+
+    @Override
+    public void reset() {
+        envelope = 0;
+        gain = 1;
+    }
+}
@@ -0,0 +1,87 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 回声（带反馈的延迟线）
+ * <p>
+ * 延迟线按最大延迟在创建时分配，修改延迟时间不重新分配
+ */
+public class Echo extends AudioEffect {
+
+    public static final int MAX_DELAY_MS = 1000;
+
+    // 参数（界面线程写）
+    private volatile float delayMs;
+    private volatile float feedback;
+    private volatile float wet;
+
+    private final float[] line;     // 延迟线（交错）
+    private final int lineFrames;
+    private int writeIndex = 0;     // 写入位置（帧）
+    private int delayFrames;        // 处理线程使用的参数
+    private float feedbackGain;
+    private float wetGain;
+
+    /**
+     * @param sampleRate
+     * @param channels
+     */
+    public Echo(int sampleRate, int channels) {
+        super(sampleRate, channels);
+        this.lineFrames = sampleRate * MAX_DELAY_MS / 1000 + 1;
+        this.line = new float[lineFrames * channels];
+        setParameters(250, 0.35f, 0.3f);
+    }
+
+    /**
+     * 修改参数，可以在任意线程调用
+     *
+     * @param delayMs  延迟时间，不超过 MAX_DELAY_MS
+     * @param feedback 反馈（0~0.95），越大重复次数越多
+     * @param wet      回声音量（0~1）
+     */
+    public void setParameters(float delayMs, float feedback, float wet) {
+        this.delayMs = Math.max(1, Math.min(MAX_DELAY_MS, delayMs));
+        this.feedback = Math.max(0, Math.min(0.95f, feedback));
+        this.wet = Math.max(0, Math.min(1, wet));
+        parametersChanged();
+    }
+
+    @Override
+    protected void updateParameters() {
+        delayFrames = Math.max(1, Math.min(lineFrames - 1, Math.round(delayMs * sampleRate / 1000)));
+        feedbackGain = feedback;
+        wetGain = wet;
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        int index = writeIndex;
+        for (int i = 0; i < frames; i++) {
+            int read = index - delayFrames;
+            if (read < 0) {
+                read += lineFrames;
+            }
+            int out = i * channels;
+            int w = index * channels;
+            int r = read * channels;
+            for (int c = 0; c < channels; c++) {
+                float x = buffer[out + c];
+                float delayed = line[r + c];
+                line[w + c] = x + delayed * feedbackGain;
+                buffer[out + c] = x + delayed * wetGain;
+            }
+            if (++index == lineFrames) {
+                index = 0;
+            }
+        }
+        writeIndex = index;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < line.length; i++) {
+            line[i] = 0;
+        }
+        writeIndex = 0;
+    }
+}
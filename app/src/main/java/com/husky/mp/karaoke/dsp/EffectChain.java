@@ -0,0 +1,107 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 效果链
+ * <p>
+ * 按添加顺序依次原地处理一块数据，块大小固定（见 AudioMixer）。旁路的效果直接跳过，全部旁路时不做任何处理。
+ * 增减效果时整体替换数组，处理线程读到的始终是完整的效果列表，不加锁
+ */
+public class EffectChain {
+
+    private volatile AudioEffect[] effects = new AudioEffect[0];
+
+    /**
+     * 添加效果，可以在播放过程中调用，声道数需要与所在音轨一致
+     *
+     * @param effect
+     */
+    public synchronized void add(AudioEffect effect) {
+        AudioEffect[] newEffects = new AudioEffect[effects.length + 1];
+        System.arraycopy(effects, 0, newEffects, 0, effects.length);
+        newEffects[effects.length] = effect;
+        effects = newEffects;
+    }
+
+    /**
+     * 移除效果
+     *
+     * @param effect
+     */
+    public synchronized void remove(AudioEffect effect) {
+        int index = -1;
+        for (int i = 0; i < effects.length; i++) {
+            if (effects[i] == effect) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        AudioEffect[] newEffects = new AudioEffect[effects.length - 1];
+        System.arraycopy(effects, 0, newEffects, 0, index);
+        System.arraycopy(effects, index + 1, newEffects, index, effects.length - index - 1);
+        effects = newEffects;
+    }
+
+    public AudioEffect[] getEffects() {
+        return effects;
+    }
+
+    /**
+     * 是否有开启的效果
+     *
+     * @return
+     */
+    public boolean isActive() {
+        AudioEffect[] current = effects;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].isEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 处理一块
+     *
+     * @param buffer 交错采样
+     * @param size   采样数
+     */
+    public void process(float[] buffer, int size) {
+        AudioEffect[] current = effects;
+        for (int i = 0; i < current.length; i++) {
+            AudioEffect effect = current[i];
+            if (effect.isEnabled()) {
+                effect.run(buffer, size);
+            }
+        }
+    }
+
+    /**
+     * 整条链的CPU占用（开启的效果之和）
+     *
+     * @return 0.01表示占用单核1%
+     */
+    public float getCpuLoad() {
+        AudioEffect[] current = effects;
+        float load = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].isEnabled()) {
+                load += current[i].getCpuLoad();
+            }
+        }
+        return load;
+    }
+
+    /**
+     * 清空所有效果的状态（跳转后调用）
+     */
+    public void reset() {
+        AudioEffect[] current = effects;
+        for (int i = 0; i < current.length; i++) {
+            current[i].reset();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 基2快速傅里叶变换（原地计算）
+ * 旋转因子和位反转表在创建时预先计算好，变换过程不分配内存
+ */
+public class FFT {
+
+    private final int size;     // 变换长度（2的幂）
+    private final float[] cosTable; // 旋转因子实部
+    private final float[] sinTable; // 旋转因子虚部
+    private final int[] bitReverse; // 位反转下标
+
+    public FFT(int size) {
+        if (size < 2 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("fft size must be power of 2: " + size);
+        }
+        this.size = size;
+        this.cosTable = new float[size / 2];
+        this.sinTable = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            double angle = -2 * Math.PI * i / size;
+            cosTable[i] = (float) Math.cos(angle);
+            sinTable[i] = (float) Math.sin(angle);
+        }
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        this.bitReverse = new int[size];
+        for (int i = 0; i < size; i++) {
+            bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 正变换
+     *
+     * @param re 实部（长度不小于size）
+     * @param im 虚部（长度不小于size）
+     */
+    public void forward(float[] re, float[] im) {
+        transform(re, im, false);
+    }
+
+    /**
+     * 逆变换（已经除以size）
+     *
+     * @param re 实部
+     * @param im 虚部
+     */
+    public void inverse(float[] re, float[] im) {
+        transform(re, im, true);
+        float scale = 1f / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(float[] re, float[] im, boolean inverse) {
+        // 位反转重排
+        for (int i = 0; i < size; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                float temp = re[i];
+                re[i] = re[j];
+                re[j] = temp;
+                temp = im[i];
+                im[i] = im[j];
+                im[j] = temp;
+            }
+        }
+
+        // 蝶形运算
+        for (int half = 1; half < size; half <<= 1) {
+            int step = size / (half << 1);
+            for (int start = 0; start < size; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cosTable[k * step];
+                    float wi = inverse ? -sinTable[k * step] : sinTable[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * 汉宁窗
+     *
+     * @param length
+     * @return
+     */
+    public static float[] hann(int length) {
+        float[] window = new float[length];
+        for (int i = 0; i < length; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / length));
+        }
+        return window;
+    }
+}
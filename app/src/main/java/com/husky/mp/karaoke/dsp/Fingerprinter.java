@@ -0,0 +1,273 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 声学指纹提取（频谱峰值配对）
+ * <p>
+ * 输入降采样到 11025Hz 单声道（整数倍降采样后再用 Resampler 对齐，44.1k 和 48k 的同一首歌得到相同的频率格点），
+ * 每 512 个采样（约46毫秒）做一次 1024 点变换，在 300Hz~4kHz 中找超过阈值的局部峰值，每帧最多 MAX_PEAKS 个。
+ * 阈值按频率分别记录，找到峰值后抬高附近频率的阈值，之后每帧衰减，响的峰值后面一段时间内只留下更显著的峰值，
+ * 这样峰值在时间和频率上都比较稀疏，对均衡、压缩和噪声不敏感。
+ * <p>
+ * 每个峰值（锚点）和它后面时间、频率范围内最先出现的 FAN_OUT 个峰值配对，
+ * 锚点频率、频率差、时间差组成22位哈希（与绝对时间无关），和锚点帧号一起通过 OnLandmarkListener 回调。
+ * 所有缓冲在创建时分配，每帧不分配内存
+ */
+public class Fingerprinter {
+
+    public static final int ANALYSIS_RATE = 11025;  // 分析采样率
+    public static final int HOP_SIZE = 512;         // 帧移
+    public static final long FRAME_DURATION_US = HOP_SIZE * 1_000_000L / ANALYSIS_RATE;   // 帧长（微秒）
+
+    private static final int WINDOW_SIZE = 1024;
+    private static final int MIN_BIN = 300 * WINDOW_SIZE / ANALYSIS_RATE;
+    private static final int MAX_BIN = 4000 * WINDOW_SIZE / ANALYSIS_RATE;
+
+    private static final int MAX_PEAKS = 3;             // 每帧最多峰值数
+    private static final float FLOOR_DB = -70f;         // 低于该值不算峰值（静音）
+    private static final float DECAY_DB = 0.4f;         // 阈值每帧衰减
+    private static final float SPREAD_DB = 1.5f;        // 峰值抬高的阈值随频率距离每个频点降低
+    private static final int SPREAD_BINS = 16;          // 峰值影响的频率范围
+    private static final float CONTRAST_DB = 12f;       // 峰值至少比附近频率的平均高这么多（噪声中的随机峰值不算）
+    private static final int CONTRAST_BINS = 8;         // 计算平均的频率范围（两侧各）
+
+    private static final int FAN_OUT = 2;               // 每个锚点最多配对数
+    private static final int MAX_DT = 63;               // 配对的最大时间差（帧，6位）
+    private static final int MAX_DF = 63;               // 配对的最大频率差（频点，7位带符号）
+    private static final int RING_SIZE = 256;           // 最近峰值的环形缓冲（MAX_DT帧内最多 MAX_PEAKS*MAX_DT 个）
+
+    private final int channels;
+    private final int decimation;       // 整数倍降采样
+    private final Resampler resampler;  // 降采样后不是 ANALYSIS_RATE 时对齐，否则为null
+    private final float[] resampleIn = new float[1];
+    private final float[] resampleOut = new float[4];
+    private float accumulated = 0;
+    private int accumulatedCount = 0;
+
+    private final FFT fft = new FFT(WINDOW_SIZE);
+    private final float[] hann = FFT.hann(WINDOW_SIZE);
+    private final float[] window = new float[WINDOW_SIZE];
+    private final float[] re = new float[WINDOW_SIZE];
+    private final float[] im = new float[WINDOW_SIZE];
+    private final float[] spectrum = new float[MAX_BIN + 2];    // 对数功率（dB）
+    private final float[] threshold = new float[MAX_BIN + 2];
+    private final float[] prefix = new float[MAX_BIN + 3];      // spectrum 的前缀和，求附近平均
+    private int filled = 0;
+    private int frame = 0;              // 下一个分析帧号
+
+    // 本帧峰值（按强度从大到小）
+    private final int[] frameBins = new int[MAX_PEAKS];
+    private final float[] frameLevels = new float[MAX_PEAKS];
+
+    // 最近的峰值，等待与后面的峰值配对
+    private final int[] ringFrames = new int[RING_SIZE];
+    private final int[] ringBins = new int[RING_SIZE];
+    private final int[] ringFans = new int[RING_SIZE];
+    private int ringStart = 0;
+    private int ringCount = 0;
+
+    private int peakCount = 0;
+    private OnLandmarkListener onLandmarkListener;
+
+    /**
+     * @param sampleRate 输入采样率
+     * @param channels   输入声道数
+     */
+    public Fingerprinter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.decimation = Math.max(1, sampleRate / ANALYSIS_RATE);
+        int decimatedRate = sampleRate / decimation;
+        if (decimatedRate != ANALYSIS_RATE) {
+            resampler = new Resampler(1, 16);
+            resampler.setRatio((double) decimatedRate / ANALYSIS_RATE);
+        } else {
+            resampler = null;
+        }
+        for (int i = 0; i < threshold.length; i++) {
+            threshold[i] = FLOOR_DB;
+        }
+    }
+
+    public void setOnLandmarkListener(OnLandmarkListener onLandmarkListener) {
+        this.onLandmarkListener = onLandmarkListener;
+    }
+
+    /**
+     * 已分析的帧数
+     *
+     * @return
+     */
+    public int getFrameCount() {
+        return frame;
+    }
+
+    /**
+     * 找到的峰值数
+     *
+     * @return
+     */
+    public int getPeakCount() {
+        return peakCount;
+    }
+
+    /**
+     * 送入16位交错采样
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数（声道数的整数倍）
+     */
+    public void process(short[] buffer, int offset, int size) {
+        for (int i = offset; i + channels <= offset + size; i += channels) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += buffer[i + c];
+            }
+            // 降采样前取平均，起到简单的低通作用
+            accumulated += sum / (channels * 32768f);
+            if (++accumulatedCount < decimation) {
+                continue;
+            }
+            float value = accumulated / decimation;
+            accumulated = 0;
+            accumulatedCount = 0;
+            if (resampler == null) {
+                push(value);
+                continue;
+            }
+            resampleIn[0] = value;
+            resampler.write(resampleIn, 0, 1);
+            int count;
+            while ((count = resampler.read(resampleOut, 0, resampleOut.length)) > 0) {
+                for (int k = 0; k < count; k++) {
+                    push(resampleOut[k]);
+                }
+            }
+        }
+    }
+
+    private void push(float sample) {
+        window[filled++] = sample;
+        if (filled < WINDOW_SIZE) {
+            return;
+        }
+        analyze();
+        System.arraycopy(window, HOP_SIZE, window, 0, WINDOW_SIZE - HOP_SIZE);
+        filled = WINDOW_SIZE - HOP_SIZE;
+        frame++;
+    }
+
+    private void analyze() {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            re[i] = window[i] * hann[i];
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+        float scale = 4f / (WINDOW_SIZE * WINDOW_SIZE);    // 满幅正弦约0dB
+        for (int k = MIN_BIN - 1; k <= MAX_BIN + 1 && k < spectrum.length; k++) {
+            float power = (re[k] * re[k] + im[k] * im[k]) * scale;
+            spectrum[k] = 10 * (float) Math.log10(power + 1e-12f);
+        }
+        for (int k = MIN_BIN; k <= MAX_BIN; k++) {
+            threshold[k] = Math.max(FLOOR_DB, threshold[k] - DECAY_DB);
+        }
+        prefix[MIN_BIN - 1] = 0;
+        for (int k = MIN_BIN - 1; k <= MAX_BIN + 1; k++) {
+            prefix[k + 1] = prefix[k] + spectrum[k];
+        }
+
+        // 超过阈值的局部峰值，保留最强的几个
+        int found = 0;
+        for (int k = MIN_BIN; k <= MAX_BIN; k++) {
+            float level = spectrum[k];
+            if (level <= threshold[k] || level <= spectrum[k - 1] || level < spectrum[k + 1]) {
+                continue;
+            }
+            int from = Math.max(MIN_BIN - 1, k - CONTRAST_BINS);
+            int to = Math.min(MAX_BIN + 1, k + CONTRAST_BINS);
+            if (level < (prefix[to + 1] - prefix[from]) / (to + 1 - from) + CONTRAST_DB) {
+                continue;
+            }
+            int slot = found < MAX_PEAKS ? found++ : MAX_PEAKS;
+            while (slot > 0 && frameLevels[slot - 1] < level) {
+                if (slot < MAX_PEAKS) {
+                    frameBins[slot] = frameBins[slot - 1];
+                    frameLevels[slot] = frameLevels[slot - 1];
+                }
+                slot--;
+            }
+            if (slot < MAX_PEAKS) {
+                frameBins[slot] = k;
+                frameLevels[slot] = level;
+            }
+        }
+
+        for (int p = 0; p < found; p++) {
+            int bin = frameBins[p];
+            float level = frameLevels[p];
+            if (level <= threshold[bin]) {     // 被本帧更强的峰值抬高的阈值盖住
+                continue;
+            }
+            int from = Math.max(MIN_BIN, bin - SPREAD_BINS);
+            int to = Math.min(MAX_BIN, bin + SPREAD_BINS);
+            for (int k = from; k <= to; k++) {
+                threshold[k] = Math.max(threshold[k], level - Math.abs(k - bin) * SPREAD_DB);
+            }
+            threshold[bin] = level;
+            addPeak(bin);
+        }
+    }
+
+    // 新峰值作为目标与之前的锚点配对，再作为锚点加入环形缓冲
+    private void addPeak(int bin) {
+        peakCount++;
+        // 丢掉超出配对时间范围的锚点
+        while (ringCount > 0 && frame - ringFrames[ringStart] > MAX_DT) {
+            ringStart = (ringStart + 1) % RING_SIZE;
+            ringCount--;
+        }
+        for (int i = 0; i < ringCount; i++) {
+            int index = (ringStart + i) % RING_SIZE;
+            int dt = frame - ringFrames[index];
+            int df = bin - ringBins[index];
+            if (dt <= 0 || ringFans[index] >= FAN_OUT || df < -MAX_DF || df > MAX_DF) {
+                continue;
+            }
+            ringFans[index]++;
+            if (onLandmarkListener != null) {
+                onLandmarkListener.onLandmark(hash(ringBins[index], df, dt), ringFrames[index]);
+            }
+        }
+        if (ringCount == RING_SIZE) {   // 缓冲满时丢掉最早的锚点
+            ringStart = (ringStart + 1) % RING_SIZE;
+            ringCount--;
+        }
+        int index = (ringStart + ringCount) % RING_SIZE;
+        ringFrames[index] = frame;
+        ringBins[index] = bin;
+        ringFans[index] = 0;
+        ringCount++;
+    }
+
+    /**
+     * 锚点频点（9位）、频率差（7位）、时间差（6位）组成的哈希
+     *
+     * @param bin
+     * @param df
+     * @param dt
+     * @return
+     */
+    static int hash(int bin, int df, int dt) {
+        return bin << 13 | (df + MAX_DF + 1) << 6 | dt;
+    }
+
+    /**
+     * 指纹回调接口（在 process 所在线程中回调）
+     */
+    public interface OnLandmarkListener {
+        /**
+         * @param hash  峰值对哈希
+         * @param frame 锚点帧号（帧长见 FRAME_DURATION_US）
+         */
+        void onLandmark(int hash, int frame);
+    }
+}
@@ -0,0 +1,238 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 前瞻峰值限幅器（总线最后一级，代替转换成16位时的硬削波）
+ * <p>
+ * 每帧取各声道最大绝对值，算出不超过上限所需的目标增益（立即下降、指数恢复），
+ * 对目标增益做长度为L的滑动最小值，再做长度为L的滑动平均，得到平滑的增益；
+ * 信号延迟L-1帧，这样任何峰值到达输出时增益已经平滑地降到所需值以下，不会削波也不会产生咔嗒声。
+ * <p>
+ * 常见情况（增益为1且本块峰值不超过上限）只做延迟线交换，没有逐帧的分支和除法。
+ * 所有缓冲在创建时分配，处理过程不分配内存
+ */
+public class Limiter {
+
+    private static final float LOOKAHEAD_MS = 1.5f;    // 前瞻时间
+    private static final float RELEASE_MS = 80f;        // 增益恢复时间常数
+    private static final float UNITY_SNAP = 1e-4f;      // 衰减小于该值视为没有衰减（不到0.001dB）
+
+    private final int channels;
+    private final int window;       // 滑动窗口L（帧）
+    private final int delay;        // 信号延迟L-1（帧）
+    private final float release;    // 恢复系数
+
+    private volatile float ceiling = 0.98f;     // 输出上限（线性）
+    private volatile float inputGain = 1f;      // 输入增益（按音轨峰值预留余量）
+
+    private final float[] delayLine;    // 信号延迟线（交错）
+    private int delayIndex = 0;         // 延迟线读写位置（帧）
+
+    private float deficit = 0;          // 1减去目标增益（立即增大、指数减小），用差值计算避免接近1时精度不够卡住
+    private final float[] minValues;    // 滑动最小值的单调队列（值递增）
+    private final int[] minPositions;   // 队列中各值的位置
+    private int minHead = 0;
+    private int minCount = 0;
+    private final float[] holdRing;     // 最近L个滑动最小值（滑动平均用）
+    private int holdIndex = 0;
+    private double holdSum;             // holdRing 之和
+    private int position = 0;           // 已处理的帧数（只用于队列中的位置差，溢出回绕不影响）
+    private int calmFrames;             // 连续没有衰减的帧数，超过2L时状态全为1，可以走快速路径
+
+    private volatile float gainReductionDb = 0; // 最近一块的最大衰减（显示用）
+
+    /**
+     * @param sampleRate
+     * @param channels
+     */
+    public Limiter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.window = Math.max(2, Math.round(sampleRate * LOOKAHEAD_MS / 1000));
+        this.delay = window - 1;
+        this.release = (float) Math.exp(-1000.0 / (RELEASE_MS * sampleRate));
+        this.delayLine = new float[delay * channels];
+        this.minValues = new float[window];
+        this.minPositions = new int[window];
+        this.holdRing = new float[window];
+        reset();
+    }
+
+    /**
+     * 设置输出上限，可以在任意线程调用
+     *
+     * @param ceilingDb dBFS，不超过0
+     */
+    public void setCeilingDb(float ceilingDb) {
+        this.ceiling = (float) Math.pow(10, Math.min(0, ceilingDb) / 20);
+    }
+
+    /**
+     * 设置输入增益，可以在任意线程调用
+     *
+     * @param inputGain 1为不变
+     */
+    public void setInputGain(float inputGain) {
+        this.inputGain = inputGain;
+    }
+
+    public float getInputGain() {
+        return inputGain;
+    }
+
+    /**
+     * 按各音轨的峰值和增益预留余量：所有音轨同时达到峰值时也不超过上限，最多衰减 maxReductionDb，
+     * 剩下的由限幅器处理（各音轨峰值同时出现的情况很少，全部预留会让整体音量太小）
+     *
+     * @param peaks          各音轨峰值（线性，1为满幅）
+     * @param gains          各音轨增益
+     * @param maxReductionDb 最多预留的余量（分贝，正数）
+     * @return 输入增益，同时已经设置
+     */
+    public float setHeadroom(float[] peaks, float[] gains, float maxReductionDb) {
+        float sum = 0;
+        for (int i = 0; i < peaks.length; i++) {
+            sum += peaks[i] * gains[i];
+        }
+        float minGain = (float) Math.pow(10, -maxReductionDb / 20);
+        float gain = sum <= ceiling ? 1 : Math.max(minGain, ceiling / sum);
+        setInputGain(gain);
+        return gain;
+    }
+
+    /**
+     * 延迟（帧）
+     *
+     * @return
+     */
+    public int getLatencyFrames() {
+        return delay;
+    }
+
+    /**
+     * 最近一块的最大衰减（分贝，正数）
+     *
+     * @return
+     */
+    public float getGainReductionDb() {
+        return gainReductionDb;
+    }
+
+    /**
+     * 原地处理交错采样（输出比输入延迟 getLatencyFrames() 帧）
+     *
+     * @param buffer
+     * @param size   采样数（声道数的整数倍）
+     */
+    public void process(float[] buffer, int size) {
+        int frames = size / channels;
+        float gain = inputGain;
+        float limit = ceiling;
+        float peak = 0;
+        for (int i = 0; i < size; i++) {
+            float value = buffer[i] * gain;
+            buffer[i] = value;
+            peak = Math.max(peak, Math.abs(value));
+        }
+        if (calmFrames >= 2 * window && peak <= limit) {
+            swapDelay(buffer, frames);  // 快速路径：只延迟
+            gainReductionDb = 0;
+        } else {
+            limit(buffer, frames, limit);
+        }
+    }
+
+    /**
+     * 信号与延迟线交换，分段处理回绕，循环内没有分支
+     */
+    private void swapDelay(float[] buffer, int frames) {
+        int done = 0;
+        while (done < frames) {
+            int count = Math.min(frames - done, delay - delayIndex);
+            int line = delayIndex * channels;
+            int base = done * channels;
+            for (int i = 0; i < count * channels; i++) {
+                float temp = delayLine[line + i];
+                delayLine[line + i] = buffer[base + i];
+                buffer[base + i] = temp;
+            }
+            done += count;
+            delayIndex += count;
+            if (delayIndex == delay) {
+                delayIndex = 0;
+            }
+        }
+    }
+
+    private void limit(float[] buffer, int frames, float limit) {
+        float minGain = 1;
+        float inverseWindow = 1f / window;
+        for (int f = 0; f < frames; f++) {
+            int base = f * channels;
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                peak = Math.max(peak, Math.abs(buffer[base + c]));
+            }
+            // 目标增益：超过上限时立即下降，否则指数恢复到1
+            float target = limit / Math.max(peak, limit);
+            float decayed = deficit * release;
+            deficit = Math.max(1 - target, decayed > UNITY_SNAP ? decayed : 0);
+            float recovering = 1 - deficit;
+            calmFrames = deficit > 0 ? 0 : calmFrames + 1;
+
+            // 滑动最小值（单调队列），先移出窗口外的再加入，队列不超过L项
+            if (minCount > 0 && position - minPositions[minHead] >= window) {
+                minHead = (minHead + 1) % window;
+                minCount--;
+            }
+            while (minCount > 0 && minValues[(minHead + minCount - 1) % window] >= recovering) {
+                minCount--;
+            }
+            int tail = (minHead + minCount) % window;
+            minValues[tail] = recovering;
+            minPositions[tail] = position;
+            minCount++;
+            float hold = minValues[minHead];
+
+            // 滑动平均
+            holdSum += hold - holdRing[holdIndex];
+            holdRing[holdIndex] = hold;
+            holdIndex = holdIndex + 1 == window ? 0 : holdIndex + 1;
+            float smooth = Math.min(1, (float) (holdSum * inverseWindow));
+            minGain = Math.min(minGain, smooth);
+            position++;
+
+            // 延迟输出
+            int line = delayIndex * channels;
+            for (int c = 0; c < channels; c++) {
+                float temp = delayLine[line + c];
+                delayLine[line + c] = buffer[base + c];
+                buffer[base + c] = temp * smooth;
+            }
+            delayIndex = delayIndex + 1 == delay ? 0 : delayIndex + 1;
+        }
+        if (calmFrames >= 2 * window) {
+            holdSum = window;   // 状态全为1，消除累加误差
+        }
+        gainReductionDb = (float) (-20 * Math.log10(minGain));
+    }
+
+    /**
+     * 清空状态（跳转后调用）
+     */
+    public void reset() {
+        for (int i = 0; i < delayLine.length; i++) {
+            delayLine[i] = 0;
+        }
+        for (int i = 0; i < window; i++) {
+            holdRing[i] = 1;
+        }
+        delayIndex = 0;
+        deficit = 0;
+        minHead = 0;
+        minCount = 0;
+        holdIndex = 0;
+        holdSum = window;
+        position = 0;
+        calmFrames = 2 * window;
+        gainReductionDb = 0;
+    }
+}
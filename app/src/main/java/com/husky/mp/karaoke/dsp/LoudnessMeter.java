@@ -0,0 +1,240 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 响度测量（EBU R128 / ITU-R BS.1770-4）
+ * <p>
+ * 综合响度：K计权（高架预滤波 + RLB高通）后按400毫秒块、75%重叠计算均方值，
+ * 先用-70LUFS绝对门限，再用比平均响度低10LU的相对门限，门限以上的块平均得到综合响度。
+ * 块响度按0.1LU的直方图累计，内存固定，不随歌曲长度增长，相对门限的误差不超过0.1LU。
+ * <p>
+ * 真峰值：4倍过采样（48阶多相FIR）后的最大绝对值，能发现采样点之间的峰值。
+ * <p>
+ * 处理过程不分配内存
+ */
+public class LoudnessMeter {
+
+    private static final double ABSOLUTE_GATE = -70;    // 绝对门限（LUFS）
+    private static final double RELATIVE_GATE = -10;    // 相对门限（LU）
+    private static final double HISTOGRAM_MAX = 5;      // 直方图上限（LUFS）
+    private static final double HISTOGRAM_STEP = 0.1;   // 直方图精度（LU）
+    private static final int SUB_BLOCKS = 4;            // 每个400毫秒块由4个100毫秒子块组成
+
+    private static final int OVERSAMPLE = 4;            // 真峰值过采样倍数
+    private static final int PHASE_TAPS = 12;           // 每个相位的阶数
+
+    private final int channels;
+    private final int subBlockFrames;   // 100毫秒的帧数
+
+    // K计权的两级二阶滤波器系数（两级合并后每声道4个状态）
+    private final double pb0, pb1, pb2, pa1, pa2;
+    private final double rb0, rb1, rb2, ra1, ra2;
+    private final double[] state;       // [声道 * 4]
+
+    private double subBlockEnergy = 0;  // 当前子块的计权平方和（各声道相加）
+    private int subBlockFill = 0;       // 当前子块已有的帧数
+    private final double[] recentEnergy = new double[SUB_BLOCKS];   // 最近几个子块的能量
+    private int subBlockCount = 0;      // 已完成的子块数
+
+    private final long[] histogramCount;    // 各响度区间的块数
+    private final double[] histogramEnergy; // 各响度区间的块能量之和
+
+    private final float[] phases;       // 过采样滤波器 [相位 * PHASE_TAPS + k]
+    private final float[] history;      // 各声道最近的输入 [声道 * PHASE_TAPS + k]
+    private int historyIndex = 0;
+    private float truePeak = 0;
+    private float samplePeak = 0;
+    private long frames = 0;
+
+    /**
+     * @param sampleRate
+     * @param channels   只支持单声道和立体声的声道权重（都为1）
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        this.subBlockFrames = sampleRate / 10;
+
+        // 预滤波（高架，模拟头部的声学效应），系数按任意采样率换算
+        double f0 = 1681.974450955533;
+        double gain = 3.999843853973347;
+        double q = 0.7071752369554196;
+        double k = Math.tan(Math.PI * f0 / sampleRate);
+        double vh = Math.pow(10, gain / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        pb0 = (vh + vb * k / q + k * k) / a0;
+        pb1 = 2 * (k * k - vh) / a0;
+        pb2 = (vh - vb * k / q + k * k) / a0;
+        pa1 = 2 * (k * k - 1) / a0;
+        pa2 = (1 - k / q + k * k) / a0;
+
+        // RLB高通
+        f0 = 38.13547087602444;
+        q = 0.5003270373238773;
+        k = Math.tan(Math.PI * f0 / sampleRate);
+        a0 = 1 + k / q + k * k;
+        rb0 = 1;
+        rb1 = -2;
+        rb2 = 1;
+        ra1 = 2 * (k * k - 1) / a0;
+        ra2 = (1 - k / q + k * k) / a0;
+        state = new double[channels * 4];
+
+        int bins = (int) Math.round((HISTOGRAM_MAX - ABSOLUTE_GATE) / HISTOGRAM_STEP);
+        histogramCount = new long[bins];
+        histogramEnergy = new double[bins];
+
+        // 过采样低通：截止在原采样率的奈奎斯特频率，Hann窗
+        int taps = OVERSAMPLE * PHASE_TAPS;
+        float[] filter = new float[taps];
+        double centre = (taps - 1) / 2.0;
+        double sum = 0;
+        for (int n = 0; n < taps; n++) {
+            double x = (n - centre) / OVERSAMPLE;
+            double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+            double window = 0.5 - 0.5 * Math.cos(2 * Math.PI * (n + 0.5) / taps);
+            filter[n] = (float) (sinc * window);
+            sum += filter[n];
+        }
+        phases = new float[taps];
+        for (int p = 0; p < OVERSAMPLE; p++) {
+            for (int j = 0; j < PHASE_TAPS; j++) {
+                phases[p * PHASE_TAPS + j] = (float) (filter[p + j * OVERSAMPLE] * OVERSAMPLE / sum);
+            }
+        }
+        history = new float[channels * PHASE_TAPS];
+    }
+
+    /**
+     * 处理16位交错采样
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数
+     */
+    public void process(short[] buffer, int offset, int size) {
+        int end = offset + size - size % channels;
+        for (int i = offset; i < end; i += channels) {
+            double energy = 0;
+            for (int c = 0; c < channels; c++) {
+                float x = buffer[i + c] / 32768f;
+                // 两级二阶滤波（转置直接II型）
+                int s = c * 4;
+                double y = pb0 * x + state[s];
+                state[s] = pb1 * x - pa1 * y + state[s + 1];
+                state[s + 1] = pb2 * x - pa2 * y;
+                double z = rb0 * y + state[s + 2];
+                state[s + 2] = rb1 * y - ra1 * z + state[s + 3];
+                state[s + 3] = rb2 * y - ra2 * z;
+                energy += z * z;
+
+                history[c * PHASE_TAPS + historyIndex] = x;
+                samplePeak = Math.max(samplePeak, Math.abs(x));
+            }
+            subBlockEnergy += energy;
+            if (++subBlockFill == subBlockFrames) {
+                endSubBlock();
+            }
+            updateTruePeak();
+            historyIndex = historyIndex + 1 == PHASE_TAPS ? 0 : historyIndex + 1;
+            frames++;
+        }
+    }
+
+    private void updateTruePeak() {
+        float peak = truePeak;
+        for (int c = 0; c < channels; c++) {
+            int base = c * PHASE_TAPS;
+            for (int p = 0; p < OVERSAMPLE; p++) {
+                int tap = p * PHASE_TAPS;
+                float sum = 0;
+                int index = historyIndex;
+                for (int j = 0; j < PHASE_TAPS; j++) {  // 从最新的输入往前
+                    sum += phases[tap + j] * history[base + index];
+                    index = index == 0 ? PHASE_TAPS - 1 : index - 1;
+                }
+                peak = Math.max(peak, Math.abs(sum));
+            }
+        }
+        truePeak = peak;
+    }
+
+    private void endSubBlock() {
+        recentEnergy[subBlockCount % SUB_BLOCKS] = subBlockEnergy;
+        subBlockCount++;
+        subBlockEnergy = 0;
+        subBlockFill = 0;
+        if (subBlockCount < SUB_BLOCKS) {
+            return;
+        }
+        double sum = 0;
+        for (int i = 0; i < SUB_BLOCKS; i++) {
+            sum += recentEnergy[i];
+        }
+        double meanSquare = sum / (SUB_BLOCKS * subBlockFrames);
+        double loudness = toLufs(meanSquare);
+        if (loudness < ABSOLUTE_GATE) {
+            return;
+        }
+        int bin = (int) ((loudness - ABSOLUTE_GATE) / HISTOGRAM_STEP);
+        bin = Math.min(bin, histogramCount.length - 1);
+        histogramCount[bin]++;
+        histogramEnergy[bin] += meanSquare;
+    }
+
+    private static double toLufs(double meanSquare) {
+        return -0.691 + 10 * Math.log10(meanSquare);
+    }
+
+    /**
+     * 综合响度
+     *
+     * @return LUFS，没有超过绝对门限的块时为 Double.NEGATIVE_INFINITY
+     */
+    public double getIntegratedLoudness() {
+        long count = 0;
+        double energy = 0;
+        for (int i = 0; i < histogramCount.length; i++) {
+            count += histogramCount[i];
+            energy += histogramEnergy[i];
+        }
+        if (count == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double threshold = toLufs(energy / count) + RELATIVE_GATE;
+        int first = (int) Math.max(0, Math.ceil((threshold - ABSOLUTE_GATE) / HISTOGRAM_STEP - 0.5));
+        count = 0;
+        energy = 0;
+        for (int i = first; i < histogramCount.length; i++) {
+            count += histogramCount[i];
+            energy += histogramEnergy[i];
+        }
+        return count == 0 ? Double.NEGATIVE_INFINITY : toLufs(energy / count);
+    }
+
+    /**
+     * 真峰值
+     *
+     * @return 线性，1为满幅
+     */
+    public float getTruePeak() {
+        return Math.max(truePeak, samplePeak);
+    }
+
+    /**
+     * 采样峰值
+     *
+     * @return 线性，1为满幅
+     */
+    public float getSamplePeak() {
+        return samplePeak;
+    }
+
+    /**
+     * 已处理的帧数
+     *
+     * @return
+     */
+    public long getFrames() {
+        return frames;
+    }
+}
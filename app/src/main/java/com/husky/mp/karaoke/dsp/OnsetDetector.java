@@ -0,0 +1,145 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 起音强度（频谱通量）
+ * <p>
+ * 输入降采样到 11kHz 左右，每 128 个采样（约12毫秒）对最近 1024 个采样做一次变换，
+ * 幅度谱取对数压缩后与上一帧相减，只累加增加的部分：鼓点、拨弦等起音处能量突然增加，强度出现尖峰，
+ * 持续的音符和混响没有贡献。结果是固定帧率的起音强度包络，用于估计速度和节拍（见 BeatAnalyzer）。
+ * <p>
+ * 所有缓冲在创建时分配，每帧不分配内存，结果通过 OnOnsetListener 以基本类型回调
+ */
+public class OnsetDetector {
+
+    private static final int TARGET_RATE = 11025;   // 分析用的采样率
+    private static final int WINDOW_SIZE = 1024;
+    private static final int HOP_SIZE = 128;
+    private static final float COMPRESSION = 100f;  // 对数压缩 log(1 + C|X|)
+
+    private final int sampleRate;
+    private final int channels;
+    private final int decimation;   // 降采样倍数
+    private final int analysisRate;
+
+    private final FFT fft = new FFT(WINDOW_SIZE);
+    private final float[] hann = FFT.hann(WINDOW_SIZE);
+    private final float[] window = new float[WINDOW_SIZE];
+    private final float[] re = new float[WINDOW_SIZE];
+    private final float[] im = new float[WINDOW_SIZE];
+    private final float[] previous = new float[WINDOW_SIZE / 2 + 1];   // 上一帧的压缩幅度谱
+    private boolean hasPrevious = false;
+
+    private int filled = 0;
+    private float accumulated = 0;
+    private int accumulatedCount = 0;
+    private int frame = 0;          // 下一帧的序号
+
+    private OnOnsetListener onOnsetListener;
+
+    /**
+     * @param sampleRate 输入采样率
+     * @param channels   输入声道数
+     */
+    public OnsetDetector(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.decimation = Math.max(1, sampleRate / TARGET_RATE);
+        this.analysisRate = sampleRate / decimation;
+    }
+
+    public void setOnOnsetListener(OnOnsetListener onOnsetListener) {
+        this.onOnsetListener = onOnsetListener;
+    }
+
+    /**
+     * 每秒的帧数
+     *
+     * @return
+     */
+    public float getFrameRate() {
+        return (float) analysisRate / HOP_SIZE;
+    }
+
+    /**
+     * 某一帧的时间（窗口中心，微秒）
+     *
+     * @param frame
+     * @return
+     */
+    public long getFrameTimeUs(int frame) {
+        long sample = ((long) frame * HOP_SIZE + WINDOW_SIZE / 2) * decimation;
+        return sample * 1_000_000L / sampleRate;
+    }
+
+    /**
+     * 已经输出的帧数
+     *
+     * @return
+     */
+    public int getFrameCount() {
+        return frame;
+    }
+
+    /**
+     * 送入16位交错采样
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数（声道数的整数倍）
+     */
+    public void process(short[] buffer, int offset, int size) {
+        for (int i = offset; i + channels <= offset + size; i += channels) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += buffer[i + c];
+            }
+            // 降采样前取平均，起到简单的低通作用
+            accumulated += sum / (channels * 32768f);
+            if (++accumulatedCount < decimation) {
+                continue;
+            }
+            window[filled++] = accumulated / decimation;
+            accumulated = 0;
+            accumulatedCount = 0;
+            if (filled == WINDOW_SIZE) {
+                analyze();
+                System.arraycopy(window, HOP_SIZE, window, 0, WINDOW_SIZE - HOP_SIZE);
+                filled = WINDOW_SIZE - HOP_SIZE;
+            }
+        }
+    }
+
+    private void analyze() {
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            re[i] = window[i] * hann[i];
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+        float flux = 0;
+        float scale = 2f / WINDOW_SIZE;
+        for (int k = 1; k <= WINDOW_SIZE / 2; k++) {
+            float magnitude = (float) Math.sqrt(re[k] * re[k] + im[k] * im[k]) * scale;
+            float compressed = (float) Math.log(1 + COMPRESSION * magnitude);
+            if (hasPrevious && compressed > previous[k]) {
+                flux += compressed - previous[k];
+            }
+            previous[k] = compressed;
+        }
+        hasPrevious = true;
+        if (onOnsetListener != null) {
+            onOnsetListener.onOnset(frame, flux);
+        }
+        frame++;
+    }
+
+    /**
+     * 起音强度回调接口（在 process 所在线程中回调）
+     */
+    public interface OnOnsetListener {
+        /**
+         * @param frame    帧序号（时间见 getFrameTimeUs）
+         * @param strength 起音强度（≥0）
+         */
+        void onOnset(int frame, float strength);
+    }
+}
@@ -0,0 +1,317 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 实时音高检测（YIN）
+ * <p>
+ * 输入单声道或交错多声道的16位采样，内部降采样到22kHz左右，每隔约10毫秒（约100Hz）对最近约46毫秒的窗口计算一次音高。
+ * YIN的差分函数 d(τ) = Σx²(j) + Σx²(j+τ) - 2Σx(j)x(j+τ)，其中互相关项通过FFT计算（前半窗口与整个窗口打包成一次复数变换），
+ * 能量项用滑动求和，复杂度从 O(W²) 降到 O(W logW)。
+ * <p>
+ * 所有缓冲在创建时分配，每帧不分配内存，结果通过 OnPitchListener 以基本类型回调
+ */
+public class PitchDetector {
+
+    public static final float DEFAULT_MIN_FREQUENCY = 60f;      // 默认最低频率（男低音）
+    public static final float DEFAULT_MAX_FREQUENCY = 1200f;    // 默认最高频率（女高音）
+
+    private static final int TARGET_RATE = 22050;   // 分析用的采样率
+    private static final int FRAME_RATE = 100;      // 每秒输出的音高数
+    private static final float THRESHOLD = 0.15f;   // YIN绝对阈值
+    private static final float VOICED_THRESHOLD = 0.45f;    // 归一化差分超过该值认为没有音高
+    private static final float SILENCE = 1e-5f;     // 静音阈值（均方）
+
+    private final int sampleRate;   // 输入采样率
+    private final int channels;     // 输入声道数
+    private final int decimation;   // 降采样倍数
+    private final int analysisRate; // 分析采样率
+    private final int windowSize;   // 窗口大小（2的幂）
+    private final int hopSize;      // 每隔多少个采样计算一次
+    private final int minLag;       // 最小周期（对应最高频率）
+    private final int maxLag;       // 最大周期（对应最低频率）
+
+    private final FFT fft;
+    private final float[] window;   // 最近一个窗口的数据
+    private final float[] re;
+    private final float[] im;
+    private final float[] cross;    // 互相关项
+    private final float[] difference;   // 累积均值归一化差分函数
+
+    private int filled = 0;         // 窗口中已有的采样数
+    private int sinceLast = 0;      // 距离上次计算的采样数
+    private float accumulated = 0;  // 降采样累加值
+    private int accumulatedCount = 0;
+    private long analyzedSamples = 0;   // 已经送入窗口的采样数（分析采样率）
+
+    private float frequency = 0;    // 最近一次的音高（Hz），0表示没有音高
+    private float confidence = 0;   // 最近一次的置信度（0~1）
+
+    private OnPitchListener onPitchListener;
+
+    public PitchDetector(int sampleRate, int channels) {
+        this(sampleRate, channels, DEFAULT_MIN_FREQUENCY, DEFAULT_MAX_FREQUENCY);
+    }
+
+    /**
+     * @param sampleRate   输入采样率
+     * @param channels     输入声道数
+     * @param minFrequency 最低频率
+     * @param maxFrequency 最高频率
+     */
+    public PitchDetector(int sampleRate, int channels, float minFrequency, float maxFrequency) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.decimation = Math.max(1, sampleRate / TARGET_RATE);
+        this.analysisRate = sampleRate / decimation;
+        this.hopSize = Math.max(1, analysisRate / FRAME_RATE);
+
+        // 窗口至少包含两个最低频率的周期
+        int lag = (int) Math.ceil(analysisRate / minFrequency);
+        int size = 256;
+        while (size < lag * 2 + 2) {
+            size <<= 1;
+        }
+        this.windowSize = size;
+        this.maxLag = Math.min(lag, windowSize / 2 - 1);
+        this.minLag = Math.max(2, (int) (analysisRate / maxFrequency));
+
+        this.fft = new FFT(windowSize);
+        this.window = new float[windowSize];
+        this.re = new float[windowSize];
+        this.im = new float[windowSize];
+        this.cross = new float[windowSize / 2];
+        this.difference = new float[windowSize / 2];
+    }
+
+    /**
+     * 送入16位交错采样
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数（声道数的整数倍）
+     */
+    public void process(short[] buffer, int offset, int size) {
+        for (int i = offset; i + channels <= offset + size; i += channels) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                sum += buffer[i + c];
+            }
+            push(sum / (channels * 32768f));
+        }
+    }
+
+    /**
+     * 送入单声道浮点采样（范围-1~1）
+     *
+     * @param buffer
+     * @param offset
+     * @param size
+     */
+    public void process(float[] buffer, int offset, int size) {
+        for (int i = offset; i < offset + size; i++) {
+            push(buffer[i]);
+        }
+    }
+
+    private void push(float sample) {
+        // 降采样前取平均，起到简单的低通作用
+        accumulated += sample;
+        if (++accumulatedCount < decimation) {
+            return;
+        }
+        float value = accumulated / decimation;
+        accumulated = 0;
+        accumulatedCount = 0;
+
+        if (filled < windowSize) {
+            window[filled++] = value;
+        } else {
+            // 窗口满了整体前移一个采样的代价太高，所以按hop批量前移
+            System.arraycopy(window, hopSize, window, 0, windowSize - hopSize);
+            filled = windowSize - hopSize;
+            window[filled++] = value;
+        }
+        analyzedSamples++;
+        if (++sinceLast >= hopSize && filled == windowSize) {
+            sinceLast = 0;
+            detect();
+            if (onPitchListener != null) {
+                // 时间取窗口中心
+                long centerSample = (analyzedSamples - windowSize / 2) * decimation;
+                onPitchListener.onPitch(centerSample * 1_000_000L / sampleRate, frequency, confidence);
+            }
+        }
+    }
+
+    /**
+     * 对当前窗口计算音高
+     */
+    private void detect() {
+        int half = windowSize / 2;
+
+        float energy = 0;
+        for (int i = 0; i < half; i++) {
+            energy += window[i] * window[i];
+        }
+        if (energy / half < SILENCE) {
+            frequency = 0;
+            confidence = 0;
+            return;
+        }
+
+        // 整个窗口放实部，前半窗口放虚部，一次变换得到两个频谱
+        for (int i = 0; i < windowSize; i++) {
+            re[i] = window[i];
+            im[i] = i < half ? window[i] : 0;
+        }
+        fft.forward(re, im);
+        // 互相关 c(τ) = Σ a(j)x(j+τ) 的频谱为 conj(A) * X
+        for (int k = 0; k <= half; k++) {
+            int m = (windowSize - k) & (windowSize - 1);
+            float xr = (re[k] + re[m]) * 0.5f;
+            float xi = (im[k] - im[m]) * 0.5f;
+            float ar = (im[k] + im[m]) * 0.5f;
+            float ai = (re[m] - re[k]) * 0.5f;
+            float cr = ar * xr + ai * xi;
+            float ci = ar * xi - ai * xr;
+            re[k] = cr;
+            im[k] = ci;
+            if (m != k) {   // 实序列的互相关频谱共轭对称
+                re[m] = cr;
+                im[m] = -ci;
+            }
+        }
+        fft.inverse(re, im);
+        for (int tau = 0; tau < half; tau++) {
+            cross[tau] = re[tau];
+        }
+
+        // 差分函数，能量项滑动求和
+        float shifted = energy;
+        difference[0] = 1;
+        float runningSum = 0;
+        for (int tau = 1; tau < half; tau++) {
+            shifted += window[tau + half - 1] * window[tau + half - 1] - window[tau - 1] * window[tau - 1];
+            float d = energy + shifted - 2 * cross[tau];
+            runningSum += d;
+            // 累积均值归一化
+            difference[tau] = runningSum > 0 ? d * tau / runningSum : 1;
+        }
+
+        // 绝对阈值：第一个低于阈值的谷底，没有时取全局最小
+        int best = -1;
+        for (int tau = minLag; tau <= maxLag; tau++) {
+            if (difference[tau] < THRESHOLD) {
+                while (tau + 1 <= maxLag && difference[tau + 1] < difference[tau]) {
+                    tau++;
+                }
+                best = tau;
+                break;
+            }
+        }
+        if (best < 0) {
+            best = minLag;
+            for (int tau = minLag + 1; tau <= maxLag; tau++) {
+                if (difference[tau] < difference[best]) {
+                    best = tau;
+                }
+            }
+        }
+
+        float value = difference[best];
+        if (value > VOICED_THRESHOLD) {
+            frequency = 0;
+            confidence = 1 - Math.min(value, 1);
+            return;
+        }
+
+        // 抛物线插值得到更精确的周期
+        float period = best;
+        if (best > 1 && best < half - 1) {
+            float left = difference[best - 1], right = difference[best + 1];
+            float denominator = left - 2 * value + right;
+            if (denominator != 0) {
+                period += 0.5f * (left - right) / denominator;
+            }
+        }
+        frequency = analysisRate / period;
+        confidence = 1 - value;
+    }
+
+    /**
+     * 清空状态（跳转后调用）
+     */
+    public void reset() {
+        filled = 0;
+        sinceLast = 0;
+        accumulated = 0;
+        accumulatedCount = 0;
+        analyzedSamples = 0;
+        frequency = 0;
+        confidence = 0;
+    }
+
+    /**
+     * 最近一次的音高（Hz），0表示没有音高
+     *
+     * @return
+     */
+    public float getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * 最近一次的置信度（0~1）
+     *
+     * @return
+     */
+    public float getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * 每秒输出的音高数
+     *
+     * @return
+     */
+    public float getFrameRate() {
+        return (float) analysisRate / hopSize;
+    }
+
+    /**
+     * 窗口时长（微秒），即音高相对输入的延迟
+     *
+     * @return
+     */
+    public long getWindowDurationUs() {
+        return (long) windowSize * decimation * 1_000_000L / sampleRate;
+    }
+
+    public void setOnPitchListener(OnPitchListener onPitchListener) {
+        this.onPitchListener = onPitchListener;
+    }
+
+    /**
+     * 频率转MIDI音高（69为A4 440Hz），没有音高时返回0
+     *
+     * @param frequency
+     * @return
+     */
+    public static float toMidi(float frequency) {
+        if (frequency <= 0) {
+            return 0;
+        }
+        return (float) (69 + 12 * Math.log(frequency / 440.0) / Math.log(2));
+    }
+
+    /**
+     * 音高回调接口（在送入数据的线程中回调，不能做耗时操作）
+     */
+    public interface OnPitchListener {
+        /**
+         * @param timeUs     窗口中心相对输入开始的时间（微秒）
+         * @param frequency  音高（Hz），0表示没有音高
+         * @param confidence 置信度（0~1）
+         */
+        void onPitch(long timeUs, float frequency, float confidence);
+    }
+}
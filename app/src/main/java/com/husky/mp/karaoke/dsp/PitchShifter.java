@@ -0,0 +1,146 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 变调不变速（WSOLA + 重采样，流式处理）
+ * <p>
+ * 升高 n 个半音时比例 p = 2^(n/12)：先用 TimeStretcher 按速度 1/p 把音频拉长 p 倍（音高不变），
+ * 再用 Resampler 按比例 p 读取，长度恢复、音高升高 p 倍。平均每帧输入正好产生一帧输出，时长不变。
+ * <p>
+ * 改变音调时比例按 SEMITONES_PER_SECOND 逐块过渡，WSOLA片段之间交叉淡化、重采样相位连续，不会产生爆音。
+ * 增加的延迟有上界，见 getLatencyFrames()。
+ * <p>
+ * 用法：每次 write 不超过 maxBlockFrames 帧（返回实际接受的帧数），read 读取输出。所有缓冲在创建时分配，处理过程不分配内存
+ */
+public class PitchShifter {
+
+    public static final int MAX_SEMITONES = 12;     // 最多升降的半音数
+
+    private static final float SEMITONES_PER_SECOND = 12f;  // 改变音调时的过渡速度
+
+    private final int sampleRate;
+    private final int channels;
+    private final TimeStretcher stretcher;
+    private final Resampler resampler;
+    private final float[] transfer;     // 从 TimeStretcher 搬到 Resampler 的缓冲
+
+    private volatile float targetSemitones = 0; // 目标音调（任意线程设置）
+    private float semitones = 0;        // 当前音调（处理线程使用）
+    private volatile boolean used = false;  // 是否变过调，从未变调时调用方可以直通
+
+    /**
+     * @param sampleRate
+     * @param channels
+     * @param maxBlockFrames 每次写入的最大帧数
+     */
+    public PitchShifter(int sampleRate, int channels, int maxBlockFrames) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.stretcher = new TimeStretcher(sampleRate, channels, maxBlockFrames);
+        this.resampler = new Resampler(channels, maxBlockFrames * 4 + stretcher.getLatencyFrames() * 2);
+        this.transfer = new float[maxBlockFrames * channels];
+    }
+
+    /**
+     * 设置音调，可以在播放过程中调用，会平滑过渡
+     *
+     * @param semitones -MAX_SEMITONES ~ MAX_SEMITONES，0为原调
+     */
+    public void setSemitones(float semitones) {
+        targetSemitones = Math.max(-MAX_SEMITONES, Math.min(MAX_SEMITONES, semitones));
+        if (targetSemitones != 0) {
+            used = true;
+        }
+    }
+
+    /**
+     * 目标音调
+     *
+     * @return
+     */
+    public float getSemitones() {
+        return targetSemitones;
+    }
+
+    /**
+     * 是否变过调，从未变调时不需要经过处理
+     *
+     * @return
+     */
+    public boolean isActive() {
+        return used;
+    }
+
+    /**
+     * 增加的延迟上界（帧）：WSOLA开始输出前需要积累的输入加上插值需要的两帧
+     *
+     * @return
+     */
+    public int getLatencyFrames() {
+        return stretcher.getLatencyFrames() + 2;
+    }
+
+    /**
+     * 写入交错采样
+     *
+     * @param in
+     * @param offset 偏移（采样）
+     * @param frames 帧数，不超过 maxBlockFrames
+     * @return 实际接受的帧数，输出积压时可能小于 frames，剩下的需要读出后再写
+     */
+    public int write(float[] in, int offset, int frames) {
+        int accepted = stretcher.write(in, offset, frames);
+        pump();
+        return accepted;
+    }
+
+    /**
+     * 读取输出
+     *
+     * @param out
+     * @param offset 偏移（采样）
+     * @param frames 最多读取的帧数
+     * @return 实际读取的帧数，输入不够时小于 frames
+     */
+    public int read(float[] out, int offset, int frames) {
+        // 向目标音调过渡
+        float target = targetSemitones;
+        float step = SEMITONES_PER_SECOND * frames / sampleRate;
+        if (semitones < target) {
+            semitones = Math.min(target, semitones + step);
+        } else if (semitones > target) {
+            semitones = Math.max(target, semitones - step);
+        }
+        double ratio = Math.pow(2, semitones / 12.0);
+        stretcher.setTempo((float) (1 / ratio));
+        resampler.setRatio(ratio);
+
+        int produced = resampler.read(out, offset, frames);
+        if (produced < frames) {
+            pump();
+            produced += resampler.read(out, offset + produced * channels, frames - produced);
+        }
+        pump();
+        return produced;
+    }
+
+    /**
+     * 清空状态（跳转后调用）
+     */
+    public void reset() {
+        stretcher.reset();
+        resampler.reset();
+    }
+
+    // 把 TimeStretcher 的输出尽量搬到 Resampler
+    private void pump() {
+        int transferFrames = transfer.length / channels;
+        while (stretcher.getAvailableFrames() > 0) {
+            int count = Math.min(transferFrames, resampler.getFreeFrames());
+            if (count <= 0) {
+                break;
+            }
+            count = stretcher.read(transfer, 0, count);
+            resampler.write(transfer, 0, count);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 可变比例重采样（三次Hermite插值，流式处理）
+ * <p>
+ * 每输出一帧输入位置前进 ratio 帧，比例可以随时改变，插值相位连续，不会产生爆音。
+ * 开始前预先填入一帧静音作为插值历史，第0帧输出正好对应第0帧输入。
+ * 所有缓冲在创建时分配，处理过程不分配内存
+ */
+public class Resampler {
+
+    private final int channels;
+    private final float[] buffer;   // 输入缓冲（交错）
+    private int frames;             // 缓冲中的帧数
+    private double position;        // 下一帧输出在缓冲中的位置
+    private double ratio = 1;       // 每帧输出消耗的输入帧数
+
+    /**
+     * @param channels
+     * @param capacityFrames 输入缓冲容量（帧）
+     */
+    public Resampler(int channels, int capacityFrames) {
+        this.channels = channels;
+        this.buffer = new float[(capacityFrames + 4) * channels];
+        reset();
+    }
+
+    /**
+     * 设置比例
+     *
+     * @param ratio 每帧输出消耗的输入帧数，大于1时音调升高
+     */
+    public void setRatio(double ratio) {
+        this.ratio = ratio;
+    }
+
+    /**
+     * 写入交错采样
+     *
+     * @param in
+     * @param offset 偏移（采样）
+     * @param count  帧数
+     * @return 实际写入的帧数
+     */
+    public int write(float[] in, int offset, int count) {
+        count = Math.min(count, buffer.length / channels - frames);
+        System.arraycopy(in, offset, buffer, frames * channels, count * channels);
+        frames += count;
+        return count;
+    }
+
+    /**
+     * 读取输出，输入不够插值时提前返回
+     *
+     * @param out
+     * @param offset 偏移（采样）
+     * @param count  最多读取的帧数
+     * @return 实际读取的帧数
+     */
+    public int read(float[] out, int offset, int count) {
+        int produced = 0;
+        while (produced < count) {
+            int index = (int) position;
+            if (index + 2 >= frames) {  // 需要后面两帧
+                break;
+            }
+            float t = (float) (position - index);
+            int base = (index - 1) * channels;
+            for (int c = 0; c < channels; c++) {
+                float y0 = buffer[base + c];
+                float y1 = buffer[base + channels + c];
+                float y2 = buffer[base + 2 * channels + c];
+                float y3 = buffer[base + 3 * channels + c];
+                // Catmull-Rom
+                float a = -0.5f * y0 + 1.5f * y1 - 1.5f * y2 + 0.5f * y3;
+                float b = y0 - 2.5f * y1 + 2f * y2 - 0.5f * y3;
+                float d = -0.5f * y0 + 0.5f * y2;
+                out[offset + produced * channels + c] = ((a * t + b) * t + d) * t + y1;
+            }
+            produced++;
+            position += ratio;
+        }
+        // 丢掉用完的输入，保留一帧历史
+        int drop = Math.min((int) position - 1, frames);
+        if (drop > 0) {
+            frames -= drop;
+            System.arraycopy(buffer, drop * channels, buffer, 0, frames * channels);
+            position -= drop;
+        }
+        return produced;
+    }
+
+    /**
+     * 缓冲中还没有用完的输入帧数
+     *
+     * @return
+     */
+    public int getBufferedFrames() {
+        return Math.max(0, frames - (int) position);
+    }
+
+    /**
+     * 剩余容量（帧）
+     *
+     * @return
+     */
+    public int getFreeFrames() {
+        return buffer.length / channels - frames;
+    }
+
+    /**
+     * 清空状态
+     */
+    public void reset() {
+        for (int c = 0; c < channels; c++) {
+            buffer[c] = 0;
+        }
+        frames = 1;
+        position = 1;
+    }
+}
@@ -0,0 +1,136 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 混响（Schroeder/Freeverb 结构）
+ * <p>
+ * 各声道输入相加后送入4个并联的带阻尼反馈梳状滤波器，再经过2个串联的全通滤波器；
+ * 右声道的延迟长度加上 STEREO_SPREAD，左右混响不相关，听起来更宽。延迟长度按44.1kHz给出，其他采样率按比例换算
+ */
+public class Reverb extends AudioEffect {
+
+    private static final int[] COMB_TUNING = {1116, 1188, 1277, 1356};
+    private static final int[] ALLPASS_TUNING = {556, 441};
+    private static final int STEREO_SPREAD = 23;
+    private static final float INPUT_GAIN = 0.03f;
+    private static final float ALLPASS_FEEDBACK = 0.5f;
+
+    // 参数（界面线程写）
+    private volatile float roomSize;
+    private volatile float damping;
+    private volatile float wet;
+
+    private final float[][] combs;      // [声道 * 4 + i]
+    private final int[] combIndex;
+    private final float[] combFilter;   // 梳状滤波器反馈回路中的低通状态
+    private final float[][] allpasses;  // [声道 * 2 + i]
+    private final int[] allpassIndex;
+
+    private float combFeedback;     // 处理线程使用的参数
+    private float damp;
+    private float wetGain;
+
+    /**
+     * @param sampleRate
+     * @param channels
+     */
+    public Reverb(int sampleRate, int channels) {
+        super(sampleRate, channels);
+        float scale = sampleRate / 44100f;
+        combs = new float[channels * COMB_TUNING.length][];
+        combIndex = new int[combs.length];
+        combFilter = new float[combs.length];
+        allpasses = new float[channels * ALLPASS_TUNING.length][];
+        allpassIndex = new int[allpasses.length];
+        for (int c = 0; c < channels; c++) {
+            int spread = c % 2 == 1 ? STEREO_SPREAD : 0;
+            for (int i = 0; i < COMB_TUNING.length; i++) {
+                combs[c * COMB_TUNING.length + i] = new float[Math.round((COMB_TUNING[i] + spread) * scale)];
+            }
+            for (int i = 0; i < ALLPASS_TUNING.length; i++) {
+                allpasses[c * ALLPASS_TUNING.length + i] = new float[Math.round((ALLPASS_TUNING[i] + spread) * scale)];
+            }
+        }
+        setParameters(0.5f, 0.5f, 0.25f);
+    }
+
+    /**
+     * 修改参数，可以在任意线程调用
+     *
+     * @param roomSize 房间大小（0~1），越大混响越长
+     * @param damping  高频阻尼（0~1），越大越闷
+     * @param wet      混响音量（0~1）
+     */
+    public void setParameters(float roomSize, float damping, float wet) {
+        this.roomSize = Math.max(0, Math.min(1, roomSize));
+        this.damping = Math.max(0, Math.min(1, damping));
+        this.wet = Math.max(0, Math.min(1, wet));
+        parametersChanged();
+    }
+
+    @Override
+    protected void updateParameters() {
+        combFeedback = 0.7f + 0.28f * roomSize;
+        damp = 0.4f * damping;
+        wetGain = wet * 3;  // Freeverb 的湿声缩放
+    }
+
+    @Override
+    protected void process(float[] buffer, int frames) {
+        int combCount = COMB_TUNING.length;
+        int allpassCount = ALLPASS_TUNING.length;
+        for (int i = 0; i < frames; i++) {
+            int base = i * channels;
+            float input = 0;
+            for (int c = 0; c < channels; c++) {
+                input += buffer[base + c];
+            }
+            input *= INPUT_GAIN;
+            for (int c = 0; c < channels; c++) {
+                float out = 0;
+                for (int k = c * combCount; k < (c + 1) * combCount; k++) {
+                    float[] comb = combs[k];
+                    int index = combIndex[k];
+                    float delayed = comb[index];
+                    combFilter[k] = delayed + damp * (combFilter[k] - delayed);
+                    comb[index] = input + combFilter[k] * combFeedback;
+                    combIndex[k] = index + 1 == comb.length ? 0 : index + 1;
+                    out += delayed;
+                }
+                for (int k = c * allpassCount; k < (c + 1) * allpassCount; k++) {
+                    float[] allpass = allpasses[k];
+                    int index = allpassIndex[k];
+                    float delayed = allpass[index];
+                    allpass[index] = out + delayed * ALLPASS_FEEDBACK;
+                    out = delayed - out;
+                    allpassIndex[k] = index + 1 == allpass.length ? 0 : index + 1;
+                }
+                buffer[base + c] += out * wetGain;
+            }
+        }
+        // 静音后状态衰减到非规格化数会让运算变慢
+        for (int k = 0; k < combFilter.length; k++) {
+            if (Math.abs(combFilter[k]) < 1e-20f) {
+                combFilter[k] = 0;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (int k = 0; k < combs.length; k++) {
+            float[] comb = combs[k];
+            for (int i = 0; i < comb.length; i++) {
+                comb[i] = 0;
+            }
+            combIndex[k] = 0;
+            combFilter[k] = 0;
+        }
+        for (int k = 0; k < allpasses.length; k++) {
+            float[] allpass = allpasses[k];
+            for (int i = 0; i < allpass.length; i++) {
+                allpass[i] = 0;
+            }
+            allpassIndex[k] = 0;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 变速不变调（WSOLA，流式处理）
+ * <p>
+ * 输出按固定长度的片段拼接：每个片段的名义输入位置按速度前进，在名义位置附近的搜索窗口内找与上一片段结尾最相似的位置，
+ * 片段之间交叉淡化，因此波形连续、音高不变。速度为1时每次都正好找到上一片段的延续，输出与输入一致。
+ * <p>
+ * 第一个片段取搜索窗口中间，开始前预先填入半个搜索窗口的静音，所以输出内容与名义输入位置对齐，误差不超过半个搜索窗口（约7毫秒）。
+ * <p>
+ * 用法：每次 write 不超过 maxBlockFrames 帧，然后 read 直到返回0。所有缓冲在创建时分配，处理过程不分配内存
+ */
+public class TimeStretcher {
+
+    public static final float MIN_TEMPO = 0.5f;
+    public static final float MAX_TEMPO = 2f;
+
+    private static final int SEQUENCE_MS = 40;  // 片段长度
+    private static final int SEEK_MS = 15;      // 搜索窗口
+    private static final int OVERLAP_MS = 8;    // 交叉淡化长度
+    private static final int COARSE_STEP = 4;   // 粗搜索步长，再在最佳位置附近逐个比较
+
+    private final int channels;
+    private final int sequence;     // 片段长度（帧）
+    private final int seek;         // 搜索窗口（帧）
+    private final int overlap;      // 交叉淡化长度（帧）
+
+    private final float[] input;    // 输入缓冲（交错）
+    private int inputFrames;
+    private final float[] output;   // 输出缓冲（交错）
+    private int outputFrames;
+    private int outputRead;
+    private final float[] tail;     // 上一片段结尾（交叉淡化用）
+    private boolean hasTail = false;
+    private final float[] fadeIn;   // 淡入系数
+
+    private float tempo = 1f;       // 速度，大于1变快
+    private float skipFraction = 0; // 名义输入位置的小数部分
+
+    private long inputPosition = 0;     // 已经输出的片段越过的名义输入帧数（不含预先填入的静音）
+    private long outputPosition = 0;    // 已经读出的帧数
+
+    /**
+     * @param sampleRate
+     * @param channels
+     * @param maxBlockFrames 每次写入的最大帧数
+     */
+    public TimeStretcher(int sampleRate, int channels, int maxBlockFrames) {
+        this.channels = channels;
+        this.sequence = sampleRate * SEQUENCE_MS / 1000;
+        this.seek = sampleRate * SEEK_MS / 1000;
+        this.overlap = sampleRate * OVERLAP_MS / 1000;
+
+        int maxSkip = (int) Math.ceil((sequence - overlap) * MAX_TEMPO);
+        int inputCapacity = maxBlockFrames + seek + sequence + maxSkip;
+        this.input = new float[inputCapacity * channels];
+        // 最慢时每帧输入产生两帧输出
+        this.output = new float[(int) (inputCapacity / MIN_TEMPO + sequence) * channels];
+        this.tail = new float[overlap * channels];
+        this.fadeIn = new float[overlap];
+        for (int i = 0; i < overlap; i++) {
+            fadeIn[i] = (i + 0.5f) / overlap;
+        }
+        reset();
+    }
+
+    /**
+     * 设置速度，可以随时调用，从下一个片段开始生效
+     *
+     * @param tempo MIN_TEMPO ~ MAX_TEMPO，1为原速
+     */
+    public void setTempo(float tempo) {
+        this.tempo = Math.max(MIN_TEMPO, Math.min(MAX_TEMPO, tempo));
+    }
+
+    public float getTempo() {
+        return tempo;
+    }
+
+    /**
+     * 写入交错采样并尽量处理
+     *
+     * @param in
+     * @param offset 偏移（采样）
+     * @param frames 帧数，不超过 maxBlockFrames
+     * @return 实际写入的帧数（输出没有读出时可能写不下）
+     */
+    public int write(float[] in, int offset, int frames) {
+        int count = Math.min(frames, input.length / channels - inputFrames);
+        System.arraycopy(in, offset, input, inputFrames * channels, count * channels);
+        inputFrames += count;
+        process();
+        return count;
+    }
+
+    /**
+     * 读取输出
+     *
+     * @param out
+     * @param offset 偏移（采样）
+     * @param frames 最多读取的帧数
+     * @return 实际读取的帧数
+     */
+    public int read(float[] out, int offset, int frames) {
+        int count = Math.min(frames, outputFrames - outputRead);
+        System.arraycopy(output, outputRead * channels, out, offset, count * channels);
+        outputRead += count;
+        outputPosition += count;
+        if (outputRead == outputFrames) {
+            outputRead = 0;
+            outputFrames = 0;
+            process();  // 腾出了输出空间，继续处理积压的输入
+        }
+        return count;
+    }
+
+    /**
+     * 可以读取的帧数
+     *
+     * @return
+     */
+    public int getAvailableFrames() {
+        return outputFrames - outputRead;
+    }
+
+    /**
+     * 开始输出前需要积累的输入帧数（用于推算延迟）
+     *
+     * @return
+     */
+    public int getLatencyFrames() {
+        return sequence + seek / 2;
+    }
+
+    /**
+     * 已经读出的输出对应的名义输入位置（帧），用于播放位置换算
+     *
+     * @return
+     */
+    public long getInputPosition() {
+        // 还没读出的输出按当前速度折算回输入
+        return inputPosition - (long) ((outputFrames - outputRead) * tempo);
+    }
+
+    /**
+     * 已经读出的帧数
+     *
+     * @return
+     */
+    public long getOutputPosition() {
+        return outputPosition;
+    }
+
+    /**
+     * 清空状态（跳转后调用）
+     */
+    public void reset() {
+        // 预先填入半个搜索窗口的静音，第一个片段取窗口中间正好从真正的输入开始
+        inputFrames = seek / 2;
+        for (int i = 0; i < inputFrames * channels; i++) {
+            input[i] = 0;
+        }
+        outputFrames = 0;
+        outputRead = 0;
+        hasTail = false;
+        skipFraction = 0;
+        inputPosition = 0;
+        outputPosition = 0;
+    }
+
+    private void process() {
+        while (step()) {
+        }
+    }
+
+    /**
+     * 输出一个片段
+     *
+     * @return 输入不够或输出已满时返回false
+     */
+    private boolean step() {
+        int produce = sequence - overlap;
+        float next = skipFraction + produce * tempo;
+        int skip = (int) next;
+        if (inputFrames < Math.max(seek + sequence, skip) || output.length / channels - outputFrames < produce) {
+            return false;
+        }
+        skipFraction = next - skip;
+
+        int best = hasTail ? bestOffset() : seek / 2;
+        int in = best * channels;
+        int out = outputFrames * channels;
+        int overlapSamples = overlap * channels;
+        if (hasTail) {  // 与上一片段结尾交叉淡化
+            for (int i = 0; i < overlapSamples; i++) {
+                float w = fadeIn[i / channels];
+                output[out + i] = tail[i] + (input[in + i] - tail[i]) * w;
+            }
+        } else {
+            System.arraycopy(input, in, output, out, overlapSamples);
+        }
+        System.arraycopy(input, in + overlapSamples, output, out + overlapSamples, (sequence - 2 * overlap) * channels);
+        System.arraycopy(input, in + (sequence - overlap) * channels, tail, 0, overlapSamples);
+        hasTail = true;
+        outputFrames += produce;
+
+        // 名义输入位置前进
+        inputFrames -= skip;
+        System.arraycopy(input, skip * channels, input, 0, inputFrames * channels);
+        inputPosition += skip;
+        return true;
+    }
+
+    /**
+     * 在搜索窗口内找与上一片段结尾最相似的位置（归一化互相关）
+     *
+     * @return
+     */
+    private int bestOffset() {
+        int best = 0;
+        float bestScore = -Float.MAX_VALUE;
+        // 粗搜索的网格经过名义位置（窗口中间），原速时一定能找到完全连续的位置
+        for (int offset = (seek / 2) % COARSE_STEP; offset < seek; offset += COARSE_STEP) {
+            float score = similarity(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        int from = Math.max(0, best - COARSE_STEP + 1);
+        int to = Math.min(seek - 1, best + COARSE_STEP - 1);
+        for (int offset = from; offset <= to; offset++) {
+            float score = similarity(offset);
+            if (score > bestScore) {
+                bestScore = score;
+                best = offset;
+            }
+        }
+        return best;
+    }
+
+    private float similarity(int offset) {
+        int base = offset * channels;
+        float correlation = 0;
+        float energy = 1e-9f;
+        for (int i = 0; i < overlap * channels; i++) {
+            float value = input[base + i];
+            correlation += tail[i] * value;
+            energy += value * value;
+        }
+        return correlation / (float) Math.sqrt(energy);
+    }
+}
@@ -0,0 +1,223 @@
+package com.husky.mp.karaoke.dsp;
+
+/**
+ * 消除人声（立体声，流式处理）
+ * <p>
+ * 录音室混音中人声一般居中，左右声道完全相同，利用这一点从原唱中得到伴奏：
+ * <p>
+ * 1、中置相消（MODE_MID_SIDE）：从左右声道中减去中置声道 (L+R)/2 的中高频部分，保留低频（居中的贝斯和底鼓），
+ * 没有延迟，CPU开销最低，但居中的其他乐器也会被去掉，立体声声像变窄。
+ * <p>
+ * 2、频谱（MODE_SPECTRAL）：短时傅里叶变换（2048点Hann窗，75%重叠）后逐频点比较左右声道，
+ * 只衰减人声频段内左右一致（居中）的频点，保留声像，延迟为一个窗口。
+ * 左右声道打包成一次复数FFT，衰减系数是实数且对称，可以直接乘在打包后的频谱上，逆变换同样只需一次。
+ * <p>
+ * 所有缓冲在创建时分配，处理过程不分配内存
+ */
+public class VocalRemover {
+
+    public static final int MODE_MID_SIDE = 0;     // 中置相消
+    public static final int MODE_SPECTRAL = 1;      // 频谱
+
+    private static final float BASS_CUTOFF = 150f;  // 中置相消保留的低频上限
+    private static final float VOCAL_LOW = 120f;    // 频谱模式处理的人声频段
+    private static final float VOCAL_HIGH = 8000f;
+    private static final float CENTRE_START = 0.8f; // 左右相似度从该值开始衰减
+    private static final float CENTRE_FULL = 0.98f; // 左右相似度达到该值完全衰减
+
+    private static final int FRAME_SIZE = 2048;     // 窗口大小
+    private static final int HOP_SIZE = FRAME_SIZE / 4;
+
+    private final int mode;
+    private volatile float strength = 1f;   // 消除强度（0~1）
+
+    // 中置相消：两级一阶低通
+    private final float lowPass;
+    private float low1 = 0;
+    private float low2 = 0;
+
+    // 频谱模式
+    private FFT fft;
+    private float[] window;         // Hann窗（分析和合成共用）
+    private float[] inLeft;         // 输入窗口
+    private float[] inRight;
+    private float[] outLeft;        // 重叠相加的输出
+    private float[] outRight;
+    private float[] re;
+    private float[] im;
+    private int fill = 0;           // 距离上次变换送入的帧数
+    private int lowBin;             // 人声频段对应的频点范围
+    private int highBin;
+    private float synthesisScale;   // 加窗重叠相加的归一化系数
+
+    /**
+     * @param sampleRate 采样率
+     * @param mode       MODE_MID_SIDE 或 MODE_SPECTRAL
+     */
+    public VocalRemover(int sampleRate, int mode) {
+        this.mode = mode;
+        this.lowPass = (float) Math.exp(-2 * Math.PI * BASS_CUTOFF / sampleRate);
+        if (mode == MODE_SPECTRAL) {
+            fft = new FFT(FRAME_SIZE);
+            window = FFT.hann(FRAME_SIZE);
+            inLeft = new float[FRAME_SIZE];
+            inRight = new float[FRAME_SIZE];
+            outLeft = new float[FRAME_SIZE];
+            outRight = new float[FRAME_SIZE];
+            re = new float[FRAME_SIZE];
+            im = new float[FRAME_SIZE];
+            lowBin = Math.max(1, Math.round(VOCAL_LOW * FRAME_SIZE / sampleRate));
+            highBin = Math.min(FRAME_SIZE / 2, Math.round(VOCAL_HIGH * FRAME_SIZE / sampleRate));
+            float sum = 0;
+            for (int i = 0; i < HOP_SIZE; i++) {    // 每个位置上重叠的窗口平方和
+                for (int j = i; j < FRAME_SIZE; j += HOP_SIZE) {
+                    sum += window[j] * window[j];
+                }
+            }
+            synthesisScale = HOP_SIZE / sum;
+        }
+    }
+
+    /**
+     * 设置消除强度，可以在播放过程中调用
+     *
+     * @param strength 0为不消除，1为完全消除
+     */
+    public void setStrength(float strength) {
+        this.strength = Math.max(0, Math.min(1, strength));
+    }
+
+    /**
+     * 延迟（帧）
+     *
+     * @return
+     */
+    public int getLatencyFrames() {
+        return mode == MODE_SPECTRAL ? FRAME_SIZE : 0;
+    }
+
+    /**
+     * 处理立体声交错采样（原地处理）
+     *
+     * @param buffer
+     * @param offset
+     * @param size   采样数（偶数）
+     */
+    public void process(short[] buffer, int offset, int size) {
+        if (mode == MODE_SPECTRAL) {
+            processSpectral(buffer, offset, size);
+        } else {
+            processMidSide(buffer, offset, size);
+        }
+    }
+
+    private void processMidSide(short[] buffer, int offset, int size) {
+        float amount = strength;
+        for (int i = offset; i + 1 < offset + size; i += 2) {
+            float left = buffer[i];
+            float right = buffer[i + 1];
+            float mid = (left + right) * 0.5f;
+            low1 = mid + lowPass * (low1 - mid);
+            low2 = low1 + lowPass * (low2 - low1);
+            float remove = (mid - low2) * amount;   // 中置声道的中高频
+            buffer[i] = clip(left - remove);
+            buffer[i + 1] = clip(right - remove);
+        }
+    }
+
+    private void processSpectral(short[] buffer, int offset, int size) {
+        int tail = FRAME_SIZE - HOP_SIZE;
+        for (int i = offset; i + 1 < offset + size; i += 2) {
+            inLeft[tail + fill] = buffer[i];
+            inRight[tail + fill] = buffer[i + 1];
+            buffer[i] = clip(outLeft[fill]);
+            buffer[i + 1] = clip(outRight[fill]);
+            if (++fill == HOP_SIZE) {
+                fill = 0;
+                transform();
+            }
+        }
+    }
+
+    /**
+     * 对当前窗口做一次变换、衰减、逆变换并重叠相加
+     */
+    private void transform() {
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            re[i] = inLeft[i] * window[i];
+            im[i] = inRight[i] * window[i];
+        }
+        fft.forward(re, im);
+
+        float amount = strength;
+        for (int k = lowBin; k <= highBin; k++) {
+            int m = FRAME_SIZE - k;
+            // 从打包的频谱中分离左右声道
+            float lr = (re[k] + re[m]) * 0.5f;
+            float li = (im[k] - im[m]) * 0.5f;
+            float rr = (im[k] + im[m]) * 0.5f;
+            float ri = (re[m] - re[k]) * 0.5f;
+            float power = lr * lr + li * li + rr * rr + ri * ri;
+            if (power <= 0) {
+                continue;
+            }
+            // 左右一致时为1，只有一边或不相关时为0，反相时为-1
+            float centre = 2 * (lr * rr + li * ri) / power;
+            float reduction = (centre - CENTRE_START) / (CENTRE_FULL - CENTRE_START);
+            if (reduction <= 0) {
+                continue;
+            }
+            float gain = 1 - amount * Math.min(reduction, 1);
+            re[k] *= gain;
+            im[k] *= gain;
+            if (m != k) {
+                re[m] *= gain;
+                im[m] *= gain;
+            }
+        }
+
+        fft.inverse(re, im);
+
+        // 输出前移一个hop，再叠加本窗口
+        System.arraycopy(outLeft, HOP_SIZE, outLeft, 0, FRAME_SIZE - HOP_SIZE);
+        System.arraycopy(outRight, HOP_SIZE, outRight, 0, FRAME_SIZE - HOP_SIZE);
+        for (int i = FRAME_SIZE - HOP_SIZE; i < FRAME_SIZE; i++) {
+            outLeft[i] = 0;
+            outRight[i] = 0;
+        }
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            float w = window[i] * synthesisScale;
+            outLeft[i] += re[i] * w;
+            outRight[i] += im[i] * w;
+        }
+        System.arraycopy(inLeft, HOP_SIZE, inLeft, 0, FRAME_SIZE - HOP_SIZE);
+        System.arraycopy(inRight, HOP_SIZE, inRight, 0, FRAME_SIZE - HOP_SIZE);
+    }
+
+    /**
+     * 清空状态（跳转后调用）
+     */
+    public void reset() {
+        low1 = 0;
+        low2 = 0;
+        if (mode == MODE_SPECTRAL) {
+            fill = 0;
+            for (int i = 0; i < FRAME_SIZE; i++) {
+                inLeft[i] = 0;
+                inRight[i] = 0;
+                outLeft[i] = 0;
+                outRight[i] = 0;
+            }
+        }
+    }
+
+    private static short clip(float value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
+    }
+}
@@ -1,23 +1,234 @@
 package com.husky.mp.service;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.graphics.drawable.Icon;
+import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 
 import androidx.annotation.Nullable;
 
+import com.husky.mp.KaraokeActivity;
+import com.husky.mp.R;
+import com.husky.mp.karaoke.GaplessPlayer;
+import com.husky.mp.karaoke.MediaInput;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 后台播放服务
+ * <p>
+ * 播放引擎（GaplessPlayer）属于服务而不是界面，界面退出后继续播放。
+ * 界面通过 bindService 取得 LocalBinder 操作播放队列；开始播放时服务进入前台并显示媒体通知，
+ * 通知上的按钮用 startService 发送 ACTION_* 控制播放。
+ * 队列播放完或停止后退出前台，没有界面绑定时服务自行停止
+ */
 public class HuskyMPService extends Service {
 
-//    public static final String ACTION_
+    public static final String ACTION_PAUSE = "com.husky.mp.action.PAUSE";
+    public static final String ACTION_RESUME = "com.husky.mp.action.RESUME";
+    public static final String ACTION_STOP = "com.husky.mp.action.STOP";
+
+    private static final String CHANNEL_ID = "playback";
+    private static final int NOTIFICATION_ID = 1;
+
+    private final LocalBinder binder = new LocalBinder();
+    private GaplessPlayer player;
+    private NotificationManager notificationManager;
+    private boolean bound = false;      // 是否有界面绑定
+    private boolean foreground = false; // 是否在前台（显示着通知）
+    private MediaInput playing;         // 正在播放的歌曲，通知中显示
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationManager.createNotificationChannel(
+                    new NotificationChannel(CHANNEL_ID, "播放", NotificationManager.IMPORTANCE_LOW));
+        }
+        player = createPlayer();
+    }
+
+    private GaplessPlayer createPlayer() {
+        GaplessPlayer player = new GaplessPlayer();
+        player.addOnQueueListener(new GaplessPlayer.OnQueueListener() {
+            @Override
+            public void onTrackChanged(int index, MediaInput input, long gapUs) {
+                playing = input;
+                updateNotification();
+            }
+
+            @Override
+            public void onQueueEnded() {
+                stopPlayback();
+            }
+
+            @Override
+            public void onError(MediaInput input, IOException e) {
+            }
+        });
+        return player;
+    }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        bound = true;
+        return binder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        bound = false;
+        return true;    // 再次绑定时调用 onRebind
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        bound = true;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        return super.onStartCommand(intent, flags, startId);
+        String action = intent == null ? null : intent.getAction();
+        if (ACTION_PAUSE.equals(action)) {
+            player.pause();
+            updateNotification();
+        } else if (ACTION_RESUME.equals(action)) {
+            player.resume();
+            updateNotification();
+        } else if (ACTION_STOP.equals(action)) {
+            // 释放后不能再使用，界面可能还绑定着，换成新的播放器（保留队列和设置）
+            GaplessPlayer stopped = player;
+            stopped.release();
+            player = createPlayer();
+            player.setQueue(stopped.getQueue());
+            player.setCrossfadeUs(stopped.getCrossfadeUs());
+            playing = null;
+            stopPlayback();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        player.release();
+    }
+
+    // 退出前台，没有界面绑定时停止服务
+    private void stopPlayback() {
+        if (foreground) {
+            stopForeground(true);
+            foreground = false;
+        }
+        if (!bound) {
+            stopSelf();
+        }
+    }
+
+    private void updateNotification() {
+        if (foreground) {
+            notificationManager.notify(NOTIFICATION_ID, buildNotification());
+        }
+    }
+
+    /**
+     * 媒体通知：歌名、暂停/继续、停止
+     *
+     * @return
+     */
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = newLegacyBuilder();
+        }
+        boolean paused = player.isPaused();
+        builder.setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(playing == null ? getString(R.string.app_name) : playing.getName())
+                .setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, KaraokeActivity.class),
+                        immutable(0)));
+        addAction(builder, paused ? "继续" : "暂停", actionIntent(paused ? ACTION_RESUME : ACTION_PAUSE));
+        addAction(builder, "停止", actionIntent(ACTION_STOP));
+        return builder.setStyle(new Notification.MediaStyle().setShowActionsInCompactView(0, 1))
+                .setCategory(Notification.CATEGORY_TRANSPORT)
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setShowWhen(false)
+                .setOngoing(!paused)
+                .build();
+    }
+
+    // api < 26 没有通知渠道
+    @SuppressWarnings("deprecation")
+    private Notification.Builder newLegacyBuilder() {
+        return new Notification.Builder(this);
+    }
+
+    // 没有图标的按钮，api >= 23 用 Action.Builder
+    @SuppressWarnings("deprecation")
+    private static void addAction(Notification.Builder builder, CharSequence title, PendingIntent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            builder.addAction(new Notification.Action.Builder((Icon) null, title, intent).build());
+        } else {
+            builder.addAction(0, title, intent);
+        }
+    }
+
+    // api >= 23 声明 PendingIntent 不可修改（api >= 31 必须声明）
+    private static int immutable(int flags) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return flags | PendingIntent.FLAG_IMMUTABLE;
+        }
+        return flags;
+    }
+
+    private PendingIntent actionIntent(String action) {
+        Intent intent = new Intent(this, HuskyMPService.class).setAction(action);
+        return PendingIntent.getService(this, action.hashCode(), intent, immutable(PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    /**
+     * 同一进程内绑定时返回
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * 停止（ACTION_STOP）后会换成新的播放器，每次使用时重新取得
+         *
+         * @return
+         */
+        public GaplessPlayer getPlayer() {
+            return player;
+        }
+
+        /**
+         * 从队列中的指定歌曲开始播放，同时启动服务并进入前台，界面解绑后继续播放
+         *
+         * @param index
+         */
+        public void play(int index) {
+            startService(new Intent(HuskyMPService.this, HuskyMPService.class));
+            player.play(index);
+            List<MediaInput> queue = player.getQueue();
+            playing = index >= 0 && index < queue.size() ? queue.get(index) : null;
+            startForeground(NOTIFICATION_ID, buildNotification());
+            foreground = true;
+        }
+
+        /**
+         * 暂停，通知中显示继续
+         */
+        public void pause() {
+            player.pause();
+            updateNotification();
+        }
     }
 }
@@ -0,0 +1,623 @@
+package com.husky.mp.util;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+/**
+ * assets资源安装器
+ * <p>
+ * 1、在有界的线程池中用 FileChannel.transferFrom 把资源拷贝到临时文件，同步到磁盘后再原子重命名，
+ * 拷贝过程中被杀掉只会留下临时文件，不会留下被截断的目标文件
+ * 2、安装结果记录在目标目录的清单文件中（大小、修改时间、应用版本、内容哈希），
+ * 重启后清单和文件状态一致就直接跳过，不再重复拷贝也不再重新计算哈希
+ * 3、内容在后台低优先级线程中延迟校验：安装的文件与APK中资源本身的MD5一致才记录为已校验，之后以清单中的哈希为准。
+ * 不一致（拷贝损坏、文件被改写）时重新安装一次，重装后仍不一致记录为校验失败，不再重装也不再校验。
+ * 以MD5命名的资源（如 5d4e894aa559b3272a8707a27b3b2323.mp3）的文件名不作为依据，资源本身就可能与名字不一致
+ */
+public class AssetInstaller {
+
+    private static final String TAG = "AssetInstaller";
+
+    private static final String MANIFEST_NAME = ".assets_manifest";   // 清单文件名
+    private static final String TEMP_SUFFIX = ".tmp";   // 临时文件后缀
+    private static final int MAX_CONCURRENCY = 2;       // 同时拷贝的最大数量
+    private static final long TRANSFER_CHUNK = 256 * 1024;  // 每次transferFrom的大小
+
+    private static final Pattern MD5_NAME = Pattern.compile("^[0-9a-fA-F]{32}(\\..*)?$");
+
+    // 校验状态
+    static final int STATE_UNVERIFIED = 0;  // 还没校验
+    static final int STATE_VERIFIED = 1;    // 与资源内容一致
+    static final int STATE_RETRY = 2;       // 不一致后重新安装，还没校验
+    static final int STATE_FAILED = 3;      // 重新安装后仍不一致
+
+    // 所有目录共用的拷贝线程池和校验线程
+    private static final ExecutorService copyExecutor = Executors.newFixedThreadPool(MAX_CONCURRENCY, new PriorityThreadFactory("assetCopy", Process.THREAD_PRIORITY_DEFAULT));
+    private static final ExecutorService verifyExecutor = Executors.newSingleThreadExecutor(new PriorityThreadFactory("assetVerify", Process.THREAD_PRIORITY_BACKGROUND));
+
+    private static final Map<String, AssetInstaller> installers = new HashMap<>();   // 每个目录一个安装器
+
+    private AssetManager assetManager;
+    private File targetDir;     // 安装目录
+    private File manifestFile;  // 清单文件
+    private Properties manifest = new Properties(); // 清单内容：资源名 -> 安装记录
+    private String appVersion;  // 应用版本，应用更新后重新安装
+
+    private final Map<String, List<OnInstallListener>> installing = new HashMap<>();  // 正在安装的资源和等待结果的回调
+    private Handler mainHandler;
+
+    /**
+     * 获取目录对应的安装器
+     *
+     * @param context
+     * @param targetDir 安装目录
+     * @return
+     */
+    public static synchronized AssetInstaller get(Context context, String targetDir) {
+        AssetInstaller installer = installers.get(targetDir);
+        if (installer == null) {
+            installer = new AssetInstaller(context.getApplicationContext(), new File(targetDir));
+            installers.put(targetDir, installer);
+        }
+        return installer;
+    }
+
+    private AssetInstaller(Context context, File targetDir) {
+        this.assetManager = context.getAssets();
+        this.targetDir = targetDir;
+        this.manifestFile = new File(targetDir, MANIFEST_NAME);
+        this.mainHandler = new Handler(Looper.getMainLooper());
+
+        appVersion = getAppVersion(context);
+        loadManifest();
+    }
+
+    /**
+     * 安装包版本（versionCode 和更新时间），assets资源只随安装包变化
+     *
+     * @param context
+     * @return 取不到时为 "0"
+     */
+    public static String getAppVersion(Context context) {
+        try {
+            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            long versionCode;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                versionCode = packageInfo.getLongVersionCode();
+            } else {
+                versionCode = getVersionCodeLegacy(packageInfo);
+            }
+            return versionCode + "-" + packageInfo.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "0";
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getVersionCodeLegacy(PackageInfo packageInfo) {
+        return packageInfo.versionCode;
+    }
+
+    /**
+     * 安装资源到目录下同名文件
+     *
+     * @param assetName
+     * @param onInstallListener 安装结果回调（主线程），可以为null
+     */
+    public void install(String assetName, OnInstallListener onInstallListener) {
+        install(assetName, assetName, onInstallListener);
+    }
+
+    /**
+     * 安装资源
+     *
+     * @param assetName         资源名
+     * @param fileName          目标文件名
+     * @param onInstallListener 安装结果回调（主线程），可以为null，同一文件正在安装时等待这次安装的结果
+     */
+    public void install(String assetName, String fileName, OnInstallListener onInstallListener) {
+        install(assetName, fileName, onInstallListener, STATE_UNVERIFIED);
+    }
+
+    /**
+     * @param state 安装后的校验状态，STATE_RETRY 时不管清单记录都重新拷贝
+     */
+    private void install(final String assetName, final String fileName, OnInstallListener onInstallListener, final int state) {
+        synchronized (installing) {
+            List<OnInstallListener> listeners = installing.get(fileName);
+            if (listeners != null) {
+                Log.d(TAG, "already installing " + fileName);
+                if (onInstallListener != null) {
+                    listeners.add(onInstallListener);
+                }
+                return;
+            }
+            listeners = new ArrayList<>();
+            if (onInstallListener != null) {
+                listeners.add(onInstallListener);
+            }
+            installing.put(fileName, listeners);
+        }
+        copyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File file = new File(targetDir, fileName);
+                IOException error = null;
+                try {
+                    installNow(assetName, file, state);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    error = e;
+                }
+                // 移除后再到来的调用重新开始安装（已安装时直接跳过）
+                final List<OnInstallListener> listeners;
+                synchronized (installing) {
+                    listeners = installing.remove(fileName);
+                }
+                final IOException failure = error;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (OnInstallListener listener : listeners) {
+                            if (failure == null) {
+                                listener.onInstalled(assetName, file);
+                            } else {
+                                listener.onFailed(assetName, failure);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 资源是否已经安装（清单记录与文件状态一致）
+     *
+     * @param fileName
+     * @return
+     */
+    public boolean isInstalled(String fileName) {
+        return readEntry(fileName, new File(targetDir, fileName)) != null;
+    }
+
+    /**
+     * 已经校验过的内容哈希（MD5），还没校验时返回null
+     *
+     * @param fileName
+     * @return
+     */
+    public String getVerifiedHash(String fileName) {
+        Entry entry = readEntry(fileName, new File(targetDir, fileName));
+        return entry != null && entry.state == STATE_VERIFIED ? entry.hash : null;
+    }
+
+    /**
+     * 在当前线程中安装
+     *
+     * @param assetName
+     * @param file
+     * @param state     安装后的校验状态
+     * @throws IOException
+     */
+    private void installNow(String assetName, File file, int state) throws IOException {
+        Entry entry = readEntry(file.getName(), file);
+        if (entry != null && state != STATE_RETRY) {
+            Log.d(TAG, file.getName() + " already installed");
+            if (entry.state == STATE_UNVERIFIED || entry.state == STATE_RETRY) {
+                scheduleVerify(assetName, file);
+            }
+            return;
+        }
+
+        if (!targetDir.exists() && !targetDir.mkdirs()) {
+            throw new IOException("mkdirs fail!-->" + targetDir);
+        }
+
+        long begin = System.nanoTime();
+        File temp = new File(targetDir, file.getName() + TEMP_SUFFIX);
+        if (temp.exists() && !temp.delete()) {  // 上次被中断留下的临时文件
+            throw new IOException("delete temp fail!-->" + temp);
+        }
+
+        long size = copyToTemp(assetName, temp);
+        if (!temp.renameTo(file)) {     // 同一目录下重命名是原子操作
+            temp.delete();
+            throw new IOException("rename fail!-->" + file);
+        }
+
+        entry = new Entry();
+        entry.size = size;
+        entry.modified = file.lastModified();
+        entry.version = appVersion;
+        entry.hash = "";
+        entry.state = state;
+        writeEntry(file.getName(), entry);
+        Log.d(TAG, "installed " + file.getName() + ", size = " + size + ", cost = " + (System.nanoTime() - begin) / 1_000_000 + "ms");
+
+        scheduleVerify(assetName, file);
+    }
+
+    /**
+     * 拷贝资源到临时文件
+     *
+     * @param assetName
+     * @param temp
+     * @return 拷贝的大小
+     * @throws IOException
+     */
+    private long copyToTemp(String assetName, File temp) throws IOException {
+        FileOutputStream fos = null;
+        AssetFileDescriptor assetFileDescriptor = null;
+        ReadableByteChannel source = null;
+        try {
+            fos = new FileOutputStream(temp);
+            FileChannel target = fos.getChannel();
+
+            long length = -1;   // 资源大小，压缩存放的资源无法提前得知
+            try {
+                // 未压缩的资源直接从APK文件的偏移位置开始拷贝
+                assetFileDescriptor = assetManager.openFd(assetName);
+                FileChannel apkChannel = new FileInputStream(assetFileDescriptor.getFileDescriptor()).getChannel();
+                apkChannel.position(assetFileDescriptor.getStartOffset());
+                length = assetFileDescriptor.getLength();
+                source = apkChannel;
+            } catch (IOException e) {
+                // 压缩存放的资源只能以流的方式读取
+                InputStream is = assetManager.open(assetName);
+                source = Channels.newChannel(is);
+            }
+
+            long position = 0;
+            while (length < 0 || position < length) {
+                long chunk = length < 0 ? TRANSFER_CHUNK : Math.min(TRANSFER_CHUNK, length - position);
+                long count = target.transferFrom(source, position, chunk);
+                if (count <= 0) {
+                    break;  // 读到末尾
+                }
+                position += count;
+            }
+            if (length >= 0 && position != length) {
+                throw new IOException("copy incomplete " + position + "/" + length + "-->" + assetName);
+            }
+
+            fos.getFD().sync(); // 确保数据落盘后再重命名
+            return position;
+        } finally {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (assetFileDescriptor != null) {
+                try {
+                    assetFileDescriptor.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 后台校验：文件与资源内容的MD5一致时记录为已校验，不一致时重新安装一次
+     *
+     * @param assetName
+     * @param file
+     */
+    private void scheduleVerify(final String assetName, final File file) {
+        verifyExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry entry = readEntry(file.getName(), file);
+                if (entry == null || entry.state == STATE_VERIFIED || entry.state == STATE_FAILED) {
+                    return;
+                }
+                try {
+                    String hash = md5(file);
+                    String expected = md5Asset(assetName);
+                    if (MD5_NAME.matcher(file.getName()).matches()
+                            && !file.getName().toLowerCase().startsWith(expected)) {
+                        Log.d(TAG, "name does not match asset content " + file.getName() + " = " + expected);
+                    }
+                    Entry current = readEntry(file.getName(), file);
+                    if (current == null || current.modified != entry.modified || current.state != entry.state) {
+                        return;     // 计算过程中文件被重新安装或删除，由新的安装校验
+                    }
+                    entry.hash = hash;
+                    if (hash.equals(expected)) {
+                        entry.state = STATE_VERIFIED;
+                        writeEntry(file.getName(), entry);
+                        Log.d(TAG, "verified " + file.getName() + " = " + hash);
+                    } else if (entry.state == STATE_RETRY) {
+                        // 重新安装后仍不一致（存储有问题），记录失败，不再重装
+                        entry.state = STATE_FAILED;
+                        writeEntry(file.getName(), entry);
+                        Log.e(TAG, "verify fail after reinstall " + file.getName() + " = " + hash + ", expected " + expected);
+                    } else {
+                        Log.w(TAG, "verify fail " + file.getName() + " = " + hash + ", expected " + expected + ", reinstall");
+                        install(assetName, file.getName(), null, STATE_RETRY);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * 计算文件MD5
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static String md5(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return md5(fis.getChannel(), -1);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * 计算资源内容的MD5，未压缩的资源直接读取APK中的那一段
+     *
+     * @param assetName
+     * @return
+     * @throws IOException
+     */
+    private String md5Asset(String assetName) throws IOException {
+        AssetFileDescriptor assetFileDescriptor;
+        try {
+            assetFileDescriptor = assetManager.openFd(assetName);
+        } catch (IOException e) {
+            // 压缩存放的资源只能以流的方式读取
+            InputStream is = assetManager.open(assetName);
+            try {
+                return md5(Channels.newChannel(is), -1);
+            } finally {
+                is.close();
+            }
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(assetFileDescriptor.getFileDescriptor());
+            FileChannel apkChannel = fis.getChannel();
+            apkChannel.position(assetFileDescriptor.getStartOffset());
+            return md5(apkChannel, assetFileDescriptor.getLength());
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
+            assetFileDescriptor.close();
+        }
+    }
+
+    /**
+     * 计算MD5
+     *
+     * @param channel
+     * @param length  读取的大小，-1表示读到末尾
+     * @return
+     * @throws IOException
+     */
+    private static String md5(ReadableByteChannel channel, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long remaining = length < 0 ? Long.MAX_VALUE : length;
+        while (remaining > 0) {
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int count = channel.read(buffer);
+            if (count < 0) {
+                break;
+            }
+            remaining -= count;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 读取清单记录，记录与当前文件状态或应用版本不一致时返回null
+     *
+     * @param fileName
+     * @param file
+     * @return
+     */
+    private Entry readEntry(String fileName, File file) {
+        String value;
+        synchronized (manifest) {
+            value = manifest.getProperty(fileName);
+        }
+        Entry entry = Entry.parse(value);
+        if (entry == null || !appVersion.equals(entry.version)
+                || !file.exists() || file.length() != entry.size || file.lastModified() != entry.modified) {
+            return null;
+        }
+        return entry;
+    }
+
+    private void writeEntry(String fileName, Entry entry) {
+        synchronized (manifest) {
+            manifest.setProperty(fileName, entry.toString());
+            saveManifest();
+        }
+    }
+
+    private void loadManifest() {
+        if (!manifestFile.exists()) {
+            return;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(manifestFile);
+            manifest.load(fis);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            manifest.clear();   // 清单损坏时全部重新安装
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存清单（同样先写临时文件再重命名），调用时需持有manifest锁
+     */
+    private void saveManifest() {
+        if (!targetDir.exists()) {
+            return;
+        }
+        File temp = new File(targetDir, MANIFEST_NAME + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            manifest.store(fos, null);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!temp.renameTo(manifestFile)) {
+                Log.d(TAG, "rename manifest fail!");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 安装记录，格式：大小,修改时间,应用版本,哈希,校验状态
+     */
+    static class Entry {
+        long size;
+        long modified;
+        String version;
+        String hash;
+        int state;
+
+        static Entry parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] fields = value.split(",", -1);
+            if (fields.length != 5) {
+                return null;
+            }
+            try {
+                Entry entry = new Entry();
+                entry.size = Long.parseLong(fields[0]);
+                entry.modified = Long.parseLong(fields[1]);
+                entry.version = fields[2];
+                entry.hash = fields[3];
+                entry.state = Integer.parseInt(fields[4]);
+                return entry;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return size + "," + modified + "," + version + "," + hash + "," + state;
+        }
+    }
+
+    // 设置线程优先级的线程工厂（分析等后台任务也使用）
+    public static class PriorityThreadFactory implements ThreadFactory {
+        private String name;
+        private int priority;
+        private int count = 0;
+
+        public PriorityThreadFactory(String name, int priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        @Override
+        public synchronized Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    r.run();
+                }
+            }, name + "-" + (count++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * 安装结果回调接口
+     */
+    public interface OnInstallListener {
+        void onInstalled(String assetName, File file);
+
+        void onFailed(String assetName, IOException e);
+    }
+}
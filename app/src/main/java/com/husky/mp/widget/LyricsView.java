@@ -0,0 +1,120 @@
+package com.husky.mp.widget;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.husky.mp.karaoke.Lyrics;
+
+/**
+ * 逐字歌词
+ * <p>
+ * 显示当前行和下一行，当前行按逐字时间从左到右变色。播放位置由外部推送（如 PlaybackClock.OnPositionListener），
+ * 位置没有变化时不重绘；行和字用二分查找定位，文字直接从 Lyrics 的char数组绘制，绘制过程不分配内存
+ */
+public class LyricsView extends View {
+
+    private static final float TEXT_SIZE_SP = 20f;
+    private static final float LINE_SPACING = 1.6f;     // 行距（字号的倍数）
+
+    private final Paint normalPaint = new Paint(Paint.ANTI_ALIAS_FLAG);     // 未唱
+    private final Paint highlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);  // 已唱
+    private final Paint nextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);       // 下一行
+
+    private Lyrics lyrics;
+    private long positionUs = 0;    // 歌曲位置（微秒）
+
+    public LyricsView(Context context) {
+        this(context, null);
+    }
+
+    public LyricsView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float textSize = TEXT_SIZE_SP * getResources().getDisplayMetrics().scaledDensity;
+        normalPaint.setTextSize(textSize);
+        normalPaint.setColor(0xFF333333);
+        highlightPaint.setTextSize(textSize);
+        highlightPaint.setColor(0xFF03DAC5);
+        nextPaint.setTextSize(textSize * 0.8f);
+        nextPaint.setColor(0xFF999999);
+    }
+
+    /**
+     * 设置歌词，为null时清空
+     *
+     * @param lyrics
+     */
+    public void setLyrics(Lyrics lyrics) {
+        this.lyrics = lyrics;
+        invalidate();
+    }
+
+    /**
+     * 更新播放位置，位置变化时重绘
+     *
+     * @param positionUs 歌曲位置（微秒）
+     */
+    public void setPositionUs(long positionUs) {
+        if (this.positionUs != positionUs) {
+            this.positionUs = positionUs;
+            if (lyrics != null) {
+                invalidate();
+            }
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        Lyrics current = lyrics;
+        if (current == null || current.getLineCount() == 0) {
+            return;
+        }
+
+        int line = current.findLine(positionUs);
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        float lineHeight = normalPaint.getTextSize() * LINE_SPACING;
+        float baseline = getPaddingTop() + lineHeight - normalPaint.descent();
+        char[] text = current.getText();
+
+        if (line >= 0) {
+            int start = current.getLineTextStart(line);
+            int count = current.getLineTextEnd(line) - start;
+            float lineWidth = normalPaint.measureText(text, start, count);
+            float x = getPaddingLeft() + Math.max(0, (width - lineWidth) / 2);
+            canvas.drawText(text, start, count, x, baseline, normalPaint);
+
+            // 已经唱过的部分：当前字之前的文字加上当前字的进度
+            float sung;
+            if (positionUs >= current.getLineEndUs(line)) {
+                sung = lineWidth;
+            } else {
+                int word = current.findWord(line, positionUs);
+                if (word < 0) {
+                    sung = 0;
+                } else {
+                    int wordStart = current.getWordTextStart(word);
+                    int wordCount = current.getWordTextEnd(word) - wordStart;
+                    sung = normalPaint.measureText(text, start, wordStart - start)
+                            + normalPaint.measureText(text, wordStart, wordCount) * current.getWordProgress(word, positionUs);
+                }
+            }
+            if (sung > 0) {
+                canvas.save();
+                canvas.clipRect(x, baseline - lineHeight, x + sung, baseline + lineHeight);
+                canvas.drawText(text, start, count, x, baseline, highlightPaint);
+                canvas.restore();
+            }
+        }
+
+        int next = line + 1;
+        if (next < current.getLineCount()) {
+            int start = current.getLineTextStart(next);
+            int count = current.getLineTextEnd(next) - start;
+            float x = getPaddingLeft() + Math.max(0, (width - nextPaint.measureText(text, start, count)) / 2);
+            canvas.drawText(text, start, count, x, baseline + lineHeight, next == 0 ? normalPaint : nextPaint);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.husky.mp.widget;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.husky.mp.karaoke.SpectrumTap;
+
+/**
+ * 频谱柱状图
+ * <p>
+ * 显示在窗口上时订阅 SpectrumTap，离开窗口时取消订阅（不显示时分析线程不运行）；
+ * 每次绘制从三缓冲读取最新的频段值，有新帧时才重绘，绘制过程不分配内存
+ */
+public class SpectrumView extends View {
+
+    private static final float GAP_RATIO = 0.2f;    // 柱间距占柱宽的比例
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private SpectrumTap spectrumTap;
+    private long drawnFrame = -1;   // 已经绘制的帧
+
+    public SpectrumView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        paint.setColor(0xFF03DAC5);
+    }
+
+    /**
+     * 设置数据来源，为null时停止显示
+     *
+     * @param spectrumTap
+     */
+    public void setSpectrumTap(SpectrumTap spectrumTap) {
+        if (this.spectrumTap != null && isAttachedToWindow()) {
+            this.spectrumTap.unsubscribe();
+        }
+        this.spectrumTap = spectrumTap;
+        if (spectrumTap != null && isAttachedToWindow()) {
+            spectrumTap.subscribe();
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (spectrumTap != null) {
+            spectrumTap.subscribe();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (spectrumTap != null) {
+            spectrumTap.unsubscribe();
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        SpectrumTap tap = spectrumTap;
+        if (tap == null) {
+            return;
+        }
+        drawnFrame = tap.getFrameCount();
+        float[] bands = tap.read();
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        float barWidth = (float) width / bands.length;
+        float gap = barWidth * GAP_RATIO;
+        float bottom = getPaddingTop() + height;
+        for (int i = 0; i < bands.length; i++) {
+            float left = getPaddingLeft() + i * barWidth;
+            canvas.drawRect(left + gap / 2, bottom - bands[i] * height, left + barWidth - gap / 2, bottom, paint);
+        }
+        // 下一帧刷新时检查是否有新数据，没有就只等待不重绘
+        postOnAnimation(checkFrame);
+    }
+
+    private final Runnable checkFrame = new Runnable() {
+        @Override
+        public void run() {
+            SpectrumTap tap = spectrumTap;
+            if (tap == null || !isAttachedToWindow()) {
+                return;
+            }
+            if (tap.getFrameCount() != drawnFrame) {
+                invalidate();
+            } else {
+                postOnAnimation(this);
+            }
+        }
+    };
+}
@@ -0,0 +1,55 @@
+package com.husky.mp;
+
+import java.lang.reflect.Method;
+
+/**
+ * 统计当前线程分配的内存（HotSpot 的 com.sun.management.ThreadMXBean）
+ * 单元测试编译时使用android.jar，不能直接引用java.lang.management，所以通过反射调用
+ */
+public class AllocationCounter {
+
+    private static final int INFLATION_CALLS = 20;
+
+    private Object threadMXBean;
+    private Method getThreadAllocatedBytes;
+
+    public AllocationCounter() {
+        try {
+            threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            threadMXBean = null;    // 当前虚拟机不支持
+        }
+        // 反射调用超过一定次数（默认15次）后会生成访问类，分配约10KB，先调用足够次数，避免计入测试
+        for (int i = 0; i < INFLATION_CALLS; i++) {
+            allocatedBytes();
+        }
+    }
+
+    /**
+     * 是否支持统计
+     *
+     * @return
+     */
+    public boolean isSupported() {
+        return threadMXBean != null;
+    }
+
+    /**
+     * 当前线程累计分配的字节数，不支持时返回-1
+     *
+     * @return
+     */
+    public long allocatedBytes() {
+        if (threadMXBean == null) {
+            return -1;
+        }
+        try {
+            return (Long) getThreadAllocatedBytes.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
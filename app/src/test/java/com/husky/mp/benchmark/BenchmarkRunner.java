@@ -0,0 +1,26 @@
+package com.husky.mp.benchmark;
+
+import org.junit.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH基准入口，平时跳过，指定 -Pbenchmark=类名（正则）时运行对应的基准
+ * <p>
+ * 例如：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=PitchDetectorBenchmark
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void run() throws Exception {
+        String include = System.getProperty("benchmark");
+        if (include == null || include.isEmpty()) {
+            return;
+        }
+        // 单元测试的类路径不方便传给子进程，在当前进程中运行
+        new Runner(new OptionsBuilder()
+                .include(include)
+                .forks(0)
+                .build()).run();
+    }
+}
@@ -0,0 +1,109 @@
+package com.husky.mp.karaoke;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * assets 数据源测试：资源在文件中间（模拟APK中的偏移），第 i 个字节是 value(i)
+ */
+public class AssetDataSourceTest {
+
+    private static final int BLOCK = 32 * 1024;
+    private static final int START = 1000;                  // 资源前面的其他数据
+    private static final int LENGTH = 3 * BLOCK + 1234;     // 不与缓存块对齐
+
+    private File file;
+    private AssetDataSource source;
+
+    private static byte value(long i) {
+        return (byte) (i * 31 + 7);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("asset", ".bin");
+        byte[] data = new byte[START + LENGTH + 500];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) 0xEE;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            data[START + i] = value(i);
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        source = new AssetDataSource(new FileInputStream(file), START, LENGTH);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        source.close();
+        file.delete();
+    }
+
+    private static void assertData(long position, byte[] buffer, int offset, int size) {
+        for (int i = 0; i < size; i++) {
+            assertEquals("byte " + (position + i), value(position + i), buffer[offset + i]);
+        }
+    }
+
+    @Test
+    public void readsAtOffsets() throws IOException {
+        assertEquals(LENGTH, source.getSize());
+        byte[] buffer = new byte[5000];
+        assertEquals(100, source.readAt(0, buffer, 0, 100));
+        assertData(0, buffer, 0, 100);
+        // 跨缓存块，写到缓冲中间
+        assertEquals(3000, source.readAt(BLOCK - 1000, buffer, 17, 3000));
+        assertData(BLOCK - 1000, buffer, 17, 3000);
+        assertEquals(0, source.readAt(10, buffer, 0, 0));
+    }
+
+    @Test
+    public void readsAtEnd() throws IOException {
+        byte[] buffer = new byte[200];
+        // 末尾只读到剩余的部分，不读资源后面的数据
+        assertEquals(50, source.readAt(LENGTH - 50, buffer, 0, buffer.length));
+        assertData(LENGTH - 50, buffer, 0, 50);
+        assertEquals(-1, source.readAt(LENGTH, buffer, 0, buffer.length));
+        assertEquals(-1, source.readAt(LENGTH + 10, buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void randomReadsMatchFile() throws IOException {
+        // 超过缓存块数量的随机读取，块被淘汰后重新读取
+        Random random = new Random(1);
+        byte[] buffer = new byte[3 * BLOCK];
+        for (int n = 0; n < 200; n++) {
+            long position = random.nextInt(LENGTH);
+            int size = random.nextInt(buffer.length);
+            int read = source.readAt(position, buffer, 0, size);
+            assertEquals(Math.min(size, LENGTH - position), read);
+            assertData(position, buffer, 0, read);
+        }
+    }
+
+    @Test
+    public void readAfterCloseFails() throws IOException {
+        source.close();
+        try {
+            source.readAt(0, new byte[10], 0, 10);
+            fail();
+        } catch (IOException e) {
+            // 关闭后不能读取
+        }
+    }
+}
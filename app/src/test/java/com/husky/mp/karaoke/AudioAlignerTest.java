@@ -0,0 +1,112 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 延迟对齐测试，用带包络的噪声模拟人声
+ */
+public class AudioAlignerTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    /**
+     * 生成单声道测试信号：噪声乘以音节状的包络
+     */
+    private static short[] voice(int frames, long seed) {
+        Random random = new Random(seed);
+        short[] data = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * i / SAMPLE_RATE);
+            data[i] = (short) (random.nextGaussian() * 6000 * envelope);
+        }
+        return data;
+    }
+
+    /**
+     * 录音 = 参考延迟 delay 帧，音量减半，再叠加噪声，单声道；参考为双声道
+     */
+    private static AudioAligner alignWithDelay(int delay) {
+        int frames = SAMPLE_RATE * 10;
+        short[] source = voice(frames + Math.abs(delay), 1);
+        Random noise = new Random(2);
+
+        short[] reference = new short[frames * 2];
+        short[] recording = new short[frames];
+        int referenceStart = Math.max(0, delay);
+        for (int i = 0; i < frames; i++) {
+            reference[i * 2] = source[referenceStart + i];
+            reference[i * 2 + 1] = source[referenceStart + i];
+            int index = referenceStart + i - delay;
+            recording[i] = (short) (source[index] / 2 + noise.nextGaussian() * 300);
+        }
+
+        AudioAligner aligner = new AudioAligner(SAMPLE_RATE, 2, 1, 500);
+        int block = 1024;
+        for (int i = 0; i < frames; i += block) {
+            int count = Math.min(block, frames - i);
+            short[] referenceBlock = new short[count * 2];
+            short[] recordingBlock = new short[count];
+            System.arraycopy(reference, i * 2, referenceBlock, 0, count * 2);
+            System.arraycopy(recording, i, recordingBlock, 0, count);
+            aligner.pushReference(referenceBlock, count * 2);
+            aligner.pushRecording(recordingBlock, count);
+        }
+        return aligner;
+    }
+
+    @Test
+    public void estimatesRecordingDelay() {
+        AudioAligner aligner = alignWithDelay(6615);  // 150毫秒
+        assertTrue(aligner.getWindowCount() > 0);
+        assertEquals(6615, aligner.getOffsetFrames(), 4);
+        assertEquals(150, aligner.getOffsetMs(), 0.1);
+        assertTrue(aligner.getConfidence() > 2);
+    }
+
+    @Test
+    public void estimatesNegativeDelay() {
+        AudioAligner aligner = alignWithDelay(-2000);
+        assertEquals(-2000, aligner.getOffsetFrames(), 4);
+    }
+
+    @Test
+    public void fullBufferKeepsStreamsInStep() {
+        int frames = SAMPLE_RATE * 10;
+        int delay = 4410;
+        short[] source = voice(frames + delay, 3);
+        short[] reference = new short[frames];
+        short[] recording = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            reference[i] = source[delay + i];
+            recording[i] = source[i];
+        }
+        AudioAligner aligner = new AudioAligner(SAMPLE_RATE, 1, 1, 500);
+        // 参考一次送入：录音还没有送入，缓冲满后不再接收，不丢弃
+        int referenceOffset = aligner.pushReference(reference, 0, frames);
+        assertTrue(referenceOffset < frames);
+        assertEquals(0, aligner.pushReference(reference, referenceOffset, frames - referenceOffset));
+        int recordingOffset = 0;
+        while (recordingOffset < frames) {
+            int count = Math.min(1024, frames - recordingOffset);
+            assertEquals(count, aligner.pushRecording(recording, recordingOffset, count));
+            recordingOffset += count;
+            referenceOffset += aligner.pushReference(reference, referenceOffset, frames - referenceOffset);
+        }
+        assertEquals(frames, referenceOffset);
+        assertEquals(delay, aligner.getOffsetFrames(), 4);
+    }
+
+    @Test
+    public void runsFasterThanRealTime() {
+        long begin = System.nanoTime();
+        alignWithDelay(3000);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        // 10秒音频，桌面虚拟机上应远小于1秒
+        assertTrue("took " + seconds + "s", seconds < 2.5);
+    }
+}
@@ -0,0 +1,123 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.OnsetDetector;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 速度和节拍分析测试（合成的鼓点）
+ */
+public class BeatAnalyzerTest {
+
+    private static final int RATE = 44100;
+
+    // 每拍一个底鼓，反拍一个轻的踩镲，背景是持续的和弦和噪声
+    private static short[] drums(float bpm, double firstBeat, double seconds) {
+        Random random = new Random(1);
+        int frames = (int) (seconds * RATE);
+        short[] pcm = new short[frames * 2];
+        double beat = 60.0 / bpm;
+        for (int f = 0; f < frames; f++) {
+            double t = (double) f / RATE;
+            double value = 0.1 * (Math.sin(2 * Math.PI * 220 * t) + Math.sin(2 * Math.PI * 277 * t));
+            value += (random.nextDouble() * 2 - 1) * 0.02;
+            if (t >= firstBeat) {
+                double sinceBeat = (t - firstBeat) % beat;
+                value += 0.6 * Math.sin(2 * Math.PI * 60 * sinceBeat) * Math.exp(-sinceBeat * 20);
+                value += (random.nextDouble() * 2 - 1) * 0.5 * Math.exp(-sinceBeat * 200);
+                double sinceOffbeat = (t - firstBeat + beat / 2) % beat;
+                value += (random.nextDouble() * 2 - 1) * 0.15 * Math.exp(-sinceOffbeat * 300);
+            }
+            short sample = (short) Math.max(-32768, Math.min(32767, value * 32767));
+            pcm[f * 2] = sample;
+            pcm[f * 2 + 1] = sample;
+        }
+        return pcm;
+    }
+
+    private static BeatGrid analyze(short[] pcm) throws InterruptedException {
+        OnsetDetector detector = new OnsetDetector(RATE, 2);
+        final float[] envelope = new float[pcm.length / 2 / 128 + 1];
+        final int[] count = new int[1];
+        detector.setOnOnsetListener(new OnsetDetector.OnOnsetListener() {
+            @Override
+            public void onOnset(int frame, float strength) {
+                envelope[count[0]++] = strength;
+            }
+        });
+        detector.process(pcm, 0, pcm.length);
+        return BeatAnalyzer.track(envelope, count[0], detector);
+    }
+
+    @Test
+    public void findsTempoAndBeats() throws Exception {
+        float bpm = 128;
+        double firstBeat = 0.5;
+        long startNanos = System.nanoTime();
+        BeatGrid grid = analyze(drums(bpm, firstBeat, 30));
+        long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+        assertEquals(bpm, grid.getBpm(), 1);
+        // 远快于实时
+        assertTrue("analyzed 30s in " + elapsedMs + "ms", elapsedMs < 10_000);
+
+        double beat = 60.0 / bpm;
+        int checked = 0;
+        for (int i = 0; i < grid.getBeatCount(); i++) {
+            double t = grid.getBeatUs(i) / 1e6;
+            if (t < 2 || t > 28) {
+                continue;
+            }
+            double error = (t - firstBeat) - Math.round((t - firstBeat) / beat) * beat;
+            assertTrue("beat " + i + " at " + t + "s off by " + error, Math.abs(error) < 0.035);
+            checked++;
+        }
+        // 2~28秒之间的每一拍都找到了
+        assertEquals(26 / beat, checked, 1.5);
+    }
+
+    @Test
+    public void silenceHasNoBeats() throws Exception {
+        BeatGrid grid = analyze(new short[RATE * 2 * 10]);
+        assertEquals(0, grid.getBeatCount());
+        assertEquals(-1, grid.getBeatIndex(1_000_000L));
+    }
+
+    @Test
+    public void constantTimeLookupMatchesLinearSearch() throws Exception {
+        long[] beats = new long[300];
+        Random random = new Random(2);
+        long time = 700_000;
+        for (int i = 0; i < beats.length; i++) {
+            beats[i] = time;
+            time += 300_000 + random.nextInt(700_000);
+        }
+        BeatGrid grid = new BeatGrid(100, beats);
+        for (long t = 0; t < time + 2_000_000; t += 7_919) {
+            int expected = -1;
+            for (int i = 0; i < beats.length && beats[i] <= t; i++) {
+                expected = i;
+            }
+            assertEquals("at " + t, expected, grid.getBeatIndex(t));
+        }
+        assertEquals(0, grid.getBeatPhase(beats[10]), 0);
+        assertEquals(0.5f, grid.getBeatPhase((beats[10] + beats[11]) / 2), 1e-3);
+        assertEquals(-1, grid.getBeatPhase(beats[0] - 1), 0);
+
+        File file = File.createTempFile("beats", ".beats");
+        try {
+            grid.write(file);
+            BeatGrid read = BeatGrid.read(file);
+            assertEquals(100, read.getBpm(), 0);
+            assertEquals(beats.length, read.getBeatCount());
+            assertEquals(beats[123], read.getBeatUs(123));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.husky.mp.karaoke;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 生成PCM的解码器，测试时代替 PcmDecoder
+ * <p>
+ * 默认第 f 帧每个声道都是 base + f % 1000，可以看出来自哪首歌的哪一帧
+ */
+public class FakeDecoder implements QueueTrack.Decoder {
+
+    private final int sampleRate;
+    private final int channels;
+    private final int frames;
+    private final int base;
+    private final AtomicInteger open;   // 打开着的解码器数量，可以为null
+    private int next = 0;
+    private boolean released = false;
+
+    /**
+     * @param sampleRate
+     * @param channels
+     * @param frames     总帧数
+     * @param base       采样值的基数
+     * @param open       打开时加一，释放时减一
+     */
+    public FakeDecoder(int sampleRate, int channels, int frames, int base, AtomicInteger open) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.frames = frames;
+        this.base = base;
+        this.open = open;
+        if (open != null) {
+            open.incrementAndGet();
+        }
+    }
+
+    /**
+     * 第 frame 帧第 channel 声道的采样值
+     */
+    protected short sample(int frame, int channel) {
+        return (short) (base + frame % 1000);
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        if (next >= frames) {
+            return -1;
+        }
+        int count = Math.min(size / channels, frames - next);
+        for (int i = 0; i < count; i++, next++) {
+            for (int c = 0; c < channels; c++) {
+                buffer[offset + i * channels + c] = sample(next, c);
+            }
+        }
+        return count * channels;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return channels;
+    }
+
+    @Override
+    public long getDurationUs() {
+        return frames * 1_000_000L / sampleRate;
+    }
+
+    @Override
+    public synchronized void release() {
+        if (!released && open != null) {
+            open.decrementAndGet();
+        }
+        released = true;
+    }
+
+    public synchronized boolean isReleased() {
+        return released;
+    }
+}
@@ -0,0 +1,147 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.karaoke.dsp.Fingerprinter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 声学指纹索引测试（合成的和弦序列代替歌曲）
+ */
+public class FingerprintIndexTest {
+
+    private static final int SONGS = 30;
+
+    // 歌曲 seed 从 startSec 开始的 seconds 秒，每个和弦三个音，150~400毫秒换一次
+    private static short[] render(int seed, int sampleRate, int channels, double startSec, double seconds, float noise) {
+        Random random = new Random(seed);
+        double[] changes = new double[200];
+        double[][] chords = new double[200][3];
+        double time = 0;
+        for (int i = 0; i < changes.length; i++) {
+            changes[i] = time;
+            for (int k = 0; k < 3; k++) {
+                chords[i][k] = 300 * Math.pow(2, random.nextDouble() * 3.5);
+            }
+            time += 0.15 + random.nextDouble() * 0.25;
+        }
+        Random noiseRandom = new Random(seed * 31 + 7);
+        int frames = (int) (seconds * sampleRate);
+        short[] pcm = new short[frames * channels];
+        int chord = 0;
+        for (int f = 0; f < frames; f++) {
+            double t = startSec + (double) f / sampleRate;
+            while (chord + 1 < changes.length && changes[chord + 1] <= t) {
+                chord++;
+            }
+            double envelope = Math.exp(-3 * (t - changes[chord]));
+            double value = 0;
+            for (int k = 0; k < 3; k++) {
+                value += Math.sin(2 * Math.PI * chords[chord][k] * t) * (0.25 - k * 0.05);
+            }
+            value = value * envelope + (noiseRandom.nextDouble() * 2 - 1) * noise;
+            short sample = (short) Math.max(-32768, Math.min(32767, value * 20000));
+            for (int c = 0; c < channels; c++) {
+                pcm[f * channels + c] = sample;
+            }
+        }
+        return pcm;
+    }
+
+    private static AudioFingerprint fingerprint(short[] pcm, int sampleRate, int channels) {
+        Fingerprinter fingerprinter = new Fingerprinter(sampleRate, channels);
+        AudioFingerprint.Builder builder = new AudioFingerprint.Builder();
+        fingerprinter.setOnLandmarkListener(builder);
+        fingerprinter.process(pcm, 0, pcm.length);
+        return builder.build();
+    }
+
+    private static FingerprintIndex buildIndex() {
+        FingerprintIndex index = new FingerprintIndex();
+        for (int seed = 0; seed < SONGS; seed++) {
+            index.add("key" + seed, "song" + seed, fingerprint(render(seed, 44100, 2, 0, 20, 0), 44100, 2));
+        }
+        return index;
+    }
+
+    @Test
+    public void findsExcerptWithOffset() {
+        FingerprintIndex index = buildIndex();
+        // 第7首 5~12秒，48kHz 单声道，加噪声
+        AudioFingerprint query = fingerprint(render(7, 48000, 1, 5, 7, 0.05f), 48000, 1);
+        long startNanos = System.nanoTime();
+        List<FingerprintIndex.Match> matches = index.match(query, null, 5);
+        long elapsedMs = (System.nanoTime() - startNanos) / 1_000_000;
+        assertFalse(matches.isEmpty());
+        FingerprintIndex.Match best = matches.get(0);
+        assertEquals("key7", best.getKey());
+        assertEquals(5_000_000L, best.getOffsetUs(), 2 * Fingerprinter.FRAME_DURATION_US);
+        assertTrue(best.toString(), best.isDuplicate());
+        // 其他歌曲的命中远少于正确的歌
+        if (matches.size() > 1) {
+            assertTrue(matches.toString(), matches.get(1).getScore() * 4 < best.getScore());
+        }
+        assertTrue("match took " + elapsedMs + "ms", elapsedMs < 500);
+    }
+
+    @Test
+    public void excludesSelfAndUnknownAudio() {
+        FingerprintIndex index = buildIndex();
+        AudioFingerprint self = fingerprint(render(3, 44100, 2, 0, 20, 0), 44100, 2);
+        assertEquals("key3", index.match(self, null, 1).get(0).getKey());
+        for (FingerprintIndex.Match match : index.match(self, "key3", 5)) {
+            assertFalse(match.toString(), match.isDuplicate());
+        }
+        AudioFingerprint unknown = fingerprint(render(1000, 44100, 2, 0, 10, 0), 44100, 2);
+        for (FingerprintIndex.Match match : index.match(unknown, null, 5)) {
+            assertFalse(match.toString(), match.isDuplicate());
+        }
+    }
+
+    @Test
+    public void incrementalUpdateAndPersistence() throws Exception {
+        FingerprintIndex index = buildIndex();
+        AudioFingerprint query = fingerprint(render(12, 44100, 2, 2, 6, 0.02f), 44100, 2);
+        assertEquals("key12", index.match(query, null, 1).get(0).getKey());
+
+        // 删除后不再匹配，重新加入后匹配
+        assertEquals(SONGS - 2, SONGS - index.retain(Arrays.asList(keysExcept(12, 20))));
+        assertEquals(SONGS - 2, index.size());
+        assertTrue(index.match(query, null, 1).isEmpty() || !"key12".equals(index.match(query, null, 1).get(0).getKey()));
+        index.add("key12", "song12", fingerprint(render(12, 44100, 2, 0, 20, 0), 44100, 2));
+
+        File file = File.createTempFile("fingerprints", ".idx");
+        try {
+            index.write(file);
+            FingerprintIndex read = FingerprintIndex.read(file);
+            assertEquals(SONGS - 1, read.size());
+            assertEquals(index.getPostingCount(), read.getPostingCount());
+            assertFalse(read.contains("key20"));
+            FingerprintIndex.Match best = read.match(query, null, 1).get(0);
+            assertEquals("key12", best.getKey());
+            assertEquals("song12", best.getName());
+            assertEquals(2_000_000L, best.getOffsetUs(), 2 * Fingerprinter.FRAME_DURATION_US);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String[] keysExcept(int a, int b) {
+        String[] keys = new String[SONGS - 2];
+        int count = 0;
+        for (int seed = 0; seed < SONGS; seed++) {
+            if (seed != a && seed != b) {
+                keys[count++] = "key" + seed;
+            }
+        }
+        return keys;
+    }
+}
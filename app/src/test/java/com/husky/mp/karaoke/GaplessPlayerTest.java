@@ -0,0 +1,447 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 播放队列测试：用生成PCM的解码器和记录写入数据的输出代替 MediaCodec 和 AudioTrack，
+ * 输出每次写入后报告正在播放刚写入的一块（缓冲一块），接缝在下一块写入后被听到
+ */
+public class GaplessPlayerTest {
+
+    private static final int RATE = 16000;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK = 1024;  // 与 GaplessPlayer 每次写入的帧数相同
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * 记录写入的数据，按许可数放行写入（没有许可时阻塞，相当于播放器缓冲已满）
+     */
+    private static class FakeOutput implements GaplessPlayer.Output {
+        final PlaybackClock clock = new PlaybackClock(RATE);
+        final Semaphore blocks;
+        final CountDownLatch pausedLatch = new CountDownLatch(1);
+        final CountDownLatch releasedLatch = new CountDownLatch(1);
+        short[] data = new short[RATE * CHANNELS * 20];
+        int frames = 0;             // 已写入的总帧数
+        int writes = 0;             // 写入次数
+        long segment = 0;           // 上次 flush 后写入的帧数
+        long played = 0;            // 正在播放的帧（本次写入的开头），跨 flush 累计
+        final List<Integer> flushes = new ArrayList<>();    // flush 时已写入的总帧数
+
+        FakeOutput(int permits) {
+            blocks = new Semaphore(permits);
+        }
+
+        @Override
+        public void write(short[] pcm, int offset, int size, long mediaFrames) throws InterruptedException {
+            blocks.acquire();
+            long now = System.nanoTime();
+            synchronized (this) {
+                System.arraycopy(pcm, offset, data, frames * CHANNELS, size);
+                long before = segment;
+                played = frames;
+                frames += size / CHANNELS;
+                segment += size / CHANNELS;
+                writes++;
+                clock.onWritten(segment, mediaFrames, now);
+                clock.onTimestamp(before, now, true);
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void flush(long mediaFrames) {
+            flushes.add(frames);
+            segment = 0;
+            clock.flush(mediaFrames);
+        }
+
+        @Override
+        public void pause() {
+            clock.pause(System.nanoTime());
+            pausedLatch.countDown();
+        }
+
+        @Override
+        public void resume() {
+            clock.resume(System.nanoTime());
+        }
+
+        @Override
+        public void stop() {
+            clock.pause(System.nanoTime());
+        }
+
+        @Override
+        public void release() {
+            releasedLatch.countDown();
+        }
+
+        @Override
+        public PlaybackClock getClock() {
+            return clock;
+        }
+
+        synchronized void waitFrames(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (frames < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("written " + frames + " < " + count, left > 0);
+                wait(left);
+            }
+        }
+
+        synchronized void waitWrites(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (writes < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("writes " + writes + " < " + count, left > 0);
+                wait(left);
+            }
+        }
+
+        synchronized short sample(int frame, int channel) {
+            return data[frame * CHANNELS + channel];
+        }
+    }
+
+    /**
+     * 歌曲名是帧数，"bad" 打不开；第 i 首的采样值是 (i + 1) * 10000 + 帧序号 % 1000
+     */
+    private static class TestBackend implements GaplessPlayer.Backend {
+        final FakeOutput output;
+        final List<FakeDecoder> decoders = Collections.synchronizedList(new ArrayList<FakeDecoder>());
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+        final List<MediaInput> queue = new ArrayList<>();
+        int outputs = 0;
+
+        TestBackend(FakeOutput output, String... names) {
+            this.output = output;
+            for (String name : names) {
+                queue.add(MediaInput.fromPath(name));
+            }
+        }
+
+        FakeDecoder createDecoder(int index, int frames) {
+            return new FakeDecoder(RATE, CHANNELS, frames, (index + 1) * 10000, open);
+        }
+
+        @Override
+        public QueueTrack openTrack(MediaInput input) throws IOException {
+            if ("bad".equals(input.getName())) {
+                throw new IOException("bad input");
+            }
+            FakeDecoder decoder = createDecoder(queue.indexOf(input), Integer.parseInt(input.getName()));
+            decoders.add(decoder);
+            synchronized (maxOpen) {
+                maxOpen.set(Math.max(maxOpen.get(), open.get()));
+            }
+            return new QueueTrack(input, decoder, BLOCK);
+        }
+
+        @Override
+        public GaplessPlayer.Output createOutput(int sampleRate, int channelCount) {
+            assertEquals(RATE, sampleRate);
+            assertEquals(CHANNELS, channelCount);
+            outputs++;
+            return output;
+        }
+
+        @Override
+        public void post(Runnable callback) {
+            callback.run();     // 直接在播放线程回调
+        }
+    }
+
+    /**
+     * 记录回调，歌曲切换时同时记录正在播放的帧
+     */
+    private static class Events implements GaplessPlayer.OnQueueListener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final Map<Integer, Long> joinedAt = Collections.synchronizedMap(new HashMap<Integer, Long>());
+        final CountDownLatch ended = new CountDownLatch(1);
+        private final FakeOutput output;
+
+        Events(FakeOutput output) {
+            this.output = output;
+        }
+
+        @Override
+        public void onTrackChanged(int index, MediaInput input, long gapUs) {
+            synchronized (output) {
+                joinedAt.put(index, output.played);
+            }
+            events.add("track " + index);
+        }
+
+        @Override
+        public void onQueueEnded() {
+            events.add("ended");
+            ended.countDown();
+        }
+
+        @Override
+        public void onError(MediaInput input, IOException e) {
+            events.add("error " + input);
+        }
+
+        void awaitEnded() throws InterruptedException {
+            assertTrue("queue not ended: " + events, ended.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static void assertTrackData(FakeOutput output, int index, int outputStart, int frames) {
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < CHANNELS; c++) {
+                assertEquals("output frame " + (outputStart + f), (index + 1) * 10000 + f % 1000,
+                        output.sample(outputStart + f, c));
+            }
+        }
+    }
+
+    @Test
+    public void joinsTracksWithoutGap() throws Exception {
+        FakeOutput output = new FakeOutput(Integer.MAX_VALUE);
+        TestBackend backend = new TestBackend(output, "3000", "5000", "2000");
+        GaplessPlayer player = new GaplessPlayer(backend);
+        Events events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        player.play(0);
+        events.awaitEnded();
+
+        assertEquals(Arrays.asList("track 0", "track 1", "track 2", "ended"), events.events);
+        // 接缝在块的中间，前后没有静音
+        assertEquals(10000, output.frames);
+        assertTrackData(output, 0, 0, 3000);
+        assertTrackData(output, 1, 3000, 5000);
+        assertTrackData(output, 2, 8000, 2000);
+        // 播放位置越过接缝（写入接缝之后的一块）时切换
+        assertEquals(0L, (long) events.joinedAt.get(0));
+        assertTrue("joined at " + events.joinedAt.get(1), events.joinedAt.get(1) >= 3000 - BLOCK / 8);
+        assertTrue("joined at " + events.joinedAt.get(1), events.joinedAt.get(1) <= 3000 + BLOCK);
+        assertTrue("joined at " + events.joinedAt.get(2), events.joinedAt.get(2) >= 8000 - BLOCK / 8);
+        assertTrue("joined at " + events.joinedAt.get(2), events.joinedAt.get(2) <= 8000 + BLOCK);
+        assertEquals(2, player.getTransitionCount());
+        assertEquals(1, backend.outputs);
+
+        assertTrue(output.releasedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (FakeDecoder decoder : backend.decoders) {
+            assertTrue(decoder.isReleased());
+        }
+    }
+
+    @Test
+    public void skipWhilePausedStartsNewTrack() throws Exception {
+        FakeOutput output = new FakeOutput(0);
+        TestBackend backend = new TestBackend(output, "16000", "16000", "16000");
+        GaplessPlayer player = new GaplessPlayer(backend);
+        Events events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        try {
+            player.play(0);
+            output.blocks.release(3);
+            output.waitFrames(3 * BLOCK);
+            // 正在写入的一块写完后暂停
+            player.pause();
+            output.blocks.release(1);
+            assertTrue(output.pausedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(player.isPaused());
+            int pausedAt;
+            synchronized (output) {
+                pausedAt = output.frames;
+            }
+            assertTrue("paused at " + pausedAt, pausedAt == 3 * BLOCK || pausedAt == 4 * BLOCK);
+
+            // 暂停时跳到第三首：丢弃缓冲，从第三首开头接着写
+            player.play(2);
+            output.blocks.release(2);
+            output.waitFrames(pausedAt + 2 * BLOCK);
+            assertEquals(Collections.singletonList(pausedAt), output.flushes);
+            assertTrackData(output, 2, pausedAt, 2 * BLOCK);
+            assertEquals(Arrays.asList("track 0", "track 2"), events.events);
+            assertEquals(2, player.getPlayingIndex());
+            assertTrue(!player.isPaused());
+            assertTrue(backend.decoders.get(0).isReleased());
+        } finally {
+            player.release();
+            output.blocks.release(Integer.MAX_VALUE / 2);
+        }
+        assertTrue(output.releasedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, backend.open.get());
+    }
+
+    @Test
+    public void skipsBadTracksAndEndsQueue() throws Exception {
+        FakeOutput output = new FakeOutput(Integer.MAX_VALUE);
+        TestBackend backend = new TestBackend(output, "bad", "1500", "bad");
+        GaplessPlayer player = new GaplessPlayer(backend);
+        Events events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        player.play(0);
+        events.awaitEnded();
+        assertEquals(Arrays.asList("error bad", "track 1", "error bad", "ended"), events.events);
+        assertEquals(1500, output.frames);
+        assertTrackData(output, 1, 0, 1500);
+
+        // 从队列之后开始：直接结束，不创建输出
+        output = new FakeOutput(Integer.MAX_VALUE);
+        backend = new TestBackend(output, "1500");
+        player = new GaplessPlayer(backend);
+        events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        player.play(1);
+        events.awaitEnded();
+        assertEquals(Collections.singletonList("ended"), events.events);
+        assertEquals(0, backend.outputs);
+    }
+
+    @Test
+    public void crossfadeKeepsEqualPower() throws Exception {
+        FakeOutput output = new FakeOutput(Integer.MAX_VALUE);
+        // 第一首只有左声道，第二首只有右声道，淡入淡出时两个声道分别是两边的增益
+        TestBackend backend = new TestBackend(output, "16000", "8000") {
+            @Override
+            FakeDecoder createDecoder(final int index, int frames) {
+                return new FakeDecoder(RATE, CHANNELS, frames, 0, open) {
+                    @Override
+                    protected short sample(int frame, int channel) {
+                        return (short) (channel == index ? 10000 : 0);
+                    }
+                };
+            }
+        };
+        GaplessPlayer player = new GaplessPlayer(backend);
+        Events events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        long fadeUs = 250_000;
+        int fadeFrames = (int) (fadeUs * RATE / 1_000_000);
+        player.setCrossfadeUs(fadeUs);
+        player.play(0);
+        events.awaitEnded();
+        assertEquals(Arrays.asList("track 0", "track 1", "ended"), events.events);
+
+        int start = 0;
+        while (output.sample(start, 1) == 0) {
+            start++;
+        }
+        // 剩下不超过淡入淡出时长时（按块检查）开始，到第一首结尾结束
+        assertTrue("fade starts at " + start, start >= 16000 - fadeFrames && start < 16000 - fadeFrames + BLOCK);
+        assertEquals(start + 8000, output.frames);
+        assertTrue("joined at " + events.joinedAt.get(1), Math.abs(events.joinedAt.get(1) - start) <= BLOCK);
+        for (int f = 0; f < start; f++) {
+            assertEquals(10000, output.sample(f, 0));
+        }
+        int previous = 10000;
+        for (int f = start; f < 16000; f++) {
+            int left = output.sample(f, 0);
+            int right = output.sample(f, 1);
+            // 等功率：两边增益的平方和为1
+            assertEquals("frame " + f, 1e8, (double) left * left + (double) right * right, 1e8 * 0.005);
+            assertTrue("frame " + f, left <= previous);
+            previous = left;
+        }
+        assertTrue(output.sample(15999, 0) < 10000 * Math.cos(Math.PI / 4));
+        // 第一首结束后只有第二首
+        for (int f = 16000 + BLOCK; f < output.frames; f++) {
+            assertEquals(0, output.sample(f, 0));
+            assertEquals(10000, output.sample(f, 1));
+        }
+        assertTrue(backend.maxOpen.get() <= 2);
+    }
+
+    @Test
+    public void loudCrossfadeIsLimited() throws Exception {
+        FakeOutput output = new FakeOutput(Integer.MAX_VALUE);
+        // 两首都是满幅度的一半以上，等功率叠加后中间会超过16位范围
+        TestBackend backend = new TestBackend(output, "16000", "8000") {
+            @Override
+            FakeDecoder createDecoder(final int index, int frames) {
+                return new FakeDecoder(RATE, CHANNELS, frames, 0, open) {
+                    @Override
+                    protected short sample(int frame, int channel) {
+                        return (short) (index == 0 ? 25000 : 24000);
+                    }
+                };
+            }
+        };
+        GaplessPlayer player = new GaplessPlayer(backend);
+        Events events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        player.setCrossfadeUs(250_000);
+        player.play(0);
+        events.awaitEnded();
+
+        int start = 0;
+        while (output.sample(start, 0) <= 25000) {
+            start++;
+        }
+        assertTrue("fade starts at " + start, start >= 16000 - 4000 && start < 16000 - 4000 + BLOCK);
+        // 限幅器的延迟不改变长度
+        assertEquals(start + 8000, output.frames);
+        int peak = 0;
+        for (int f = 0; f < output.frames; f++) {
+            int sample = output.sample(f, 0);
+            // 没有削波，没有插入静音
+            assertTrue("frame " + f + ": " + sample, sample <= 32767 * 0.98f + 1 && sample > 20000);
+            peak = Math.max(peak, sample);
+        }
+        assertTrue("peak " + peak, peak > 31000);
+        assertEquals(24000, output.sample(output.frames - 1, 1), 2);
+    }
+
+    @Test
+    public void skipDuringCrossfadeReleasesBothTracksFirst() throws Exception {
+        FakeOutput output = new FakeOutput(0);
+        TestBackend backend = new TestBackend(output, "16000", "16000", "16000");
+        GaplessPlayer player = new GaplessPlayer(backend);
+        Events events = new Events(output);
+        player.addOnQueueListener(events);
+        player.setQueue(backend.queue);
+        player.setCrossfadeUs(250_000);
+        try {
+            player.play(0);
+            // 剩下 250ms（4000帧）时开始淡入淡出，第14块已经在淡入淡出中（限幅器预热，这一块少几帧）
+            output.blocks.release(14);
+            output.waitWrites(14);
+            int fadeEnd = output.frames;
+            assertTrue(fadeEnd < 14 * BLOCK);
+            assertTrue(output.sample(fadeEnd - 1, 0) != 10000 + (fadeEnd - 1) % 1000);
+            player.play(2);
+            output.blocks.release(3);
+            output.waitWrites(17);
+            assertEquals(1, output.flushes.size());
+            int flushAt = output.flushes.get(0);
+            assertTrackData(output, 2, flushAt, output.frames - flushAt);
+            assertTrue(backend.decoders.get(0).isReleased());
+            assertTrue(backend.decoders.get(1).isReleased());
+            // 淡入淡出的两首释放后才打开跳到的歌曲
+            assertEquals(2, backend.maxOpen.get());
+            assertEquals(1, backend.open.get());
+        } finally {
+            player.release();
+            output.blocks.release(Integer.MAX_VALUE / 2);
+        }
+    }
+}
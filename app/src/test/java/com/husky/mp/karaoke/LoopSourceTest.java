@@ -0,0 +1,194 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A/B 循环音源测试（采样值是帧序号，可以直接看出播放的位置）
+ */
+public class LoopSourceTest {
+
+    private static final int CHANNELS = 2;
+    private static final int FADE = 32;
+    private static final int BLOCK = 100;   // 读取的帧数，与淡化长度、区间都不对齐
+
+    // 第 f 帧两个声道都是 f % 30000
+    private static class RampSource implements MixSource {
+        private final int frames;
+        private int next = 0;
+        int reads = 0;
+
+        RampSource(int frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int size) {
+            if (next >= frames) {
+                return -1;
+            }
+            reads++;
+            int count = Math.min(size / CHANNELS, frames - next);
+            for (int i = 0; i < count; i++, next++) {
+                buffer[offset + i * CHANNELS] = (short) (next % 30000);
+                buffer[offset + i * CHANNELS + 1] = (short) (next % 30000);
+            }
+            return count * CHANNELS;
+        }
+
+        @Override
+        public boolean isLive() {
+            return false;
+        }
+    }
+
+    private static short[] read(LoopSource source, int frames) throws InterruptedException {
+        short[] out = new short[frames * CHANNELS];
+        int done = 0;
+        while (done < out.length) {
+            int count = source.read(out, done, Math.min(BLOCK * CHANNELS, out.length - done));
+            if (count < 0) {
+                break;
+            }
+            done += count;
+        }
+        return out;
+    }
+
+    @Test
+    public void replaysFromMemoryWithCrossfade() throws Exception {
+        RampSource ramp = new RampSource(100_000);
+        LoopSource source = new LoopSource(ramp, CHANNELS, 10_000, FADE);
+        short[] first = read(source, 3000);
+        for (int f = 0; f < 3000; f++) {
+            assertEquals(f, first[f * CHANNELS]);
+        }
+
+        // A 已经播放过，B 在前面：继续播放到B前，再回到A
+        assertTrue(source.setLoop(1000, 4000));
+        short[] out = read(source, 4000 - FADE - 3000 + 3 * (3000 - FADE));
+        for (int f = 0; f < 4000 - FADE - 3000; f++) {
+            assertEquals(3000 + f, out[f * CHANNELS]);
+        }
+        assertEquals(4000 - FADE, source.getJumpFrom());
+        assertEquals(1000, source.getJumpTo());
+        int reads = ramp.reads;
+        // 之后每遍都是 [A, B - FADE)，开头与 B 前一段交叉淡化
+        for (int pass = 0; pass < 3; pass++) {
+            int base = (4000 - FADE - 3000) + pass * (3000 - FADE);
+            for (int i = 0; i < FADE; i++) {
+                double progress = (i + 0.5) / FADE * Math.PI / 2;
+                double expected = (1000 + i) * Math.sin(progress) + (4000 - FADE + i) * Math.cos(progress);
+                assertEquals(expected, out[(base + i) * CHANNELS], 1);
+            }
+            for (int i = FADE; i < 3000 - FADE; i++) {
+                assertEquals(1000 + i, out[(base + i) * CHANNELS]);
+                assertEquals(1000 + i, out[(base + i) * CHANNELS + 1]);
+            }
+        }
+        // 只有第一遍读到B为止，之后不再读取音源
+        assertEquals(reads, ramp.reads);
+
+        // 取消后从缓冲播放到已读取的位置，再接着读取音源，没有跳变
+        source.pollJump();
+        source.clearLoop();
+        long position = source.getPosition();
+        short[] rest = read(source, 3000);
+        for (int f = 0; f < 3000; f++) {
+            assertEquals(position + f, rest[f * CHANNELS]);
+        }
+        assertEquals(-1, source.pollJump());
+    }
+
+    @Test
+    public void loopBehindPositionJumpsImmediately() throws Exception {
+        LoopSource source = new LoopSource(new RampSource(100_000), CHANNELS, 10_000, FADE);
+        read(source, 5000);
+        assertTrue(source.setLoop(2000, 3000));
+        short[] out = new short[BLOCK * CHANNELS];
+        assertEquals(out.length, source.read(out, 0, out.length));
+        assertEquals(0, source.pollJump());
+        assertEquals(-1, source.pollJump());
+        assertEquals(5000, source.getJumpFrom());
+        assertEquals(2000 + BLOCK, source.getPosition());
+        // 淡化结束后是A之后的数据
+        short[] next = new short[BLOCK * CHANNELS];
+        source.read(next, 0, next.length);
+        assertEquals(2000 + BLOCK, next[0]);
+    }
+
+    @Test
+    public void readAheadSourcesJumpAtSamePosition() throws Exception {
+        // 伴唱预读了300帧：B前的位置在两者之间，都推迟到预读多的位置回到A
+        LoopSource behind = new LoopSource(new RampSource(100_000), CHANNELS, 10_000, FADE);
+        LoopSource ahead = new LoopSource(new RampSource(100_000), CHANNELS, 10_000, FADE);
+        read(behind, 3800);
+        read(ahead, 4100);
+        assertTrue(ahead.setLoop(1000, 4000));
+        assertTrue(behind.setLoop(ahead.getLoopStart(), ahead.getLoopEnd()));
+        long jumpAt = Math.max(ahead.getPosition(), behind.getPosition());
+        behind.setJumpNotBefore(jumpAt);
+        ahead.setJumpNotBefore(jumpAt);
+
+        short[] behindFirst = read(behind, 300 + 100);
+        short[] aheadFirst = read(ahead, 100);
+        assertEquals(4100, behind.getJumpFrom());
+        assertEquals(4100, ahead.getJumpFrom());
+        for (int f = 0; f < 100; f++) {
+            assertEquals("frame " + f, behindFirst[(300 + f) * CHANNELS], aheadFirst[f * CHANNELS]);
+        }
+        // 之后两路输出完全一致，包括之后每一遍的交叉淡化，仍在B前回到A
+        short[] behindOut = read(behind, 8000);
+        short[] aheadOut = read(ahead, 8000);
+        for (int f = 0; f < 8000; f++) {
+            assertEquals("frame " + f, behindOut[f * CHANNELS], aheadOut[f * CHANNELS]);
+        }
+        assertEquals(4000 - FADE, behind.getJumpFrom());
+        assertEquals(4000 - FADE, ahead.getJumpFrom());
+    }
+
+    @Test
+    public void loopMemoryIsCapped() throws Exception {
+        LoopSource source = new LoopSource(new RampSource(100_000), CHANNELS, 1000, FADE);
+        read(source, 5000);
+        // 多读了一段交叉淡化的长度
+        assertEquals(5000 + FADE - 1000, source.getEarliestFrame());
+        // A 已经不在缓冲中：从最早保存的位置之后开始，区间不超过缓冲长度
+        assertTrue(source.setLoop(0, 8000));
+        assertTrue(source.getLoopStart() >= source.getEarliestFrame());
+        assertTrue(source.getLoopEnd() - source.getLoopStart() <= 1000);
+        assertFalse(source.setLoop(4990, 5000));
+
+        // 每一遍都与上一遍相同（缓冲中的区间没有被之后读取的数据覆盖）
+        assertTrue(source.setLoop(4500, 5400));
+        short[] out = read(source, 4000);
+        int first = 5400 - FADE - 5000;
+        int pass = 5400 - FADE - 4500;
+        assertEquals(4500 + FADE, out[(first + FADE) * CHANNELS]);
+        for (int f = first; f + pass < out.length / CHANNELS; f++) {
+            assertEquals("frame " + f, out[f * CHANNELS], out[(f + pass) * CHANNELS]);
+        }
+    }
+
+    @Test
+    public void loopsToEndOfSource() throws Exception {
+        LoopSource source = new LoopSource(new RampSource(2000), CHANNELS, 10_000, FADE);
+        read(source, 500);
+        // B 在结尾之后：结尾作为B
+        assertTrue(source.setLoop(100, 5000));
+        short[] out = read(source, 3000);
+        assertTrue(source.isLooping());
+        assertEquals(2000, source.getLoopEnd());
+        assertEquals(2000 - FADE, source.getJumpFrom());
+        assertEquals(2000 - FADE - 1, out[(2000 - FADE - 1 - 500) * CHANNELS]);
+        assertEquals(100 + FADE, out[(2000 - FADE - 500 + FADE) * CHANNELS]);
+
+        // 取消后播放到结尾
+        source.clearLoop();
+        read(source, 3000);
+        assertEquals(-1, source.read(out, 0, out.length));
+    }
+}
@@ -0,0 +1,154 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 歌词解析和查找测试
+ */
+public class LyricsTest {
+
+    private static final String SAMPLE = "[ti:狂浪]\r\n"
+            + "[ar:花姐]\r\n"
+            + "[offset:100]\r\n"
+            + "[18721,2052]<0,257,0>一<257,256,0>波<513,257,0>一<770,256,0>波\r\n"
+            + "[20780,1847]<0,256,0>大<256,256,0>风\r\n"
+            + "broken line\r\n"
+            + "[22637,2043]纯文本行\r\n";
+
+    private static final byte[] KEY = {
+            (byte) 0xCE, (byte) 0xD3, 0x6E, 0x69, 0x40, 0x5A, 0x61, 0x77,
+            0x5E, 0x32, 0x74, 0x47, 0x51, 0x36, (byte) 0xA5, (byte) 0xBC};
+
+    /**
+     * 与 LyricsLoader.decode 相同的异或，用于生成加密的测试数据
+     */
+    private static byte[] encode(String text) {
+        byte[] plain = text.getBytes(Charset.forName("UTF-8"));
+        byte[] data = new byte[plain.length];
+        for (int i = 0; i < plain.length; i++) {
+            data[i] = (byte) (plain[i] ^ KEY[i & 15]);
+        }
+        return data;
+    }
+
+    @Test
+    public void parsesLinesWordsAndTags() throws Exception {
+        Lyrics lyrics = LyricsLoader.parse(SAMPLE);
+        assertEquals("狂浪", lyrics.getTitle());
+        assertEquals("花姐", lyrics.getArtist());
+        assertEquals(3, lyrics.getLineCount());
+        assertEquals(7, lyrics.getWordCount());
+        assertEquals("一波一波", lyrics.getLineText(0));
+        assertEquals("大风", lyrics.getLineText(1));
+        assertEquals("纯文本行", lyrics.getLineText(2));
+        // offset 让歌词提前100毫秒
+        assertEquals(18_621_000, lyrics.getLineStartUs(0));
+        assertEquals(18_621_000 + 2_052_000, lyrics.getLineEndUs(0));
+        assertEquals(18_621_000 + 513_000, lyrics.getWordStartUs(2));
+        assertEquals(18_621_000 + 770_000, lyrics.getWordEndUs(2));
+        // 没有逐字时间的行整行作为一个字
+        assertEquals(1, lyrics.getLineWordEnd(2) - lyrics.getLineFirstWord(2));
+    }
+
+    @Test
+    public void lookupMatchesLinearScan() throws Exception {
+        Lyrics lyrics = LyricsLoader.parse(SAMPLE);
+        for (long t = 18_000_000; t < 25_000_000; t += 7_000) {
+            int expectedLine = -1;
+            for (int i = 0; i < lyrics.getLineCount(); i++) {
+                if (lyrics.getLineStartUs(i) / 1000 <= t / 1000) {
+                    expectedLine = i;
+                }
+            }
+            assertEquals("t = " + t, expectedLine, lyrics.findLine(t));
+            if (expectedLine < 0) {
+                continue;
+            }
+            int expectedWord = -1;
+            for (int w = lyrics.getLineFirstWord(expectedLine); w < lyrics.getLineWordEnd(expectedLine); w++) {
+                if (lyrics.getWordStartUs(w) / 1000 <= t / 1000) {
+                    expectedWord = w;
+                }
+            }
+            int word = lyrics.findWord(expectedLine, t);
+            assertEquals("t = " + t, expectedWord, word);
+            if (word >= 0) {
+                float progress = lyrics.getWordProgress(word, t);
+                assertTrue(progress >= 0 && progress <= 1);
+            }
+        }
+        assertEquals(-1, lyrics.getLineAt(0));
+        assertEquals(1, lyrics.getLineAt(20_690_000));
+        assertEquals(-1, lyrics.getLineAt(22_530_000));   // 第二行结束后、第三行开始前
+        assertEquals(1, lyrics.findLine(22_530_000));
+    }
+
+    @Test
+    public void loadsEncryptedFileAndCachesBinary() throws Exception {
+        File dir = File.createTempFile("lyrics", "");
+        dir.delete();
+        dir.mkdirs();
+        File zrce = new File(dir, "test.zrce");
+        FileOutputStream out = new FileOutputStream(zrce);
+        out.write(encode(SAMPLE));
+        out.close();
+        AnalysisCache cache = new AnalysisCache(new File(dir, "cache"));
+
+        Lyrics parsed = LyricsLoader.load(zrce, cache);
+        File cached = cache.getFile(MediaInput.fromPath(zrce.getPath()), LyricsLoader.KIND);
+        assertTrue(cached.exists());
+        Lyrics read = LyricsLoader.load(zrce, cache);   // 第二次从缓存读取
+        assertEquals(parsed.getLineCount(), read.getLineCount());
+        assertEquals(parsed.getWordCount(), read.getWordCount());
+        assertEquals(parsed.getTitle(), read.getTitle());
+        for (int i = 0; i < parsed.getLineCount(); i++) {
+            assertEquals(parsed.getLineText(i), read.getLineText(i));
+            assertEquals(parsed.getLineStartUs(i), read.getLineStartUs(i));
+            assertEquals(parsed.getLineEndUs(i), read.getLineEndUs(i));
+        }
+        for (int w = 0; w < parsed.getWordCount(); w++) {
+            assertEquals(parsed.getWordStartUs(w), read.getWordStartUs(w));
+            assertEquals(parsed.getWordEndUs(w), read.getWordEndUs(w));
+            assertEquals(parsed.getWordTextStart(w), read.getWordTextStart(w));
+        }
+    }
+
+    @Test
+    public void lookupDoesNotAllocate() throws Exception {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        Lyrics lyrics = LyricsLoader.parse(SAMPLE);
+        float sum = 0;
+        for (int i = 0; i < 1000; i++) {    // 预热
+            sum += lookup(lyrics, 18_000_000 + i * 5_000L);
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 10_000; i++) {
+            sum += lookup(lyrics, 18_000_000 + i * 700L);
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+        assertTrue(sum > 0);
+    }
+
+    // 与 LyricsView 每帧的查找相同
+    private static float lookup(Lyrics lyrics, long timeUs) {
+        int line = lyrics.findLine(timeUs);
+        if (line < 0) {
+            return 0;
+        }
+        int word = lyrics.findWord(line, timeUs);
+        return word < 0 ? 0 : lyrics.getWordTextStart(word) + lyrics.getWordProgress(word, timeUs);
+    }
+}
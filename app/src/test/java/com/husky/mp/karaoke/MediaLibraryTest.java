@@ -0,0 +1,150 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 媒体库索引、原唱伴唱配对和增量扫描测试
+ */
+public class MediaLibraryTest {
+
+    private static MediaLibrary.Entry entry(String dir, String name) {
+        return new MediaLibrary.Entry(dir, name, 1000, 1, "audio/mpeg", 200_000_000L, 44100, 2);
+    }
+
+    @Test
+    public void pairsOriginalsWithAccompaniments() {
+        List<MediaLibrary.Entry> entries = Arrays.asList(
+                entry("/music", "狂浪-原唱.mp3"),
+                entry("/music", "狂浪-伴唱.mp3"),
+                entry("/music", "Song (Instrumental).m4a"),
+                entry("/music", "song.m4a"),
+                entry("/music", "Unoriginal.mp3"),
+                entry("/music", "Unoriginal-karaoke.mp3"),
+                entry("/other", "狂浪-原唱.mp3"),     // 不同目录不配对
+                entry("/music", "独唱.mp3"));
+        List<MediaLibrary.Pair> pairs = new MediaLibrary(entries).getPairs();
+        assertEquals(3, pairs.size());
+        assertSame(entries.get(0), pairs.get(0).getOriginal());
+        assertSame(entries.get(1), pairs.get(0).getAccompaniment());
+        // 没有原唱标记时不带标记的文件作为原唱
+        assertSame(entries.get(3), pairs.get(1).getOriginal());
+        assertSame(entries.get(2), pairs.get(1).getAccompaniment());
+        // "Unoriginal" 不是原唱标记
+        assertSame(entries.get(4), pairs.get(2).getOriginal());
+        assertSame(entries.get(5), pairs.get(2).getAccompaniment());
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        File file = File.createTempFile("library", ".idx");
+        try {
+            MediaLibrary library = new MediaLibrary(Arrays.asList(
+                    entry("/music", "狂浪-原唱.mp3"),
+                    entry("/music", "狂浪-伴唱.mp3"),
+                    new MediaLibrary.Entry("/music", "broken.mp3", 10, 2, null, 0, 0, 0)));
+            library.write(file);
+            MediaLibrary read = MediaLibrary.read(file);
+            assertEquals(3, read.size());
+            assertEquals(1, read.getPairs().size());
+            assertEquals(2, read.getPlayableEntries().size());
+            MediaLibrary.Entry entry = read.find("/music" + File.separator + "狂浪-伴唱.mp3");
+            assertEquals("audio/mpeg", entry.getMime());
+            assertEquals(200_000_000L, entry.getDurationUs());
+            assertEquals(44100, entry.getSampleRate());
+            assertEquals(2, entry.getChannelCount());
+            assertTrue(entry.isSameFile(1000, 1));
+            assertNull(read.find("/music" + File.separator + "broken.mp3").getMime());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rescansOnlyChangedFiles() throws Exception {
+        File root = createTempDir();
+        File index = new File(root.getParentFile(), root.getName() + ".idx");
+        try {
+            File sub = new File(root, "sub");
+            sub.mkdirs();
+            write(new File(root, "a-original.mp3"), 10);
+            write(new File(root, "a (Instrumental).mp3"), 20);
+            write(new File(sub, "b.flac"), 30);
+            write(new File(sub, "cover.jpg"), 40);
+
+            final AtomicInteger probes = new AtomicInteger();
+            LibraryScanner.Prober prober = new LibraryScanner.Prober() {
+                @Override
+                public MediaLibrary.Entry probe(File file, long size, long lastModified) throws IOException {
+                    probes.incrementAndGet();
+                    return new MediaLibrary.Entry(file.getParent(), file.getName(), size, lastModified,
+                            "audio/mpeg", size * 1000, 44100, 2);
+                }
+            };
+            List<File> roots = Collections.singletonList(root);
+            MediaLibrary library = new LibraryScanner(index, roots, 2, prober).scan();
+            assertEquals(3, library.size());
+            assertEquals(1, library.getPairs().size());
+            assertEquals(3, probes.get());
+
+            // 新的扫描器从索引开始，没有变化时不读取任何文件
+            LibraryScanner scanner = new LibraryScanner(index, roots, 2, prober);
+            probes.set(0);
+            MediaLibrary unchanged = scanner.scan();
+            assertEquals(3, unchanged.size());
+            assertEquals(0, probes.get());
+            assertSame(unchanged, scanner.scan());
+
+            // 修改、新增、删除
+            write(new File(sub, "b.flac"), 35);
+            write(new File(sub, "c.ogg"), 50);
+            new File(root, "a (Instrumental).mp3").delete();
+            MediaLibrary changed = scanner.scan();
+            assertEquals(2, probes.get());
+            assertEquals(3, changed.size());
+            assertEquals(0, changed.getPairs().size());
+            assertEquals(35_000, changed.find(new File(sub, "b.flac").getPath()).getDurationUs());
+        } finally {
+            deleteRecursively(root);
+            index.delete();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("library", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,77 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 旋律分析测试：居中的440Hz模拟人声，只在左声道的660Hz模拟伴奏
+ */
+public class MelodyAnalyzerTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    private static short[] mix(int frames) {
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double vocal = 6000 * Math.sin(2 * Math.PI * 440 * t);
+            data[i * 2] = (short) (vocal + 4000 * Math.sin(2 * Math.PI * 660 * t));
+            data[i * 2 + 1] = (short) vocal;
+        }
+        return data;
+    }
+
+    // 某个声道中某个频率的幅度，跳过开头 skip 帧
+    private static double amplitude(short[] data, int channel, double frequency, int skip) {
+        double sin = 0, cos = 0;
+        int count = 0;
+        for (int i = skip; i < data.length / 2; i++) {
+            double phase = 2 * Math.PI * frequency * i / SAMPLE_RATE;
+            sin += data[i * 2 + channel] * Math.sin(phase);
+            cos += data[i * 2 + channel] * Math.cos(phase);
+            count++;
+        }
+        return 2 * Math.sqrt(sin * sin + cos * cos) / count;
+    }
+
+    @Test
+    public void vocalSourceKeepsCentreAligned() throws Exception {
+        final short[] input = mix(SAMPLE_RATE * 2);
+        MixSource original = new MixSource() {
+            private int position = 0;
+
+            @Override
+            public int read(short[] buffer, int offset, int size) {
+                if (position >= input.length) {
+                    return -1;
+                }
+                int count = Math.min(size, input.length - position);
+                System.arraycopy(input, position, buffer, offset, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public boolean isLive() {
+                return false;
+            }
+        };
+        MelodyAnalyzer.VocalSource source = new MelodyAnalyzer.VocalSource(original, SAMPLE_RATE);
+
+        short[] output = new short[input.length + 8192];
+        int total = 0;
+        int count;
+        while ((count = source.read(output, total, Math.min(1000, output.length - total))) >= 0) {
+            total += count;
+        }
+        assertEquals(input.length, total);
+        // 与原唱对齐：人声保留，伴奏被减掉
+        int skip = 4096;
+        assertEquals(6000, amplitude(output, 0, 440, skip), 600);
+        assertEquals(6000, amplitude(output, 1, 440, skip), 600);
+        assertTrue(amplitude(output, 0, 660, skip) < 400);
+        assertTrue(amplitude(output, 1, 660, skip) < 100);
+    }
+}
@@ -0,0 +1,87 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 参考旋律索引测试
+ */
+public class MelodyIndexTest {
+
+    /**
+     * 按约100Hz（与音高检测一致，不是正好10毫秒）添加音高：
+     * 0~1秒 A4，1~1.2秒 无音高，1.2~2秒 C5，2~2.02秒 一帧跳变，2~3秒 C5 后 D5
+     */
+    private static MelodyIndex sample() {
+        MelodyIndex.Builder builder = new MelodyIndex.Builder();
+        for (long timeUs = 0; timeUs < 3_000_000; timeUs += 9977) {
+            float midi;
+            if (timeUs < 1_000_000) {
+                midi = 69;
+            } else if (timeUs < 1_200_000) {
+                midi = 0;
+            } else if (timeUs < 2_500_000) {
+                midi = timeUs / 9977 == 2_000_000 / 9977 ? 81 : 72.1f; // 孤立的八度错误
+            } else {
+                midi = 74;
+            }
+            builder.addPitch(timeUs, midi);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void contourLookup() {
+        MelodyIndex index = sample();
+        assertEquals(3_000_000, index.getDurationUs(), 20_000);
+        assertEquals(69, index.getMidiAt(500_000), 0.01);
+        assertEquals(0, index.getMidiAt(1_100_000), 0);
+        assertEquals(72.1, index.getMidiAt(2_000_000), 0.01);  // 中值滤波去掉跳变
+        assertEquals(0, index.getMidiAt(-1), 0);
+        assertEquals(0, index.getMidiAt(10_000_000), 0);
+    }
+
+    @Test
+    public void notesAreSegmented() {
+        MelodyIndex index = sample();
+        assertEquals(3, index.getNoteCount());
+        assertEquals(69, index.getNoteMidi(0), 0.01);
+        assertEquals(72.1, index.getNoteMidi(1), 0.05);
+        assertEquals(74, index.getNoteMidi(2), 0.01);
+        assertEquals(0, index.getNoteStartUs(0));
+        assertEquals(1_000_000, index.getNoteEndUs(0), 20_000);
+        assertEquals(1_200_000, index.getNoteStartUs(1), 20_000);
+        assertEquals(2_500_000, index.getNoteStartUs(2), 20_000);
+
+        assertEquals(0, index.getNoteAt(300_000));
+        assertEquals(-1, index.getNoteAt(1_100_000));
+        assertEquals(1, index.findNote(1_100_000));    // 时间范围查询从下一个音符开始
+        assertEquals(2, index.getNoteAt(2_800_000));
+        assertEquals(3, index.findNote(5_000_000));
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        MelodyIndex index = sample();
+        File file = File.createTempFile("melody", ".melody");
+        try {
+            index.write(file);
+            MelodyIndex read = MelodyIndex.read(file);
+            assertEquals(index.getDurationUs(), read.getDurationUs());
+            assertEquals(index.getNoteCount(), read.getNoteCount());
+            for (long timeUs = 0; timeUs < index.getDurationUs(); timeUs += 10_000) {
+                assertEquals(index.getMidiAt(timeUs), read.getMidiAt(timeUs), 0);
+            }
+            for (int i = 0; i < index.getNoteCount(); i++) {
+                assertEquals(index.getNoteStartUs(i), read.getNoteStartUs(i));
+                assertEquals(index.getNoteEndUs(i), read.getNoteEndUs(i));
+                assertEquals(index.getNoteMidi(i), read.getNoteMidi(i), 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 麦克风音源测试，用合成正弦波代替真实麦克风
+ */
+public class MicSourceTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int READ_SIZE = 256;
+
+    @Test
+    public void monoCaptureIsCopiedToBothChannels() {
+        ToneCaptureSource tone = new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5);
+        MicSource mic = new MicSource(tone, 2);
+        mic.captureOnce();
+
+        short[] buffer = new short[READ_SIZE * 2];
+        assertEquals(READ_SIZE * 2, mic.read(buffer, 0, buffer.length));
+        for (int i = 0; i < READ_SIZE; i++) {
+            assertEquals(tone.sampleAt(i), buffer[i * 2]);
+            assertEquals(tone.sampleAt(i), buffer[i * 2 + 1]);
+        }
+        assertEquals(0, mic.getUnderrunCount());
+    }
+
+    @Test
+    public void underrunIsFilledWithSilence() {
+        MicSource mic = new MicSource(new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5), 2);
+        short[] buffer = new short[64];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = 1;
+        }
+        assertEquals(buffer.length, mic.read(buffer, 0, buffer.length));
+        for (short sample : buffer) {
+            assertEquals(0, sample);
+        }
+        assertEquals(1, mic.getUnderrunCount());
+    }
+
+    @Test
+    public void backlogIsDroppedToKeepLatencyLow() {
+        ToneCaptureSource tone = new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5);
+        MicSource mic = new MicSource(tone, 1);
+        for (int i = 0; i < 10; i++) {
+            mic.captureOnce();
+        }
+
+        short[] buffer = new short[READ_SIZE];
+        mic.read(buffer, 0, buffer.length);
+        // 只保留最新的一个块
+        assertEquals(READ_SIZE * 9, mic.getDroppedSamples());
+        assertEquals(tone.sampleAt(READ_SIZE * 9), buffer[0]);
+    }
+
+    @Test
+    public void micIsMixedWithItsOwnGain() throws InterruptedException {
+        ToneCaptureSource tone = new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5);
+        MicSource mic = new MicSource(tone, 1);
+        mic.captureOnce();
+
+        AudioMixer mixer = new AudioMixer(READ_SIZE);
+        mixer.addTrack(new ConstantSource(8192, READ_SIZE * 4), 1f);
+        mixer.addTrack(mic, 0.5f);
+
+        float[] out = new float[READ_SIZE];
+        assertEquals(READ_SIZE, mixer.mix(out));
+        for (int i = 0; i < READ_SIZE; i++) {
+            float expected = (8192 + tone.sampleAt(i) * 0.5f) / 32768f;
+            assertEquals(expected, out[i], 1e-4);
+        }
+    }
+
+    @Test
+    public void mixEndsWhenFileTracksEnd() throws InterruptedException {
+        MicSource mic = new MicSource(new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5), 1);
+        AudioMixer mixer = new AudioMixer(READ_SIZE);
+        mixer.addTrack(new ConstantSource(100, READ_SIZE + 10), 1f);
+        mixer.addTrack(mic, 1f);
+
+        float[] out = new float[READ_SIZE];
+        assertEquals(READ_SIZE, mixer.mix(out));
+        assertEquals(10, mixer.mix(out));
+        assertEquals(-1, mixer.mix(out));
+    }
+
+    @Test
+    public void latencyIsMeasuredFromCaptureToWrite() {
+        MicSource mic = new MicSource(new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5), 1);
+        mic.captureOnce();
+        long captured = System.nanoTime();
+
+        short[] buffer = new short[READ_SIZE];
+        mic.read(buffer, 0, buffer.length);
+        mic.onBlockWritten(captured + 10_000_000L);
+
+        // 第一帧在采集完成前一个读取周期被采集
+        long readPeriodNs = READ_SIZE * 1_000_000_000L / SAMPLE_RATE;
+        assertTrue(mic.getLastLatencyNs() >= 10_000_000L + readPeriodNs - 1_000_000L);
+        assertTrue(mic.getLastLatencyNs() <= 10_000_000L + readPeriodNs + 50_000_000L);
+        assertEquals(mic.getLastLatencyNs(), mic.getMaxLatencyNs());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+
+        MicSource mic = new MicSource(new ToneCaptureSource(SAMPLE_RATE, READ_SIZE, 440, 0.5), 2);
+        short[] buffer = new short[READ_SIZE * 2];
+        for (int i = 0; i < 1000; i++) {    // 预热
+            mic.captureOnce();
+            mic.read(buffer, 0, buffer.length);
+            mic.onBlockWritten(System.nanoTime());
+        }
+
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            mic.captureOnce();
+            mic.read(buffer, 0, buffer.length);
+            mic.onBlockWritten(System.nanoTime());
+        }
+        long allocated = counter.allocatedBytes() - before;
+        // 统计本身会有几十字节的装箱开销，每块哪怕分配一次也会超过1000次 * 16字节
+        assertTrue("allocated " + allocated, allocated < 1000);
+    }
+
+    /**
+     * 固定值的文件音源
+     */
+    static class ConstantSource implements MixSource {
+        private final short value;
+        private int remaining;
+
+        ConstantSource(int value, int length) {
+            this.value = (short) value;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int size) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = Math.min(size, remaining);
+            for (int i = 0; i < count; i++) {
+                buffer[offset + i] = value;
+            }
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isLive() {
+            return false;
+        }
+    }
+}
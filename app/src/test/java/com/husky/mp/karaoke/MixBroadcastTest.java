@@ -0,0 +1,127 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 混音输出广播测试
+ */
+public class MixBroadcastTest {
+
+    private static final int BLOCK = 256;
+
+    /**
+     * 发布一块，第一个采样为块序号
+     */
+    private static short[] publish(MixBroadcast broadcast, int index) {
+        short[] block = broadcast.obtain();
+        block[0] = (short) index;
+        broadcast.publish(BLOCK);
+        return block;
+    }
+
+    @Test
+    public void readersShareBlocksWithoutCopy() {
+        MixBroadcast broadcast = new MixBroadcast(8, BLOCK, 44100, 2);
+        MixBroadcast.Reader first = broadcast.attach(null);
+        MixBroadcast.Reader second = broadcast.attach(null);
+        short[][] published = new short[5][];
+        for (int i = 0; i < 5; i++) {
+            published[i] = publish(broadcast, i);
+        }
+        for (int i = 0; i < 5; i++) {
+            short[] block = first.poll();
+            assertSame(published[i], block);
+            assertEquals(i, block[0]);
+            assertEquals(BLOCK, first.getSize());
+            assertEquals(i * BLOCK / 2, first.getFramePosition());
+            assertTrue(first.isValid());
+        }
+        assertNull(first.poll());
+        // 第二个消费者有自己的读取位置
+        assertSame(published[0], second.poll());
+        assertEquals(4, second.getPendingBlocks());
+    }
+
+    @Test
+    public void slowReaderIsNotifiedOfOverrun() {
+        MixBroadcast broadcast = new MixBroadcast(8, BLOCK, 44100, 2);
+        final AtomicLong lost = new AtomicLong();
+        MixBroadcast.Reader reader = broadcast.attach(new MixBroadcast.OnOverrunListener() {
+            @Override
+            public void onOverrun(MixBroadcast.Reader reader, long lostBlocks) {
+                lost.addAndGet(lostBlocks);
+            }
+        });
+        assertEquals(0, publish(broadcast, 0)[0]);
+        assertEquals(0, reader.poll()[0]);
+        // 生产者不等待，超过队列长度后覆盖
+        for (int i = 1; i <= 20; i++) {
+            publish(broadcast, i);
+        }
+        assertFalse(reader.isValid());
+        short[] block = reader.poll();
+        // 队列中是13~20，下一块写入时会覆盖13，所以从14开始
+        assertEquals(14, block[0]);
+        assertEquals(13, lost.get());
+        assertEquals(13, reader.getLostBlocks());
+        for (int i = 15; i <= 20; i++) {
+            assertEquals(i, reader.poll()[0]);
+        }
+        assertNull(reader.poll());
+    }
+
+    @Test
+    public void attachAndDetachWhilePublishing() throws Exception {
+        MixBroadcast broadcast = new MixBroadcast(8, BLOCK, 44100, 2);
+        publish(broadcast, 0);
+        publish(broadcast, 1);
+        MixBroadcast.Reader reader = broadcast.attach(null);
+        assertNull(reader.poll());  // 从下一块开始
+        publish(broadcast, 2);
+        assertEquals(2, reader.poll()[0]);
+        reader.detach();
+        publish(broadcast, 3);
+        assertNull(reader.poll());
+        assertNull(reader.next(1000));
+    }
+
+    @Test
+    public void waitingReaderIsWokenByProducer() throws Exception {
+        final MixBroadcast broadcast = new MixBroadcast(8, BLOCK, 44100, 2);
+        MixBroadcast.Reader reader = broadcast.attach(null);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    publish(broadcast, i);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                broadcast.close();
+            }
+        });
+        producer.start();
+        int count = 0;
+        short[] block;
+        while ((block = reader.next(5000)) != null) {
+            if (reader.isValid()) {
+                assertEquals(count + reader.getLostBlocks(), block[0]);
+            }
+            count++;
+        }
+        producer.join();
+        assertTrue(broadcast.isClosed());
+        assertEquals(100, count + reader.getLostBlocks());
+    }
+}
@@ -0,0 +1,61 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 演唱录音时间轴测试：读取落后被广播丢弃的块用静音补上，送入编码器的长度和时间戳与输出流中的位置一致
+ */
+public class PerformanceRecorderTest {
+
+    private static final int RATE = 8000;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK = 256;   // 采样数，128帧
+
+    // 按录音线程的方式读取一块：统计位置，补静音，检查时间戳，送入编码器
+    private static void record(PerformanceRecorder recorder, MixBroadcast.Reader reader, long startFrame) {
+        long silence = recorder.onBlock(reader.getFramePosition(), reader.getSize());
+        if (silence > 0) {
+            recorder.onFed((int) silence * CHANNELS);
+        }
+        assertEquals((reader.getFramePosition() - startFrame) * 1_000_000L / RATE, recorder.presentationTimeUs());
+        recorder.onFed(reader.getSize());
+    }
+
+    @Test
+    public void droppedBlocksAdvanceTimestamps() {
+        MixBroadcast broadcast = new MixBroadcast(4, BLOCK, RATE, CHANNELS);
+        broadcast.obtain();
+        broadcast.publish(BLOCK);   // 开始录音前的一块
+        MixBroadcast.Reader reader = broadcast.attach(null);
+        PerformanceRecorder recorder = new PerformanceRecorder(broadcast, new File("performance.m4a"));
+        for (int i = 0; i < 3; i++) {
+            broadcast.obtain();
+            broadcast.publish(BLOCK);
+        }
+        assertTrue(reader.poll() != null);
+        long startFrame = reader.getFramePosition();
+        assertEquals(BLOCK / CHANNELS, startFrame);
+        record(recorder, reader, startFrame);
+        assertTrue(reader.poll() != null);
+        record(recorder, reader, startFrame);
+        assertEquals(0, recorder.getDroppedFrames());
+
+        // 录音线程落后：队列只有4块，发布10块后前面的被覆盖
+        for (int i = 0; i < 10; i++) {
+            broadcast.obtain();
+            broadcast.publish(BLOCK);
+        }
+        while (reader.poll() != null) {
+            record(recorder, reader, startFrame);
+        }
+        assertTrue(reader.getLostBlocks() > 0);
+        assertEquals(reader.getLostBlocks() * BLOCK / CHANNELS, recorder.getDroppedFrames());
+        // 录音时长与输出流中经过的时间一致（开始后发布了13块）
+        assertEquals(13 * (BLOCK / CHANNELS) * 1_000_000L / RATE, recorder.getRecordedUs());
+    }
+}
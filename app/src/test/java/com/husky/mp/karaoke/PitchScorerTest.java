@@ -0,0 +1,75 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 演唱评分测试，参考旋律为1秒A4（440Hz）
+ */
+public class PitchScorerTest {
+
+    private static PitchScorer scorer() {
+        MelodyIndex.Builder builder = new MelodyIndex.Builder();
+        for (long timeUs = 0; timeUs <= 1_000_000; timeUs += 10_000) {
+            builder.addPitch(timeUs, 69);
+        }
+        builder.addPitch(2_000_000, 0);
+        return new PitchScorer(builder.build());
+    }
+
+    private static void sing(PitchScorer scorer, float frequency) {
+        for (long timeUs = 0; timeUs < 2_000_000; timeUs += 10_000) {
+            scorer.onPitch(timeUs, frequency, 1);
+        }
+    }
+
+    @Test
+    public void inTune() {
+        PitchScorer scorer = scorer();
+        sing(scorer, 440);
+        assertEquals(100, scorer.getScore());
+        assertEquals(100, scorer.getScoredFrames(), 2);    // 间奏不计分
+    }
+
+    @Test
+    public void octaveIsIgnored() {
+        PitchScorer scorer = scorer();
+        sing(scorer, 220);
+        assertEquals(100, scorer.getScore());
+    }
+
+    @Test
+    public void outOfTune() {
+        PitchScorer scorer = scorer();
+        sing(scorer, 440 * (float) Math.pow(2, 3 / 12.0));  // 高3个半音
+        assertEquals(0, scorer.getScore());
+
+        scorer.reset();
+        sing(scorer, 440 * (float) Math.pow(2, 1.25 / 12.0));   // 介于满分和零分之间
+        assertEquals(50, scorer.getScore(), 1);
+
+        scorer.reset();
+        sing(scorer, 0);    // 不唱
+        assertEquals(0, scorer.getScore());
+    }
+
+    @Test
+    public void scoringDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        PitchScorer scorer = scorer();
+        sing(scorer, 440);  // 预热
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 100; i++) {
+            sing(scorer, 441);
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
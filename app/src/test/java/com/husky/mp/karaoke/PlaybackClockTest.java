@@ -0,0 +1,145 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 播放位置时钟测试（用模拟的时间驱动）
+ */
+public class PlaybackClockTest {
+
+    private static final int RATE = 48000;
+    private static final int BLOCK = 480;               // 10ms
+    private static final long BLOCK_NANOS = 10_000_000L;
+
+    @Test
+    public void followsTimestampsAndMapsMediaPosition() {
+        PlaybackClock clock = new PlaybackClock(RATE);
+        // 以半速播放：每个输出帧对应半帧媒体
+        long now = 0;
+        for (int i = 1; i <= 20; i++) {
+            clock.onWritten(i * BLOCK, i * BLOCK / 2, now);
+            now += BLOCK_NANOS;
+        }
+        // 时间戳：now 时正在输出第 RATE/20 帧（50ms延迟后开始播放）
+        long played = (now - 50_000_000L) * RATE / 1_000_000_000L;
+        clock.onTimestamp(played, now, true);
+        assertEquals(played / 2.0, clock.getPositionFrames(now), 1);
+        // 外推 20ms
+        assertEquals((played + RATE / 50) / 2.0, clock.getPositionFrames(now + 20_000_000L), 1);
+    }
+
+    @Test
+    public void neverPassesWrittenDataAndRestartsAfterUnderrun() {
+        PlaybackClock clock = new PlaybackClock(RATE);
+        clock.onWritten(BLOCK, BLOCK, 0);
+        // 1秒后只写入了一块，位置停在已写入的末尾
+        assertEquals(BLOCK, clock.getPositionFrames(1_000_000_000L));
+        // 欠载后写入新数据，从现在开始继续
+        long now = 1_000_000_000L;
+        clock.onWritten(2 * BLOCK, 2 * BLOCK, now);
+        assertEquals(BLOCK, clock.getPositionFrames(now));
+        assertEquals(BLOCK + BLOCK / 2, clock.getPositionFrames(now + BLOCK_NANOS / 2), 1);
+    }
+
+    @Test
+    public void measuresStarvation() {
+        PlaybackClock clock = new PlaybackClock(RATE);
+        clock.onWritten(BLOCK, BLOCK, 0);
+        assertEquals(0, clock.getStarvedNanos(BLOCK_NANOS / 2));
+        // 数据在10ms时播完，25ms时已经空了15ms
+        assertEquals(15_000_000L, clock.getStarvedNanos(25_000_000L), 1000);
+        // 写入新数据后重新开始
+        clock.onWritten(2 * BLOCK, 2 * BLOCK, 25_000_000L);
+        assertEquals(0, clock.getStarvedNanos(30_000_000L));
+    }
+
+    @Test
+    public void smoothsSmallErrorsAndJumpsOnLargeOnes() {
+        PlaybackClock clock = new PlaybackClock(RATE);
+        long now = 0;
+        for (int i = 1; i <= 100; i++) {
+            clock.onWritten(i * BLOCK, i * BLOCK, now);
+            now += BLOCK_NANOS;
+        }
+        long t = 200_000_000L;
+        long expected = t * RATE / 1_000_000_000L;
+        clock.onTimestamp(expected, t, true);
+        // 2ms 的抖动只修正一部分
+        long jitter = RATE / 500;
+        clock.onTimestamp(expected + jitter, t, true);
+        long position = clock.getPositionFrames(t);
+        assertTrue("position " + position, position > expected && position < expected + jitter);
+        // 100ms 的误差直接跳过去（只会向前，不会后退）
+        clock.onTimestamp(expected + RATE / 10, t, true);
+        assertEquals(expected + RATE / 10, clock.getPositionFrames(t));
+        clock.onTimestamp(expected, t, true);
+        assertEquals(expected + RATE / 10, clock.getPositionFrames(t));
+    }
+
+    @Test
+    public void pauseResumeAndFlush() {
+        PlaybackClock clock = new PlaybackClock(RATE);
+        long now = 0;
+        for (int i = 1; i <= 100; i++) {
+            clock.onWritten(i * BLOCK, i * BLOCK, now);
+            now += BLOCK_NANOS;
+        }
+        // 输出比写入晚100ms
+        clock.onTimestamp(RATE * 89 / 100, now - BLOCK_NANOS, true);
+        long pauseAt = now;
+        clock.pause(pauseAt);
+        long paused = clock.getPositionFrames(pauseAt);
+        assertEquals(RATE * 9 / 10, paused);
+        assertEquals(paused, clock.getPositionFrames(pauseAt + 500_000_000L));
+        clock.resume(pauseAt + 500_000_000L);
+        assertEquals(paused + RATE / 100, clock.getPositionFrames(pauseAt + 510_000_000L), 1);
+
+        // 跳转回开头：位置可以后退，输出帧从0重新开始
+        clock.flush(RATE);
+        assertEquals(RATE, clock.getPositionFrames(now));
+        clock.onWritten(BLOCK, RATE + BLOCK, now);
+        assertEquals(RATE + BLOCK / 2, clock.getPositionFrames(now + BLOCK_NANOS / 2), 1);
+    }
+
+    @Test
+    public void concurrentReadersSeeMonotonicPosition() throws Exception {
+        final PlaybackClock clock = new PlaybackClock(RATE);
+        final long start = System.nanoTime();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long last = 0;
+                    while (!done.get()) {
+                        long position = clock.getPositionFrames(System.nanoTime());
+                        if (position < last) {
+                            failed.set(true);
+                        }
+                        last = position;
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        // 写入线程：每块写入后带抖动的时间戳，让锚点和记录不断变化
+        for (int i = 1; i <= 2000; i++) {
+            long now = System.nanoTime();
+            clock.onWritten((long) i * BLOCK, (long) i * BLOCK, now);
+            long played = (now - start) * RATE / 1_000_000_000L;
+            clock.onTimestamp(played + (i % 7 - 3) * 10, now, true);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue("position went backwards", !failed.get());
+    }
+}
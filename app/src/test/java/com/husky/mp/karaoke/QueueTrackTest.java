@@ -0,0 +1,86 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 队列歌曲测试：预解码、格式转换
+ */
+public class QueueTrackTest {
+
+    private static final int BLOCK = 256;
+
+    // 读到结束，返回读取的帧数
+    private static int readAll(QueueTrack track, short[] out, int channels) {
+        int frames = 0;
+        short[] block = new short[BLOCK * channels];
+        while (true) {
+            int count = track.read(block, 0, block.length);
+            if (count < 0) {
+                return frames;
+            }
+            if (out != null) {
+                System.arraycopy(block, 0, out, frames * channels, Math.min(count, out.length - frames * channels));
+            }
+            frames += count / channels;
+        }
+    }
+
+    @Test
+    public void sameFormatPassesThrough() throws Exception {
+        FakeDecoder decoder = new FakeDecoder(44100, 2, 1000, 10000, null);
+        QueueTrack track = new QueueTrack(MediaInput.fromPath("a"), decoder, BLOCK);
+        assertEquals(44100, track.getSampleRate());
+        assertEquals(2, track.getChannelCount());
+        track.setOutputFormat(44100, 2);
+        short[] out = new short[1000 * 2];
+        assertEquals(1000, readAll(track, out, 2));
+        for (int f = 0; f < 1000; f++) {
+            assertEquals(10000 + f, out[f * 2]);
+            assertEquals(10000 + f, out[f * 2 + 1]);
+        }
+        track.release();
+        assertTrue(decoder.isReleased());
+    }
+
+    @Test
+    public void resamplesToOutputFormat() throws Exception {
+        // 22050Hz单声道转换成44100Hz双声道，时长不变
+        QueueTrack track = new QueueTrack(MediaInput.fromPath("a"), new FakeDecoder(22050, 1, 5000, 0, null) {
+            @Override
+            protected short sample(int frame, int channel) {
+                return 8000;
+            }
+        }, BLOCK);
+        track.setOutputFormat(44100, 2);
+        short[] out = new short[12000 * 2];
+        int frames = readAll(track, out, 2);
+        assertEquals(10000, frames, 4);
+        // 声道复制，中间部分的值不变
+        for (int f = 10; f < 9990; f++) {
+            assertEquals(8000, out[f * 2], 2);
+            assertEquals(out[f * 2], out[f * 2 + 1]);
+        }
+
+        // 48000Hz转换成44100Hz
+        track = new QueueTrack(MediaInput.fromPath("b"), new FakeDecoder(48000, 2, 48000, 0, null), BLOCK);
+        track.setOutputFormat(44100, 2);
+        assertEquals(44100, readAll(track, null, 2), 4);
+    }
+
+    @Test
+    public void emptyTrackFailsAndReleases() {
+        FakeDecoder decoder = new FakeDecoder(44100, 2, 0, 0, null);
+        try {
+            new QueueTrack(MediaInput.fromPath("empty"), decoder, BLOCK);
+            fail();
+        } catch (IOException e) {
+            assertTrue(decoder.isReleased());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.husky.mp.karaoke;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 频谱可视化数据测试
+ */
+public class SpectrumTapTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BANDS = 32;
+
+    /**
+     * 立体声正弦波
+     */
+    private static float[] sine(float frequency, int frames) {
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            float value = 0.5f * (float) Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+            data[i * 2] = value;
+            data[i * 2 + 1] = value;
+        }
+        return data;
+    }
+
+    private static void waitForFrame(SpectrumTap tap) throws InterruptedException {
+        for (int i = 0; i < 100 && tap.getFrameCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue("no frame published", tap.getFrameCount() > 0);
+    }
+
+    @Test
+    public void unsubscribedWriteIsIgnored() {
+        SpectrumTap tap = new SpectrumTap(BANDS);
+        tap.setFormat(SAMPLE_RATE, 2);
+        float[] data = sine(1000, SpectrumTap.FFT_SIZE * 2);
+        tap.write(data, data.length);
+        assertTrue(!tap.analyze());
+        assertEquals(0, tap.getFrameCount());
+    }
+
+    @Test
+    public void sinePeaksInItsBand() throws Exception {
+        SpectrumTap tap = new SpectrumTap(BANDS);
+        tap.setFormat(SAMPLE_RATE, 2);
+        tap.subscribe();
+        try {
+            float[] data = sine(1000, SpectrumTap.FFT_SIZE * 2);
+            tap.write(data, data.length);
+            waitForFrame(tap);
+            float[] levels = tap.read();
+            int peak = 0;
+            for (int b = 1; b < BANDS; b++) {
+                if (levels[b] > levels[peak]) {
+                    peak = b;
+                }
+            }
+            // 40Hz~16kHz 按对数均分，1kHz 位于 log(25)/log(400) 处
+            int expected = (int) (BANDS * Math.log(1000 / 40.0) / Math.log(16000 / 40.0));
+            assertTrue("peak band " + peak + ", expected " + expected, Math.abs(peak - expected) <= 1);
+            assertTrue(levels[peak] > 0.8f);
+            assertTrue(levels[0] < 0.3f);
+            assertTrue(levels[BANDS - 1] < 0.3f);
+        } finally {
+            tap.unsubscribe();
+        }
+    }
+
+    @Test
+    public void readReturnsSameBufferWithoutNewFrame() throws Exception {
+        SpectrumTap tap = new SpectrumTap(BANDS);
+        tap.setFormat(SAMPLE_RATE, 2);
+        tap.subscribe();
+        try {
+            float[] data = sine(440, SpectrumTap.FFT_SIZE * 2);
+            tap.write(data, data.length);
+            waitForFrame(tap);
+            Thread.sleep(100);  // 没有新数据，分析线程不会再发布
+            long frames = tap.getFrameCount();
+            float[] first = tap.read();
+            assertSame(first, tap.read());
+            assertEquals(frames, tap.getFrameCount());
+        } finally {
+            tap.unsubscribe();
+        }
+    }
+
+    private static int countThreads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName()) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void resubscribeWaitsForPreviousThread() throws Exception {
+        SpectrumTap tap = new SpectrumTap(BANDS);
+        tap.setFormat(SAMPLE_RATE, 2);
+        float[] data = sine(440, SpectrumTap.FFT_SIZE);
+        for (int i = 0; i < 20; i++) {
+            tap.subscribe();
+            tap.write(data, data.length);   // 每次都有新数据，分析线程可能正在分析时取消
+            Thread.sleep(i % 3);
+            tap.unsubscribe();
+        }
+        tap.subscribe();
+        try {
+            // 之前的分析线程都已经退出
+            assertEquals(1, countThreads("spectrumTap"));
+        } finally {
+            tap.unsubscribe();
+        }
+    }
+
+    @Test
+    public void writeDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        SpectrumTap tap = new SpectrumTap(BANDS);
+        tap.setFormat(SAMPLE_RATE, 2);
+        float[] block = sine(440, 1024);
+        tap.subscribe();
+        try {
+            for (int i = 0; i < 100; i++) { // 预热
+                tap.write(block, block.length);
+            }
+            long before = counter.allocatedBytes();
+            for (int i = 0; i < 1000; i++) {
+                tap.write(block, block.length);
+            }
+            long allocated = counter.allocatedBytes() - before;
+            assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+        } finally {
+            tap.unsubscribe();
+        }
+    }
+}
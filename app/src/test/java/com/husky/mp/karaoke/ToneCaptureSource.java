@@ -0,0 +1,65 @@
+package com.husky.mp.karaoke;
+
+/**
+ * 合成正弦波的采集源，测试时代替麦克风
+ */
+public class ToneCaptureSource implements CaptureSource {
+
+    private final int sampleRate;
+    private final int readSize;
+    private final double frequency;
+    private final double amplitude;
+    private long position = 0;  // 已经生成的帧数
+
+    public ToneCaptureSource(int sampleRate, int readSize, double frequency, double amplitude) {
+        this.sampleRate = sampleRate;
+        this.readSize = readSize;
+        this.frequency = frequency;
+        this.amplitude = amplitude;
+    }
+
+    /**
+     * 第index帧的采样值
+     *
+     * @param index
+     * @return
+     */
+    public short sampleAt(long index) {
+        return (short) Math.round(amplitude * 32767 * Math.sin(2 * Math.PI * frequency * index / sampleRate));
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return 1;
+    }
+
+    @Override
+    public int getReadSize() {
+        return readSize;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        for (int i = 0; i < size; i++) {
+            buffer[offset + i] = sampleAt(position++);
+        }
+        return size;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+}
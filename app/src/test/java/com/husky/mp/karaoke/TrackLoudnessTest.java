@@ -0,0 +1,39 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 单曲响度测试
+ */
+public class TrackLoudnessTest {
+
+    @Test
+    public void normalizationGain() {
+        // 比目标响 4dB，衰减 4dB
+        assertEquals(Math.pow(10, -4 / 20.0), new TrackLoudness(-12, 1, 0).getNormalizationGain(-16), 1e-4);
+        // 比目标轻 6dB，但真峰值 -3dBTP，只能提升 3dB
+        assertEquals(Math.pow(10, 3 / 20.0), new TrackLoudness(-22, 0.7079f, 0).getNormalizationGain(-16), 1e-3);
+        // 最多提升 12dB
+        assertEquals(Math.pow(10, 12 / 20.0), new TrackLoudness(-40, 0.01f, 0).getNormalizationGain(-16), 1e-3);
+        // 没有有效内容时不调整
+        assertEquals(1, new TrackLoudness(Float.NEGATIVE_INFINITY, 0, 0).getNormalizationGain(-16), 0);
+    }
+
+    @Test
+    public void writeAndRead() throws Exception {
+        File file = File.createTempFile("loudness", ".loudness");
+        try {
+            new TrackLoudness(-14.5f, 0.93f, 215_000_000L).write(file);
+            TrackLoudness loudness = TrackLoudness.read(file);
+            assertEquals(-14.5f, loudness.getIntegratedLufs(), 0);
+            assertEquals(0.93f, loudness.getTruePeak(), 0);
+            assertEquals(215_000_000L, loudness.getDurationUs());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.husky.mp.karaoke;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 波形峰值测试
+ */
+public class WaveformPeaksTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    /**
+     * 立体声，幅度随时间增大的正弦波，右声道反相
+     */
+    private static short[] signal(int frames) {
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double amplitude = 30000.0 * i / frames;
+            short value = (short) (amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            data[i * 2] = value;
+            data[i * 2 + 1] = (short) -value;
+        }
+        return data;
+    }
+
+    private static void checkAgainstBruteForce(WaveformPeaks peaks, short[] data, long start, double framesPerPixel, int pixels) {
+        byte[] mins = new byte[pixels];
+        byte[] maxs = new byte[pixels];
+        int count = peaks.getPeaks(start, framesPerPixel, mins, maxs, pixels);
+        for (int p = 0; p < count; p++) {
+            long from = start + (long) (p * framesPerPixel);
+            long to = Math.min(data.length / 2, start + (long) ((p + 1) * framesPerPixel));
+            int min = 0;
+            int max = 0;
+            for (long i = from * 2; i < to * 2; i++) {
+                min = Math.min(min, data[(int) i]);
+                max = Math.max(max, data[(int) i]);
+            }
+            // 峰值按项对齐，可能包含像素两边各不到一项的数据
+            assertTrue(p + ": " + mins[p] * 256 + " > " + min, mins[p] * 256 <= min);
+            assertTrue(p + ": " + maxs[p] * 256 + " < " + max, maxs[p] * 256 + 256 >= max);
+        }
+    }
+
+    @Test
+    public void pyramidMatchesSignalAtAnyZoom() throws Exception {
+        File media = File.createTempFile("waveform", ".mp3");
+        File file = WaveformPeaks.getFile(MediaInput.fromPath(media.getPath()), null);
+        try {
+            int frames = SAMPLE_RATE * 10;
+            short[] data = signal(frames);
+            WaveformPeaks peaks = WaveformPeaks.open(file, MediaInput.fromPath(media.getPath()), SAMPLE_RATE, 10_000_000);
+            for (int i = 0; i < data.length; i += 4096) {
+                peaks.append(data, i, Math.min(4096, data.length - i), 2);
+            }
+            peaks.finish();
+            assertTrue(peaks.isComplete());
+
+            checkAgainstBruteForce(peaks, data, 0, frames / 800.0, 800);        // 整首
+            checkAgainstBruteForce(peaks, data, 123_456, 1000, 300);            // 放大
+            checkAgainstBruteForce(peaks, data, 200_000, 37.5, 500);            // 比第0层还细
+
+            // 最后一个像素接近满幅
+            byte[] mins = new byte[100];
+            byte[] maxs = new byte[100];
+            assertEquals(100, peaks.getPeaks(0, frames / 100.0, mins, maxs, 100));
+            assertEquals(30000 / 256, maxs[99], 2);
+            assertEquals(-30000 / 256, mins[99], 2);
+            peaks.close();
+        } finally {
+            file.delete();
+            media.delete();
+        }
+    }
+
+    @Test
+    public void incrementalBuildAndReopen() throws Exception {
+        File media = File.createTempFile("waveform", ".mp3");
+        File file = new File(media.getPath() + ".peaks");
+        try {
+            MediaInput input = MediaInput.fromPath(media.getPath());
+            short[] data = signal(SAMPLE_RATE * 4);
+            WaveformPeaks peaks = WaveformPeaks.open(file, input, SAMPLE_RATE, 4_000_000);
+            peaks.append(data, 0, SAMPLE_RATE * 2, 2);  // 播放了1秒
+            assertFalse(peaks.isComplete());
+            assertEquals(SAMPLE_RATE, peaks.getBuiltFrames(), WaveformPeaks.FRAMES_PER_PEAK);
+
+            // 还没写入的部分没有数据
+            byte[] mins = new byte[40];
+            byte[] maxs = new byte[40];
+            int count = peaks.getPeaks(0, SAMPLE_RATE / 10.0, mins, maxs, 40);
+            assertEquals(10, count, 1);
+
+            // 再次打开，已经写入的部分还在，重新从头写完
+            peaks.close();
+            peaks = WaveformPeaks.open(file, input, SAMPLE_RATE, 4_000_000);
+            assertEquals(SAMPLE_RATE, peaks.getBuiltFrames(), WaveformPeaks.FRAMES_PER_PEAK);
+            peaks.restart();
+            peaks.append(data, 0, data.length, 2);
+            peaks.finish();
+            peaks.close();
+
+            peaks = WaveformPeaks.open(file, input, SAMPLE_RATE, 4_000_000);
+            assertTrue(peaks.isComplete());
+            checkAgainstBruteForce(peaks, data, 0, SAMPLE_RATE / 100.0, 400);
+            peaks.close();
+
+            // 采样率不一致时重新创建
+            peaks = WaveformPeaks.open(file, input, 48000, 4_000_000);
+            assertFalse(peaks.isComplete());
+            assertEquals(0, peaks.getBuiltFrames());
+            peaks.close();
+        } finally {
+            file.delete();
+            media.delete();
+        }
+    }
+}
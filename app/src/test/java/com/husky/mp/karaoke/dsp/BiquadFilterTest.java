@@ -0,0 +1,54 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 二阶滤波器测试
+ */
+public class BiquadFilterTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    /**
+     * 单声道正弦波经过滤波器后的增益（分贝），跳过开头的过渡过程
+     */
+    private static double gainDb(BiquadFilter filter, double frequency) {
+        EffectChain chain = new EffectChain();
+        chain.add(filter);
+        float[] block = new float[512];
+        double peak = 0;
+        for (int n = 0; n < 40; n++) {
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (float) Math.sin(2 * Math.PI * frequency * (n * block.length + i) / SAMPLE_RATE);
+            }
+            chain.process(block, block.length);
+            for (int i = 0; n >= 20 && i < block.length; i++) {
+                peak = Math.max(peak, Math.abs(block[i]));
+            }
+        }
+        return 20 * Math.log10(peak);
+    }
+
+    @Test
+    public void lowPassAttenuatesAboveCutoff() {
+        assertEquals(0, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_LOW_PASS, 1000, 0.707f, 0), 100), 0.1);
+        assertEquals(-3, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_LOW_PASS, 1000, 0.707f, 0), 1000), 0.2);
+        assertTrue(gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_LOW_PASS, 1000, 0.707f, 0), 10000) < -35);
+    }
+
+    @Test
+    public void peakingBoostsCentreOnly() {
+        assertEquals(6, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_PEAKING, 2000, 1, 6), 2000), 0.1);
+        assertEquals(0, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_PEAKING, 2000, 1, 6), 100), 0.2);
+    }
+
+    @Test
+    public void shelvesChangeOneEnd() {
+        assertEquals(-6, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_HIGH_SHELF, 3000, 0.707f, -6), 15000), 0.3);
+        assertEquals(0, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_HIGH_SHELF, 3000, 0.707f, -6), 100), 0.2);
+        assertEquals(4, gainDb(new BiquadFilter(SAMPLE_RATE, 1, BiquadFilter.TYPE_LOW_SHELF, 200, 0.707f, 4), 30), 0.3);
+    }
+}
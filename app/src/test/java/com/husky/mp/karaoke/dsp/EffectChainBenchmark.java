@@ -0,0 +1,72 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 效果基准：处理一秒44.1kHz立体声的耗时，结果除以1000即为占用单核的千分比
+ * <p>
+ * 运行：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=EffectChainBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EffectChainBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 1024;  // 512帧立体声
+
+    @Param({"bypassed", "eq", "compressor", "echo", "reverb"})
+    public String effect;
+
+    private EffectChain chain;
+    private float[] source;
+    private float[] block;
+
+    @Setup
+    public void setup() {
+        AudioEffect node;
+        if ("compressor".equals(effect)) {
+            node = new Compressor(SAMPLE_RATE, 2);
+        } else if ("echo".equals(effect)) {
+            node = new Echo(SAMPLE_RATE, 2);
+        } else if ("reverb".equals(effect)) {
+            node = new Reverb(SAMPLE_RATE, 2);
+        } else {
+            node = new BiquadFilter(SAMPLE_RATE, 2, BiquadFilter.TYPE_PEAKING, 1000, 1, 6);
+        }
+        node.setEnabled(!"bypassed".equals(effect));
+        chain = new EffectChain();
+        chain.add(node);
+        source = new float[SAMPLE_RATE * 2];
+        Random random = new Random(1);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (float) (random.nextGaussian() * 0.1);
+        }
+        block = new float[BLOCK];
+    }
+
+    @Benchmark
+    public float oneSecond() {
+        for (int i = 0; i + BLOCK <= source.length; i += BLOCK) {
+            System.arraycopy(source, i, block, 0, BLOCK);
+            chain.process(block, BLOCK);
+        }
+        return block[0];
+    }
+}
@@ -0,0 +1,170 @@
+package com.husky.mp.karaoke.dsp;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 效果链测试
+ */
+public class EffectChainTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 1024;  // 512帧立体声
+
+    /**
+     * 乘以系数，记录处理次数
+     */
+    private static class GainEffect extends AudioEffect {
+        volatile float gain = 1;
+        float applied = 1;
+        int blocks = 0;
+        int resets = 0;
+
+        GainEffect() {
+            super(SAMPLE_RATE, 2);
+        }
+
+        void setGain(float gain) {
+            this.gain = gain;
+            parametersChanged();
+        }
+
+        @Override
+        protected void updateParameters() {
+            applied = gain;
+        }
+
+        @Override
+        protected void process(float[] buffer, int frames) {
+            blocks++;
+            for (int i = 0; i < frames * channels; i++) {
+                buffer[i] *= applied;
+            }
+        }
+
+        @Override
+        public void reset() {
+            resets++;
+        }
+    }
+
+    private static float[] block(float value) {
+        float[] buffer = new float[BLOCK];
+        for (int i = 0; i < BLOCK; i++) {
+            buffer[i] = value;
+        }
+        return buffer;
+    }
+
+    @Test
+    public void bypassedEffectsAreSkipped() {
+        EffectChain chain = new EffectChain();
+        GainEffect effect = new GainEffect();
+        effect.setGain(2);
+        chain.add(effect);
+        effect.setEnabled(false);
+        assertFalse(chain.isActive());
+
+        float[] buffer = block(0.25f);
+        chain.process(buffer, BLOCK);
+        assertArrayEquals(block(0.25f), buffer, 0);
+        assertEquals(0, effect.blocks);
+        assertEquals(0, effect.getCpuLoad(), 0);
+    }
+
+    @Test
+    public void parametersApplyOnNextBlock() {
+        EffectChain chain = new EffectChain();
+        GainEffect first = new GainEffect();
+        GainEffect second = new GainEffect();
+        chain.add(first);
+        chain.add(second);
+        first.setGain(2);
+        second.setGain(0.5f);
+
+        float[] buffer = block(0.25f);
+        chain.process(buffer, BLOCK);
+        assertEquals(0.25f, buffer[0], 1e-6);
+
+        second.setGain(3);
+        buffer = block(0.25f);
+        chain.process(buffer, BLOCK);
+        assertEquals(1.5f, buffer[BLOCK - 1], 1e-6);
+
+        chain.remove(first);
+        buffer = block(0.25f);
+        chain.process(buffer, BLOCK);
+        assertEquals(0.75f, buffer[0], 1e-6);
+        assertTrue(chain.getCpuLoad() > 0);
+    }
+
+    @Test
+    public void reenabledEffectStartsClean() {
+        GainEffect effect = new GainEffect();
+        EffectChain chain = new EffectChain();
+        chain.add(effect);
+        float[] buffer = block(0.1f);
+        chain.process(buffer, BLOCK);
+        effect.setEnabled(false);
+        chain.process(buffer, BLOCK);
+        effect.setEnabled(true);
+        chain.process(buffer, BLOCK);
+        assertEquals(1, effect.resets);
+        assertEquals(2, effect.blocks);
+    }
+
+    @Test
+    public void compressorReducesLoudPassages() {
+        Compressor compressor = new Compressor(SAMPLE_RATE, 2);
+        compressor.setParameters(-20, 4, 1, 100, 0);
+        EffectChain chain = new EffectChain();
+        chain.add(compressor);
+        float[] buffer = new float[BLOCK];
+        float peak = 0;
+        for (int n = 0; n < 50; n++) {
+            for (int i = 0; i < BLOCK; i += 2) {
+                float value = (float) Math.sin(2 * Math.PI * 440 * (n * BLOCK / 2 + i / 2) / SAMPLE_RATE);
+                buffer[i] = value;
+                buffer[i + 1] = value;
+            }
+            chain.process(buffer, BLOCK);
+            if (n == 49) {
+                for (int i = 0; i < BLOCK; i++) {
+                    peak = Math.max(peak, Math.abs(buffer[i]));
+                }
+            }
+        }
+        // 0dBFS 超过门限20dB，4:1 压缩后约为 -15dBFS
+        assertEquals(-15, 20 * Math.log10(peak), 1.5);
+        assertEquals(-15, compressor.getGainReductionDb(), 1.5);
+    }
+
+    @Test
+    public void effectsDoNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        EffectChain chain = new EffectChain();
+        chain.add(new BiquadFilter(SAMPLE_RATE, 2, BiquadFilter.TYPE_PEAKING, 1000, 1, 6));
+        chain.add(new Compressor(SAMPLE_RATE, 2));
+        chain.add(new Echo(SAMPLE_RATE, 2));
+        chain.add(new Reverb(SAMPLE_RATE, 2));
+        float[] buffer = block(0.1f);
+        for (int i = 0; i < 100; i++) { // 预热
+            chain.process(buffer, BLOCK);
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            chain.process(buffer, BLOCK);
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
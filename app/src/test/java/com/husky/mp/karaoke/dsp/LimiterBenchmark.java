@@ -0,0 +1,61 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限幅器基准：处理一个混音块（512帧立体声，约11.6毫秒）的耗时
+ * <p>
+ * quiet 不超过上限，走快速路径；loud 持续超过上限，每帧计算增益
+ * <p>
+ * 运行：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=LimiterBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LimiterBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 1024;  // 512帧立体声
+
+    @Param({"quiet", "loud"})
+    public String level;
+
+    private Limiter limiter;
+    private float[] source;
+    private float[] block;
+
+    @Setup
+    public void setup() {
+        limiter = new Limiter(SAMPLE_RATE, 2);
+        float amplitude = "loud".equals(level) ? 1.5f : 0.1f;
+        source = new float[BLOCK];
+        Random random = new Random(1);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = Math.max(-4 * amplitude, Math.min(4 * amplitude, (float) (random.nextGaussian() * amplitude)));
+        }
+        block = new float[BLOCK];
+    }
+
+    @Benchmark
+    public float oneBlock() {
+        System.arraycopy(source, 0, block, 0, BLOCK);
+        limiter.process(block, BLOCK);
+        return block[0];
+    }
+}
@@ -0,0 +1,119 @@
+package com.husky.mp.karaoke.dsp;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 限幅器测试
+ */
+public class LimiterTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK = 1024;  // 512帧立体声
+
+    private static float[] noise(float amplitude, int samples, long seed) {
+        float[] data = new float[samples];
+        Random random = new Random(seed);
+        for (int i = 0; i < samples; i++) {
+            data[i] = (float) (random.nextGaussian() * amplitude);
+        }
+        return data;
+    }
+
+    private static float[] run(Limiter limiter, float[] input) {
+        float[] output = input.clone();
+        for (int i = 0; i < output.length; i += BLOCK) {
+            float[] block = new float[Math.min(BLOCK, output.length - i)];
+            System.arraycopy(output, i, block, 0, block.length);
+            limiter.process(block, block.length);
+            System.arraycopy(block, 0, output, i, block.length);
+        }
+        return output;
+    }
+
+    @Test
+    public void quietSignalIsOnlyDelayed() {
+        Limiter limiter = new Limiter(SAMPLE_RATE, 2);
+        float[] input = noise(0.1f, SAMPLE_RATE, 1);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = Math.max(-0.5f, Math.min(0.5f, input[i]));
+        }
+        float[] output = run(limiter, input);
+        int delay = limiter.getLatencyFrames() * 2;
+        assertTrue(limiter.getLatencyFrames() * 1000f / SAMPLE_RATE <= 2);
+        for (int i = delay; i < output.length; i++) {
+            assertEquals(input[i - delay], output[i], 0);
+        }
+        assertEquals(0, limiter.getGainReductionDb(), 0);
+    }
+
+    @Test
+    public void peaksNeverExceedCeiling() {
+        Limiter limiter = new Limiter(SAMPLE_RATE, 2);
+        limiter.setCeilingDb(-1);
+        float ceiling = (float) Math.pow(10, -1 / 20.0);
+        // 安静的段落中间夹着很响的一段
+        float[] input = noise(0.05f, SAMPLE_RATE * 4, 2);
+        float[] loud = noise(1.5f, SAMPLE_RATE / 2, 3);
+        System.arraycopy(loud, 0, input, SAMPLE_RATE / 2, loud.length);
+        float[] output = run(limiter, input);
+        int delay = limiter.getLatencyFrames() * 2;
+        float previousGain = 1;
+        for (int i = delay; i < output.length; i++) {
+            assertTrue(i + ": " + output[i], Math.abs(output[i]) <= ceiling + 1e-6f);
+        }
+        // 增益平滑变化：相邻帧的增益变化不超过 1/L
+        for (int i = delay; i < output.length; i += 2) {
+            float in = input[i - delay];
+            if (Math.abs(in) < 0.01f) {
+                continue;
+            }
+            float gain = output[i] / in;
+            assertTrue(i + ": " + gain, Math.abs(gain - previousGain) <= 2f / limiter.getLatencyFrames());
+            previousGain = gain;
+        }
+        // 响的部分过去后恢复原样
+        for (int i = output.length - SAMPLE_RATE / 4; i < output.length; i++) {
+            assertEquals(input[i - delay], output[i], 0);
+        }
+    }
+
+    @Test
+    public void headroomFromTrackPeaks() {
+        Limiter limiter = new Limiter(SAMPLE_RATE, 2);
+        limiter.setCeilingDb(0);
+        assertEquals(1, limiter.setHeadroom(new float[]{0.5f, 0.4f}, new float[]{1, 1}, 6), 0);
+        assertEquals(1 / 1.25f, limiter.setHeadroom(new float[]{0.5f, 0.75f}, new float[]{1, 1}, 6), 1e-6);
+        // 最多预留 6dB
+        assertEquals(0.501f, limiter.setHeadroom(new float[]{1f, 1f, 1f}, new float[]{1, 1, 1}, 6), 0.001);
+        assertEquals(0.501f, limiter.getInputGain(), 0.001);
+    }
+
+    @Test
+    public void limiterDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        Limiter limiter = new Limiter(SAMPLE_RATE, 2);
+        float[] loud = noise(2, BLOCK, 4);
+        float[] block = new float[BLOCK];
+        for (int i = 0; i < 100; i++) { // 预热
+            System.arraycopy(loud, 0, block, 0, BLOCK);
+            limiter.process(block, BLOCK);
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            System.arraycopy(loud, 0, block, 0, BLOCK);
+            limiter.process(block, BLOCK);
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
@@ -0,0 +1,69 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 响度测量测试（参考 EBU Tech 3341 的测试信号）
+ */
+public class LoudnessMeterTest {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    /**
+     * 立体声正弦波，两个声道相同
+     */
+    private static short[] stereoSine(double frequency, double dbfs, double phase, double seconds) {
+        int frames = (int) (SAMPLE_RATE * seconds);
+        short[] data = new short[frames * 2];
+        double amplitude = Math.pow(10, dbfs / 20) * 32768;
+        for (int i = 0; i < frames; i++) {
+            short value = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE + phase));
+            data[i * 2] = value;
+            data[i * 2 + 1] = value;
+        }
+        return data;
+    }
+
+    private static void feed(LoudnessMeter meter, short[] data) {
+        for (int i = 0; i < data.length; i += 4096) {
+            meter.process(data, i, Math.min(4096, data.length - i));
+        }
+    }
+
+    @Test
+    public void sineAtMinus23() {
+        // 1kHz -23dBFS 立体声，综合响度应为 -23LUFS（误差0.1LU以内）
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        feed(meter, stereoSine(1000, -23, 0, 20));
+        assertEquals(-23, meter.getIntegratedLoudness(), 0.1);
+        assertEquals(Math.pow(10, -23 / 20.0), meter.getTruePeak(), 0.002);
+    }
+
+    @Test
+    public void gatingIgnoresSilenceAndQuietParts() {
+        // Tech 3341 第3例：-36dBFS 10秒，-23dBFS 60秒，-36dBFS 10秒，中间夹静音，综合响度仍为 -23LUFS
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        feed(meter, new short[SAMPLE_RATE * 2 * 5]);
+        feed(meter, stereoSine(1000, -36, 0, 10));
+        feed(meter, stereoSine(1000, -23, 0, 60));
+        feed(meter, stereoSine(1000, -36, 0, 10));
+        feed(meter, new short[SAMPLE_RATE * 2 * 5]);
+        assertEquals(-23, meter.getIntegratedLoudness(), 0.1);
+
+        LoudnessMeter silent = new LoudnessMeter(SAMPLE_RATE, 2);
+        feed(silent, new short[SAMPLE_RATE * 2]);
+        assertTrue(Double.isInfinite(silent.getIntegratedLoudness()));
+    }
+
+    @Test
+    public void truePeakBetweenSamples() {
+        // fs/4 正弦相位45度，采样点只有峰值的0.707，真峰值为 -6dBFS（误差0.5dB以内）
+        LoudnessMeter meter = new LoudnessMeter(SAMPLE_RATE, 2);
+        feed(meter, stereoSine(SAMPLE_RATE / 4.0, -6, Math.PI / 4, 1));
+        assertEquals(-9, 20 * Math.log10(meter.getSamplePeak()), 0.1);
+        assertEquals(-6, 20 * Math.log10(meter.getTruePeak()), 0.5);
+    }
+}
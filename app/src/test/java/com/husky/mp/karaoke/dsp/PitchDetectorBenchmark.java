@@ -0,0 +1,51 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 音高检测基准：处理一秒音频（约100帧）的耗时，结果除以1000即为占用单核的千分比
+ * <p>
+ * 运行：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=PitchDetectorBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PitchDetectorBenchmark {
+
+    @Param({"44100", "48000"})
+    public int sampleRate;
+
+    private PitchDetector detector;
+    private short[] second;
+
+    @Setup
+    public void setup() {
+        detector = new PitchDetector(sampleRate, 1);
+        second = new short[sampleRate];
+        for (int i = 0; i < second.length; i++) {
+            second[i] = (short) (Math.sin(2 * Math.PI * 220 * i / sampleRate) * 8000
+                    + Math.sin(2 * Math.PI * 440 * i / sampleRate) * 4000);
+        }
+    }
+
+    @Benchmark
+    public float oneSecond() {
+        detector.process(second, 0, second.length);
+        return detector.getFrequency();
+    }
+}
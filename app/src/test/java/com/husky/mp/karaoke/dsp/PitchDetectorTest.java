@@ -0,0 +1,154 @@
+package com.husky.mp.karaoke.dsp;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 音高检测准确度测试，用合成音代替人声
+ */
+public class PitchDetectorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    /**
+     * 生成单声道合成音，harmonics 为谐波个数（1为纯正弦），幅度按 1/n 衰减
+     */
+    private static short[] tone(double frequency, int harmonics, double seconds) {
+        int frames = (int) (SAMPLE_RATE * seconds);
+        short[] data = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            double value = 0;
+            for (int n = 1; n <= harmonics; n++) {
+                value += Math.sin(2 * Math.PI * frequency * n * i / SAMPLE_RATE) / n;
+            }
+            data[i] = (short) (value * 8000);
+        }
+        return data;
+    }
+
+    /**
+     * 检测合成音，返回稳定后的中位数音高
+     */
+    private static float detect(short[] data) {
+        PitchDetector detector = new PitchDetector(SAMPLE_RATE, 1);
+        final float[] frequencies = new float[1000];
+        final int[] count = new int[1];
+        detector.setOnPitchListener(new PitchDetector.OnPitchListener() {
+            @Override
+            public void onPitch(long timeUs, float frequency, float confidence) {
+                frequencies[count[0]++] = frequency;
+            }
+        });
+        for (int i = 0; i < data.length; i += 256) {
+            detector.process(data, i, Math.min(256, data.length - i));
+        }
+        float[] sorted = new float[count[0]];
+        System.arraycopy(frequencies, 0, sorted, 0, count[0]);
+        java.util.Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void assertCents(double expected, float actual, double cents) {
+        double error = 1200 * Math.log(actual / expected) / Math.log(2);
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(error) < cents);
+    }
+
+    @Test
+    public void pureTones() {
+        double[] frequencies = {82.41, 110, 196, 261.63, 440, 659.26, 987.77};
+        for (double frequency : frequencies) {
+            assertCents(frequency, detect(tone(frequency, 1, 1)), 10);
+        }
+    }
+
+    @Test
+    public void harmonicTones() {
+        // 谐波丰富的音色不能出现八度错误
+        double[] frequencies = {98, 146.83, 220, 392, 523.25};
+        for (double frequency : frequencies) {
+            assertCents(frequency, detect(tone(frequency, 8, 1)), 10);
+        }
+    }
+
+    @Test
+    public void noisyTone() {
+        short[] data = tone(330, 4, 1);
+        Random random = new Random(1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (short) (data[i] + random.nextGaussian() * 800);
+        }
+        assertCents(330, detect(data), 20);
+    }
+
+    @Test
+    public void silenceAndNoiseAreUnvoiced() {
+        assertEquals(0, detect(new short[SAMPLE_RATE]), 0);
+
+        short[] noise = new short[SAMPLE_RATE];
+        Random random = new Random(2);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (short) (random.nextGaussian() * 5000);
+        }
+        assertEquals(0, detect(noise), 0);
+    }
+
+    @Test
+    public void frameRateAndStereo() {
+        PitchDetector detector = new PitchDetector(SAMPLE_RATE, 2);
+        final int[] count = new int[1];
+        final long[] lastTimeUs = new long[1];
+        detector.setOnPitchListener(new PitchDetector.OnPitchListener() {
+            @Override
+            public void onPitch(long timeUs, float frequency, float confidence) {
+                count[0]++;
+                lastTimeUs[0] = timeUs;
+            }
+        });
+        short[] mono = tone(440, 1, 2);
+        short[] stereo = new short[mono.length * 2];
+        for (int i = 0; i < mono.length; i++) {
+            stereo[i * 2] = mono[i];
+            stereo[i * 2 + 1] = mono[i];
+        }
+        detector.process(stereo, 0, stereo.length);
+
+        // 约100Hz输出，减去填满第一个窗口的时间
+        float expected = (2_000_000 - detector.getWindowDurationUs()) / 1_000_000f * detector.getFrameRate();
+        assertEquals(expected, count[0], 2);
+        assertTrue(Math.abs(detector.getFrameRate() - 100) < 1);
+        // 时间戳为窗口中心
+        assertEquals(2_000_000 - detector.getWindowDurationUs() / 2, lastTimeUs[0], 20_000);
+        assertCents(440, detector.getFrequency(), 10);
+    }
+
+    @Test
+    public void noAllocationPerFrame() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        PitchDetector detector = new PitchDetector(SAMPLE_RATE, 1);
+        short[] data = tone(220, 4, 1);
+        detector.process(data, 0, data.length);    // 预热
+
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 5; i++) {
+            detector.process(data, 0, data.length);
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+
+    @Test
+    public void toMidi() {
+        assertEquals(69, PitchDetector.toMidi(440), 1e-4);
+        assertEquals(60, PitchDetector.toMidi(261.63f), 1e-2);
+        assertEquals(0, PitchDetector.toMidi(0), 0);
+    }
+}
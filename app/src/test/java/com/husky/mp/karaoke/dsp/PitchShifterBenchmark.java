@@ -0,0 +1,72 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 变调基准：处理一秒44.1kHz立体声的耗时，结果除以1000即为占用单核的千分比
+ * <p>
+ * 运行：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=PitchShifterBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PitchShifterBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_FRAMES = 512;
+
+    @Param({"-5", "3", "12"})
+    public int semitones;
+
+    private PitchShifter shifter;
+    private float[] source;
+    private float[] out;
+
+    @Setup
+    public void setup() {
+        shifter = new PitchShifter(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        shifter.setSemitones(semitones);
+        source = new float[SAMPLE_RATE * 2];
+        Random random = new Random(1);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (float) (random.nextGaussian() * 4000);
+        }
+        out = new float[BLOCK_FRAMES * 2];
+    }
+
+    @Benchmark
+    public float oneSecond() {
+        // 与 PitchShiftSource 一样按块拉取
+        int position = 0;
+        int produced = 0;
+        while (produced < SAMPLE_RATE) {
+            int count = shifter.read(out, 0, BLOCK_FRAMES);
+            produced += count;
+            if (count < BLOCK_FRAMES) {
+                int frames = Math.min(BLOCK_FRAMES, SAMPLE_RATE - position);
+                if (frames <= 0) {
+                    position = 0;
+                    frames = BLOCK_FRAMES;
+                }
+                position += shifter.write(source, position * 2, frames);
+            }
+        }
+        return out[0];
+    }
+}
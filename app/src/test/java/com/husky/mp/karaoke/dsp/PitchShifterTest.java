@@ -0,0 +1,138 @@
+package com.husky.mp.karaoke.dsp;
+
+import com.husky.mp.AllocationCounter;
+import com.husky.mp.karaoke.PitchShiftSource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 变调测试，用合成音检测变调后的音高、时长和过渡是否平滑
+ */
+public class PitchShifterTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_FRAMES = 512;
+
+    private static short[] stereoTone(double frequency, double seconds) {
+        int frames = (int) (SAMPLE_RATE * seconds);
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            short value = (short) (Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE) * 8000);
+            data[i * 2] = value;
+            data[i * 2 + 1] = value;
+        }
+        return data;
+    }
+
+    /**
+     * 通过 PitchShiftSource 读取全部输出
+     */
+    private static short[] shift(short[] input, float semitones) throws InterruptedException {
+        PitchShifter shifter = new PitchShifter(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        shifter.setSemitones(semitones);
+        PitchShiftSource source = new PitchShiftSource(new VocalRemoverTest.ArraySource(input), shifter, 2, BLOCK_FRAMES);
+        short[] output = new short[input.length + BLOCK_FRAMES * 4];
+        int total = 0;
+        int count;
+        while ((count = source.read(output, total, BLOCK_FRAMES * 2)) >= 0) {
+            total += count;
+        }
+        short[] result = new short[total];
+        System.arraycopy(output, 0, result, 0, total);
+        return result;
+    }
+
+    private static float detect(short[] stereo, int skipFrames) {
+        PitchDetector detector = new PitchDetector(SAMPLE_RATE, 2);
+        detector.process(stereo, skipFrames * 2, stereo.length - skipFrames * 2);
+        return detector.getFrequency();  // 跳过开头的音调过渡
+    }
+
+    private static void assertCents(double expected, float actual, double cents) {
+        double error = 1200 * Math.log(actual / expected) / Math.log(2);
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(error) < cents);
+    }
+
+    @Test
+    public void shiftsPitchKeepingDuration() throws Exception {
+        short[] input = stereoTone(220, 2);
+        short[] up = shift(input, 12);
+        assertEquals(input.length, up.length);
+        assertCents(440, detect(up, SAMPLE_RATE), 15);
+
+        short[] down = shift(input, -7);
+        assertEquals(input.length, down.length);
+        assertCents(220 * Math.pow(2, -7 / 12.0), detect(down, SAMPLE_RATE), 15);
+    }
+
+    @Test
+    public void unusedShifterIsBitExact() throws Exception {
+        short[] input = stereoTone(330, 1);
+        short[] output = shift(input, 0);
+        assertEquals(input.length, output.length);
+        for (int i = 0; i < input.length; i++) {
+            assertEquals(input[i], output[i]);
+        }
+    }
+
+    @Test
+    public void keyChangeIsSmooth() throws Exception {
+        short[] input = stereoTone(220, 2);
+        PitchShifter shifter = new PitchShifter(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        shifter.setSemitones(0.001f);   // 开始经过变调器
+        PitchShiftSource source = new PitchShiftSource(new VocalRemoverTest.ArraySource(input), shifter, 2, BLOCK_FRAMES);
+        short[] block = new short[BLOCK_FRAMES * 2];
+        int maxJump = 0;
+        int previous = 0;
+        boolean first = true;
+        int blocks = 0;
+        int count;
+        while ((count = source.read(block, 0, block.length)) >= 0) {
+            if (++blocks == 40) {
+                shifter.setSemitones(5);    // 播放中升调
+            }
+            for (int i = 0; i < count; i += 2) {
+                if (!first) {
+                    maxJump = Math.max(maxJump, Math.abs(block[i] - previous));
+                }
+                previous = block[i];
+                first = false;
+            }
+        }
+        // 正弦波相邻采样的最大差值为 A * 2πf / fs，升5个半音约为 1.34 倍，允许交叉淡化带来的少量误差
+        double slope = 8000 * 2 * Math.PI * 220 * Math.pow(2, 5 / 12.0) / SAMPLE_RATE;
+        assertTrue("max jump " + maxJump + ", slope " + slope, maxJump < slope * 1.5);
+    }
+
+    @Test
+    public void latencyIsBounded() {
+        PitchShifter shifter = new PitchShifter(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        // 片段40毫秒加半个搜索窗口
+        assertTrue(shifter.getLatencyFrames() * 1000 / SAMPLE_RATE <= 50);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() throws Exception {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        short[] input = stereoTone(220, 5);
+        PitchShifter shifter = new PitchShifter(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        shifter.setSemitones(3);
+        PitchShiftSource source = new PitchShiftSource(new VocalRemoverTest.ArraySource(input), shifter, 2, BLOCK_FRAMES);
+        short[] block = new short[BLOCK_FRAMES * 2];
+        for (int i = 0; i < 50; i++) {  // 预热
+            source.read(block, 0, block.length);
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 200; i++) {
+            source.read(block, 0, block.length);
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
@@ -0,0 +1,72 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 变速基准：输出一秒44.1kHz立体声的耗时，结果除以1000即为占用单核的千分比
+ * <p>
+ * 运行：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=TimeStretcherBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeStretcherBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_FRAMES = 512;
+
+    @Param({"0.5", "0.75", "1.0", "1.5"})
+    public float tempo;
+
+    private TimeStretcher stretcher;
+    private float[] source;
+    private float[] out;
+
+    @Setup
+    public void setup() {
+        stretcher = new TimeStretcher(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        stretcher.setTempo(tempo);
+        source = new float[SAMPLE_RATE * 2];
+        Random random = new Random(1);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (float) (random.nextGaussian() * 4000);
+        }
+        out = new float[BLOCK_FRAMES * 2];
+    }
+
+    @Benchmark
+    public float oneSecond() {
+        // 与播放线程一样按块拉取，不够时写入下一块
+        int position = 0;
+        int produced = 0;
+        while (produced < SAMPLE_RATE) {
+            int count = stretcher.read(out, 0, BLOCK_FRAMES);
+            produced += count;
+            if (count < BLOCK_FRAMES) {
+                int frames = Math.min(BLOCK_FRAMES, SAMPLE_RATE - position);
+                if (frames <= 0) {
+                    position = 0;
+                    frames = BLOCK_FRAMES;
+                }
+                position += stretcher.write(source, position * 2, frames);
+            }
+        }
+        return out[0];
+    }
+}
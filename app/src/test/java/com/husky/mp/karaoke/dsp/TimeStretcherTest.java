@@ -0,0 +1,126 @@
+package com.husky.mp.karaoke.dsp;
+
+import com.husky.mp.AllocationCounter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 变速不变调测试
+ */
+public class TimeStretcherTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BLOCK_FRAMES = 512;
+
+    private static float[] stereoTone(double frequency, int frames) {
+        float[] data = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            float value = (float) (Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE) * 0.3);
+            data[i * 2] = value;
+            data[i * 2 + 1] = value;
+        }
+        return data;
+    }
+
+    /**
+     * 按块写入全部输入并读出输出
+     */
+    private static float[] stretch(TimeStretcher stretcher, float[] input) {
+        float[] output = new float[(int) (input.length / TimeStretcher.MIN_TEMPO) + BLOCK_FRAMES * 4];
+        int frames = input.length / 2;
+        int produced = 0;
+        for (int i = 0; i < frames; i += BLOCK_FRAMES) {
+            stretcher.write(input, i * 2, Math.min(BLOCK_FRAMES, frames - i));
+            int count;
+            while ((count = stretcher.read(output, produced * 2, BLOCK_FRAMES)) > 0) {
+                produced += count;
+            }
+        }
+        float[] result = new float[produced * 2];
+        System.arraycopy(output, 0, result, 0, produced * 2);
+        return result;
+    }
+
+    private static float detect(float[] stereo) {
+        short[] pcm = new short[stereo.length];
+        for (int i = 0; i < stereo.length; i++) {
+            pcm[i] = (short) (stereo[i] * 32767);
+        }
+        PitchDetector detector = new PitchDetector(SAMPLE_RATE, 2);
+        detector.process(pcm, 0, pcm.length);
+        return detector.getFrequency();
+    }
+
+    @Test
+    public void speedChangesDurationNotPitch() {
+        float[] speeds = {0.5f, 0.75f, 1.25f, 1.5f};
+        for (float speed : speeds) {
+            TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2, BLOCK_FRAMES);
+            stretcher.setTempo(speed);
+            float[] input = stereoTone(330, SAMPLE_RATE * 2);
+            float[] output = stretch(stretcher, input);
+            // 末尾还有不超过延迟的输入没有输出
+            double expected = (input.length / 2 - stretcher.getLatencyFrames()) / speed;
+            assertEquals(expected, output.length / 2, stretcher.getLatencyFrames() / speed);
+            float frequency = detect(output);
+            assertTrue(speed + "x: " + frequency, Math.abs(frequency - 330) < 3);
+        }
+    }
+
+    @Test
+    public void normalSpeedIsTransparent() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        // 用噪声，周期信号在搜索窗口内有多个同样相似的位置
+        float[] input = new float[SAMPLE_RATE * 2];
+        Random random = new Random(1);
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (float) (random.nextGaussian() * 0.2);
+        }
+        float[] output = stretch(stretcher, input);
+        // 输出与输入对齐
+        for (int i = 0; i < output.length; i++) {
+            assertEquals(input[i], output[i], 1e-4);
+        }
+    }
+
+    @Test
+    public void inputPositionFollowsOutput() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        stretcher.setTempo(0.75f);
+        float[] input = stereoTone(440, SAMPLE_RATE * 3);
+        float[] output = stretch(stretcher, input);
+        // 读出的输出按速度对应输入位置，误差不超过一个片段
+        assertEquals(output.length / 2 * 0.75, stretcher.getInputPosition(), SAMPLE_RATE * 0.04);
+        assertEquals(output.length / 2, stretcher.getOutputPosition());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        AllocationCounter counter = new AllocationCounter();
+        if (!counter.isSupported()) {
+            return; // 当前虚拟机不支持统计分配
+        }
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, 2, BLOCK_FRAMES);
+        stretcher.setTempo(0.75f);
+        float[] input = stereoTone(440, BLOCK_FRAMES);
+        float[] output = new float[BLOCK_FRAMES * 2];
+        for (int i = 0; i < 100; i++) { // 预热
+            stretcher.write(input, 0, BLOCK_FRAMES);
+            while (stretcher.read(output, 0, BLOCK_FRAMES) > 0) {
+            }
+        }
+        long before = counter.allocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            stretcher.write(input, 0, BLOCK_FRAMES);
+            while (stretcher.read(output, 0, BLOCK_FRAMES) > 0) {
+            }
+        }
+        long allocated = counter.allocatedBytes() - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 1000);
+    }
+}
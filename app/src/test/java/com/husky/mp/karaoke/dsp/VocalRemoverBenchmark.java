@@ -0,0 +1,59 @@
+package com.husky.mp.karaoke.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消除人声基准：处理一秒44.1kHz立体声的耗时，结果除以1000即为占用单核的千分比
+ * <p>
+ * 运行：./gradlew testDebugUnitTest --tests '*BenchmarkRunner*' -Pbenchmark=VocalRemoverBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VocalRemoverBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({"0", "1"})  // MODE_MID_SIDE, MODE_SPECTRAL
+    public int mode;
+
+    private VocalRemover remover;
+    private short[] source;
+    private short[] block;
+
+    @Setup
+    public void setup() {
+        remover = new VocalRemover(SAMPLE_RATE, mode);
+        source = new short[SAMPLE_RATE * 2];
+        Random random = new Random(1);
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (short) (random.nextGaussian() * 4000);
+        }
+        block = new short[1024];    // 与混音块大小一致（512帧立体声）
+    }
+
+    @Benchmark
+    public short oneSecond() {
+        for (int i = 0; i + block.length <= source.length; i += block.length) {
+            System.arraycopy(source, i, block, 0, block.length);
+            remover.process(block, 0, block.length);
+        }
+        return block[0];
+    }
+}
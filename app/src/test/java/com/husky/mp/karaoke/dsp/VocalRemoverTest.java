@@ -0,0 +1,123 @@
+package com.husky.mp.karaoke.dsp;
+
+import com.husky.mp.karaoke.MixSource;
+import com.husky.mp.karaoke.VocalRemovalSource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消除人声测试：居中的440Hz模拟人声，只在左声道的660Hz模拟乐器，居中的60Hz模拟贝斯
+ */
+public class VocalRemoverTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    private static short[] mix(int frames, double vocal, double instrument, double bass) {
+        short[] data = new short[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double centre = vocal * Math.sin(2 * Math.PI * 440 * t) + bass * Math.sin(2 * Math.PI * 60 * t);
+            data[i * 2] = (short) (centre + instrument * Math.sin(2 * Math.PI * 660 * t));
+            data[i * 2 + 1] = (short) centre;
+        }
+        return data;
+    }
+
+    /**
+     * 某个声道中某个频率的幅度（与正弦余弦做相关），跳过开头 skip 帧
+     */
+    private static double amplitude(short[] data, int channel, double frequency, int skip) {
+        double sin = 0, cos = 0;
+        int frames = data.length / 2;
+        int count = 0;
+        for (int i = skip; i < frames; i++) {
+            double phase = 2 * Math.PI * frequency * i / SAMPLE_RATE;
+            sin += data[i * 2 + channel] * Math.sin(phase);
+            cos += data[i * 2 + channel] * Math.cos(phase);
+            count++;
+        }
+        return 2 * Math.sqrt(sin * sin + cos * cos) / count;
+    }
+
+    private static void process(VocalRemover remover, short[] data) {
+        for (int i = 0; i < data.length; i += 1024) {
+            remover.process(data, i, Math.min(1024, data.length - i));
+        }
+    }
+
+    private static double db(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+
+    @Test
+    public void spectralRemovesCentreOnly() {
+        short[] data = mix(SAMPLE_RATE * 2, 6000, 4000, 0);
+        VocalRemover remover = new VocalRemover(SAMPLE_RATE, VocalRemover.MODE_SPECTRAL);
+        process(remover, data);
+        int skip = remover.getLatencyFrames() * 2;
+        assertTrue(db(amplitude(data, 0, 440, skip) / 6000) < -20);
+        assertTrue(db(amplitude(data, 1, 440, skip) / 6000) < -20);
+        assertEquals(0, db(amplitude(data, 0, 660, skip) / 4000), 1);
+        assertTrue(amplitude(data, 1, 660, skip) < 100);   // 不会串到另一个声道
+    }
+
+    @Test
+    public void midSideKeepsBass() {
+        short[] data = mix(SAMPLE_RATE * 2, 6000, 0, 6000);
+        VocalRemover remover = new VocalRemover(SAMPLE_RATE, VocalRemover.MODE_MID_SIDE);
+        process(remover, data);
+        int skip = SAMPLE_RATE / 10;
+        assertTrue(db(amplitude(data, 0, 440, skip) / 6000) < -12);
+        assertTrue(db(amplitude(data, 0, 60, skip) / 6000) > -3);
+        assertEquals(0, remover.getLatencyFrames());
+    }
+
+    @Test
+    public void strengthZeroIsTransparentAndAligned() throws Exception {
+        final short[] input = mix(SAMPLE_RATE, 6000, 4000, 2000);
+        VocalRemover remover = new VocalRemover(SAMPLE_RATE, VocalRemover.MODE_SPECTRAL);
+        remover.setStrength(0);
+        VocalRemovalSource source = new VocalRemovalSource(new ArraySource(input), remover);
+
+        short[] output = new short[input.length + 4096];
+        int total = 0;
+        int count;
+        while ((count = source.read(output, total, Math.min(1000, output.length - total))) >= 0) {
+            total += count;
+        }
+        // 延迟已经补偿，长度和内容都与输入一致
+        assertEquals(input.length, total);
+        for (int i = 0; i < input.length; i++) {
+            assertEquals(input[i], output[i], 2);
+        }
+    }
+
+    // 从数组读取的文件音源
+    static class ArraySource implements MixSource {
+        private final short[] data;
+        private int position = 0;
+
+        ArraySource(short[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int size) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int count = Math.min(size, data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public boolean isLive() {
+            return false;
+        }
+    }
+}